@@ -61,6 +61,29 @@ abstract public class Dictionary {
         boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from);
     }
 
+    /**
+     * A {@link WordCallback} which can tell, in advance, which words it will not add. Dictionaries
+     * can use this to skip parts of their traversal which can not produce a word that will be added.
+     */
+    public interface WordCallbackWithThreshold extends WordCallback {
+        /**
+         * @return the frequency threshold: a completion word (longer than the typed word) with
+         * a frequency equal or lower than this value will not be added.
+         */
+        int getFrequencyThreshold();
+    }
+
+    /**
+     * @return the callback's frequency threshold, or -1 if the callback will consider any word.
+     */
+    protected static int getFrequencyThreshold(WordCallback callback) {
+        if (callback instanceof WordCallbackWithThreshold) {
+            return ((WordCallbackWithThreshold) callback).getFrequencyThreshold();
+        } else {
+            return -1;
+        }
+    }
+
     private volatile boolean mLoadingResources = true;
     protected final Object mResourceMonitor = new Object();
     private final String mDictionaryName;
@@ -84,6 +107,17 @@ abstract public class Dictionary {
      */
     abstract public void getWords(final WordComposer composer, final WordCallback callback);
 
+    /**
+     * Searches for words which usually follow the given word. Matched words are added through the
+     * callback object, ordered by their frequency.
+     * Most dictionaries do not hold such information, so this implementation does not add any word.
+     *
+     * @param previousWord the word to find followers for
+     * @param callback     the callback object to send matched words to
+     */
+    public void getBigrams(final CharSequence previousWord, final WordCallback callback) {
+    }
+
     /**
      * Checks if the given word occurs in the dictionary
      *
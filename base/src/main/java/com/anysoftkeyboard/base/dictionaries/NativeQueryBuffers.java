@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 Menny Even-Danan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anysoftkeyboard.base.dictionaries;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Direct memory which is shared with a native dictionary for its queries. The typed codes
+ * go in, and the suggested words come out. Native code reads and writes this memory in place,
+ * so nothing is copied (or allocated) when crossing the JNI boundary.
+ * <p>
+ * The layout (in native byte order) is:
+ * <ol>
+ * <li>input codes - maxWordLength * maxAlternatives ints. Each typed character has maxAlternatives
+ * slots, terminated by -1 if not all are used.</li>
+ * <li>frequencies - maxWords ints, highest first. The native side clears these before a query.</li>
+ * <li>words lengths - maxWords ints.</li>
+ * <li>output characters - maxWordLength * maxWords chars. Not NULL terminated.</li>
+ * </ol>
+ * A single instance should not be used by two queries at the same time.
+ */
+public final class NativeQueryBuffers {
+    private static final int INT_SIZE = 4;
+    private static final int CHAR_SIZE = 2;
+
+    private final int mMaxWordLength;
+    private final int mMaxWords;
+    private final int mMaxAlternatives;
+
+    private final ByteBuffer mBuffer;
+    private final IntBuffer mInputCodes;
+    private final IntBuffer mFrequencies;
+    private final IntBuffer mWordsLengths;
+    private final CharBuffer mOutputChars;
+    private final char[] mWord;
+
+    public NativeQueryBuffers(int maxWordLength, int maxWords, int maxAlternatives) {
+        mMaxWordLength = maxWordLength;
+        mMaxWords = maxWords;
+        mMaxAlternatives = maxAlternatives;
+
+        final int inputCodesSize = maxWordLength * maxAlternatives * INT_SIZE;
+        final int frequenciesSize = maxWords * INT_SIZE;
+        final int outputCharsSize = maxWordLength * maxWords * CHAR_SIZE;
+        mBuffer = ByteBuffer.allocateDirect(inputCodesSize + 2 * frequenciesSize + outputCharsSize).order(ByteOrder.nativeOrder());
+        mInputCodes = slice(0, inputCodesSize).asIntBuffer();
+        mFrequencies = slice(inputCodesSize, frequenciesSize).asIntBuffer();
+        mWordsLengths = slice(inputCodesSize + frequenciesSize, frequenciesSize).asIntBuffer();
+        mOutputChars = slice(inputCodesSize + 2 * frequenciesSize, outputCharsSize).asCharBuffer();
+        mWord = new char[maxWordLength];
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        mBuffer.limit(offset + length);
+        mBuffer.position(offset);
+        //slicing resets the byte-order
+        final ByteBuffer slice = mBuffer.slice().order(ByteOrder.nativeOrder());
+        mBuffer.clear();
+        return slice;
+    }
+
+    /**
+     * The buffer to pass to the native query.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getMaxWordLength() {
+        return mMaxWordLength;
+    }
+
+    public int getMaxWords() {
+        return mMaxWords;
+    }
+
+    public int getMaxAlternatives() {
+        return mMaxAlternatives;
+    }
+
+    /**
+     * Writes the composer's codes. Only the slots of the typed characters are written,
+     * the native query does not look beyond them.
+     *
+     * @return the number of typed characters written.
+     */
+    public int setInputCodes(WordComposer codes) {
+        final int codesSize = Math.min(codes.length(), mMaxWordLength);
+        for (int i = 0; i < codesSize; i++) {
+            final int[] alternatives = codes.getCodesAt(i);
+            final int alternativesCount = Math.min(alternatives.length, mMaxAlternatives);
+            final int slotStart = i * mMaxAlternatives;
+            for (int alternativeIndex = 0; alternativeIndex < alternativesCount; alternativeIndex++) {
+                mInputCodes.put(slotStart + alternativeIndex, alternatives[alternativeIndex]);
+            }
+            if (alternativesCount < mMaxAlternatives) {
+                mInputCodes.put(slotStart + alternativesCount, -1);
+            }
+        }
+        return codesSize;
+    }
+
+    public int getFrequency(int wordIndex) {
+        return mFrequencies.get(wordIndex);
+    }
+
+    public int getWordLength(int wordIndex) {
+        return mWordsLengths.get(wordIndex);
+    }
+
+    /**
+     * Copies the suggested word at the given index into a re-used array.
+     * The array is valid until the next call.
+     *
+     * @return an array holding the word, starting at index 0. Its length is {@link #getWordLength(int)}.
+     */
+    public char[] getWord(int wordIndex) {
+        final int length = Math.min(mWordsLengths.get(wordIndex), mMaxWordLength);
+        mOutputChars.position(wordIndex * mMaxWordLength);
+        mOutputChars.get(mWord, 0, length);
+        return mWord;
+    }
+}
@@ -57,6 +57,24 @@ public class WordComposer {
     public WordComposer() {
     }
 
+    /**
+     * Creates a detached copy of this composer. The copy does not share any mutable state
+     * with this instance, so it can be safely handed to another thread.
+     */
+    public WordComposer snapshot() {
+        WordComposer snapshot = new WordComposer();
+        for (int[] codes : mCodes) {
+            snapshot.mCodes.add(codes.clone());
+        }
+        snapshot.mPreferredWord = mPreferredWord;
+        snapshot.mTypedWord.append(mTypedWord);
+        snapshot.mCursorPosition = mCursorPosition;
+        snapshot.mCapsCount = mCapsCount;
+        snapshot.mAutoCapitalized = mAutoCapitalized;
+        snapshot.mIsFirstCharCapitalized = mIsFirstCharCapitalized;
+        return snapshot;
+    }
+
     /**
      * Clear out the keys registered so far.
      */
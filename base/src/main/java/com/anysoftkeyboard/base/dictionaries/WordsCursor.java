@@ -45,6 +45,14 @@ public class WordsCursor {
         return mCursor.getInt(2);
     }
 
+    /**
+     * A value which only grows when a row is added or changed (by default, the row's id).
+     * Rows with a higher mark than the highest one read before, are the rows which were changed since.
+     */
+    public long getCurrentModificationMark() {
+        return getCurrentWordId();
+    }
+
     public static class SqliteWordsCursor extends WordsCursor {
         private final SQLiteDatabase mDb;
 
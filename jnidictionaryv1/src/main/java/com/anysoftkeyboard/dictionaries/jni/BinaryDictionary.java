@@ -22,11 +22,12 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.NativeQueryBuffers;
 import com.anysoftkeyboard.base.dictionaries.WordComposer;
 import com.anysoftkeyboard.base.utils.CompatUtils;
 
 import java.io.FileDescriptor;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
@@ -39,9 +40,7 @@ public class BinaryDictionary extends Dictionary {
     private static final boolean ENABLE_MISSED_CHARACTERS = true;
     private final AssetFileDescriptor mAfd;
     private volatile long mNativeDict;
-    private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
-    private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
-    private int[] mFrequencies = new int[MAX_WORDS];
+    private final NativeQueryBuffers mQueryBuffers = new NativeQueryBuffers(MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES);
 
     public BinaryDictionary(@NonNull Context context, @NonNull String dictionaryName, @NonNull AssetFileDescriptor afd, boolean isDebug) {
         super(dictionaryName);
@@ -68,7 +67,7 @@ public class BinaryDictionary extends Dictionary {
 
     private native boolean isValidWordNative(long dictPointer, char[] word, int wordLength);
 
-    private native int getSuggestionsNative(long dictPointer, int[] inputCodes, int codesSize, char[] outputChars, int[] frequencies, int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+    private native int getSuggestionsNative(long dictPointer, ByteBuffer queryBuffer, int codesSize, int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
 
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback) {
@@ -77,15 +76,10 @@ public class BinaryDictionary extends Dictionary {
         // Wont deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return;
 
-        Arrays.fill(mInputCodes, -1);
-        for (int i = 0; i < codesSize; i++) {
-            int[] alternatives = codes.getCodesAt(i);
-            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES, Math.min(alternatives.length, MAX_ALTERNATIVES));
-        }
-        Arrays.fill(mOutputChars, (char) 0);
-        Arrays.fill(mFrequencies, 0);
+        mQueryBuffers.setInputCodes(codes);
+        final ByteBuffer queryBuffer = mQueryBuffers.getBuffer();
 
-        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars, mFrequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1);
+        int count = getSuggestionsNative(mNativeDict, queryBuffer, codesSize, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1);
 
         // If there aren't sufficient suggestions, search for words by allowing wild cards at
         // the different character positions. This feature is not ready for prime-time as we need
@@ -93,7 +87,7 @@ public class BinaryDictionary extends Dictionary {
         // completions.
         if (ENABLE_MISSED_CHARACTERS && count < 5) {
             for (int skip = 0; skip < codesSize; skip++) {
-                int tempCount = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars, mFrequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip);
+                int tempCount = getSuggestionsNative(mNativeDict, queryBuffer, codesSize, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip);
                 count = Math.max(count, tempCount);
                 if (tempCount > 0) break;
             }
@@ -101,16 +95,11 @@ public class BinaryDictionary extends Dictionary {
 
         boolean requestContinue = true;
         for (int j = 0; j < count && requestContinue; j++) {
-            if (mFrequencies[j] < 1) break;
-            final int start = j * MAX_WORD_LENGTH;
-
-            int position = start;
-            while ((mOutputChars.length > position) && (mOutputChars[position] != 0)) {
-                position++;
-            }
-            final int len = (position - start);
+            final int frequency = mQueryBuffers.getFrequency(j);
+            if (frequency < 1) break;
+            final int len = mQueryBuffers.getWordLength(j);
             if (len > 0) {
-                requestContinue = callback.addWord(mOutputChars, start, len, mFrequencies[j], this);
+                requestContinue = callback.addWord(mQueryBuffers.getWord(j), 0, len, frequency, this);
             }
         }
     }
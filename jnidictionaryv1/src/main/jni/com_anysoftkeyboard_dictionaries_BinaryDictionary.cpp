@@ -73,27 +73,25 @@ static jlong nativeime_BinaryDictionary_open
     return (jlong) dictionary;
 }
 
+// The query buffer is a direct buffer, shared with Java for all queries (see NativeQueryBuffers):
+// input codes, then frequencies, then words lengths, and then the output characters.
 static int nativeime_BinaryDictionary_getSuggestions(
-        JNIEnv *env, jobject object, jlong dict, jintArray inputArray, jint arraySize,
-        jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords,
-        jint maxAlternatives, jint skipPos)
+        JNIEnv *env, jobject object, jlong dict, jobject queryBuffer, jint arraySize,
+        jint maxWordLength, jint maxWords, jint maxAlternatives, jint skipPos)
 {
     Dictionary *dictionary = (Dictionary*) dict;
     if (dictionary == NULL)
         return 0;
 
-    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
-    int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
-    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
+    int *inputCodes = (int*) env->GetDirectBufferAddress(queryBuffer);
+    if (inputCodes == NULL)
+        return 0;
+    int *frequencies = inputCodes + maxWordLength * maxAlternatives;
+    int *wordsLengths = frequencies + maxWords;
+    unsigned short *outputChars = (unsigned short*) (wordsLengths + maxWords);
 
-    int count = dictionary->getSuggestions(inputCodes, arraySize, (unsigned short*) outputChars, frequencies,
+    return dictionary->getSuggestions(inputCodes, arraySize, outputChars, frequencies, wordsLengths,
             maxWordLength, maxWords, maxAlternatives, skipPos);
-
-    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
-    env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
-    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
-
-    return count;
 }
 
 static jboolean nativeime_BinaryDictionary_isValidWord
@@ -121,7 +119,7 @@ static void nativeime_BinaryDictionary_close(JNIEnv *env, jobject object, jlong
 static JNINativeMethod gMethods[] = {
     {"openNative",           "(Ljava/io/FileDescriptor;JJII)J", (void*)nativeime_BinaryDictionary_open},
     {"closeNative",          "(J)V",            (void*)nativeime_BinaryDictionary_close},
-    {"getSuggestionsNative", "(J[II[C[IIIII)I",  (void*)nativeime_BinaryDictionary_getSuggestions},
+    {"getSuggestionsNative", "(JLjava/nio/ByteBuffer;IIIII)I",  (void*)nativeime_BinaryDictionary_getSuggestions},
     {"isValidWordNative",    "(J[CI)Z",         (void*)nativeime_BinaryDictionary_isValidWord}
 };
 
@@ -18,6 +18,7 @@
 
 #include <stdio.h>
 #include <fcntl.h>
+#include <string.h>
 
 #include "basechars.h"
 #include "lowerchars.h"
@@ -45,9 +46,13 @@ Dictionary::~Dictionary()
 }
 
 int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos)
+        int *wordsLengths, int maxWordLength, int maxWords, int maxAlternatives, int skipPos)
 {
     mFrequencies = frequencies;
+    mWordsLengths = wordsLengths;
+    // only the frequencies have to be cleared: a word (and its length) is read only if it has a frequency.
+    // The missed-characters queries (skipPos >= 0) add to the words of the first query.
+    if (skipPos < 0) memset(mFrequencies, 0, maxWords * sizeof(mFrequencies[0]));
     mOutputChars = outWords;
     mInputCodes = codes;
     mInputLength = codesSize;
@@ -111,12 +116,13 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
         //LOGI("Found word = %s, freq = %d : \n", s, frequency);
     }
 
+    if (length > mMaxWordLength) return false;
     // Find the right insertion point
     int insertAt = 0;
     while (insertAt < mMaxWords) {
         if (frequency > mFrequencies[insertAt]
                  || (mFrequencies[insertAt] == frequency
-                     && length < wideStrLen(mOutputChars + insertAt * mMaxWordLength))) {
+                     && length < mWordsLengths[insertAt])) {
             break;
         }
         insertAt++;
@@ -126,14 +132,18 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
                (char*) mFrequencies + insertAt * sizeof(mFrequencies[0]),
                (mMaxWords - insertAt - 1) * sizeof(mFrequencies[0]));
         mFrequencies[insertAt] = frequency;
+        memmove((char*) mWordsLengths + (insertAt + 1) * sizeof(mWordsLengths[0]),
+               (char*) mWordsLengths + insertAt * sizeof(mWordsLengths[0]),
+               (mMaxWords - insertAt - 1) * sizeof(mWordsLengths[0]));
+        mWordsLengths[insertAt] = length;
         memmove((char*) mOutputChars + (insertAt + 1) * mMaxWordLength * sizeof(short),
                (char*) mOutputChars + (insertAt    ) * mMaxWordLength * sizeof(short),
                (mMaxWords - insertAt - 1) * sizeof(short) * mMaxWordLength);
         unsigned short *dest = mOutputChars + (insertAt    ) * mMaxWordLength;
+        // the length is reported separately, so the word is not NULL terminated
         while (length--) {
             *dest++ = *word++;
         }
-        *dest = 0; // NULL terminate
         // Update the word count
         if (insertAt + 1 > mWords) mWords = insertAt + 1;
         //if (DEBUG_DICT) LOGI("Added word at %d\n", insertAt);
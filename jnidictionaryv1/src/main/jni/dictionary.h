@@ -33,7 +33,7 @@ class Dictionary {
 public:
     Dictionary(unsigned char *dict, int typedLetterMultipler, int fullWordMultiplier);
     int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+        int *wordsLengths, int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
     bool isValidWord(unsigned short *word, int length);
     void setAsset(void *asset) { mAsset = asset; }
     void *getAsset() { return mAsset; }
@@ -60,6 +60,7 @@ private:
     void *mAsset;
 
     int *mFrequencies;
+    int *mWordsLengths;
     int mMaxWords;
     int mMaxWordLength;
     int mWords;
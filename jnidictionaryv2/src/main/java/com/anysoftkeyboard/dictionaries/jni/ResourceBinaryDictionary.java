@@ -17,23 +17,30 @@
 package com.anysoftkeyboard.dictionaries.jni;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.support.annotation.XmlRes;
 import android.util.Log;
 
 import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.NativeQueryBuffers;
 import com.anysoftkeyboard.base.dictionaries.WordComposer;
-import com.anysoftkeyboard.base.utils.GCUtils;
 import com.anysoftkeyboard.base.utils.CompatUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
@@ -50,18 +57,34 @@ public class ResourceBinaryDictionary extends Dictionary {
     private static final String TAG = "ASK_ResBinDict";
     private static final int MAX_ALTERNATIVES = 16;
     private static final int MAX_WORDS = 18;
+    private static final int MAX_BIGRAMS = 12;
+    private static final int[] NO_INPUT_CODES = new int[0];
     private static final boolean ENABLE_MISSED_CHARACTERS = true;
+    private static final int MISSED_CHARACTERS_MIN_WORDS = 5;
+    private static final String STITCHED_DICTIONARY_FILE_EXTENSION = ".dict";
     private final Context mAppContext;
     private final int mDictResId;
+    private final File mStitchedDictionariesFolder;
     private int mDictLength;
-    private final int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
-    private final char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
-    private final int[] mFrequencies = new int[MAX_WORDS];
+    /**
+     * The native dictionary can serve several queries at the same time, as long as each
+     * has its own memory. So, each querying thread gets its own buffers.
+     */
+    private final ThreadLocal<QueryState> mQueryStates = new ThreadLocal<QueryState>() {
+        @Override
+        protected QueryState initialValue() {
+            return new QueryState();
+        }
+    };
+    /**
+     * Queries share the native dictionary, but closing it has to wait for all of them.
+     */
+    private final ReadWriteLock mNativeDictLock = new ReentrantReadWriteLock();
 
     /**
      * NOTE!
-     * Keep a reference to the native dict direct buffer in Java to avoid
-     * unexpected de-allocation of the direct buffer.
+     * Keep a reference to the native dict mapped buffer in Java to avoid
+     * unexpected un-mapping of the buffer.
      */
     @SuppressWarnings("FieldCanBeLocal")
     private ByteBuffer mNativeDictDirectBuffer;
@@ -70,14 +93,16 @@ public class ResourceBinaryDictionary extends Dictionary {
     /**
      * Create a dictionary from a raw resource file
      *
-     * @param context application context for reading resources
-     * @param resId   the resource containing the raw binary dictionary
+     * @param context                    application context for reading resources
+     * @param resId                      the resource containing the raw binary dictionary
+     * @param stitchedDictionariesFolder a writable folder to store dictionaries which can not be mapped directly from the package
      */
-    public ResourceBinaryDictionary(@NonNull String dictionaryName, @NonNull Context context, @XmlRes int resId, boolean isDebug) {
+    public ResourceBinaryDictionary(@NonNull String dictionaryName, @NonNull Context context, @XmlRes int resId, @NonNull File stitchedDictionariesFolder, boolean isDebug) {
         super(dictionaryName);
         CompatUtils.loadNativeLibrary(context, "anysoftkey2_jni", "1.0", isDebug);
         mAppContext = context;
         mDictResId = resId;
+        mStitchedDictionariesFolder = stitchedDictionariesFolder;
     }
 
     private native long openNative(ByteBuffer bb, int typedLetterMultiplier, int fullWordMultiplier);
@@ -86,7 +111,9 @@ public class ResourceBinaryDictionary extends Dictionary {
 
     private native boolean isValidWordNative(long dictPointer, char[] word, int wordLength);
 
-    private native int getSuggestionsNative(long dictPointer, int[] inputCodes, int codesSize, char[] outputChars, int[] frequencies, int maxWordLength, int maxWords, int maxAlternatives, int skipPos, int[] nextLettersFrequencies, int nextLettersSize);
+    private native int getBigramsNative(long dictPointer, char[] previousWord, int previousWordLength, int[] inputCodes, int codesSize, char[] outputChars, int[] frequencies, int maxWordLength, int maxBigrams, int maxAlternatives);
+
+    private native int getSuggestionsNative(long dictPointer, ByteBuffer queryBuffer, int codesSize, int maxWordLength, int maxWords, int maxAlternatives, int missedCharacterMinWords, int[] nextLettersFrequencies, int nextLettersSize, int frequencyThreshold);
 
     @Override
     protected void loadAllResources() {
@@ -106,60 +133,124 @@ public class ResourceBinaryDictionary extends Dictionary {
             a.recycle();
         }
 
-        GCUtils.getInstance().performOperationWithMemRetry(TAG, new GCUtils.MemRelatedOperation() {
-            public void operation() {
-                // The try-catch is for issue 878:
-                // http://code.google.com/p/softkeyboard/issues/detail?id=878
-                try {
-                    mNativeDict = 0;
-                    loadDictionaryFromResource(resId);
-                } catch (UnsatisfiedLinkError ex) {
-                    Log.w(TAG, "Failed to load binary JNI connection! Error: " + ex.getMessage());
-                }
-            }
-        }, false);
+        // The try-catch is for issue 878:
+        // http://code.google.com/p/softkeyboard/issues/detail?id=878
+        try {
+            mNativeDict = 0;
+            loadDictionaryFromResource(resId);
+        } catch (UnsatisfiedLinkError ex) {
+            Log.w(TAG, "Failed to load binary JNI connection! Error: " + ex.getMessage());
+        }
     }
 
     private void loadDictionaryFromResource(int[] resId) {
-        InputStream[] is = null;
         try {
-            // merging separated dictionary into one if dictionary is separated
-            int total = 0;
-            is = new InputStream[resId.length];
-            for (int i = 0; i < resId.length; i++) {
-                // http://ponystyle.com/blog/2010/03/26/dealing-with-asset-compression-in-android-apps/
-                // NOTE: the resource file can not be larger than 1MB
-                is[i] = mAppContext.getResources().openRawResource(resId[i]);
-                final int dictSize = is[i].available();
-                Log.d(TAG, "Will load a resource dictionary id " + resId[i] + " whose size is " + dictSize + " bytes.");
-                total += dictSize;
-            }
-
-            mNativeDictDirectBuffer = ByteBuffer.allocateDirect(total).order(ByteOrder.nativeOrder());
-            int got = 0;
-            for (int i = 0; i < resId.length; i++) {
-                got += Channels.newChannel(is[i]).read(mNativeDictDirectBuffer);
+            // the dictionary is memory-mapped (and not copied into memory), so its pages
+            // can be shared and reclaimed by the OS.
+            ByteBuffer dictionaryBuffer = null;
+            if (resId.length == 1) {
+                dictionaryBuffer = mapUncompressedResource(resId[0]);
             }
-            if (got != total) {
-                Log.e(TAG, "Read " + got + " bytes, expected " + total);
-            } else {
-                mNativeDict = openNative(mNativeDictDirectBuffer, Dictionary.TYPED_LETTER_MULTIPLIER, Dictionary.FULL_WORD_FREQ_MULTIPLIER);
-                mDictLength = total;
+            if (dictionaryBuffer == null) {
+                // separated (or compressed) dictionary is merged into one file, once.
+                dictionaryBuffer = mapFile(getStitchedDictionaryFile(resId));
             }
+            mNativeDictDirectBuffer = dictionaryBuffer;
+            mNativeDict = openNative(mNativeDictDirectBuffer, Dictionary.TYPED_LETTER_MULTIPLIER, Dictionary.FULL_WORD_FREQ_MULTIPLIER);
+            mDictLength = mNativeDictDirectBuffer.capacity();
         } catch (IOException e) {
-            Log.w(TAG, "No available memory for binary dictionary: " + e.getMessage());
+            Log.w(TAG, "Failed to map binary dictionary: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the resource mapped into memory, or null if the resource is compressed in the package.
+     */
+    private ByteBuffer mapUncompressedResource(int resId) throws IOException {
+        final AssetFileDescriptor fd;
+        try {
+            fd = mAppContext.getResources().openRawResourceFd(resId);
+        } catch (Resources.NotFoundException e) {
+            // http://ponystyle.com/blog/2010/03/26/dealing-with-asset-compression-in-android-apps/
+            Log.d(TAG, "Resource dictionary id " + resId + " is compressed, and can not be mapped.");
+            return null;
+        }
+        if (fd == null) return null;
+        try {
+            Log.d(TAG, "Will map a resource dictionary id " + resId + " whose size is " + fd.getLength() + " bytes.");
+            // the stream does not own the descriptor, closing the AssetFileDescriptor is enough.
+            // The mapping is still valid after the descriptor is closed.
+            return new FileInputStream(fd.getFileDescriptor()).getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+        } finally {
+            fd.close();
+        }
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return stream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
         } finally {
-            if (is != null) {
-                for (InputStream i1 : is) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns a file which holds all the given resources, one after the other. The file is created
+     * only if it does not exist for the installed version of the dictionary package.
+     */
+    private File getStitchedDictionaryFile(int[] resId) throws IOException {
+        final String filePrefix = mAppContext.getPackageName() + "_" + mDictResId + "_";
+        final long packageTimestamp = new File(mAppContext.getApplicationInfo().sourceDir).lastModified();
+        final File stitchedFile = new File(mStitchedDictionariesFolder, filePrefix + packageTimestamp + STITCHED_DICTIONARY_FILE_EXTENSION);
+        if (stitchedFile.isFile()) {
+            Log.d(TAG, "Using stitched dictionary " + stitchedFile.getName());
+            return stitchedFile;
+        }
+        // older versions of this dictionary are no longer needed
+        final File[] existingFiles = mStitchedDictionariesFolder.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                if (existingFile.getName().startsWith(filePrefix) && !existingFile.delete()) {
+                    Log.w(TAG, "Failed to delete old stitched dictionary " + existingFile.getName());
+                }
+            }
+        }
+
+        if (!mStitchedDictionariesFolder.isDirectory() && !mStitchedDictionariesFolder.mkdirs()) {
+            throw new IOException("Failed to create folder " + mStitchedDictionariesFolder);
+        }
+        // writing to a temporary file first, so a partial file is never used
+        final File tempFile = File.createTempFile(filePrefix, ".tmp", mStitchedDictionariesFolder);
+        try {
+            final byte[] buffer = new byte[16 * 1024];
+            OutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                for (int id : resId) {
+                    InputStream inputStream = mAppContext.getResources().openRawResource(id);
                     try {
-                        i1.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Failed to close input stream");
+                        Log.d(TAG, "Will stitch a resource dictionary id " + id + " whose size is " + inputStream.available() + " bytes.");
+                        int read;
+                        while ((read = inputStream.read(buffer)) > 0) {
+                            outputStream.write(buffer, 0, read);
+                        }
+                    } finally {
+                        inputStream.close();
                     }
                 }
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(stitchedFile)) {
+                throw new IOException("Failed to rename stitched dictionary to " + stitchedFile);
+            }
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary dictionary file " + tempFile.getName());
             }
-
         }
+        return stitchedFile;
     }
 
     @Override
@@ -169,43 +260,69 @@ public class ResourceBinaryDictionary extends Dictionary {
         // Won't deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return;
 
-        Arrays.fill(mInputCodes, -1);
-        for (int i = 0; i < codesSize; i++) {
-            int[] alternatives = codes.getCodesAt(i);
-            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES, Math.min(alternatives.length, MAX_ALTERNATIVES));
-        }
-        Arrays.fill(mOutputChars, (char) 0);
-        Arrays.fill(mFrequencies, 0);
+        final NativeQueryBuffers queryBuffers = getQueryBuffers();
+        queryBuffers.setInputCodes(codes);
 
         int[] nextLettersFrequencies = null;
+        final int frequencyThreshold = getFrequencyThreshold(callback);
 
-        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars, mFrequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1, nextLettersFrequencies, nextLettersFrequencies != null ? nextLettersFrequencies.length : 0);
-
-        // If there aren't sufficient suggestions, search for words by allowing
-        // wild cards at
-        // the different character positions. This feature is not ready for
-        // prime-time as we need
-        // to figure out the best ranking for such words compared to proximity
-        // corrections and
-        // completions.
-        if (ENABLE_MISSED_CHARACTERS && count < 5) {
-            for (int skip = 0; skip < codesSize; skip++) {
-                int tempCount = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars, mFrequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip, null, 0);
-                count = Math.max(count, tempCount);
-                if (tempCount > 0) break;
-            }
+        // If there aren't sufficient suggestions, the native search will also look for words
+        // with a missed character (a wild card at any of the typed positions), or with an extra
+        // typed character (skipped at any of the typed positions), in the same call.
+        // Such words do not get the full-word bonus, so they rank below the proximity corrections.
+        final int missedCharacterMinWords = ENABLE_MISSED_CHARACTERS ? MISSED_CHARACTERS_MIN_WORDS : 0;
+        final int count;
+        mNativeDictLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) return;
+            count = getSuggestionsNative(mNativeDict, queryBuffers.getBuffer(), codesSize, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, missedCharacterMinWords, nextLettersFrequencies, nextLettersFrequencies != null ? nextLettersFrequencies.length : 0, frequencyThreshold);
+        } finally {
+            mNativeDictLock.readLock().unlock();
         }
 
         boolean requestContinue = true;
         for (int j = 0; j < count && requestContinue; j++) {
-            if (mFrequencies[j] < 1) break;
+            final int frequency = queryBuffers.getFrequency(j);
+            if (frequency < 1) break;
+            final int len = queryBuffers.getWordLength(j);
+            if (len > 0) {
+                requestContinue = callback.addWord(queryBuffers.getWord(j), 0, len, frequency/*, mDicTypeId, DataType.UNIGRAM*/, this);
+            }
+        }
+    }
+
+    @Override
+    public void getBigrams(final CharSequence previousWord, final WordCallback callback) {
+        if (mNativeDict == 0 || isClosed()) return;
+        final int previousWordLength = previousWord.length();
+        if (previousWordLength == 0 || previousWordLength > MAX_WORD_LENGTH - 1) return;
+
+        final QueryState state = mQueryStates.get();
+        for (int i = 0; i < previousWordLength; i++) {
+            state.previousWord[i] = previousWord.charAt(i);
+        }
+        Arrays.fill(state.bigramsOutputChars, (char) 0);
+        Arrays.fill(state.bigramsFrequencies, 0);
+
+        final int count;
+        mNativeDictLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) return;
+            //no typed codes, so any bigram is accepted
+            count = getBigramsNative(mNativeDict, state.previousWord, previousWordLength, NO_INPUT_CODES, 0, state.bigramsOutputChars, state.bigramsFrequencies, MAX_WORD_LENGTH, MAX_BIGRAMS, MAX_ALTERNATIVES);
+        } finally {
+            mNativeDictLock.readLock().unlock();
+        }
+
+        for (int j = 0; j < count && j < MAX_BIGRAMS; j++) {
+            if (state.bigramsFrequencies[j] < 1) break;
             int start = j * MAX_WORD_LENGTH;
             int len = 0;
-            while (mOutputChars[start + len] != 0) {
+            while (state.bigramsOutputChars[start + len] != 0) {
                 len++;
             }
-            if (len > 0) {
-                requestContinue = callback.addWord(mOutputChars, start, len, mFrequencies[j]/*, mDicTypeId, DataType.UNIGRAM*/, this);
+            if (len > 0 && !callback.addWord(state.bigramsOutputChars, start, len, state.bigramsFrequencies[j], this)) {
+                break;
             }
         }
     }
@@ -214,7 +331,20 @@ public class ResourceBinaryDictionary extends Dictionary {
     public boolean isValidWord(CharSequence word) {
         if (word == null || mNativeDict == 0) return false;
         char[] chars = word.toString().toCharArray();
-        return isValidWordNative(mNativeDict, chars, chars.length);
+        mNativeDictLock.readLock().lock();
+        try {
+            return mNativeDict != 0 && isValidWordNative(mNativeDict, chars, chars.length);
+        } finally {
+            mNativeDictLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the buffers the calling thread uses for its queries.
+     */
+    @VisibleForTesting
+    NativeQueryBuffers getQueryBuffers() {
+        return mQueryStates.get().queryBuffers;
     }
 
     public int getSize() {
@@ -222,9 +352,24 @@ public class ResourceBinaryDictionary extends Dictionary {
     }
 
     protected void closeAllResources() {
-        if (mNativeDict != 0) {
-            closeNative(mNativeDict);
-            mNativeDict = 0;
+        mNativeDictLock.writeLock().lock();
+        try {
+            if (mNativeDict != 0) {
+                closeNative(mNativeDict);
+                mNativeDict = 0;
+            }
+        } finally {
+            mNativeDictLock.writeLock().unlock();
         }
     }
+
+    /**
+     * The memory a single thread uses for its queries.
+     */
+    private static final class QueryState {
+        final NativeQueryBuffers queryBuffers = new NativeQueryBuffers(MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES);
+        final char[] previousWord = new char[MAX_WORD_LENGTH];
+        final char[] bigramsOutputChars = new char[MAX_WORD_LENGTH * MAX_BIGRAMS];
+        final int[] bigramsFrequencies = new int[MAX_BIGRAMS];
+    }
 }
@@ -47,31 +47,35 @@ static jlong nativeime_ResourceBinaryDictionary_open
         fprintf(stderr, "DICT: Dictionary buffer is null\n");
         return 0;
     }
-    Dictionary *dictionary = new Dictionary(dict, typedLetterMultiplier, fullWordMultiplier);
+    const int dictSize = (int) env->GetDirectBufferCapacity(dictDirectBuffer);
+    Dictionary *dictionary = new Dictionary(dict, dictSize, typedLetterMultiplier, fullWordMultiplier);
     return (jlong) dictionary;
 }
 
+// The query buffer is a direct buffer, shared with Java for all queries (see NativeQueryBuffers):
+// input codes, then frequencies, then words lengths, and then the output characters.
 static int nativeime_ResourceBinaryDictionary_getSuggestions(
-        JNIEnv *env, jobject object, jlong dict, jintArray inputArray, jint arraySize,
-        jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords,
-        jint maxAlternatives, jint skipPos, jintArray nextLettersArray, jint nextLettersSize)
+        JNIEnv *env, jobject object, jlong dict, jobject queryBuffer, jint arraySize,
+        jint maxWordLength, jint maxWords, jint maxAlternatives, jint missedCharacterMinWords,
+        jintArray nextLettersArray, jint nextLettersSize, jint frequencyThreshold)
 {
     Dictionary *dictionary = (Dictionary*) dict;
     if (dictionary == NULL) return 0;
 
-    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
-    int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
-    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
+    int *inputCodes = (int*) env->GetDirectBufferAddress(queryBuffer);
+    if (inputCodes == NULL) return 0;
+    int *frequencies = inputCodes + maxWordLength * maxAlternatives;
+    int *wordsLengths = frequencies + maxWords;
+    unsigned short *outputChars = (unsigned short*) (wordsLengths + maxWords);
     int *nextLetters = nextLettersArray != NULL ? env->GetIntArrayElements(nextLettersArray, NULL)
             : NULL;
 
-    int count = dictionary->getSuggestions(inputCodes, arraySize, (unsigned short*) outputChars,
-            frequencies, maxWordLength, maxWords, maxAlternatives, skipPos, nextLetters,
-            nextLettersSize);
+    // the query's state is on this thread's stack, so concurrent queries do not interfere.
+    DictionaryQuery query(*dictionary);
+    int count = query.getSuggestions(inputCodes, arraySize, outputChars,
+            frequencies, wordsLengths, maxWordLength, maxWords, maxAlternatives,
+            missedCharacterMinWords, nextLetters, nextLettersSize, frequencyThreshold);
 
-    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
-    env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
-    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
     if (nextLetters) {
         env->ReleaseIntArrayElements(nextLettersArray, nextLetters, 0);
     }
@@ -92,7 +96,8 @@ static int nativeime_ResourceBinaryDictionary_getBigrams
     jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
     int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
 
-    int count = dictionary->getBigrams((unsigned short*) prevWord, prevWordLength, inputCodes,
+    DictionaryQuery query(*dictionary);
+    int count = query.getBigrams((unsigned short*) prevWord, prevWordLength, inputCodes,
             inputArraySize, (unsigned short*) outputChars, frequencies, maxWordLength, maxBigrams,
             maxAlternatives);
 
@@ -130,9 +135,9 @@ static void nativeime_ResourceBinaryDictionary_close
 static JNINativeMethod gMethods[] = {
     {"openNative",           "(Ljava/nio/ByteBuffer;II)J",(void*)nativeime_ResourceBinaryDictionary_open},
     {"closeNative",          "(J)V",            (void*)nativeime_ResourceBinaryDictionary_close},
-    {"getSuggestionsNative", "(J[II[C[IIIII[II)I",  (void*)nativeime_ResourceBinaryDictionary_getSuggestions},
-    {"isValidWordNative",    "(J[CI)Z",         (void*)nativeime_ResourceBinaryDictionary_isValidWord}/*,
-    {"getBigramsNative",    "(I[CI[II[C[IIII)I",         (void*)nativeime_ResourceBinaryDictionary_getBigrams}*/
+    {"getSuggestionsNative", "(JLjava/nio/ByteBuffer;IIIII[III)I",  (void*)nativeime_ResourceBinaryDictionary_getSuggestions},
+    {"isValidWordNative",    "(J[CI)Z",         (void*)nativeime_ResourceBinaryDictionary_isValidWord},
+    {"getBigramsNative",     "(J[CI[II[C[IIII)I",   (void*)nativeime_ResourceBinaryDictionary_getBigrams}
 };
 
 static int registerNativeMethods(JNIEnv* env, const char* className,
@@ -16,9 +16,11 @@
 */
 
 #include <stdio.h>
+#include <stdlib.h>
 #include <fcntl.h>
 #include <sys/mman.h>
 #include <string.h>
+#include <new>
 //#define LOG_TAG "dictionary.cpp"
 //#include <cutils/log.h>
 #define LOGI
@@ -31,47 +33,292 @@
 #define DICTIONARY_VERSION_MIN 200
 #define DICTIONARY_HEADER_SIZE 2
 #define NOT_VALID_WORD -99
+#define MAX_FREQUENCY 255
+#define INITIAL_GROUPS_CAPACITY 1024
 
 namespace nativeime {
 
-Dictionary::Dictionary(void *dict, int typedLetterMultiplier, int fullWordMultiplier)
+Dictionary::Dictionary(void *dict, int dictSize, int typedLetterMultiplier, int fullWordMultiplier)
 {
     mDict = (unsigned char*) dict;
+    mDictSize = dictSize;
     mTypedLetterMultiplier = typedLetterMultiplier;
     mFullWordMultiplier = fullWordMultiplier;
     getVersionNumber();
+    mGroupsAddresses = NULL;
+    mGroupsMaxFrequencies = NULL;
+    mGroupsCount = 0;
+    mGroupsCapacity = 0;
+    // queries only read the maxima, so they can use them without locking.
+    mHasMaxFrequencies = buildMaxFrequencies();
 }
 
 Dictionary::~Dictionary()
 {
+    releaseMaxFrequencies();
 }
 
-int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos,
-        int *nextLetters, int nextLettersSize)
+DictionaryQuery::DictionaryQuery(const Dictionary &dictionary)
+    : mDictionary(dictionary), mDict(dictionary.mDict), mPruneCompletions(dictionary.hasMaxFrequencies()),
+      mFullWordMultiplier(dictionary.mFullWordMultiplier),
+      mTypedLetterMultiplier(dictionary.mTypedLetterMultiplier), mBigram(dictionary.mBigram)
+{
+    mFrequencyThreshold = -1;
+    mNextLettersSize = 0;
+}
+
+static int compareAddresses(const void *first, const void *second)
+{
+    return *((const int*) first) - *((const int*) second);
+}
+
+// Computes the groups' maxima. A dictionary is written as a sequence of nodes-groups, so its groups
+// are read one after the other, already sorted. If it is not laid out like that, the groups are
+// collected by walking the trie, marking the visited bytes (a bit per byte, only while building).
+// Returns false if the maxima are not available (e.g., not enough memory), so nothing can be pruned.
+bool
+Dictionary::buildMaxFrequencies()
+{
+    if (mDictSize <= 0) return false;
+    const int rootPos = checkIfDictVersionIsLatest() ? DICTIONARY_HEADER_SIZE : 0;
+    mGroupsCapacity = INITIAL_GROUPS_CAPACITY;
+    mGroupsAddresses = new (std::nothrow) int[mGroupsCapacity];
+    if (!mGroupsAddresses) {
+        releaseMaxFrequencies();
+        return false;
+    }
+    if (scanGroups(rootPos) && computeMaxFrequencies(rootPos)) return true;
+
+    mGroupsCount = 0;
+    unsigned char *visited = new (std::nothrow) unsigned char[mDictSize / 8 + 1];
+    bool collected = false;
+    if (visited) {
+        memset(visited, 0, mDictSize / 8 + 1);
+        collected = collectGroups(rootPos, visited);
+    }
+    delete[] visited;
+    if (collected) {
+        qsort(mGroupsAddresses, mGroupsCount, sizeof(mGroupsAddresses[0]), compareAddresses);
+        if (computeMaxFrequencies(rootPos)) return true;
+    }
+    // if there is not enough memory for the table, we'll just traverse without pruning.
+    releaseMaxFrequencies();
+    return false;
+}
+
+// Adds the address of each nodes-group, reading the dictionary from pos to its end.
+// Returns false if the dictionary does not end with a complete group, without reading outside of it.
+bool
+Dictionary::scanGroups(int pos)
+{
+    const bool hasBigrams = checkIfDictVersionIsLatest();
+    while (pos < mDictSize) {
+        if (!addGroup(pos)) return false;
+        const int count = getCount(&pos);
+        for (int i = 0; i < count; i++) {
+            // character: a byte, or a marker followed by two bytes
+            if (pos >= mDictSize || ((mDict[pos] & 0xFF) == 0xFF && pos + 2 >= mDictSize)) return false;
+            getChar(&pos);
+            // flags, which may be the first of three address bytes
+            if (pos >= mDictSize || ((mDict[pos] & FLAG_ADDRESS_MASK) != 0 && pos + 2 >= mDictSize)) return false;
+            const bool terminal = getTerminal(&pos);
+            getAddress(&pos);
+            if (!terminal) continue;
+            // frequency, and then the bigrams (see getFreq)
+            if (pos >= mDictSize) return false;
+            pos++;
+            if (!hasBigrams) continue;
+            if (pos >= mDictSize) return false;
+            if ((mDict[pos] & FLAG_BIGRAM_READ) == 0) {
+                pos++;
+                continue;
+            }
+            int nextBigramExist = 1;
+            while (nextBigramExist > 0) {
+                pos += 3;
+                if (pos >= mDictSize) return false;
+                nextBigramExist = (mDict[pos++] & FLAG_BIGRAM_CONTINUED);
+            }
+        }
+    }
+    return pos == mDictSize;
+}
+
+// Adds the address of each group under the group at pos (and its own). Groups may be shared,
+// so each is added once.
+bool
+Dictionary::collectGroups(int pos, unsigned char *visited)
+{
+    if (pos < 0 || pos >= mDictSize) return false;
+    if (visited[pos >> 3] & (1 << (pos & 7))) return true;
+    visited[pos >> 3] |= (1 << (pos & 7));
+    if (!addGroup(pos)) return false;
+
+    const int count = getCount(&pos);
+    for (int i = 0; i < count; i++) {
+        getChar(&pos);
+        const bool terminal = getTerminal(&pos);
+        const int childrenAddress = getAddress(&pos);
+        if (terminal) getFreq(&pos);
+        if (childrenAddress != 0 && !collectGroups(childrenAddress, visited)) return false;
+    }
+    return true;
+}
+
+bool
+Dictionary::addGroup(int groupAddress)
+{
+    if (mGroupsCount == mGroupsCapacity) {
+        int *grown = new (std::nothrow) int[mGroupsCapacity * 2];
+        if (!grown) return false;
+        memcpy(grown, mGroupsAddresses, mGroupsCount * sizeof(mGroupsAddresses[0]));
+        delete[] mGroupsAddresses;
+        mGroupsAddresses = grown;
+        mGroupsCapacity *= 2;
+    }
+    mGroupsAddresses[mGroupsCount++] = groupAddress;
+    return true;
+}
+
+// Computes the maxima of the groups under the root (the others are never looked for).
+// Returns false if a group is pointed at, but was not collected.
+bool
+Dictionary::computeMaxFrequencies(int rootPos)
+{
+    const int rootIndex = findGroup(rootPos);
+    if (rootIndex < 0) return false;
+    delete[] mGroupsMaxFrequencies;
+    mGroupsMaxFrequencies = new (std::nothrow) unsigned char[mGroupsCount];
+    unsigned char *computed = new (std::nothrow) unsigned char[mGroupsCount / 8 + 1];
+    bool computedAll = false;
+    if (mGroupsMaxFrequencies && computed) {
+        memset(mGroupsMaxFrequencies, 0, mGroupsCount);
+        memset(computed, 0, mGroupsCount / 8 + 1);
+        computedAll = computeMaxFrequency(rootIndex, computed) >= 0;
+    }
+    delete[] computed;
+    return computedAll;
+}
+
+// Returns the highest frequency of a word under the group, and stores it in mGroupsMaxFrequencies,
+// or -1 if one of the groups under it was not collected.
+// A group's maximum may be 0, so whether it was computed is marked apart, a bit per group.
+int
+Dictionary::computeMaxFrequency(int groupIndex, unsigned char *computed)
+{
+    if (computed[groupIndex >> 3] & (1 << (groupIndex & 7))) return mGroupsMaxFrequencies[groupIndex];
+
+    int pos = mGroupsAddresses[groupIndex];
+    int groupMax = 0;
+    const int count = getCount(&pos);
+    for (int i = 0; i < count; i++) {
+        getChar(&pos);
+        const bool terminal = getTerminal(&pos);
+        const int childrenAddress = getAddress(&pos);
+        int nodeMax = 0;
+        if (terminal) nodeMax = getFreq(&pos);
+        if (childrenAddress != 0) {
+            const int childrenIndex = findGroup(childrenAddress);
+            if (childrenIndex < 0) return -1;
+            const int childrenMax = computeMaxFrequency(childrenIndex, computed);
+            if (childrenMax < 0) return -1;
+            if (childrenMax > nodeMax) nodeMax = childrenMax;
+        }
+        if (nodeMax > groupMax) groupMax = nodeMax;
+    }
+    mGroupsMaxFrequencies[groupIndex] = (unsigned char) groupMax;
+    computed[groupIndex >> 3] |= (1 << (groupIndex & 7));
+    return groupMax;
+}
+
+void
+Dictionary::releaseMaxFrequencies()
+{
+    delete[] mGroupsAddresses;
+    delete[] mGroupsMaxFrequencies;
+    mGroupsAddresses = NULL;
+    mGroupsMaxFrequencies = NULL;
+    mGroupsCount = 0;
+    mGroupsCapacity = 0;
+}
+
+// Binary search in the sorted addresses. Returns the group's index, or -1.
+int
+Dictionary::findGroup(int groupAddress) const
+{
+    int low = 0;
+    int high = mGroupsCount - 1;
+    while (low <= high) {
+        const int middle = (low + high) >> 1;
+        const int address = mGroupsAddresses[middle];
+        if (address < groupAddress) low = middle + 1;
+        else if (address > groupAddress) high = middle - 1;
+        else return middle;
+    }
+    return -1;
+}
+
+// Returns the highest frequency of a word under the group. Must be called only if hasMaxFrequencies.
+// An unknown group may have any frequency.
+int
+Dictionary::getMaxFrequency(int groupAddress) const
+{
+    const int groupIndex = findGroup(groupAddress);
+    return groupIndex < 0 ? MAX_FREQUENCY : mGroupsMaxFrequencies[groupIndex];
+}
+
+// Whether a completion with the given (weighted) frequency will be rejected anyway,
+// either by the caller's threshold or by our own full suggestions list.
+bool
+DictionaryQuery::cannotBeatThreshold(int maxReachableFrequency)
+{
+    // when collecting next-letters, every terminal has to be visited
+    if (mNextLettersSize > 0) return false;
+    if (maxReachableFrequency <= mFrequencyThreshold) return true;
+    const int lowestSuggestionFrequency = mFrequencies[mMaxWords - 1];
+    return lowestSuggestionFrequency > 0 && maxReachableFrequency < lowestSuggestionFrequency;
+}
+
+// If the direct search finds fewer than missedCharacterMinWords words, a second traversal looks
+// for words where the user missed one character, or typed one extra character (at any position).
+// That traversal shares the typed prefix between all the edited positions, instead of walking
+// the trie once per position.
+int DictionaryQuery::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
+        int *wordsLengths, int maxWordLength, int maxWords, int maxAlternatives, int missedCharacterMinWords,
+        int *nextLetters, int nextLettersSize, int frequencyThreshold)
 {
     int suggWords;
+    mFrequencyThreshold = frequencyThreshold;
     mFrequencies = frequencies;
+    mWordsLengths = wordsLengths;
+    // only the frequencies have to be cleared: a word (and its length) is read only if it has a frequency.
+    memset(mFrequencies, 0, maxWords * sizeof(mFrequencies[0]));
     mOutputChars = outWords;
     mInputCodes = codes;
     mInputLength = codesSize;
     mMaxAlternatives = maxAlternatives;
     mMaxWordLength = maxWordLength;
     mMaxWords = maxWords;
-    mSkipPos = skipPos;
+    mMissedCharacterSearch = false;
     mMaxEditDistance = mInputLength < 5 ? 2 : mInputLength / 2;
     mNextLettersFrequencies = nextLetters;
     mNextLettersSize = nextLettersSize;
 
-    if (checkIfDictVersionIsLatest()) {
-        getWordsRec(DICTIONARY_HEADER_SIZE, 0, mInputLength * 3, false, 1, 0, 0);
-    } else {
-        getWordsRec(0, 0, mInputLength * 3, false, 1, 0, 0);
-    }
+    const int rootPos = checkIfDictVersionIsLatest() ? DICTIONARY_HEADER_SIZE : 0;
+    getWordsRec(rootPos, 0, mInputLength * 3, false, 1, 0, 0, false);
 
     // Get the word count
     suggWords = 0;
     while (suggWords < mMaxWords && mFrequencies[suggWords] > 0) suggWords++;
+
+    if (suggWords < missedCharacterMinWords) {
+        mMissedCharacterSearch = true;
+        mNextLettersSize = 0;
+        getWordsRec(rootPos, 0, mInputLength * 3, false, 1, 0, 0, false);
+        mMissedCharacterSearch = false;
+        suggWords = 0;
+        while (suggWords < mMaxWords && mFrequencies[suggWords] > 0) suggWords++;
+    }
     if (DEBUG_DICT) LOGI("Returning %d words", suggWords);
 
     if (DEBUG_DICT) {
@@ -87,7 +334,7 @@ int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWor
 }
 
 void
-Dictionary::registerNextLetter(unsigned short c)
+DictionaryQuery::registerNextLetter(unsigned short c)
 {
     if (c < mNextLettersSize) {
         mNextLettersFrequencies[c]++;
@@ -104,13 +351,13 @@ Dictionary::getVersionNumber()
 
 // Checks whether it has the latest dictionary or the old dictionary
 bool
-Dictionary::checkIfDictVersionIsLatest()
+Dictionary::checkIfDictVersionIsLatest() const
 {
     return (mVersion >= DICTIONARY_VERSION_MIN) && (mBigram == 1 || mBigram == 0);
 }
 
 unsigned short
-Dictionary::getChar(int *pos)
+Dictionary::getChar(int *pos) const
 {
     unsigned short ch = (unsigned short) (mDict[(*pos)++] & 0xFF);
     // If the code is 255, then actual 16 bit code follows (in big endian)
@@ -122,7 +369,7 @@ Dictionary::getChar(int *pos)
 }
 
 int
-Dictionary::getAddress(int *pos)
+Dictionary::getAddress(int *pos) const
 {
     int address = 0;
     if ((mDict[*pos] & FLAG_ADDRESS_MASK) == 0) {
@@ -137,7 +384,7 @@ Dictionary::getAddress(int *pos)
 }
 
 int
-Dictionary::getFreq(int *pos)
+Dictionary::getFreq(int *pos) const
 {
     int freq = mDict[(*pos)++] & 0xFF;
 
@@ -159,7 +406,7 @@ Dictionary::getFreq(int *pos)
 }
 
 int
-Dictionary::wideStrLen(unsigned short *str)
+DictionaryQuery::wideStrLen(unsigned short *str)
 {
     if (!str) return 0;
     unsigned short *end = str;
@@ -169,7 +416,7 @@ Dictionary::wideStrLen(unsigned short *str)
 }
 
 bool
-Dictionary::addWord(unsigned short *word, int length, int frequency)
+DictionaryQuery::addWord(unsigned short *word, int length, int frequency)
 {
     word[length] = 0;
     if (DEBUG_DICT) {
@@ -178,12 +425,16 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
         LOGI("Found word = %s, freq = %d : \n", s, frequency);
     }
 
+    if (length > mMaxWordLength) return false;
+    // the missed-character search may reach a word which was already suggested (e.g., a completion
+    // of an edited prefix), or reach the same word by more than one edit.
+    if (mMissedCharacterSearch && isSuggested(word, length)) return false;
     // Find the right insertion point
     int insertAt = 0;
     while (insertAt < mMaxWords) {
         if (frequency > mFrequencies[insertAt]
                  || (mFrequencies[insertAt] == frequency
-                     && length < wideStrLen(mOutputChars + insertAt * mMaxWordLength))) {
+                     && length < mWordsLengths[insertAt])) {
             break;
         }
         insertAt++;
@@ -193,14 +444,18 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
                (char*) mFrequencies + insertAt * sizeof(mFrequencies[0]),
                (mMaxWords - insertAt - 1) * sizeof(mFrequencies[0]));
         mFrequencies[insertAt] = frequency;
+        memmove((char*) mWordsLengths + (insertAt + 1) * sizeof(mWordsLengths[0]),
+               (char*) mWordsLengths + insertAt * sizeof(mWordsLengths[0]),
+               (mMaxWords - insertAt - 1) * sizeof(mWordsLengths[0]));
+        mWordsLengths[insertAt] = length;
         memmove((char*) mOutputChars + (insertAt + 1) * mMaxWordLength * sizeof(short),
                (char*) mOutputChars + (insertAt    ) * mMaxWordLength * sizeof(short),
                (mMaxWords - insertAt - 1) * sizeof(short) * mMaxWordLength);
         unsigned short *dest = mOutputChars + (insertAt    ) * mMaxWordLength;
+        // the length is reported separately, so the word is not NULL terminated
         while (length--) {
             *dest++ = *word++;
         }
-        *dest = 0; // NULL terminate
         if (DEBUG_DICT) LOGI("Added word at %d\n", insertAt);
         return true;
     }
@@ -208,7 +463,18 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
 }
 
 bool
-Dictionary::addWordBigram(unsigned short *word, int length, int frequency)
+DictionaryQuery::isSuggested(unsigned short *word, int length)
+{
+    for (int suggestion = 0; suggestion < mMaxWords && mFrequencies[suggestion] > 0; suggestion++) {
+        if (mWordsLengths[suggestion] != length) continue;
+        const unsigned short *suggestedWord = mOutputChars + suggestion * mMaxWordLength;
+        if (memcmp(suggestedWord, word, length * sizeof(word[0])) == 0) return true;
+    }
+    return false;
+}
+
+bool
+DictionaryQuery::addWordBigram(unsigned short *word, int length, int frequency)
 {
     word[length] = 0;
     if (DEBUG_DICT) {
@@ -261,7 +527,7 @@ Dictionary::toLowerCase(unsigned short c) {
 }
 
 bool
-Dictionary::sameAsTyped(unsigned short *word, int length)
+DictionaryQuery::sameAsTyped(unsigned short *word, int length)
 {
     if (length != mInputLength) {
         return false;
@@ -279,9 +545,11 @@ Dictionary::sameAsTyped(unsigned short *word, int length)
 
 static char QUOTE = '\'';
 
+// edited: whether a dictionary character was already accepted without a typed character, or a typed
+// character was skipped (only during the missed-character search, where exactly one such edit is allowed).
 void
-Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
-                        int diffs)
+DictionaryQuery::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
+                        int diffs, bool edited)
 {
     // Optimization: Prune out words that are too long compared to how much was typed.
     if (depth > maxDepth) {
@@ -290,6 +558,15 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
     if (diffs > mMaxEditDistance) {
         return;
     }
+    // Assume the user typed an extra character here, and skip it without going deeper.
+    // A repeated character is skipped only at its first occurrence, so the same words are not
+    // reported once per repetition. An extra last character is handled when its previous one matches.
+    if (mMissedCharacterSearch && !edited && inputIndex + 1 < mInputLength) {
+        const int *typedChars = mInputCodes + (inputIndex * mMaxAlternatives);
+        if (inputIndex == 0 || typedChars[0] != typedChars[-mMaxAlternatives]) {
+            getWordsRec(pos, depth, maxDepth, false, snr, inputIndex + 1, diffs, true);
+        }
+    }
     const int count = getCount(&pos);
     int *currentChars = NULL;
     if (mInputLength <= inputIndex) {
@@ -317,24 +594,40 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
 
         // If we are only doing completions, no need to look at the typed characters.
         if (completion) {
+            // when collecting next-letters nothing is pruned, so there is no need to look for the maximum
+            if (mPruneCompletions && mNextLettersSize == 0) {
+                int maxReachable = terminal ? freq : 0;
+                if (childrenAddress != 0) {
+                    const int childrenMax = mDictionary.getMaxFrequency(childrenAddress);
+                    if (childrenMax > maxReachable) maxReachable = childrenMax;
+                }
+                // nothing in this sub-tree can make it into the suggestions
+                if (cannotBeatThreshold(maxReachable * snr)) continue;
+            }
             mWord[depth] = c;
             if (terminal) {
                 addWord(mWord, depth + 1, freq * snr);
-                if (depth >= mInputLength && mSkipPos < 0) {
+                if (depth >= mInputLength && !mMissedCharacterSearch) {
                     registerNextLetter(mWord[mInputLength]);
                 }
             }
             if (childrenAddress != 0) {
                 getWordsRec(childrenAddress, depth + 1, maxDepth,
-                            completion, snr, inputIndex, diffs);
+                            completion, snr, inputIndex, diffs, edited);
             }
-        } else if ((c == QUOTE && currentChars[0] != QUOTE) || mSkipPos == depth) {
-            // Skip the ' or other letter and continue deeper
+        } else if (c == QUOTE && currentChars[0] != QUOTE) {
+            // Skip the ' and continue deeper
             mWord[depth] = c;
             if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs);
+                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs,
+                            edited);
             }
         } else {
+            if (mMissedCharacterSearch && !edited && childrenAddress != 0) {
+                // Assume the user missed this letter, and continue deeper without consuming input
+                mWord[depth] = c;
+                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs, true);
+            }
             int j = 0;
             while (currentChars[j] > 0) {
                 const unsigned short currentChar = (const unsigned short) currentChars[j];
@@ -349,33 +642,46 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
                     int addedWeight = j == 0 ? mTypedLetterMultiplier : 1;
                     mWord[depth] = c;
                     if (mInputLength == inputIndex + 1) {
+                        // the missed-character search only reports words which were edited,
+                        // the others were already reported by the direct search.
+                        if (mMissedCharacterSearch && !edited) break;
                         if (terminal) {
                             if (//INCLUDE_TYPED_WORD_IF_VALID ||
                                 !sameAsTyped(mWord, depth + 1)) {
                                 int finalFreq = freq * snr * addedWeight;
-                                if (mSkipPos < 0) finalFreq *= mFullWordMultiplier;
+                                // an edited word is attenuated by not getting the full-word bonus
+                                if (!mMissedCharacterSearch) finalFreq *= mFullWordMultiplier;
                                 addWord(mWord, depth + 1, finalFreq);
                             }
                         }
                         if (childrenAddress != 0) {
                             getWordsRec(childrenAddress, depth + 1,
                                     maxDepth, true, snr * addedWeight, inputIndex + 1,
-                                    diffs + (j > 0));
+                                    diffs + (j > 0), edited);
+                        }
+                    } else {
+                        // the last typed character may be an extra one (unless it repeats this one, see above)
+                        if (mMissedCharacterSearch && !edited && terminal && mInputLength == inputIndex + 2
+                                && currentChars[mMaxAlternatives] != currentChars[0]) {
+                            addWord(mWord, depth + 1, freq * snr * addedWeight);
+                        }
+                        if (childrenAddress != 0) {
+                            getWordsRec(childrenAddress, depth + 1, maxDepth,
+                                    false, snr * addedWeight, inputIndex + 1, diffs + (j > 0),
+                                    edited);
                         }
-                    } else if (childrenAddress != 0) {
-                        getWordsRec(childrenAddress, depth + 1, maxDepth,
-                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0));
                     }
                 }
                 j++;
-                if (mSkipPos >= 0) break;
+                // the missed-character search only follows the typed characters
+                if (mMissedCharacterSearch) break;
             }
         }
     }
 }
 
 int
-Dictionary::getBigramAddress(int *pos, bool advance)
+Dictionary::getBigramAddress(int *pos, bool advance) const
 {
     int address = 0;
 
@@ -391,7 +697,7 @@ Dictionary::getBigramAddress(int *pos, bool advance)
 }
 
 int
-Dictionary::getBigramFreq(int *pos)
+Dictionary::getBigramFreq(int *pos) const
 {
     int freq = mDict[(*pos)++] & FLAG_BIGRAM_FREQ;
 
@@ -400,7 +706,7 @@ Dictionary::getBigramFreq(int *pos)
 
 
 int
-Dictionary::getBigrams(unsigned short *prevWord, int prevWordLength, int *codes, int codesSize,
+DictionaryQuery::getBigrams(unsigned short *prevWord, int prevWordLength, int *codes, int codesSize,
         unsigned short *bigramChars, int *bigramFreq, int maxWordLength, int maxBigrams,
         int maxAlternatives)
 {
@@ -439,7 +745,7 @@ Dictionary::getBigrams(unsigned short *prevWord, int prevWordLength, int *codes,
 }
 
 void
-Dictionary::searchForTerminalNode(int addressLookingFor, int frequency)
+DictionaryQuery::searchForTerminalNode(int addressLookingFor, int frequency)
 {
     // track word with such address and store it in an array
     unsigned short word[mMaxWordLength];
@@ -544,10 +850,12 @@ Dictionary::searchForTerminalNode(int addressLookingFor, int frequency)
 }
 
 bool
-Dictionary::checkFirstCharacter(unsigned short *word)
+DictionaryQuery::checkFirstCharacter(unsigned short *word)
 {
     // Checks whether this word starts with same character or neighboring characters of
     // what user typed.
+    // Nothing typed yet (next-word prediction), so any word is good.
+    if (mInputLength == 0) return true;
 
     int *inputCodes = mInputCodes;
     int maxAlt = mMaxAlternatives;
@@ -562,7 +870,7 @@ Dictionary::checkFirstCharacter(unsigned short *word)
 }
 
 bool
-Dictionary::isValidWord(unsigned short *word, int length)
+Dictionary::isValidWord(unsigned short *word, int length) const
 {
     bool isValid;
     if (checkIfDictVersionIsLatest()) {
@@ -589,7 +897,7 @@ Dictionary::isValidWord(unsigned short *word, int length)
 }
 
 int
-Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) {
+Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) const {
     // returns address of bigram data of that word
     // return -99 if not found
 
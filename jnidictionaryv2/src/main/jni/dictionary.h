@@ -33,51 +33,111 @@ namespace nativeime {
 #define FLAG_BIGRAM_CONTINUED 0x80
 #define FLAG_BIGRAM_FREQ 0x7F
 
+// The dictionary's data. It is not changed by queries, so a single instance can be
+// queried by several threads at the same time, each with its own DictionaryQuery.
 class Dictionary {
 public:
-    Dictionary(void *dict, int typedLetterMultipler, int fullWordMultiplier);
-    int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-            int maxWordLength, int maxWords, int maxAlternatives, int skipPos,
-            int *nextLetters, int nextLettersSize);
-    int getBigrams(unsigned short *word, int length, int *codes, int codesSize,
-            unsigned short *outWords, int *frequencies, int maxWordLength, int maxBigrams,
-            int maxAlternatives);
-    bool isValidWord(unsigned short *word, int length);
+    Dictionary(void *dict, int dictSize, int typedLetterMultipler, int fullWordMultiplier);
+    bool isValidWord(unsigned short *word, int length) const;
     void setAsset(void *asset) { mAsset = asset; }
     void *getAsset() { return mAsset; }
     ~Dictionary();
 
 private:
+    friend class DictionaryQuery;
 
     void getVersionNumber();
-    bool checkIfDictVersionIsLatest();
-    int getAddress(int *pos);
-    int getBigramAddress(int *pos, bool advance);
-    int getFreq(int *pos);
-    int getBigramFreq(int *pos);
-    void searchForTerminalNode(int address, int frequency);
+    bool checkIfDictVersionIsLatest() const;
+    int getAddress(int *pos) const;
+    int getBigramAddress(int *pos, bool advance) const;
+    int getFreq(int *pos) const;
+    int getBigramFreq(int *pos) const;
+
+    bool getFirstBitOfByte(int *pos) const { return (mDict[*pos] & 0x80) > 0; }
+    bool getSecondBitOfByte(int *pos) const { return (mDict[*pos] & 0x40) > 0; }
+    bool getTerminal(int *pos) const { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
+    int getCount(int *pos) const { return mDict[(*pos)++] & 0xFF; }
+    unsigned short getChar(int *pos) const;
+    static unsigned short toLowerCase(unsigned short c);
+    int isValidWordRec(int pos, unsigned short *word, int offset, int length) const;
+    bool hasMaxFrequencies() const { return mHasMaxFrequencies; }
+    int getMaxFrequency(int groupAddress) const;
+    bool buildMaxFrequencies();
+    bool scanGroups(int pos);
+    bool collectGroups(int pos, unsigned char *visited);
+    bool addGroup(int groupAddress);
+    bool computeMaxFrequencies(int rootPos);
+    int computeMaxFrequency(int groupIndex, unsigned char *computed);
+    void releaseMaxFrequencies();
+    int findGroup(int groupAddress) const;
+
+    unsigned char *mDict;
+    int mDictSize;
+    // the highest frequency reachable from each nodes-group: the groups' addresses (sorted), and the
+    // maximum of the group at the same index. The dictionary format does not store these, so they are
+    // computed when the dictionary is opened (on the loading thread), and are not changed after that.
+    int *mGroupsAddresses;
+    unsigned char *mGroupsMaxFrequencies;
+    int mGroupsCount;
+    int mGroupsCapacity;
+    bool mHasMaxFrequencies;
+    void *mAsset;
 
-    bool getFirstBitOfByte(int *pos) { return (mDict[*pos] & 0x80) > 0; }
-    bool getSecondBitOfByte(int *pos) { return (mDict[*pos] & 0x40) > 0; }
-    bool getTerminal(int *pos) { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
-    int getCount(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    unsigned short getChar(int *pos);
+    int mFullWordMultiplier;
+    int mTypedLetterMultiplier;
+    int mVersion;
+    int mBigram;
+};
+
+// The state of a single query. It is meant to live on the stack of the querying thread
+// (it is small, and needs no allocation), while the input and output memory belongs to the caller.
+class DictionaryQuery {
+public:
+    DictionaryQuery(const Dictionary &dictionary);
+    int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
+            int *wordsLengths, int maxWordLength, int maxWords, int maxAlternatives, int missedCharacterMinWords,
+            int *nextLetters, int nextLettersSize, int frequencyThreshold);
+    int getBigrams(unsigned short *word, int length, int *codes, int codesSize,
+            unsigned short *outWords, int *frequencies, int maxWordLength, int maxBigrams,
+            int maxAlternatives);
+
+private:
+    bool checkIfDictVersionIsLatest() const { return mDictionary.checkIfDictVersionIsLatest(); }
+    int getAddress(int *pos) const { return mDictionary.getAddress(pos); }
+    int getBigramAddress(int *pos, bool advance) const { return mDictionary.getBigramAddress(pos, advance); }
+    int getFreq(int *pos) const { return mDictionary.getFreq(pos); }
+    bool getFirstBitOfByte(int *pos) const { return mDictionary.getFirstBitOfByte(pos); }
+    bool getSecondBitOfByte(int *pos) const { return mDictionary.getSecondBitOfByte(pos); }
+    bool getTerminal(int *pos) const { return mDictionary.getTerminal(pos); }
+    int getCount(int *pos) const { return mDictionary.getCount(pos); }
+    unsigned short getChar(int *pos) const { return mDictionary.getChar(pos); }
+    unsigned short toLowerCase(unsigned short c) const { return Dictionary::toLowerCase(c); }
+    int isValidWordRec(int pos, unsigned short *word, int offset, int length) const {
+        return mDictionary.isValidWordRec(pos, word, offset, length);
+    }
     int wideStrLen(unsigned short *str);
 
+    void searchForTerminalNode(int address, int frequency);
     bool sameAsTyped(unsigned short *word, int length);
     bool checkFirstCharacter(unsigned short *word);
     bool addWord(unsigned short *word, int length, int frequency);
+    bool isSuggested(unsigned short *word, int length);
     bool addWordBigram(unsigned short *word, int length, int frequency);
-    unsigned short toLowerCase(unsigned short c);
     void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
-            int inputIndex, int diffs);
-    int isValidWordRec(int pos, unsigned short *word, int offset, int length);
+            int inputIndex, int diffs, bool edited);
     void registerNextLetter(unsigned short c);
+    bool cannotBeatThreshold(int maxReachableFrequency);
 
-    unsigned char *mDict;
-    void *mAsset;
+    const Dictionary &mDictionary;
+    const unsigned char *mDict;
+    bool mPruneCompletions;
+    const int mFullWordMultiplier;
+    const int mTypedLetterMultiplier;
+    const int mBigram;
 
+    int mFrequencyThreshold;
     int *mFrequencies;
+    int *mWordsLengths;
     int *mBigramFreq;
     int mMaxWords;
     int mMaxBigrams;
@@ -88,15 +148,10 @@ private:
     int mInputLength;
     int mMaxAlternatives;
     unsigned short mWord[128];
-    int mSkipPos;
+    bool mMissedCharacterSearch;
     int mMaxEditDistance;
-
-    int mFullWordMultiplier;
-    int mTypedLetterMultiplier;
     int *mNextLettersFrequencies;
     int mNextLettersSize;
-    int mVersion;
-    int mBigram;
 };
 
 // ----------------------------------------------------------------------------
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016 Menny Even-Danan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host-side tests of the native dictionary's search. The NDK build does not pick these up,
+// build and run them from jnidictionaryv2/src with:
+//   g++ -Imain/jni -o /tmp/dictionary_test test/jni/dictionary_test.cpp main/jni/dictionary.cpp main/jni/char_utils.cpp && /tmp/dictionary_test
+
+#include <stdio.h>
+#include <string.h>
+
+#include "dictionary.h"
+
+using namespace nativeime;
+
+#define MAX_NODES 256
+#define MAX_CHILDREN 8
+#define MAX_WORD_LENGTH 32
+#define MAX_WORDS 16
+#define MAX_ALTERNATIVES 4
+#define MISSED_CHARACTER_MIN_WORDS 5
+
+struct Node {
+    char c;
+    bool terminal;
+    int frequency;
+    int childrenCount;
+    Node *children[MAX_CHILDREN];
+};
+
+static Node sNodes[MAX_NODES];
+static int sNodesCount = 0;
+static unsigned char sDict[4096];
+static int sDictSize = 0;
+static int sFailures = 0;
+
+static Node *newNode(char c)
+{
+    Node *node = &sNodes[sNodesCount++];
+    memset(node, 0, sizeof(Node));
+    node->c = c;
+    return node;
+}
+
+static void addWord(Node *root, const char *word, int frequency)
+{
+    Node *node = root;
+    for (; *word; word++) {
+        Node *child = NULL;
+        for (int i = 0; i < node->childrenCount; i++) {
+            if (node->children[i]->c == *word) child = node->children[i];
+        }
+        if (!child) {
+            child = newNode(*word);
+            node->children[node->childrenCount++] = child;
+        }
+        node = child;
+    }
+    node->terminal = true;
+    node->frequency = frequency;
+}
+
+// writes the group of the node's children in the old (header-less) format,
+// then their groups, patching each child's address.
+static void writeGroup(Node *node)
+{
+    int addressesPositions[MAX_CHILDREN];
+    sDict[sDictSize++] = (unsigned char) node->childrenCount;
+    for (int i = 0; i < node->childrenCount; i++) {
+        Node *child = node->children[i];
+        sDict[sDictSize++] = (unsigned char) child->c;
+        addressesPositions[i] = sDictSize;
+        unsigned char flags = child->terminal ? FLAG_TERMINAL_MASK : 0;
+        if (child->childrenCount > 0) {
+            sDict[sDictSize++] = flags | FLAG_ADDRESS_MASK;
+            sDict[sDictSize++] = 0;
+            sDict[sDictSize++] = 0;
+        } else {
+            sDict[sDictSize++] = flags;
+        }
+        if (child->terminal) sDict[sDictSize++] = (unsigned char) child->frequency;
+    }
+    for (int i = 0; i < node->childrenCount; i++) {
+        if (node->children[i]->childrenCount == 0) continue;
+        const int address = sDictSize;
+        sDict[addressesPositions[i]] |= (address >> 16) & 0x3F;
+        sDict[addressesPositions[i] + 1] = (address >> 8) & 0xFF;
+        sDict[addressesPositions[i] + 2] = address & 0xFF;
+        writeGroup(node->children[i]);
+    }
+}
+
+// Returns how many times the word was suggested for the typed characters (no alternatives).
+static int countSuggested(const Dictionary &dictionary, const char *typed, const char *word, int *frequency)
+{
+    int codes[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+    memset(codes, 0, sizeof(codes));
+    const int typedLength = strlen(typed);
+    for (int i = 0; i < typedLength; i++) codes[i * MAX_ALTERNATIVES] = typed[i];
+    unsigned short words[MAX_WORDS * MAX_WORD_LENGTH];
+    int frequencies[MAX_WORDS];
+    int lengths[MAX_WORDS];
+
+    DictionaryQuery query(dictionary);
+    const int count = query.getSuggestions(codes, typedLength, words, frequencies, lengths, MAX_WORD_LENGTH,
+            MAX_WORDS, MAX_ALTERNATIVES, MISSED_CHARACTER_MIN_WORDS, NULL, 0, -1);
+    const int wordLength = strlen(word);
+    int found = 0;
+    for (int w = 0; w < count; w++) {
+        if (lengths[w] != wordLength) continue;
+        bool same = true;
+        for (int c = 0; c < wordLength; c++) {
+            if (words[w * MAX_WORD_LENGTH + c] != (unsigned short) word[c]) same = false;
+        }
+        if (same) {
+            if (frequency) *frequency = frequencies[w];
+            found++;
+        }
+    }
+    return found;
+}
+
+static void expectSuggested(const Dictionary &dictionary, const char *typed, const char *word, int times)
+{
+    const int found = countSuggested(dictionary, typed, word, NULL);
+    if (found != times) {
+        printf("FAILED: typing '%s' suggested '%s' %d times, expected %d.\n", typed, word, found, times);
+        sFailures++;
+    }
+}
+
+int main()
+{
+    Node *root = newNode(0);
+    addWord(root, "hello", 200);
+    addWord(root, "help", 150);
+    addWord(root, "hell", 100);
+    addWord(root, "world", 180);
+    writeGroup(root);
+    Dictionary dictionary(sDict, sDictSize, 2, 2);
+
+    // direct search
+    expectSuggested(dictionary, "hel", "hello", 1);
+    expectSuggested(dictionary, "wprld", "world", 0);
+    // a missed character
+    expectSuggested(dictionary, "wrld", "world", 1);
+    expectSuggested(dictionary, "worl", "world", 1);
+    // an extra character: first, middle and last
+    expectSuggested(dictionary, "xworld", "world", 1);
+    expectSuggested(dictionary, "woxrld", "world", 1);
+    expectSuggested(dictionary, "worldx", "world", 1);
+    // an extra repeated character is not suggested once per repetition
+    expectSuggested(dictionary, "wworld", "world", 1);
+    expectSuggested(dictionary, "worrld", "world", 1);
+    expectSuggested(dictionary, "worlldd", "world", 0);
+    // only one edit is allowed
+    expectSuggested(dictionary, "xwxorld", "world", 0);
+
+    // an extra character is attenuated the same as a missed one: each matched character gets
+    // the typed-letter multiplier (2), but the word does not get the full-word multiplier (2)
+    int extraFrequency = 0;
+    countSuggested(dictionary, "wormld", "world", &extraFrequency);
+    if (extraFrequency != 180 * 2 * 2 * 2 * 2 * 2) {
+        printf("FAILED: an extra character scored %d.\n", extraFrequency);
+        sFailures++;
+    }
+
+    // the maxima used for pruning are also computed when the groups are not one after the other
+    sDict[sDictSize] = 0;
+    Dictionary paddedDictionary(sDict, sDictSize + 1, 2, 2);
+    expectSuggested(paddedDictionary, "hel", "hello", 1);
+    expectSuggested(paddedDictionary, "xworld", "world", 1);
+
+    if (sFailures == 0) printf("All passed.\n");
+    return sFailures == 0 ? 0 : 1;
+}
@@ -0,0 +1,115 @@
+package com.anysoftkeyboard.nextword;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Gives each word a small int id, so the relations between words can be kept in primitive arrays.
+ * A word's String is kept only once, no matter in how many relations it is used.
+ * Ids are dense, starting at zero, in the order the words were added.
+ */
+class InternedWords {
+    static final int NO_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+    //rough sizes (in bytes) for memory estimations.
+    private static final int ARRAY_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+
+    private String[] mWords = new String[INITIAL_CAPACITY];
+    //open-addressing (linear probing) table of id+1, zero marks an empty slot.
+    private int[] mTable = new int[INITIAL_CAPACITY * 2];
+    private int mSize = 0;
+    private int mEstimatedStringsSize = 0;
+
+    /**
+     * @return the id of the word, or {@link #NO_ID} if it was not added.
+     */
+    int getId(@NonNull String word) {
+        final int mask = mTable.length - 1;
+        int slot = hash(word) & mask;
+        int idPlusOne;
+        while ((idPlusOne = mTable[slot]) != 0) {
+            if (mWords[idPlusOne - 1].equals(word)) return idPlusOne - 1;
+            slot = (slot + 1) & mask;
+        }
+        return NO_ID;
+    }
+
+    /**
+     * @return the id of the word, adding it if needed.
+     */
+    int intern(@NonNull String word) {
+        final int mask = mTable.length - 1;
+        int slot = hash(word) & mask;
+        int idPlusOne;
+        while ((idPlusOne = mTable[slot]) != 0) {
+            if (mWords[idPlusOne - 1].equals(word)) return idPlusOne - 1;
+            slot = (slot + 1) & mask;
+        }
+
+        final int id = mSize;
+        if (id == mWords.length) {
+            String[] words = new String[mWords.length * 2];
+            System.arraycopy(mWords, 0, words, 0, mSize);
+            mWords = words;
+        }
+        mWords[id] = word;
+        mSize++;
+        mEstimatedStringsSize += STRING_OVERHEAD + 2 * word.length();
+        //keeping the table at most half full, so probing stays short.
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        } else {
+            mTable[slot] = id + 1;
+        }
+        return id;
+    }
+
+    @NonNull
+    String getWord(int id) {
+        return mWords[id];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return a copy of the words, indexed by their ids.
+     */
+    @NonNull
+    String[] copyWords() {
+        final String[] words = new String[mSize];
+        System.arraycopy(mWords, 0, words, 0, mSize);
+        return words;
+    }
+
+    int getEstimatedMemorySize() {
+        return 2 * ARRAY_OVERHEAD + 4 * (mWords.length + mTable.length) + mEstimatedStringsSize;
+    }
+
+    void clear() {
+        mWords = new String[INITIAL_CAPACITY];
+        mTable = new int[INITIAL_CAPACITY * 2];
+        mSize = 0;
+        mEstimatedStringsSize = 0;
+    }
+
+    private void rehash(int tableSize) {
+        final int[] table = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = hash(mWords[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        mTable = table;
+    }
+
+    private static int hash(String word) {
+        final int hash = word.hashCode() * 0x9E3779B1;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,7 +1,5 @@
 package com.anysoftkeyboard.nextword;
 
-import java.util.Comparator;
-
 class NextWord {
     public final String nextWord;
     private int mUsedCount;
@@ -20,15 +18,12 @@ class NextWord {
         mUsedCount++;
     }
 
-    public int getUsedCount() {
-        return mUsedCount;
+    void addUsedCount(int usedCount) {
+        mUsedCount += usedCount;
     }
 
-    public static class NextWordComparator implements Comparator<NextWord> {
-        @Override
-        public int compare(NextWord lhs, NextWord rhs) {
-            return lhs.mUsedCount - rhs.mUsedCount;
-        }
+    public int getUsedCount() {
+        return mUsedCount;
     }
 
     @Override
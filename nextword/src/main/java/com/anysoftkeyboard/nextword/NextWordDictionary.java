@@ -1,20 +1,32 @@
 package com.anysoftkeyboard.nextword;
 
 import android.content.Context;
-import android.support.v4.util.ArrayMap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Random;
 
 public class NextWordDictionary {
     private static final String TAG = "NextWordDictionary";
 
-    private static final Random msRandom = new Random();
-
     private static final int MAX_NEXT_SUGGESTIONS = 8;
-    private static final int MAX_NEXT_WORD_CONTAINERS = 900;
+    /**
+     * The default limit of the estimated memory the next-words may take.
+     * Roughly the size of the previous limit of 3000 word containers.
+     */
+    public static final int DEFAULT_MAX_MEMORY_SIZE = 512 * 1024;
+    //when evicting, we evict until the memory size is below this fraction of the limit.
+    private static final float EVICTION_TARGET_FACTOR = 0.9f;
+    //words usage is halved every this many usages, so the eviction prefers what is used lately.
+    private static final int USAGE_DECAY_PERIOD = 4096;
+    //the journal is folded into a new stored file after this many learned relations.
+    private static final int JOURNAL_COMPACTION_ENTRIES_COUNT = 2048;
+    //counters in each row of the two-words context sketch (4 rows of ints, so 64KB in total).
+    private static final int TWO_WORDS_CONTEXT_SKETCH_WIDTH = 4096;
+    //only this many of the most used next-words of the current word are checked against the two-words context.
+    private static final int MAX_TWO_WORDS_CONTEXT_CANDIDATES = 32;
 
     /*
     static {
@@ -33,19 +45,62 @@ public class NextWordDictionary {
     */
 
     private final NextWordsStorage mStorage;
+    private final NextWordsJournal mJournal;
+    private final NextWordsJournal.JournalEntryListener mJournalEntryListener = new NextWordsJournal.JournalEntryListener() {
+        @Override
+        public void onJournalEntry(@NonNull String previousWord, @NonNull String nextWord) {
+            learnNextWord(previousWord, nextWord);
+        }
+    };
 
     private String mPreviousWord = null;
+    private String mWordBeforePreviousWord = null;
 
-    private final ArrayMap<String, NextWordsContainer> mNextWordMap = new ArrayMap<>();
+    private InternedWords mWords = new InternedWords();
+    //indexed by the word's id. null if the word has no next-words.
+    private NextWordsCounts[] mNextWords = new NextWordsCounts[64];
+    private int mNextWordsContainersCount = 0;
+    private int mNextWordsContainersMemorySize = 0;
+    private final int mMaxMemorySize;
+    private int mUsageTick = 0;
+    private int mUsagesSinceDecay = 0;
 
     private final String[] mReusableNextWordsResponse = new String[MAX_NEXT_SUGGESTIONS];
     private final SimpleIterable mReusableNextWordsIterable;
 
+    //null if the two-words context is not used.
+    @Nullable
+    private final TwoWordsContextSketch mTwoWordsContextSketch;
+    private final int[] mReusableTwoWordsContextPositions = new int[MAX_NEXT_SUGGESTIONS];
+    private final int[] mReusableTwoWordsContextCounts = new int[MAX_NEXT_SUGGESTIONS];
+
     //private volatile long mNativeDict;
 
     public NextWordDictionary(Context context, String locale) {
+        this(context, locale, DEFAULT_MAX_MEMORY_SIZE);
+    }
+
+    /**
+     * @param maxMemorySize limit of the estimated memory (in bytes) of the next-words. When it is exceeded,
+     *                      the words which are least used as a context are evicted.
+     */
+    public NextWordDictionary(Context context, String locale, int maxMemorySize) {
+        this(context, locale, maxMemorySize, false);
+    }
+
+    /**
+     * @param maxMemorySize      limit of the estimated memory (in bytes) of the next-words. When it is exceeded,
+     *                           the words which are least used as a context are evicted.
+     * @param useTwoWordsContext also count which words followed the last two words, and suggest those first.
+     *                           These counts are kept in a fixed-size sketch (which is not part of maxMemorySize),
+     *                           and are not stored: they are learned again after the dictionary is loaded.
+     */
+    public NextWordDictionary(Context context, String locale, int maxMemorySize, boolean useTwoWordsContext) {
         mStorage = new NextWordsStorage(context, locale);
+        mJournal = new NextWordsJournal(context, locale, mStorage);
+        mMaxMemorySize = maxMemorySize;
         mReusableNextWordsIterable = new SimpleIterable(mReusableNextWordsResponse);
+        mTwoWordsContextSketch = useTwoWordsContext ? new TwoWordsContextSketch(TWO_WORDS_CONTEXT_SKETCH_WIDTH) : null;
         //mNativeDict = openNative("next_words_"+locale+".txt");
     }
 
@@ -62,62 +117,257 @@ public class NextWordDictionary {
         maxResults = Math.min(MAX_NEXT_SUGGESTIONS, maxResults);
         //firstly, updating the relations to the previous word
         if (mPreviousWord != null) {
-            NextWordsContainer previousSet = mNextWordMap.get(mPreviousWord);
-            if (previousSet == null) {
-                if (mNextWordMap.size() > MAX_NEXT_WORD_CONTAINERS) {
-                    String randomWordToDelete = mNextWordMap.keyAt(msRandom.nextInt(mNextWordMap.size()));
-                    mNextWordMap.remove(randomWordToDelete);
-                }
-                previousSet = new NextWordsContainer(mPreviousWord);
-                mNextWordMap.put(mPreviousWord, previousSet);
+            learnNextWord(mPreviousWord, currentWord);
+            if (mTwoWordsContextSketch != null && mWordBeforePreviousWord != null) {
+                mTwoWordsContextSketch.add(mWordBeforePreviousWord.hashCode(), mPreviousWord.hashCode(), currentWord.hashCode());
+            }
+            mJournal.append(mPreviousWord, currentWord);
+            if (mJournal.getEntriesCount() >= JOURNAL_COMPACTION_ENTRIES_COUNT) {
+                //only copying the arrays here, the snapshot is turned into containers (and stored) on the journal's thread.
+                mJournal.compact(createSnapshot());
             }
-
-            previousSet.markWordAsUsed(currentWord);
         }
 
         //secondly, get a list of suggestions
-        NextWordsContainer nextSet = mNextWordMap.get(currentWord);
+        final NextWordsCounts nextSet = getNextWordsCounts(mWords.getId(currentWord));
         int suggestionsCount = 0;
         if (nextSet != null) {
-            for (NextWord nextWord : nextSet.getNextWordSuggestions()) {
-                if (nextWord.getUsedCount() < minWordUsage) continue;
-
-                mReusableNextWordsResponse[suggestionsCount] = nextWord.nextWord;
-                suggestionsCount++;
-                if (suggestionsCount == maxResults) break;
+            if (mTwoWordsContextSketch != null && mPreviousWord != null) {
+                suggestionsCount = fillTwoWordsContextSuggestions(mTwoWordsContextSketch, nextSet, mPreviousWord, currentWord, maxResults, minWordUsage);
+            } else {
+                suggestionsCount = nextSet.getNextWordSuggestionsCount(maxResults, minWordUsage);
+                //only the suggested words are turned into Strings (and those are the interned ones).
+                for (int suggestionIndex = 0; suggestionIndex < suggestionsCount; suggestionIndex++) {
+                    mReusableNextWordsResponse[suggestionIndex] = mWords.getWord(nextSet.getNextWordId(suggestionIndex));
+                }
             }
         }
 
+        mWordBeforePreviousWord = mPreviousWord;
         mPreviousWord = currentWord;
 
         mReusableNextWordsIterable.setArraySize(suggestionsCount);
         return mReusableNextWordsIterable;
     }
 
+    /**
+     * Suggests the next-words which followed both the previous word and the current word, most used first,
+     * and backs off to the next-words of the current word alone for the rest of the suggestions.
+     * Only the current word's next-words are candidates, so the sketch is never asked about words
+     * which did not follow the current word.
+     *
+     * @return the number of suggestions written into the reusable response.
+     */
+    private int fillTwoWordsContextSuggestions(@NonNull TwoWordsContextSketch sketch, @NonNull NextWordsCounts nextSet,
+                                               @NonNull String previousWord, @NonNull String currentWord, int maxResults, int minWordUsage) {
+        final int previousWordHash = previousWord.hashCode();
+        final int currentWordHash = currentWord.hashCode();
+        final int minTwoWordsContextUsage = Math.max(1, minWordUsage);
+        int twoWordsContextSuggestionsCount = 0;
+        final int candidatesCount = Math.min(nextSet.size(), MAX_TWO_WORDS_CONTEXT_CANDIDATES);
+        for (int position = 0; position < candidatesCount; position++) {
+            final int count = sketch.getCount(previousWordHash, currentWordHash, mWords.getWord(nextSet.getNextWordId(position)).hashCode());
+            if (count < minTwoWordsContextUsage) continue;
+            //insertion sort into the top results. Equal counts keep the single word context order.
+            int insertAt = twoWordsContextSuggestionsCount;
+            while (insertAt > 0 && mReusableTwoWordsContextCounts[insertAt - 1] < count) {
+                insertAt--;
+            }
+            if (insertAt >= maxResults) continue;
+            if (twoWordsContextSuggestionsCount < maxResults) twoWordsContextSuggestionsCount++;
+            final int shiftedCount = twoWordsContextSuggestionsCount - 1 - insertAt;
+            System.arraycopy(mReusableTwoWordsContextPositions, insertAt, mReusableTwoWordsContextPositions, insertAt + 1, shiftedCount);
+            System.arraycopy(mReusableTwoWordsContextCounts, insertAt, mReusableTwoWordsContextCounts, insertAt + 1, shiftedCount);
+            mReusableTwoWordsContextPositions[insertAt] = position;
+            mReusableTwoWordsContextCounts[insertAt] = count;
+        }
+
+        int suggestionsCount = 0;
+        for (; suggestionsCount < twoWordsContextSuggestionsCount; suggestionsCount++) {
+            mReusableNextWordsResponse[suggestionsCount] = mWords.getWord(nextSet.getNextWordId(mReusableTwoWordsContextPositions[suggestionsCount]));
+        }
+        //backing off to the single word context
+        final int singleWordContextSuggestionsCount = nextSet.getNextWordSuggestionsCount(maxResults + twoWordsContextSuggestionsCount, minWordUsage);
+        for (int position = 0; position < singleWordContextSuggestionsCount && suggestionsCount < maxResults; position++) {
+            if (isTwoWordsContextSuggestion(position, twoWordsContextSuggestionsCount)) continue;
+            mReusableNextWordsResponse[suggestionsCount++] = mWords.getWord(nextSet.getNextWordId(position));
+        }
+        return suggestionsCount;
+    }
+
+    private boolean isTwoWordsContextSuggestion(int position, int twoWordsContextSuggestionsCount) {
+        for (int suggestionIndex = 0; suggestionIndex < twoWordsContextSuggestionsCount; suggestionIndex++) {
+            if (mReusableTwoWordsContextPositions[suggestionIndex] == position) return true;
+        }
+        return false;
+    }
+
+    private void learnNextWord(String previousWord, String nextWord) {
+        final int previousWordId = mWords.intern(previousWord);
+        NextWordsCounts previousSet = getNextWordsCounts(previousWordId);
+        if (previousSet == null) previousSet = createNextWordsCounts(previousWordId);
+
+        final int memorySizeBefore = previousSet.getEstimatedMemorySize();
+        previousSet.markAsUsed(mWords.intern(nextWord));
+        previousSet.markContextAsUsed(++mUsageTick);
+        mNextWordsContainersMemorySize += previousSet.getEstimatedMemorySize() - memorySizeBefore;
+
+        if (++mUsagesSinceDecay >= USAGE_DECAY_PERIOD) decayUsage();
+        if (getEstimatedMemorySize() > mMaxMemorySize) evictLeastUsed();
+    }
+
+    private NextWordsCounts getNextWordsCounts(int wordId) {
+        if (wordId == InternedWords.NO_ID || wordId >= mNextWords.length) return null;
+        return mNextWords[wordId];
+    }
+
+    private NextWordsCounts createNextWordsCounts(int wordId) {
+        if (wordId >= mNextWords.length) {
+            NextWordsCounts[] nextWords = new NextWordsCounts[Math.max(mNextWords.length * 2, wordId + 1)];
+            System.arraycopy(mNextWords, 0, nextWords, 0, mNextWords.length);
+            mNextWords = nextWords;
+        }
+        NextWordsCounts counts = new NextWordsCounts();
+        mNextWords[wordId] = counts;
+        mNextWordsContainersCount++;
+        mNextWordsContainersMemorySize += counts.getEstimatedMemorySize();
+        return counts;
+    }
+
+    /**
+     * A rough estimation of the memory (in bytes) the next-words take.
+     */
+    int getEstimatedMemorySize() {
+        return mWords.getEstimatedMemorySize() + 4 * mNextWords.length + mNextWordsContainersMemorySize;
+    }
+
+    private void decayUsage() {
+        mUsagesSinceDecay = 0;
+        final int wordsCount = Math.min(mWords.size(), mNextWords.length);
+        for (int wordId = 0; wordId < wordsCount; wordId++) {
+            if (mNextWords[wordId] != null) mNextWords[wordId].decayUsage();
+        }
+        if (mTwoWordsContextSketch != null) mTwoWordsContextSketch.decay();
+    }
+
+    /**
+     * Evicts the words which are least used as a context (ties are broken by least recently used),
+     * until the estimated memory size is comfortably below the limit.
+     * Evicting in batches keeps the (sorting) cost of eviction away from most of the usages.
+     */
+    private void evictLeastUsed() {
+        final int targetMemorySize = (int) (mMaxMemorySize * EVICTION_TARGET_FACTOR);
+        while (mNextWordsContainersCount > 0 && getEstimatedMemorySize() > targetMemorySize) {
+            final int wordsCount = Math.min(mWords.size(), mNextWords.length);
+            final long[] evictionOrder = new long[mNextWordsContainersCount];
+            int containerIndex = 0;
+            for (int wordId = 0; wordId < wordsCount; wordId++) {
+                final NextWordsCounts counts = mNextWords[wordId];
+                if (counts != null) evictionOrder[containerIndex++] = getEvictionOrder(counts);
+            }
+            Arrays.sort(evictionOrder);
+            //evicting a part of the containers relative to how much we are above the target
+            final int containersToEvict = Math.max(1, (int) (mNextWordsContainersCount * (1f - ((float) targetMemorySize) / getEstimatedMemorySize())));
+            final long evictionThreshold = evictionOrder[Math.min(containersToEvict, evictionOrder.length) - 1];
+            for (int wordId = 0; wordId < wordsCount; wordId++) {
+                final NextWordsCounts counts = mNextWords[wordId];
+                if (counts != null && getEvictionOrder(counts) <= evictionThreshold) {
+                    mNextWords[wordId] = null;
+                    mNextWordsContainersCount--;
+                }
+            }
+            //dropping the words which are no longer used
+            compactWords();
+        }
+    }
+
+    private static long getEvictionOrder(NextWordsCounts counts) {
+        return (((long) counts.getUsageScore()) << 32) | (counts.getLastUsed() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Re-assigns the words' ids, dropping the words which are no longer part of any relation.
+     */
+    private void compactWords() {
+        final InternedWords words = new InternedWords();
+        NextWordsCounts[] nextWords = new NextWordsCounts[mNextWords.length];
+        final int wordsCount = Math.min(mWords.size(), mNextWords.length);
+        int containersMemorySize = 0;
+        for (int wordId = 0; wordId < wordsCount; wordId++) {
+            final NextWordsCounts counts = mNextWords[wordId];
+            if (counts == null) continue;
+            final NextWordsCounts compactedCounts = new NextWordsCounts();
+            for (int position = 0; position < counts.size(); position++) {
+                compactedCounts.add(words.intern(mWords.getWord(counts.getNextWordId(position))), counts.getCount(position));
+            }
+            compactedCounts.setUsage(counts.getUsageScore(), counts.getLastUsed());
+            containersMemorySize += compactedCounts.getEstimatedMemorySize();
+            //the next-words are interned before their context word, so the context's new id
+            //may be larger than any of the old contexts' ids.
+            final int compactedWordId = words.intern(mWords.getWord(wordId));
+            if (compactedWordId >= nextWords.length) {
+                NextWordsCounts[] grownNextWords = new NextWordsCounts[Math.max(nextWords.length * 2, compactedWordId + 1)];
+                System.arraycopy(nextWords, 0, grownNextWords, 0, nextWords.length);
+                nextWords = grownNextWords;
+            }
+            nextWords[compactedWordId] = compactedCounts;
+        }
+        if (Utils.DEBUG) Log.d(TAG, "Compacted words ids from " + mWords.size() + " to " + words.size());
+        mWords = words;
+        mNextWords = nextWords;
+        mNextWordsContainersMemorySize = containersMemorySize;
+    }
+
+    /**
+     * Writes what was learned into the journal. The full next-words file is only stored
+     * when the journal is compacted.
+     */
     public void close() {
         //closeNative(mNativeDict);
-        mStorage.storeNextWords(mNextWordMap.values());
+        mJournal.close();
+    }
+
+    private NextWordsSnapshot createSnapshot() {
+        return new NextWordsSnapshot(mWords, mNextWords, mNextWordsContainersCount);
     }
 
     public void load() {
         //loadNative(mNativeDict);
+        mJournal.recoverInterruptedCompaction();
         for (NextWordsContainer container : mStorage.loadStoredNextWords()) {
             if (Utils.DEBUG) Log.d(TAG, "Loaded " + container);
-            mNextWordMap.put(container.word, container);
+            final int wordId = mWords.intern(container.word);
+            NextWordsCounts counts = getNextWordsCounts(wordId);
+            if (counts == null) counts = createNextWordsCounts(wordId);
+            final int memorySizeBefore = counts.getEstimatedMemorySize();
+            int usageScore = counts.getUsageScore();
+            for (NextWord nextWord : container.getNextWordSuggestions()) {
+                counts.add(mWords.intern(nextWord.nextWord), nextWord.getUsedCount());
+                usageScore += nextWord.getUsedCount();
+            }
+            counts.setUsage(usageScore, 0);
+            mNextWordsContainersMemorySize += counts.getEstimatedMemorySize() - memorySizeBefore;
         }
+        if (getEstimatedMemorySize() > mMaxMemorySize) evictLeastUsed();
+        //what was learned after the stored file was written
+        mJournal.replay(mJournalEntryListener);
     }
 
     public void resetSentence() {
         mPreviousWord = null;
+        mWordBeforePreviousWord = null;
     }
 
     public NextWordStatistics dumpDictionaryStatistics() {
         int firstWordCount = 0;
         int secondWordCount = 0;
 
-        for (Map.Entry<String, NextWordsContainer> entry : mNextWordMap.entrySet()) {
+        final int wordsCount = Math.min(mWords.size(), mNextWords.length);
+        for (int wordId = 0; wordId < wordsCount; wordId++) {
+            final NextWordsCounts counts = mNextWords[wordId];
+            if (counts == null) continue;
             firstWordCount++;
-            secondWordCount += entry.getValue().getNextWordSuggestions().size();
+            secondWordCount += counts.size();
         }
 
         return new NextWordStatistics(firstWordCount, secondWordCount);
@@ -126,7 +376,15 @@ public class NextWordDictionary {
     public void clearData() {
         //clearNative(mNativeDict);
         resetSentence();
-        mNextWordMap.clear();
+        mWords.clear();
+        mNextWords = new NextWordsCounts[64];
+        mNextWordsContainersCount = 0;
+        mNextWordsContainersMemorySize = 0;
+        mUsageTick = 0;
+        mUsagesSinceDecay = 0;
+        if (mTwoWordsContextSketch != null) mTwoWordsContextSketch.clear();
+        //storing an empty snapshot, which also clears the journal
+        mJournal.compact(createSnapshot());
     }
 
     private static class SimpleIterable implements Iterable<String> {
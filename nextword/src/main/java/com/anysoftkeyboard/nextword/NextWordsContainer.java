@@ -7,20 +7,30 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * The next-words of a word, always ordered by usage (most used first).
+ * Next-words with the same usage count keep the order in which they reached it.
+ */
 public class NextWordsContainer {
 
-    private static final NextWord.NextWordComparator msNextWordComparator = new NextWord.NextWordComparator();
+    private static final int DEFAULT_CAPACITY = 4;
 
     public final String word;
-    private final List<NextWord> mOrderedNextWord = new ArrayList<>();
-    private final Map<CharSequence, NextWord> mNextWordLookup = new ArrayMap<>();
+    private final List<NextWord> mOrderedNextWord;
+    private final Map<CharSequence, NextWord> mNextWordLookup;
 
     public NextWordsContainer(String word) {
+        this(word, DEFAULT_CAPACITY);
+    }
+
+    NextWordsContainer(String word, int nextWordsCapacity) {
         this.word = word;
+        mOrderedNextWord = new ArrayList<>(nextWordsCapacity);
+        mNextWordLookup = new ArrayMap<>(nextWordsCapacity);
     }
 
     public NextWordsContainer(String word, List<String> nextWords) {
-        this.word = word;
+        this(word, nextWords.size());
         int frequency = nextWords.size();
         for (String nextWordText : nextWords) {
             NextWord nextWord = new NextWord(nextWordText, frequency);
@@ -29,25 +39,58 @@ public class NextWordsContainer {
         }
     }
 
-    public void markWordAsUsed(String word) {
+    synchronized void addNextWord(String nextWordText, int usedCount) {
+        NextWord nextWord = mNextWordLookup.get(nextWordText);
+        if (nextWord == null) {
+            nextWord = new NextWord(nextWordText, usedCount);
+            mNextWordLookup.put(nextWordText, nextWord);
+            mOrderedNextWord.add(nextWord);
+            moveUp(mOrderedNextWord.size() - 1);
+        } else {
+            nextWord.addUsedCount(usedCount);
+            moveUp(mOrderedNextWord.indexOf(nextWord));
+        }
+    }
+
+    public synchronized void markWordAsUsed(String word) {
         NextWord nextWord = mNextWordLookup.get(word);
         if (nextWord == null) {
             nextWord = new NextWord(word);
             mNextWordLookup.put(word, nextWord);
             mOrderedNextWord.add(nextWord);
+            moveUp(mOrderedNextWord.size() - 1);
         } else {
             nextWord.markAsUsed();
+            moveUp(mOrderedNextWord.indexOf(nextWord));
         }
     }
 
-    public List<NextWord> getNextWordSuggestions() {
-        Collections.sort(mOrderedNextWord, msNextWordComparator);
+    /**
+     * Moves the next-word at the given index in front of all the next-words which were used less.
+     * Since the list is always ordered, only the next-words it passes are shifted.
+     */
+    private void moveUp(final int index) {
+        final NextWord nextWord = mOrderedNextWord.get(index);
+        int newIndex = index;
+        while (newIndex > 0 && mOrderedNextWord.get(newIndex - 1).getUsedCount() < nextWord.getUsedCount()) {
+            newIndex--;
+        }
+        if (newIndex != index) {
+            mOrderedNextWord.remove(index);
+            mOrderedNextWord.add(newIndex, nextWord);
+        }
+    }
 
-        return mOrderedNextWord;
+    /**
+     * @return a read-only copy of the next-words, most used first. It is taken under the container's lock,
+     * so it can be iterated (say, while storing) while the container is being changed.
+     */
+    public synchronized List<NextWord> getNextWordSuggestions() {
+        return Collections.unmodifiableList(new ArrayList<>(mOrderedNextWord));
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return "("+word+") -> ["+mOrderedNextWord.toString()+"]";
     }
 }
@@ -0,0 +1,187 @@
+package com.anysoftkeyboard.nextword;
+
+/**
+ * The words that followed a single word, and how many times each of them was used (by word-id).
+ * The entries are kept in primitive arrays, ordered by usage count (most used first), with an
+ * open-addressing index from the next-word id to its position. Entries with the same count keep
+ * the order in which they reached it.
+ */
+class NextWordsCounts {
+    private static final int INITIAL_CAPACITY = 4;
+    //rough sizes (in bytes) of the object and its three arrays, for memory estimations.
+    private static final int OBJECT_OVERHEAD = 40;
+    private static final int ARRAY_OVERHEAD = 16;
+
+    private int[] mNextWordIds = new int[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private int mSize = 0;
+    //open-addressing (linear probing) table of position+1, zero marks an empty slot.
+    private int[] mIndex = new int[INITIAL_CAPACITY * 2];
+
+    //how much this word is used as a context for next-words (decays over time), and when it was last used.
+    private int mUsageScore = 0;
+    private int mLastUsed = 0;
+
+    /**
+     * Adds the given count to the next-word's usage, adding it if it was never used.
+     */
+    void add(int nextWordId, int count) {
+        final int mask = mIndex.length - 1;
+        int slot = hash(nextWordId) & mask;
+        int positionPlusOne;
+        while ((positionPlusOne = mIndex[slot]) != 0) {
+            if (mNextWordIds[positionPlusOne - 1] == nextWordId) {
+                final int position = positionPlusOne - 1;
+                mCounts[position] += count;
+                moveUp(position);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final int position = mSize;
+        if (position == mNextWordIds.length) {
+            mNextWordIds = grow(mNextWordIds);
+            mCounts = grow(mCounts);
+        }
+        mNextWordIds[position] = nextWordId;
+        mCounts[position] = count;
+        mSize++;
+        if (mSize * 2 > mIndex.length) {
+            rehash(mIndex.length * 2);
+        } else {
+            mIndex[slot] = position + 1;
+        }
+        moveUp(position);
+    }
+
+    /**
+     * Moves the entry at the given position in front of all the entries with a lower count.
+     * Only the entries between the old and new positions are touched.
+     */
+    private void moveUp(final int position) {
+        final int count = mCounts[position];
+        int newPosition = position;
+        while (newPosition > 0 && mCounts[newPosition - 1] < count) {
+            newPosition--;
+        }
+        if (newPosition == position) return;
+
+        //updating the index first, while it still matches the arrays.
+        //The moved entry's slot is marked, so its position value is free for the shifted entries.
+        final int nextWordId = mNextWordIds[position];
+        final int movedSlot = findSlot(nextWordId, position);
+        mIndex[movedSlot] = -1;
+        for (int shiftedPosition = position - 1; shiftedPosition >= newPosition; shiftedPosition--) {
+            mIndex[findSlot(mNextWordIds[shiftedPosition], shiftedPosition)] = shiftedPosition + 2;
+        }
+        mIndex[movedSlot] = newPosition + 1;
+
+        System.arraycopy(mNextWordIds, newPosition, mNextWordIds, newPosition + 1, position - newPosition);
+        System.arraycopy(mCounts, newPosition, mCounts, newPosition + 1, position - newPosition);
+        mNextWordIds[newPosition] = nextWordId;
+        mCounts[newPosition] = count;
+    }
+
+    private int findSlot(int nextWordId, int position) {
+        final int mask = mIndex.length - 1;
+        int slot = hash(nextWordId) & mask;
+        while (mIndex[slot] != position + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    void markAsUsed(int nextWordId) {
+        add(nextWordId, 1);
+    }
+
+    void markContextAsUsed(int usageTick) {
+        mUsageScore++;
+        mLastUsed = usageTick;
+    }
+
+    void setUsage(int usageScore, int lastUsed) {
+        mUsageScore = usageScore;
+        mLastUsed = lastUsed;
+    }
+
+    /**
+     * Halves the usage score, so older usage counts less than recent usage.
+     */
+    void decayUsage() {
+        mUsageScore >>= 1;
+    }
+
+    int getUsageScore() {
+        return mUsageScore;
+    }
+
+    int getLastUsed() {
+        return mLastUsed;
+    }
+
+    int getEstimatedMemorySize() {
+        return OBJECT_OVERHEAD + 3 * ARRAY_OVERHEAD + 4 * (mNextWordIds.length + mCounts.length + mIndex.length);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int getNextWordId(int position) {
+        return mNextWordIds[position];
+    }
+
+    int getCount(int position) {
+        return mCounts[position];
+    }
+
+    /**
+     * Copies the entries (in their order) into the given arrays, starting at the given offset.
+     */
+    void copyTo(int[] nextWordIds, int[] counts, int offset) {
+        System.arraycopy(mNextWordIds, 0, nextWordIds, offset, mSize);
+        System.arraycopy(mCounts, 0, counts, offset, mSize);
+    }
+
+    /**
+     * The entries are ordered, so the suggestions are the first entries.
+     *
+     * @param maxResults how many entries to suggest, at most.
+     * @param minCount entries which were used less than this are not suggested.
+     * @return the number of leading entries to suggest.
+     */
+    int getNextWordSuggestionsCount(int maxResults, int minCount) {
+        final int max = Math.min(maxResults, mSize);
+        int suggestionsCount = 0;
+        while (suggestionsCount < max && mCounts[suggestionsCount] >= minCount) {
+            suggestionsCount++;
+        }
+        return suggestionsCount;
+    }
+
+    private void rehash(int indexSize) {
+        final int[] index = new int[indexSize];
+        final int mask = indexSize - 1;
+        for (int position = 0; position < mSize; position++) {
+            int slot = hash(mNextWordIds[position]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = position + 1;
+        }
+        mIndex = index;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    private static int hash(int id) {
+        final int hash = id * 0x9E3779B1;
+        return hash ^ (hash >>> 16);
+    }
+}
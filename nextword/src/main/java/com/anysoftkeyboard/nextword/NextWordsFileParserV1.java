@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * File structure:
@@ -59,9 +60,10 @@ public class NextWordsFileParserV1 implements NextWordsFileParser {
         outputStream.write(1/*VERSION*/);
         for (NextWordsContainer nextWordsContainer : nextWords) {
             writeWord(outputStream, nextWordsContainer.word);
-            int maxWordsToStore = Math.min(12/*the maximum words we want to store*/, nextWordsContainer.getNextWordSuggestions().size());
+            final List<NextWord> nextWordSuggestions = nextWordsContainer.getNextWordSuggestions();
+            int maxWordsToStore = Math.min(12/*the maximum words we want to store*/, nextWordSuggestions.size());
             outputStream.write(maxWordsToStore);
-            for (NextWord nextWord : nextWordsContainer.getNextWordSuggestions()) {
+            for (NextWord nextWord : nextWordSuggestions) {
                 writeWord(outputStream, nextWord.nextWord);
                 maxWordsToStore--;
                 if (maxWordsToStore == 0) break;
@@ -0,0 +1,149 @@
+package com.anysoftkeyboard.nextword;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File structure (all numbers are unsigned varints - 7 bits per byte, least significant first,
+ * the high bit marks that more bytes follow):
+ * [1 byte VERSION (HAS TO BE 2)]
+ * [HEADER]
+ * [number of entries]
+ * [ENTRIES]
+ * [Word length in bytes] [n bytes UTF8 word]
+ * [count of next words]
+ * [Next word length in bytes] [n bytes UTF8 word] [usage count] ... count of next words times
+ * ... more entries
+ * <p>
+ * The next-words of an entry are stored most used first.
+ * Everything can be read in a single pass, from a memory-mapped file.
+ */
+public class NextWordsFileParserV2 implements NextWordsFileParser {
+    static final int VERSION = 2;
+
+    private static final String CHARSET = "UTF-8";
+    private static final int MAX_NEXT_WORDS_TO_STORE = 12;
+
+    @NonNull
+    @Override
+    public Iterable<NextWordsContainer> loadStoredNextWords(@NonNull InputStream inputStream) throws IOException {
+        //assuming that VERSION was read, and InputStream points to the next byte
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(inputStream.available());
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            fileBytes.write(buffer, 0, read);
+        }
+        return loadStoredNextWords(ByteBuffer.wrap(fileBytes.toByteArray()));
+    }
+
+    /**
+     * Reads the entries from a buffer positioned right after the VERSION byte.
+     * A truncated (or broken) file is read up to the last complete entry.
+     */
+    @NonNull
+    public List<NextWordsContainer> loadStoredNextWords(@NonNull ByteBuffer buffer) throws IOException {
+        byte[] wordBuffer = new byte[64];
+        ArrayList<NextWordsContainer> loadedEntries = new ArrayList<>(0);
+        try {
+            final int entriesCount = readVarint(buffer);
+            //an entry takes at least two bytes, so a broken count will not cause a huge allocation
+            loadedEntries.ensureCapacity(Math.min(entriesCount, buffer.remaining() / 2));
+            for (int entryIndex = 0; entryIndex < entriesCount; entryIndex++) {
+                final int wordLength = readLength(buffer, 1);
+                if (wordLength > wordBuffer.length) wordBuffer = new byte[wordLength];
+                final String word = readWord(buffer, wordBuffer, wordLength);
+                //a next-word takes at least two bytes: its length and its usage count
+                final int nextWordsCount = readLength(buffer, 2);
+                NextWordsContainer container = new NextWordsContainer(word, Math.min(nextWordsCount, MAX_NEXT_WORDS_TO_STORE));
+                for (int nextWordIndex = 0; nextWordIndex < nextWordsCount; nextWordIndex++) {
+                    final int nextWordLength = readLength(buffer, 1);
+                    if (nextWordLength > wordBuffer.length) wordBuffer = new byte[nextWordLength];
+                    final String nextWord = readWord(buffer, wordBuffer, nextWordLength);
+                    container.addNextWord(nextWord, readVarint(buffer));
+                }
+                loadedEntries.add(container);
+            }
+        } catch (BufferUnderflowException e) {
+            //the file was not fully written (or is broken). Keeping what was complete.
+        }
+
+        return loadedEntries;
+    }
+
+    @NonNull
+    private static String readWord(@NonNull ByteBuffer buffer, @NonNull byte[] wordBuffer, int length) throws IOException {
+        buffer.get(wordBuffer, 0, length);
+        return new String(wordBuffer, 0, length, CHARSET);
+    }
+
+    /**
+     * Reads a length (or a count) of items, each taking at least the given number of bytes.
+     *
+     * @throws BufferUnderflowException if the length is negative, or larger than what is left in the buffer,
+     *                                  so a broken length will not cause a huge allocation or a read out of bounds.
+     */
+    private static int readLength(@NonNull ByteBuffer buffer, int minimumItemSize) throws IOException {
+        final int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining() / minimumItemSize) throw new BufferUnderflowException();
+        return length;
+    }
+
+    static int readVarint(@NonNull ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int currentByte = buffer.get() & 0xFF;
+            value |= (currentByte & 0x7F) << shift;
+            if ((currentByte & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint in next-words file.");
+    }
+
+    @Override
+    public void storeNextWords(@NonNull Iterable<NextWordsContainer> nextWords, @NonNull OutputStream outputStream) throws IOException {
+        int entriesCount = 0;
+        for (NextWordsContainer ignored : nextWords) {
+            entriesCount++;
+        }
+
+        final BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+        //assuming output stream is pointing to the start of the file
+        bufferedOutputStream.write(VERSION);
+        writeVarint(bufferedOutputStream, entriesCount);
+        for (NextWordsContainer nextWordsContainer : nextWords) {
+            writeWord(bufferedOutputStream, nextWordsContainer.word);
+            final List<NextWord> nextWordSuggestions = nextWordsContainer.getNextWordSuggestions();
+            final int nextWordsToStore = Math.min(MAX_NEXT_WORDS_TO_STORE, nextWordSuggestions.size());
+            writeVarint(bufferedOutputStream, nextWordsToStore);
+            for (int nextWordIndex = 0; nextWordIndex < nextWordsToStore; nextWordIndex++) {
+                final NextWord nextWord = nextWordSuggestions.get(nextWordIndex);
+                writeWord(bufferedOutputStream, nextWord.nextWord);
+                writeVarint(bufferedOutputStream, nextWord.getUsedCount());
+            }
+        }
+        bufferedOutputStream.flush();
+    }
+
+    private static void writeWord(@NonNull OutputStream outputStream, @NonNull String word) throws IOException {
+        final byte[] wordBytes = word.getBytes(CHARSET);
+        writeVarint(outputStream, wordBytes.length);
+        outputStream.write(wordBytes);
+    }
+
+    static void writeVarint(@NonNull OutputStream outputStream, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+}
@@ -0,0 +1,307 @@
+package com.anysoftkeyboard.nextword;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead log of the next-words relations learned since the last snapshot
+ * (the file {@link NextWordsStorage} stores). Learning a relation only appends a few bytes
+ * to a memory buffer, and the buffer is appended to the journal file on a background thread,
+ * a bit later, so the relations of several keystrokes are written together.
+ * Compaction stores a new snapshot and starts an empty journal, also on the background thread.
+ * The journal is rotated (renamed) before the snapshot is stored, and the rotated journal is deleted
+ * only once the snapshot is completely written, so if the process is killed in the middle, the next load
+ * uses either the old snapshot with the rotated journal, or the new snapshot without it - never both.
+ * <p>
+ * File structure:
+ * [ENTRIES]
+ * [1 byte previous-word length] [n bytes UTF8 word] [1 byte next-word length] [n bytes UTF8 word]
+ * ... more entries. A partially written entry at the end is ignored.
+ */
+class NextWordsJournal {
+    private static final String TAG = "NextWordsJournal";
+
+    private static final String CHARSET = "UTF-8";
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    interface JournalEntryListener {
+        void onJournalEntry(@NonNull String previousWord, @NonNull String nextWord);
+    }
+
+    private final Context mContext;
+    private final NextWordsStorage mStorage;
+    private final String mJournalFilename;
+    private final String mRotatedJournalFilename;
+
+    private final Object mPendingEntriesLock = new Object();
+    private final ByteArrayOutputStream mPendingEntries = new ByteArrayOutputStream(256);
+    private boolean mFlushScheduled = false;
+    //while a compaction is waiting to run, the pending entries are not part of its snapshot,
+    //and must only be written after it starts a new journal. Counted, since a compaction can be
+    //requested while an earlier one is still waiting, and the pending entries are not part of the earlier snapshot.
+    private int mPendingCompactionsCount = 0;
+    private int mEntriesCount = 0;
+
+    @Nullable
+    private ScheduledExecutorService mWriter;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            final byte[] entries;
+            synchronized (mPendingEntriesLock) {
+                mFlushScheduled = false;
+                if (mPendingCompactionsCount > 0) return;
+                entries = takePendingEntries();
+            }
+            writeEntries(entries);
+        }
+    };
+
+    NextWordsJournal(@NonNull Context context, @NonNull String locale, @NonNull NextWordsStorage storage) {
+        mContext = context;
+        mStorage = storage;
+        mJournalFilename = "next_words_" + locale + ".journal";
+        mRotatedJournalFilename = mJournalFilename + ".old";
+    }
+
+    /**
+     * Completes (or rolls back) a compaction which was interrupted by the process being killed.
+     * Should be called before the snapshot is loaded.
+     */
+    void recoverInterruptedCompaction() {
+        if (mContext.getFileStreamPath(mRotatedJournalFilename).exists()) {
+            //the new snapshot may not be complete. The rotated journal is what was learned after the old snapshot.
+            mStorage.deleteTemporaryFile();
+            if (!renameFile(mRotatedJournalFilename, mJournalFilename)) {
+                Log.w(TAG, "Failed to restore the rotated journal " + mRotatedJournalFilename);
+            }
+        } else {
+            //the new snapshot is complete (the rotated journal was deleted), but it did not replace the old one.
+            mStorage.replaceWithTemporaryFile();
+        }
+    }
+
+    /**
+     * The number of entries since the last snapshot.
+     */
+    int getEntriesCount() {
+        return mEntriesCount;
+    }
+
+    void append(@NonNull String previousWord, @NonNull String nextWord) {
+        final byte[] previousWordBytes;
+        final byte[] nextWordBytes;
+        try {
+            previousWordBytes = previousWord.getBytes(CHARSET);
+            nextWordBytes = nextWord.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+        if (!isValidWordLength(previousWordBytes) || !isValidWordLength(nextWordBytes)) return;
+
+        synchronized (mPendingEntriesLock) {
+            mPendingEntries.write(previousWordBytes.length);
+            mPendingEntries.write(previousWordBytes, 0, previousWordBytes.length);
+            mPendingEntries.write(nextWordBytes.length);
+            mPendingEntries.write(nextWordBytes, 0, nextWordBytes.length);
+            mEntriesCount++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                getWriter().schedule(mFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static boolean isValidWordLength(byte[] wordBytes) {
+        return wordBytes.length > 0 && wordBytes.length < 256;
+    }
+
+    /**
+     * Stores the given snapshot and starts an empty journal, on the background thread.
+     * The snapshot should include all the entries appended so far, and should not be changed afterwards.
+     * It is iterated on the background thread.
+     */
+    void compact(@NonNull final Iterable<NextWordsContainer> snapshot) {
+        synchronized (mPendingEntriesLock) {
+            //these are already part of the snapshot
+            mPendingEntries.reset();
+            mEntriesCount = 0;
+            mPendingCompactionsCount++;
+        }
+        getWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                //no entries are written to the journal until the compaction is done,
+                //so the rotated journal holds everything which is in the snapshot, but not in the stored file.
+                if (!rotateJournal()) {
+                    //the journal still holds all the entries, so the stored file is kept as is.
+                    Log.w(TAG, "Failed to rotate the journal " + mJournalFilename + ". Not compacting.");
+                } else if (mStorage.storeNextWordsInTemporaryFile(snapshot)) {
+                    //from here on, the temporary file is the stored file, even if it is not renamed yet.
+                    mContext.deleteFile(mRotatedJournalFilename);
+                    mStorage.replaceWithTemporaryFile();
+                } else if (!renameFile(mRotatedJournalFilename, mJournalFilename)) {
+                    //the entries will be in the next snapshot, as long as we are not killed before it is stored.
+                    Log.w(TAG, "Failed to restore the rotated journal " + mRotatedJournalFilename);
+                }
+                final byte[] entries;
+                synchronized (mPendingEntriesLock) {
+                    mPendingCompactionsCount--;
+                    //the pending entries are not part of the later snapshot, they are written once it is stored
+                    if (mPendingCompactionsCount > 0) return;
+                    entries = takePendingEntries();
+                }
+                writeEntries(entries);
+            }
+        });
+    }
+
+    /**
+     * Reads the journal's entries, in the order they were appended.
+     */
+    void replay(@NonNull JournalEntryListener listener) {
+        InputStream inputStream = null;
+        int entriesCount = 0;
+        try {
+            inputStream = new BufferedInputStream(mContext.openFileInput(mJournalFilename));
+            final byte[] buffer = new byte[256];
+            String previousWord;
+            String nextWord;
+            while (null != (previousWord = readWord(buffer, inputStream)) && null != (nextWord = readWord(buffer, inputStream))) {
+                listener.onJournalEntry(previousWord, nextWord);
+                entriesCount++;
+            }
+        } catch (FileNotFoundException e) {
+            if (Utils.DEBUG) Log.d(TAG, "No journal at " + mJournalFilename);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            Log.w(TAG, String.format("Failed to read %s. Replayed %d entries.", mJournalFilename, entriesCount));
+        } finally {
+            if (inputStream != null) try {
+                inputStream.close();
+            } catch (IOException e) {
+            }
+        }
+        synchronized (mPendingEntriesLock) {
+            mEntriesCount += entriesCount;
+        }
+    }
+
+    private boolean rotateJournal() {
+        if (mContext.getFileStreamPath(mJournalFilename).exists()) {
+            return renameFile(mJournalFilename, mRotatedJournalFilename);
+        }
+        //an empty rotated journal still marks that the temporary file is not complete.
+        return writeFile(mRotatedJournalFilename, new byte[0], Context.MODE_PRIVATE);
+    }
+
+    private boolean renameFile(@NonNull String fromFilename, @NonNull String toFilename) {
+        return mContext.getFileStreamPath(fromFilename).renameTo(mContext.getFileStreamPath(toFilename));
+    }
+
+    @Nullable
+    private static String readWord(@NonNull byte[] buffer, @NonNull InputStream inputStream) throws IOException {
+        final int bytesToRead = inputStream.read();
+        if (bytesToRead < 1) return null;
+        int readBytes = 0;
+        int read;
+        while (readBytes < bytesToRead && (read = inputStream.read(buffer, readBytes, bytesToRead - readBytes)) > 0) {
+            readBytes += read;
+        }
+        return readBytes == bytesToRead ? new String(buffer, 0, bytesToRead, CHARSET) : null;
+    }
+
+    /**
+     * Writes the pending entries (and waits for a running compaction), then stops the background thread.
+     */
+    void close() {
+        final ScheduledExecutorService writer;
+        synchronized (mPendingEntriesLock) {
+            writer = mWriter;
+            mWriter = null;
+        }
+        if (writer == null) return;
+        //delayed tasks will not run after shutdown, so the pending entries are flushed now.
+        writer.execute(mFlushTask);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out while writing the journal " + mJournalFilename);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing the journal " + mJournalFilename);
+        }
+    }
+
+    @NonNull
+    private ScheduledExecutorService getWriter() {
+        synchronized (mPendingEntriesLock) {
+            if (mWriter == null) {
+                ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "ASK next-words journal");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                //close flushes right away, no need to wait for the delayed flush
+                writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                mWriter = writer;
+            }
+            return mWriter;
+        }
+    }
+
+    private byte[] takePendingEntries() {
+        final byte[] entries = mPendingEntries.toByteArray();
+        mPendingEntries.reset();
+        return entries;
+    }
+
+    private void writeEntries(@NonNull byte[] entries) {
+        if (entries.length == 0) return;
+        writeFile(mJournalFilename, entries, Context.MODE_APPEND);
+    }
+
+    private boolean writeFile(@NonNull String filename, @NonNull byte[] bytes, int mode) {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = mContext.openFileOutput(filename, mode);
+            outputStream.write(bytes);
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            Log.w(TAG, String.format("Failed to write %d bytes to %s.", bytes.length, filename));
+        } catch (NullPointerException npe) {
+            //see NextWordsStorage.storeNextWords
+            Log.w(TAG, npe);
+            Log.w(TAG, String.format("Failed to write to %s with an NPE.", filename));
+        } finally {
+            if (outputStream != null) try {
+                outputStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close output stream while in finally.", e);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+package com.anysoftkeyboard.nextword;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable copy of the next-words relations, as primitive arrays (and the words' Strings).
+ * Taking it is only a few array copies, so it can be done on the typing path, while the
+ * {@link NextWordsContainer}s are created when it is iterated (on the background thread which stores it).
+ */
+class NextWordsSnapshot implements Iterable<NextWordsContainer> {
+    //indexed by word id
+    private final String[] mWords;
+    private final int[] mContextWordIds;
+    private final int mContextsCount;
+    //the next-words of the context at index i are at [mNextWordsStarts[i], mNextWordsStarts[i + 1])
+    private final int[] mNextWordsStarts;
+    private final int[] mNextWordIds;
+    private final int[] mCounts;
+
+    NextWordsSnapshot(@NonNull InternedWords words, @NonNull NextWordsCounts[] nextWords, int contextsCount) {
+        mWords = words.copyWords();
+        mContextWordIds = new int[contextsCount];
+        mNextWordsStarts = new int[contextsCount + 1];
+        final int wordsCount = Math.min(mWords.length, nextWords.length);
+        int contextIndex = 0;
+        int nextWordsCount = 0;
+        for (int wordId = 0; wordId < wordsCount && contextIndex < contextsCount; wordId++) {
+            final NextWordsCounts counts = nextWords[wordId];
+            if (counts == null) continue;
+            mContextWordIds[contextIndex] = wordId;
+            mNextWordsStarts[contextIndex] = nextWordsCount;
+            nextWordsCount += counts.size();
+            contextIndex++;
+        }
+        mContextsCount = contextIndex;
+        mNextWordsStarts[mContextsCount] = nextWordsCount;
+        mNextWordIds = new int[nextWordsCount];
+        mCounts = new int[nextWordsCount];
+        for (contextIndex = 0; contextIndex < mContextsCount; contextIndex++) {
+            nextWords[mContextWordIds[contextIndex]].copyTo(mNextWordIds, mCounts, mNextWordsStarts[contextIndex]);
+        }
+    }
+
+    @Override
+    public Iterator<NextWordsContainer> iterator() {
+        return new Iterator<NextWordsContainer>() {
+            private int mContextIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mContextIndex < mContextsCount;
+            }
+
+            @Override
+            public NextWordsContainer next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final int start = mNextWordsStarts[mContextIndex];
+                final int end = mNextWordsStarts[mContextIndex + 1];
+                NextWordsContainer container = new NextWordsContainer(mWords[mContextWordIds[mContextIndex]], end - start);
+                for (int position = start; position < end; position++) {
+                    container.addNextWord(mWords[mNextWordIds[position]], mCounts[position]);
+                }
+                mContextIndex++;
+                return container;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("The snapshot is immutable");
+            }
+        };
+    }
+}
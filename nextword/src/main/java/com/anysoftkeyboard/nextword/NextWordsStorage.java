@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 
 public class NextWordsStorage {
@@ -16,11 +17,13 @@ public class NextWordsStorage {
     private final Context mContext;
     private final String mLocale;
     private final String mNextWordsStorageFilename;
+    private final String mTemporaryFilename;
 
     public NextWordsStorage(@NonNull Context context, @NonNull String locale) {
         mContext = context;
         mLocale = locale;
         mNextWordsStorageFilename = "next_words_"+mLocale+".txt";
+        mTemporaryFilename = mNextWordsStorageFilename + ".tmp";
     }
 
     @NonNull
@@ -34,16 +37,24 @@ public class NextWordsStorage {
                 Log.w(TAG, "Failed to read version from file "+mNextWordsStorageFilename);
                 return Collections.emptyList();
             }
-            final NextWordsFileParser parser;
             switch (version) {
                 case 1:
-                    parser = new NextWordsFileParserV1();
-                    break;
+                    final Iterable<NextWordsContainer> nextWords = new NextWordsFileParserV1().loadStoredNextWords(inputStream);
+                    inputStream.close();
+                    inputStream = null;
+                    //upgrading the file to the current version, so counts will be kept from now on
+                    Log.d(TAG, "Upgrading "+mNextWordsStorageFilename+" from version 1.");
+                    storeNextWords(nextWords);
+                    return nextWords;
+                case NextWordsFileParserV2.VERSION:
+                    //reading the whole file in one pass, directly from its mapped memory
+                    final FileChannel channel = inputStream.getChannel();
+                    return new NextWordsFileParserV2().loadStoredNextWords(
+                            channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), channel.size() - channel.position()));
                 default:
                     Log.w(TAG, String.format("Version %d is not supported!", version));
                     return Collections.emptyList();
             }
-            return parser.loadStoredNextWords(inputStream);
         } catch (FileNotFoundException e) {
             Log.w(TAG, e);
             Log.w(TAG, String.format("Failed to find %s. Maybe it's just the first time.", mNextWordsStorageFilename));
@@ -60,25 +71,42 @@ public class NextWordsStorage {
         }
     }
 
+    /**
+     * Stores the next-words into a temporary file, and then replaces the stored file with it.
+     * This way, the stored file is always complete, even if the process is killed while storing.
+     */
     public void storeNextWords(@NonNull Iterable<NextWordsContainer> nextWords) {
-        NextWordsFileParser parser = new NextWordsFileParserV1();
+        if (storeNextWordsInTemporaryFile(nextWords)) replaceWithTemporaryFile();
+    }
+
+    /**
+     * Stores the next-words into a temporary file, which will replace the stored file
+     * when {@link #replaceWithTemporaryFile()} is called.
+     *
+     * @return true if the temporary file was completely written.
+     */
+    boolean storeNextWordsInTemporaryFile(@NonNull Iterable<NextWordsContainer> nextWords) {
+        NextWordsFileParser parser = new NextWordsFileParserV2();
         FileOutputStream outputStream = null;
         try {
-            Log.d(TAG, "Storing next-words into "+mNextWordsStorageFilename);
-            outputStream = mContext.openFileOutput(mNextWordsStorageFilename, Context.MODE_PRIVATE);
+            Log.d(TAG, "Storing next-words into "+mTemporaryFilename);
+            outputStream = mContext.openFileOutput(mTemporaryFilename, Context.MODE_PRIVATE);
             parser.storeNextWords(nextWords, outputStream);
             outputStream.flush();
+            outputStream.close();
+            outputStream = null;
+            return true;
         } catch (IOException e) {
             Log.w(TAG, e);
-            Log.w(TAG, String.format("Failed to store to %s. Deleting", mNextWordsStorageFilename));
-            mContext.deleteFile(mNextWordsStorageFilename);
+            Log.w(TAG, String.format("Failed to store to %s. Deleting", mTemporaryFilename));
+            mContext.deleteFile(mTemporaryFilename);
         } catch(NullPointerException npe) {
             //related to https://github.com/AnySoftKeyboard/AnySoftKeyboard/issues/528
             //after reading http://stackoverflow.com/questions/10259421/nullpointerexception-at-openfileoutput-in-activity
             //and https://github.com/android/platform_frameworks_base/blob/android-sdk-4.0.3_r1/core/java/android/app/ContextImpl.java#L614
             //I'm guessing that there is not much I can do here :(
             Log.w(TAG, npe);
-            Log.w(TAG, String.format("Failed to store to %s with an NPE.", mNextWordsStorageFilename));
+            Log.w(TAG, String.format("Failed to store to %s with an NPE.", mTemporaryFilename));
         } finally {
             if (outputStream != null) try {
                 outputStream.close();
@@ -86,5 +114,20 @@ public class NextWordsStorage {
                 Log.w(TAG, "Failed to close output stream while in finally.", e);
             }
         }
+        return false;
+    }
+
+    /**
+     * Replaces the stored file with the temporary file, if there is one.
+     */
+    void replaceWithTemporaryFile() {
+        if (!mContext.getFileStreamPath(mTemporaryFilename).exists()) return;
+        if (!mContext.getFileStreamPath(mTemporaryFilename).renameTo(mContext.getFileStreamPath(mNextWordsStorageFilename))) {
+            Log.w(TAG, "Failed to rename "+mTemporaryFilename+" to "+mNextWordsStorageFilename);
+        }
+    }
+
+    void deleteTemporaryFile() {
+        mContext.deleteFile(mTemporaryFilename);
     }
 }
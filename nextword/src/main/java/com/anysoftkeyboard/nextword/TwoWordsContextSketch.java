@@ -0,0 +1,98 @@
+package com.anysoftkeyboard.nextword;
+
+/**
+ * Approximate usage counts of word triplets (two words of context, and the word that followed them),
+ * kept in a count-min sketch: a fixed number of rows of counters, each row indexed by a different hash
+ * of the triplet. A triplet's count is the minimum of its counters, which is never lower than the real
+ * count, and is higher only when all of its counters are shared with other triplets.
+ * <p>
+ * The memory is fixed when created, no matter how many triplets are added, and neither adding nor
+ * counting allocates anything.
+ * Words are identified by their String hash-code (which String caches), so the counts are not
+ * affected by the words' ids changing.
+ */
+class TwoWordsContextSketch {
+    private static final int DEPTH = 4;
+    //rough size (in bytes) of the object and its array, for memory estimations.
+    private static final int OVERHEAD = 40;
+
+    private final int[] mCounters;
+    private final int mWidthMask;
+
+    /**
+     * @param width the number of counters in each row. Must be a power of two.
+     */
+    TwoWordsContextSketch(int width) {
+        if (width <= 0 || (width & (width - 1)) != 0)
+            throw new IllegalArgumentException("Sketch width must be a power of two, but was " + width);
+        mCounters = new int[DEPTH * width];
+        mWidthMask = width - 1;
+    }
+
+    /**
+     * Marks the triplet as used once more.
+     * Only the counters which hold the triplet's minimum are incremented (conservative update),
+     * which keeps the over-estimation of the other triplets down.
+     */
+    void add(int firstWordHash, int secondWordHash, int nextWordHash) {
+        final long hash = hash(firstWordHash, secondWordHash, nextWordHash);
+        final int newCount = getCount(hash) + 1;
+        for (int row = 0; row < DEPTH; row++) {
+            final int counterIndex = getCounterIndex(hash, row);
+            if (mCounters[counterIndex] < newCount) mCounters[counterIndex] = newCount;
+        }
+    }
+
+    /**
+     * @return the (possibly over-estimated) number of times the triplet was used.
+     */
+    int getCount(int firstWordHash, int secondWordHash, int nextWordHash) {
+        return getCount(hash(firstWordHash, secondWordHash, nextWordHash));
+    }
+
+    private int getCount(long hash) {
+        int count = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            count = Math.min(count, mCounters[getCounterIndex(hash, row)]);
+        }
+        return count;
+    }
+
+    /**
+     * Halves all the counts, so older usage counts less than recent usage.
+     */
+    void decay() {
+        for (int counterIndex = 0; counterIndex < mCounters.length; counterIndex++) {
+            mCounters[counterIndex] >>= 1;
+        }
+    }
+
+    void clear() {
+        for (int counterIndex = 0; counterIndex < mCounters.length; counterIndex++) {
+            mCounters[counterIndex] = 0;
+        }
+    }
+
+    int getEstimatedMemorySize() {
+        return OVERHEAD + 4 * mCounters.length;
+    }
+
+    private int getCounterIndex(long hash, int row) {
+        //double hashing: each row uses a different combination of the two halves of the hash.
+        final int rowHash = ((int) hash) + row * (((int) (hash >>> 32)) | 1);
+        return row * (mWidthMask + 1) + (rowHash & mWidthMask);
+    }
+
+    private static long hash(int firstWordHash, int secondWordHash, int nextWordHash) {
+        long hash = firstWordHash;
+        hash = hash * 0x9E3779B97F4A7C15L + secondWordHash;
+        hash = hash * 0x9E3779B97F4A7C15L + nextWordHash;
+        //mixing the bits, so both halves depend on all three words
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
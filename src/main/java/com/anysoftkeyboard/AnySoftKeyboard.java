@@ -30,7 +30,9 @@ import android.inputmethodservice.InputMethodService;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
@@ -118,6 +120,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
     private static final String KEYBOARD_NOTIFICATION_NEVER = "3";
     private static final long ONE_FRAME_DELAY = 1000L / 60L;
     private static final long CLOSE_DICTIONARIES_DELAY = 5 * ONE_FRAME_DELAY;
+    private static final long FLUSH_AUTO_DICTIONARY_DELAY = 30 * 1000;
     private static final ExtractedTextRequest EXTRACTED_TEXT_REQUEST = new ExtractedTextRequest();
 
     private final AskPrefs mAskPrefs;
@@ -140,6 +143,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
     private CandidateView mCandidateView;
     private long mLastDictionaryRefresh = -1;
     private Suggest mSuggest;
+    private SuggestionsWorker mSuggestionsWorker;
     private CompletionInfo[] mCompletions;
     private AlertDialog mOptionsDialog;
     private long mMetaState;
@@ -289,6 +293,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         mVibrator = ((Vibrator) getSystemService(Context.VIBRATOR_SERVICE));
 
         mSuggest = createSuggest();
+        mSuggestionsWorker = new SuggestionsWorker(mSuggest, createSuggestionsWorkerLooper(), mKeyboardHandler);
         mKeyboardSwitcher = createKeyboardSwitcher();
 
         loadSettings();
@@ -313,11 +318,19 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         return new Suggest(this);
     }
 
+    @NonNull
+    protected Looper createSuggestionsWorkerLooper() {
+        HandlerThread workerThread = new HandlerThread("ASK suggestions worker");
+        workerThread.start();
+        return workerThread.getLooper();
+    }
+
     @Override
     public void onDestroy() {
         Log.i(TAG, "AnySoftKeyboard has been destroyed! Cleaning resources..");
         mSwitchAnimator.onDestroy();
         mKeyboardHandler.removeAllMessages();
+        mSuggestionsWorker.destroy();
         mAskPrefs.removeChangedListener(this);
 
         unregisterReceiver(mSoundPreferencesChangedReceiver);
@@ -353,6 +366,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         }
         // Remove pending messages related to update suggestions
         abortCorrection(true, false);
+        flushAutoDictionary();
     }
 
     AnyKeyboardView getInputView() {
@@ -1230,6 +1244,10 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
             if (!mSuggest.isValidWord(suggestionToCheck)) {
 
                 final boolean added = mAutoDictionary.addWord(suggestion, type, this);
+                //the auto-dictionary keeps the frequencies in memory, until flushed
+                if (!mKeyboardHandler.hasMessages(KeyboardUIStateHandler.MSG_FLUSH_AUTO_DICTIONARY)) {
+                    mKeyboardHandler.sendEmptyMessageDelayed(KeyboardUIStateHandler.MSG_FLUSH_AUTO_DICTIONARY, FLUSH_AUTO_DICTIONARY_DELAY);
+                }
                 if (added && mCandidateView != null) {
                     mCandidateView.notifyAboutWordAdded(suggestion.getTypedWord());
                 }
@@ -1251,7 +1269,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
                 TextEntryState.acceptedTyped(mWord.getTypedWord());
                 checkAddToDictionaryWithAutoDictionary(mWord, AutoDictionary.AdditionType.Typed);
             }
-            if (mKeyboardHandler.hasMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS)) {
+            if (mKeyboardHandler.hasMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS) || mSuggestionsWorker.hasPendingRequest()) {
                 postUpdateSuggestions(-1);
             }
         }
@@ -2021,6 +2039,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         if (force || TextEntryState.isCorrecting()) {
             mKeyboardHandler.removeMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS);
             mKeyboardHandler.removeMessages(KeyboardUIStateHandler.MSG_RESTART_NEW_WORD_SUGGESTIONS);
+            mSuggestionsWorker.cancel();
 
             final InputConnection ic = getCurrentInputConnection();
             if (ic != null) ic.finishComposingText();
@@ -2233,18 +2252,20 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
     }
 
     /**
-     * posts an update suggestions request to the messages queue. Removes any previous request.
+     * posts an update suggestions request to the messages queue. Removes any previous request,
+     * and cancels any in-flight suggestions query.
      *
      * @param delay negative value will cause the call to be done now, in this thread.
      */
     private void postUpdateSuggestions(long delay) {
         mKeyboardHandler.removeMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS);
+        mSuggestionsWorker.cancel();
         if (delay > 0)
             mKeyboardHandler.sendMessageDelayed(mKeyboardHandler.obtainMessage(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS), delay);
         else if (delay == 0)
             mKeyboardHandler.sendMessage(mKeyboardHandler.obtainMessage(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS));
         else
-            performUpdateSuggestions();
+            performUpdateSuggestionsNow();
     }
 
     protected boolean isPredictionOn() {
@@ -2255,21 +2276,53 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         return mShowSuggestions && onEvaluateInputViewShown();
     }
 
+    /**
+     * Asks the suggestions worker to compute suggestions for the current word. The results will
+     * be delivered via {@link #onSuggestionsReady(SuggestionsWorker.Result)}.
+     */
     /*package*/ void performUpdateSuggestions() {
         if (mCandidateCloseText != null)// in API3 this variable is null
             mCandidateCloseText.setVisibility(View.GONE);
 
         if (!mPredicting) {
+            mSuggestionsWorker.cancel();
             clearSuggestions();
             return;
         }
 
-        List<CharSequence> stringList = mSuggest.getSuggestions(/* mInputView, */mWord, false);
-        boolean correctionAvailable = mSuggest.hasMinimalCorrection();
+        mSuggestionsWorker.requestSuggestions(mWord);
+    }
+
+    /**
+     * Computes suggestions for the current word on this thread, and shows them.
+     */
+    private void performUpdateSuggestionsNow() {
+        if (mCandidateCloseText != null)// in API3 this variable is null
+            mCandidateCloseText.setVisibility(View.GONE);
+
+        if (!mPredicting) {
+            mSuggestionsWorker.cancel();
+            clearSuggestions();
+            return;
+        }
+
+        showSuggestions(mSuggestionsWorker.querySynchronously(mWord));
+    }
+
+    /*package*/ void onSuggestionsReady(SuggestionsWorker.Result result) {
+        //a newer request was made (or the word was committed) since this one was posted
+        if (!mSuggestionsWorker.consumeIfCurrent(result) || !mPredicting) return;
+
+        showSuggestions(result);
+    }
+
+    private void showSuggestions(SuggestionsWorker.Result result) {
+        final List<CharSequence> stringList = result.suggestions;
+        boolean correctionAvailable = result.correctionAvailable;
         // || mCorrectionMode == mSuggest.CORRECTION_FULL;
         CharSequence typedWord = mWord.getTypedWord();
         // If we're in basic correct
-        boolean typedWordValid = mSuggest.isValidWord(typedWord);
+        final boolean typedWordValid = result.typedWordValid;
 
         if (mShowSuggestions || mQuickFixes) {
             correctionAvailable |= typedWordValid;
@@ -2295,7 +2348,7 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
     private boolean pickDefaultSuggestion(boolean autoCorrectToPreferred) {
 
         // Complete any pending candidate query first
-        if (mKeyboardHandler.hasMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS)) {
+        if (mKeyboardHandler.hasMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS) || mSuggestionsWorker.hasPendingRequest()) {
             postUpdateSuggestions(-1);
         }
 
@@ -2737,6 +2790,10 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         mSuggest.setCorrectionMode(mQuickFixes, mShowSuggestions,
                 calculatedCommonalityMaxLengthDiff, calculatedCommonalityMaxDistance,
                 sp.getInt(getString(R.string.settings_key_min_length_for_word_correction__), 2));
+        mSuggest.setParallelDictionariesQueries(sp.getBoolean(
+                getString(R.string.settings_key_parallel_dictionaries_queries),
+                getResources().getBoolean(R.bool.settings_default_parallel_dictionaries_queries)),
+                sp.getInt(getString(R.string.settings_key_parallel_dictionaries_queries_deadline), Suggest.DEFAULT_PARALLEL_QUERIES_DEADLINE_MS));
 
         mDoNotFlipQuickTextKeyAndPopupFunctionality = sp.getBoolean(
                 getString(R.string.settings_key_do_not_flip_quick_key_codes_functionality),
@@ -3038,6 +3095,11 @@ public abstract class AnySoftKeyboard extends InputMethodService implements
         handleShift();
     }
 
+    /*package*/ void flushAutoDictionary() {
+        mKeyboardHandler.removeMessages(KeyboardUIStateHandler.MSG_FLUSH_AUTO_DICTIONARY);
+        if (mAutoDictionary != null) mAutoDictionary.flushPendingWords();
+    }
+
     /*package*/ void closeDictionaries() {
         mSuggest.closeDictionaries();
         //ensuring that next time the dictionaries will be refreshed
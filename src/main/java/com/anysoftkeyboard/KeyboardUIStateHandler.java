@@ -15,9 +15,11 @@ import java.lang.ref.WeakReference;
 */
 final class KeyboardUIStateHandler extends Handler {
     public static final int MSG_UPDATE_SUGGESTIONS = R.id.keyboard_ui_handler_MSG_UPDATE_SUGGESTIONS;
+    public static final int MSG_SUGGESTIONS_READY = R.id.keyboard_ui_handler_MSG_SUGGESTIONS_READY;
     public static final int MSG_RESTART_NEW_WORD_SUGGESTIONS = R.id.keyboard_ui_handler_MSG_RESTART_NEW_WORD_SUGGESTIONS;
     public static final int MSG_REMOVE_CLOSE_SUGGESTIONS_HINT = R.id.keyboard_ui_handler_MSG_REMOVE_CLOSE_SUGGESTIONS_HINT;
     public static final int MSG_CLOSE_DICTIONARIES = R.id.keyboard_ui_handler_MSG_CLOSE_DICTIONARIES;
+    public static final int MSG_FLUSH_AUTO_DICTIONARY = R.id.keyboard_ui_handler_MSG_FLUSH_AUTO_DICTIONARY;
 
     private static final class CloseTextAnimationListener implements Animation.AnimationListener {
         private View closeText;
@@ -47,9 +49,11 @@ final class KeyboardUIStateHandler extends Handler {
 
     public void removeAllMessages() {
         removeMessages(MSG_UPDATE_SUGGESTIONS);
+        removeMessages(MSG_SUGGESTIONS_READY);
         removeMessages(MSG_RESTART_NEW_WORD_SUGGESTIONS);
         removeMessages(MSG_REMOVE_CLOSE_SUGGESTIONS_HINT);
         removeMessages(MSG_CLOSE_DICTIONARIES);
+        removeMessages(MSG_FLUSH_AUTO_DICTIONARY);
     }
 
     @Override
@@ -63,6 +67,9 @@ final class KeyboardUIStateHandler extends Handler {
             case MSG_UPDATE_SUGGESTIONS:
                 ask.performUpdateSuggestions();
                 break;
+            case MSG_SUGGESTIONS_READY:
+                ask.onSuggestionsReady((SuggestionsWorker.Result) msg.obj);
+                break;
             case MSG_RESTART_NEW_WORD_SUGGESTIONS:
                 ask.performRestartWordSuggestion(ic);
                 break;
@@ -78,6 +85,9 @@ final class KeyboardUIStateHandler extends Handler {
             case MSG_CLOSE_DICTIONARIES:
                 ask.closeDictionaries();
                 break;
+            case MSG_FLUSH_AUTO_DICTIONARY:
+                ask.flushAutoDictionary();
+                break;
             default:
                 super.handleMessage(msg);
         }
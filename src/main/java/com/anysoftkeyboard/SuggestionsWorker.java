@@ -0,0 +1,237 @@
+package com.anysoftkeyboard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.anysoftkeyboard.dictionaries.Suggest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Computes suggestions on a dedicated looper, so a slow dictionary traversal will not stall
+ * touch handling and key redraws.
+ * Each request is tagged with a generation number. A newer request (or a cancel) makes all
+ * previous generations stale: queued stale requests are dropped, a running stale query
+ * is aborted mid-traversal, and stale results are never delivered to the UI.
+ */
+final class SuggestionsWorker {
+    private static final int NO_PENDING_GENERATION = -1;
+    /**
+     * A canceled query stops at the next word its dictionary reports, but a native dictionary
+     * reports its words only once its traversal is done. A synchronous query waits this long
+     * for it, at most.
+     */
+    static final long SYNCHRONOUS_QUERY_MAX_WAIT_MS = 20;
+
+    static final class Result {
+        final int generation;
+        final String typedWord;
+        final List<CharSequence> suggestions;
+        final boolean correctionAvailable;
+        final boolean typedWordValid;
+
+        private Result(int generation, String typedWord, List<CharSequence> suggestions, boolean correctionAvailable, boolean typedWordValid) {
+            this.generation = generation;
+            this.typedWord = typedWord;
+            this.suggestions = suggestions;
+            this.correctionAvailable = correctionAvailable;
+            this.typedWordValid = typedWordValid;
+        }
+    }
+
+    private static final class Request {
+        final int generation;
+        final WordComposer word;
+
+        private Request(int generation, WordComposer word) {
+            this.generation = generation;
+            this.word = word;
+        }
+    }
+
+    private final class GenerationCancellationSignal implements Suggest.CancellationSignal {
+        private final int mGeneration;
+
+        private GenerationCancellationSignal(int generation) {
+            mGeneration = generation;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mGeneration != mLatestGeneration.get();
+        }
+    }
+
+    private static final class WorkerHandler extends Handler {
+        private final SuggestionsWorker mWorker;
+
+        WorkerHandler(Looper looper, SuggestionsWorker worker) {
+            super(looper);
+            mWorker = worker;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS) {
+                mWorker.performQuery((Request) msg.obj);
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+    }
+
+    private final Suggest mSuggest;
+    private final Handler mResultsHandler;
+    private final Handler mWorkerHandler;
+    private final AtomicInteger mLatestGeneration = new AtomicInteger(0);
+    //guards Suggest's query state. Held for the whole query.
+    private final ReentrantLock mQueryLock = new ReentrantLock();
+    //accessed only from the UI thread
+    private int mPendingGeneration = NO_PENDING_GENERATION;
+    //the last result shown. Accessed only from the UI thread.
+    private Result mLastDeliveredResult = null;
+
+    SuggestionsWorker(@NonNull Suggest suggest, @NonNull Looper workerLooper, @NonNull Handler resultsHandler) {
+        mSuggest = suggest;
+        mResultsHandler = resultsHandler;
+        mWorkerHandler = new WorkerHandler(workerLooper, this);
+    }
+
+    /**
+     * Asks for suggestions for the given word. The result will be posted to the results handler
+     * as {@link KeyboardUIStateHandler#MSG_SUGGESTIONS_READY}, unless a newer request is made.
+     * Should be called from the UI thread.
+     */
+    void requestSuggestions(@NonNull WordComposer word) {
+        final int generation = mLatestGeneration.incrementAndGet();
+        mPendingGeneration = generation;
+        mWorkerHandler.removeMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS);
+        mWorkerHandler.obtainMessage(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS, new Request(generation, word.snapshot())).sendToTarget();
+    }
+
+    /**
+     * Computes the suggestions for the given word on the calling thread, after canceling any
+     * pending request. This is the fast-path for cases where the UI can not wait for the worker.
+     * If the canceled query does not stop within {@link #SYNCHRONOUS_QUERY_MAX_WAIT_MS}, the last
+     * delivered result is used, if it is of the same word, or else just the typed word.
+     * Should be called from the UI thread.
+     */
+    @NonNull
+    Result querySynchronously(@NonNull WordComposer word) {
+        cancel();
+        final String typedWord = word.getTypedWord().toString();
+        boolean locked;
+        try {
+            locked = mQueryLock.tryLock(SYNCHRONOUS_QUERY_MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        Result result = null;
+        if (locked) {
+            try {
+                result = query(mLatestGeneration.get(), word);
+            } finally {
+                mQueryLock.unlock();
+            }
+        } else if (mLastDeliveredResult != null && mLastDeliveredResult.typedWord.equals(typedWord)) {
+            return mLastDeliveredResult;
+        }
+        if (result == null) {
+            //we could not wait for the running query (a query of the latest generation is not canceled,
+            //since we are on the UI thread), so the typed word is all we have.
+            final List<CharSequence> suggestions = new ArrayList<>(1);
+            if (typedWord.length() > 0) suggestions.add(typedWord);
+            return new Result(NO_PENDING_GENERATION, typedWord, suggestions, false, false);
+        }
+        mLastDeliveredResult = result;
+        return result;
+    }
+
+    /**
+     * Makes all requests made so far stale.
+     * Should be called from the UI thread.
+     */
+    void cancel() {
+        mLatestGeneration.incrementAndGet();
+        mPendingGeneration = NO_PENDING_GENERATION;
+        mWorkerHandler.removeMessages(KeyboardUIStateHandler.MSG_UPDATE_SUGGESTIONS);
+    }
+
+    /**
+     * @return true if a request was made, but its result was not delivered yet.
+     */
+    boolean hasPendingRequest() {
+        return mPendingGeneration != NO_PENDING_GENERATION;
+    }
+
+    /**
+     * Checks if the result is of the latest request. If it is, the request is no longer pending.
+     * Should be called from the UI thread.
+     */
+    boolean consumeIfCurrent(@NonNull Result result) {
+        if (result.generation != mPendingGeneration) return false;
+        mPendingGeneration = NO_PENDING_GENERATION;
+        mLastDeliveredResult = result;
+        return true;
+    }
+
+    void destroy() {
+        cancel();
+        final Looper workerLooper = mWorkerHandler.getLooper();
+        if (workerLooper != Looper.getMainLooper()) workerLooper.quit();
+    }
+
+    private void performQuery(@NonNull Request request) {
+        if (request.generation != mLatestGeneration.get()) return;//stale request
+
+        final Result result;
+        mQueryLock.lock();
+        try {
+            result = query(request.generation, request.word);
+        } finally {
+            mQueryLock.unlock();
+        }
+        if (result != null) {
+            mResultsHandler.obtainMessage(KeyboardUIStateHandler.MSG_SUGGESTIONS_READY, result).sendToTarget();
+        }
+    }
+
+    /**
+     * Should be called while holding mQueryLock.
+     */
+    @Nullable
+    private Result query(final int generation, @NonNull WordComposer word) {
+        final GenerationCancellationSignal cancellationSignal = new GenerationCancellationSignal(generation);
+        //A newer request (or a synchronous query) cancels the running query first. A Java dictionary stops
+        //at the next word it reports, but a native one only when its traversal is done, so the synchronous
+        //query waits for the running one only for a bounded time (see querySynchronously).
+        synchronized (mSuggest) {
+            if (cancellationSignal.isCanceled()) return null;
+            mSuggest.setCancellationSignal(cancellationSignal);
+            try {
+                final List<CharSequence> suggestions = mSuggest.getSuggestions(word, false);
+                final boolean correctionAvailable = mSuggest.hasMinimalCorrection();
+                final boolean typedWordValid = mSuggest.isValidWord(word.getTypedWord());
+                if (cancellationSignal.isCanceled()) return null;
+                //Suggest re-uses the list (and its items) in the next query,
+                //so we need to detach the result from it.
+                final List<CharSequence> detachedSuggestions = new ArrayList<>(suggestions.size());
+                for (CharSequence suggestion : suggestions) {
+                    detachedSuggestions.add(suggestion.toString());
+                }
+                return new Result(generation, word.getTypedWord().toString(), detachedSuggestions, correctionAvailable, typedWordValid);
+            } finally {
+                mSuggest.setCancellationSignal(null);
+            }
+        }
+    }
+}
@@ -64,6 +64,10 @@ public abstract class AddOnImpl implements AddOn {
         return mPackageName;
     }
 
+    protected final Context getAskAppContext() {
+        return mAskAppContext;
+    }
+
     @Nullable
     public final Context getPackageContext() {
         Context c = mPackageContext.get();
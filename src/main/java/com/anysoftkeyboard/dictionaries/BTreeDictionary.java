@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.text.TextUtils;
 
 import com.anysoftkeyboard.base.dictionaries.Dictionary;
@@ -30,11 +31,24 @@ import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.AnyApplication;
 import com.menny.android.anysoftkeyboard.BuildConfig;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public abstract class BTreeDictionary extends EditableDictionary {
 
     public static final int MAX_WORD_LENGTH = 32;
     protected static final String TAG = "ASK UDict";
     private static final char QUOTE = '\'';
+    /**
+     * The most nodes a single query visits, and the most words it reports. These bound the time a
+     * keystroke can take, no matter how large the dictionary is.
+     */
+    static final int MAX_VISITED_NODES = 16 * 1024;
+    static final int MAX_REPORTED_WORDS = 512;
     private static final int INITIAL_ROOT_CAPACITY = 26/*number of letters in the English Alphabet. Why bother with auto-increment, when we can start at roughly the right final size..*/;
     /**
      * Table mapping most combined Latin, Greek, and Cyrillic characters to
@@ -46,15 +60,60 @@ public abstract class BTreeDictionary extends EditableDictionary {
             0x0061, 0x0061, 0x0061, 0x0061, 0x0061, 0x0061, 0x00e6, 0x0063, 0x0065, 0x0065, 0x0065, 0x0065, 0x0069, 0x0069, 0x0069, 0x0069, 0x00f0, 0x006e, 0x006f, 0x006f, 0x006f, 0x006f, 0x006f, 0x00f7, 0x006f, 0x0075, 0x0075, 0x0075, 0x0075, 0x0079, 0x00fe, 0x0079, // Manually changed f8 to 6f
             0x0041, 0x0061, 0x0041, 0x0061, 0x0041, 0x0061, 0x0043, 0x0063, 0x0043, 0x0063, 0x0043, 0x0063, 0x0043, 0x0063, 0x0044, 0x0064, 0x0110, 0x0111, 0x0045, 0x0065, 0x0045, 0x0065, 0x0045, 0x0065, 0x0045, 0x0065, 0x0045, 0x0065, 0x0047, 0x0067, 0x0047, 0x0067, 0x0047, 0x0067, 0x0047, 0x0067, 0x0048, 0x0068, 0x0126, 0x0127, 0x0049, 0x0069, 0x0049, 0x0069, 0x0049, 0x0069, 0x0049, 0x0069, 0x0049, 0x0131, 0x0049, 0x0069, 0x004a, 0x006a, 0x004b, 0x006b, 0x0138, 0x004c, 0x006c, 0x004c, 0x006c, 0x004c, 0x006c, 0x004c, 0x006c, 0x0141, 0x0142, 0x004e, 0x006e, 0x004e, 0x006e, 0x004e, 0x006e, 0x02bc, 0x014a, 0x014b, 0x004f, 0x006f, 0x004f, 0x006f, 0x004f, 0x006f, 0x0152, 0x0153, 0x0052, 0x0072, 0x0052, 0x0072, 0x0052, 0x0072, 0x0053, 0x0073, 0x0053, 0x0073, 0x0053, 0x0073, 0x0053, 0x0073, 0x0054, 0x0074, 0x0054, 0x0074, 0x0166, 0x0167, 0x0055, 0x0075, 0x0055, 0x0075, 0x0055, 0x0075, 0x0055, 0x0075, 0x0055, 0x0075, 0x0055, 0x0075, 0x0057, 0x0077, 0x0059, 0x0079, 0x0059, 0x005a, 0x007a, 0x005a, 0x007a, 0x005a, 0x007a, 0x0073, 0x0180, 0x0181, 0x0182, 0x0183, 0x0184, 0x0185, 0x0186, 0x0187, 0x0188, 0x0189, 0x018a, 0x018b, 0x018c, 0x018d, 0x018e, 0x018f, 0x0190, 0x0191, 0x0192, 0x0193, 0x0194, 0x0195, 0x0196, 0x0197, 0x0198, 0x0199, 0x019a, 0x019b, 0x019c, 0x019d, 0x019e, 0x019f, 0x004f, 0x006f, 0x01a2, 0x01a3, 0x01a4, 0x01a5, 0x01a6, 0x01a7, 0x01a8, 0x01a9, 0x01aa, 0x01ab, 0x01ac, 0x01ad, 0x01ae, 0x0055, 0x0075, 0x01b1, 0x01b2, 0x01b3, 0x01b4, 0x01b5, 0x01b6, 0x01b7, 0x01b8, 0x01b9, 0x01ba, 0x01bb, 0x01bc, 0x01bd, 0x01be, 0x01bf, 0x01c0, 0x01c1, 0x01c2, 0x01c3, 0x0044, 0x0044, 0x0064, 0x004c, 0x004c, 0x006c, 0x004e, 0x004e, 0x006e, 0x0041, 0x0061, 0x0049, 0x0069, 0x004f, 0x006f, 0x0055, 0x0075, 0x00dc, 0x00fc, 0x00dc, 0x00fc, 0x00dc, 0x00fc, 0x00dc, 0x00fc, 0x01dd, 0x00c4, 0x00e4, 0x0226, 0x0227, 0x00c6, 0x00e6, 0x01e4, 0x01e5, 0x0047, 0x0067, 0x004b, 0x006b, 0x004f, 0x006f, 0x01ea, 0x01eb, 0x01b7, 0x0292, 0x006a, 0x0044, 0x0044, 0x0064, 0x0047, 0x0067, 0x01f6, 0x01f7, 0x004e, 0x006e, 0x00c5, 0x00e5, 0x00c6, 0x00e6, 0x00d8, 0x00f8, 0x0041, 0x0061, 0x0041, 0x0061, 0x0045, 0x0065, 0x0045, 0x0065, 0x0049, 0x0069, 0x0049, 0x0069, 0x004f, 0x006f, 0x004f, 0x006f, 0x0052, 0x0072, 0x0052, 0x0072, 0x0055, 0x0075, 0x0055, 0x0075, 0x0053, 0x0073, 0x0054, 0x0074, 0x021c, 0x021d, 0x0048, 0x0068, 0x0220, 0x0221, 0x0222, 0x0223, 0x0224, 0x0225, 0x0041, 0x0061, 0x0045, 0x0065, 0x00d6, 0x00f6, 0x00d5, 0x00f5, 0x004f, 0x006f, 0x022e, 0x022f, 0x0059, 0x0079, 0x0234, 0x0235, 0x0236, 0x0237, 0x0238, 0x0239, 0x023a, 0x023b, 0x023c, 0x023d, 0x023e, 0x023f, 0x0240, 0x0241, 0x0242, 0x0243, 0x0244, 0x0245, 0x0246, 0x0247, 0x0248, 0x0249, 0x024a, 0x024b, 0x024c, 0x024d, 0x024e, 0x024f, 0x0250, 0x0251, 0x0252, 0x0253, 0x0254, 0x0255, 0x0256, 0x0257, 0x0258, 0x0259, 0x025a, 0x025b, 0x025c, 0x025d, 0x025e, 0x025f, 0x0260, 0x0261, 0x0262, 0x0263, 0x0264, 0x0265, 0x0266, 0x0267, 0x0268, 0x0269, 0x026a, 0x026b, 0x026c, 0x026d, 0x026e, 0x026f, 0x0270, 0x0271, 0x0272, 0x0273, 0x0274, 0x0275, 0x0276, 0x0277, 0x0278, 0x0279, 0x027a, 0x027b, 0x027c, 0x027d, 0x027e, 0x027f, 0x0280, 0x0281, 0x0282, 0x0283, 0x0284, 0x0285, 0x0286, 0x0287, 0x0288, 0x0289, 0x028a, 0x028b, 0x028c, 0x028d, 0x028e, 0x028f, 0x0290, 0x0291, 0x0292, 0x0293, 0x0294, 0x0295, 0x0296, 0x0297, 0x0298, 0x0299, 0x029a, 0x029b, 0x029c, 0x029d, 0x029e, 0x029f, 0x02a0, 0x02a1, 0x02a2, 0x02a3, 0x02a4, 0x02a5, 0x02a6, 0x02a7, 0x02a8, 0x02a9, 0x02aa, 0x02ab, 0x02ac, 0x02ad, 0x02ae, 0x02af, 0x0068, 0x0266, 0x006a, 0x0072, 0x0279, 0x027b, 0x0281, 0x0077, 0x0079, 0x02b9, 0x02ba, 0x02bb, 0x02bc, 0x02bd, 0x02be, 0x02bf, 0x02c0, 0x02c1, 0x02c2, 0x02c3, 0x02c4, 0x02c5, 0x02c6, 0x02c7, 0x02c8, 0x02c9, 0x02ca, 0x02cb, 0x02cc, 0x02cd, 0x02ce, 0x02cf, 0x02d0, 0x02d1, 0x02d2, 0x02d3, 0x02d4, 0x02d5, 0x02d6, 0x02d7, 0x0020, 0x0020, 0x0020, 0x0020, 0x0020, 0x0020, 0x02de, 0x02df, 0x0263, 0x006c, 0x0073, 0x0078, 0x0295, 0x02e5, 0x02e6, 0x02e7, 0x02e8, 0x02e9, 0x02ea, 0x02eb, 0x02ec, 0x02ed, 0x02ee, 0x02ef, 0x02f0, 0x02f1, 0x02f2, 0x02f3, 0x02f4, 0x02f5, 0x02f6, 0x02f7, 0x02f8, 0x02f9, 0x02fa, 0x02fb, 0x02fc, 0x02fd, 0x02fe, 0x02ff, 0x0300, 0x0301, 0x0302, 0x0303, 0x0304, 0x0305, 0x0306, 0x0307, 0x0308, 0x0309, 0x030a, 0x030b, 0x030c, 0x030d, 0x030e, 0x030f, 0x0310, 0x0311, 0x0312, 0x0313, 0x0314, 0x0315, 0x0316, 0x0317, 0x0318, 0x0319, 0x031a, 0x031b, 0x031c, 0x031d, 0x031e, 0x031f, 0x0320, 0x0321, 0x0322, 0x0323, 0x0324, 0x0325, 0x0326, 0x0327, 0x0328, 0x0329, 0x032a, 0x032b, 0x032c, 0x032d, 0x032e, 0x032f, 0x0330, 0x0331, 0x0332, 0x0333, 0x0334, 0x0335, 0x0336, 0x0337, 0x0338, 0x0339, 0x033a, 0x033b, 0x033c, 0x033d, 0x033e, 0x033f, 0x0300, 0x0301, 0x0342, 0x0313, 0x0308, 0x0345, 0x0346, 0x0347, 0x0348, 0x0349, 0x034a, 0x034b, 0x034c, 0x034d, 0x034e, 0x034f, 0x0350, 0x0351, 0x0352, 0x0353, 0x0354, 0x0355, 0x0356, 0x0357, 0x0358, 0x0359, 0x035a, 0x035b, 0x035c, 0x035d, 0x035e, 0x035f, 0x0360, 0x0361, 0x0362, 0x0363, 0x0364, 0x0365, 0x0366, 0x0367, 0x0368, 0x0369, 0x036a, 0x036b, 0x036c, 0x036d, 0x036e, 0x036f, 0x0370, 0x0371, 0x0372, 0x0373, 0x02b9, 0x0375, 0x0376, 0x0377, 0x0378, 0x0379, 0x0020, 0x037b, 0x037c, 0x037d, 0x003b, 0x037f, 0x0380, 0x0381, 0x0382, 0x0383, 0x0020, 0x00a8, 0x0391, 0x00b7, 0x0395, 0x0397, 0x0399, 0x038b, 0x039f, 0x038d, 0x03a5, 0x03a9, 0x03ca, 0x0391, 0x0392, 0x0393, 0x0394, 0x0395, 0x0396, 0x0397, 0x0398, 0x0399, 0x039a, 0x039b, 0x039c, 0x039d, 0x039e, 0x039f, 0x03a0, 0x03a1, 0x03a2, 0x03a3, 0x03a4, 0x03a5, 0x03a6, 0x03a7, 0x03a8, 0x03a9, 0x0399, 0x03a5, 0x03b1, 0x03b5, 0x03b7, 0x03b9, 0x03cb, 0x03b1, 0x03b2, 0x03b3, 0x03b4, 0x03b5, 0x03b6, 0x03b7, 0x03b8, 0x03b9, 0x03ba, 0x03bb, 0x03bc, 0x03bd, 0x03be, 0x03bf, 0x03c0, 0x03c1, 0x03c2, 0x03c3, 0x03c4, 0x03c5, 0x03c6, 0x03c7, 0x03c8, 0x03c9, 0x03b9, 0x03c5, 0x03bf, 0x03c5, 0x03c9, 0x03cf, 0x03b2, 0x03b8, 0x03a5, 0x03d2, 0x03d2, 0x03c6, 0x03c0, 0x03d7, 0x03d8, 0x03d9, 0x03da, 0x03db, 0x03dc, 0x03dd, 0x03de, 0x03df, 0x03e0, 0x03e1, 0x03e2, 0x03e3, 0x03e4, 0x03e5, 0x03e6, 0x03e7, 0x03e8, 0x03e9, 0x03ea, 0x03eb, 0x03ec, 0x03ed, 0x03ee, 0x03ef, 0x03ba, 0x03c1, 0x03c2, 0x03f3, 0x0398, 0x03b5, 0x03f6, 0x03f7, 0x03f8, 0x03a3, 0x03fa, 0x03fb, 0x03fc, 0x03fd, 0x03fe, 0x03ff, 0x0415, 0x0415, 0x0402, 0x0413, 0x0404, 0x0405, 0x0406, 0x0406, 0x0408, 0x0409, 0x040a, 0x040b, 0x041a, 0x0418, 0x0423, 0x040f, 0x0410, 0x0411, 0x0412, 0x0413, 0x0414, 0x0415, 0x0416, 0x0417, 0x0418, 0x0418, 0x041a, 0x041b, 0x041c, 0x041d, 0x041e, 0x041f, 0x0420, 0x0421, 0x0422, 0x0423, 0x0424, 0x0425, 0x0426, 0x0427, 0x0428, 0x0429, 0x042a, 0x042b, 0x042c, 0x042d, 0x042e, 0x042f, 0x0430, 0x0431, 0x0432, 0x0433, 0x0434, 0x0435, 0x0436, 0x0437, 0x0438, 0x0438, 0x043a, 0x043b, 0x043c, 0x043d, 0x043e, 0x043f, 0x0440, 0x0441, 0x0442, 0x0443, 0x0444, 0x0445, 0x0446, 0x0447, 0x0448, 0x0449, 0x044a, 0x044b, 0x044c, 0x044d, 0x044e, 0x044f, 0x0435, 0x0435, 0x0452, 0x0433, 0x0454, 0x0455, 0x0456, 0x0456, 0x0458, 0x0459, 0x045a, 0x045b, 0x043a, 0x0438, 0x0443, 0x045f, 0x0460, 0x0461, 0x0462, 0x0463, 0x0464, 0x0465, 0x0466, 0x0467, 0x0468, 0x0469, 0x046a, 0x046b, 0x046c, 0x046d, 0x046e, 0x046f, 0x0470, 0x0471, 0x0472, 0x0473, 0x0474, 0x0475, 0x0474, 0x0475, 0x0478, 0x0479, 0x047a, 0x047b, 0x047c, 0x047d, 0x047e, 0x047f, 0x0480, 0x0481, 0x0482, 0x0483, 0x0484, 0x0485, 0x0486, 0x0487, 0x0488, 0x0489, 0x048a, 0x048b, 0x048c, 0x048d, 0x048e, 0x048f, 0x0490, 0x0491, 0x0492, 0x0493, 0x0494, 0x0495, 0x0496, 0x0497, 0x0498, 0x0499, 0x049a, 0x049b, 0x049c, 0x049d, 0x049e, 0x049f, 0x04a0, 0x04a1, 0x04a2, 0x04a3, 0x04a4, 0x04a5, 0x04a6, 0x04a7, 0x04a8, 0x04a9, 0x04aa, 0x04ab, 0x04ac, 0x04ad, 0x04ae, 0x04af, 0x04b0, 0x04b1, 0x04b2, 0x04b3, 0x04b4, 0x04b5, 0x04b6, 0x04b7, 0x04b8, 0x04b9, 0x04ba, 0x04bb, 0x04bc, 0x04bd, 0x04be, 0x04bf, 0x04c0, 0x0416, 0x0436, 0x04c3, 0x04c4, 0x04c5, 0x04c6, 0x04c7, 0x04c8, 0x04c9, 0x04ca, 0x04cb, 0x04cc, 0x04cd, 0x04ce, 0x04cf, 0x0410, 0x0430, 0x0410, 0x0430, 0x04d4, 0x04d5, 0x0415, 0x0435, 0x04d8, 0x04d9, 0x04d8, 0x04d9, 0x0416, 0x0436, 0x0417, 0x0437, 0x04e0, 0x04e1, 0x0418, 0x0438, 0x0418, 0x0438, 0x041e, 0x043e, 0x04e8, 0x04e9, 0x04e8, 0x04e9, 0x042d, 0x044d, 0x0423, 0x0443, 0x0423, 0x0443, 0x0423, 0x0443, 0x0427, 0x0447, 0x04f6, 0x04f7, 0x042b, 0x044b, 0x04fa, 0x04fb, 0x04fc, 0x04fd, 0x04fe, 0x04ff,};
     protected final Context mContext;
-    private NodeArray mRoots;
+    //a published trie is never changed: writers (holding mResourceMonitor) change a copy, and publish it instead.
+    //So readers use it without any lock.
+    private volatile CompactTrie mTrie;
+    //words from the storage are added into one of these: the builder when loading all the words,
+    //the trie when applying storage changes. Only set while loading (or reloading).
+    private CompactTrie.Builder mLoadingTrieBuilder;
+    private CompactTrie mLoadingTrie;
+    //which words each row added, if this dictionary supports storage changes. Guarded by mResourceMonitor.
+    private StorageRows mRows;
+    //the rows of the words being loaded, and the row currently being added.
+    private StorageRows mLoadingRows;
+    private long mLoadingRowId;
+    //the snapshot which has the same words as the trie. Deleted once the trie is changed. Guarded by mResourceMonitor.
+    private File mCurrentSnapshotFile;
+    private final Object mReloadLock = new Object();
+    private boolean mReloading = false;
+    private boolean mReloadRequested = false;
     private int mMaxDepth;
     private int mInputLength;
     private ContentObserver mObserver = null;
+    //queries share the traversal's state (the fields below), so they are serialized by this lock. Writers do not take it.
+    private final Object mQueryLock = new Object();
+    //the trie the running query reads, taken once when the query starts.
+    private CompactTrie mQueryTrie;
     private char[] mWordBuilder = new char[MAX_WORD_LENGTH];
+    //the traversal's stack, a frame for each depth a query can reach (see mWordBuilder).
+    private final TraversalFrame[] mTraversalStack = new TraversalFrame[MAX_WORD_LENGTH];
+    private int mVisitedNodesCount;
+    private int mReportedWordsCount;
+    //the callback's threshold only changes when it is given a word, so it is read again only then.
+    private int mFrequencyThreshold;
+    private boolean mTraversalStopped;
+    /**
+     * The nodes matched by each of the typed characters of the last query. Since the typed word
+     * usually changes by a single character between queries, the traversal can continue from the
+     * last character's matches, instead of walking the prefix from the roots again.
+     * A level for each typed character a query can match (see mWordBuilder), re-used by all queries.
+     */
+    private final PrefixFrontier[] mPrefixFrontiers = new PrefixFrontier[MAX_WORD_LENGTH];
+    private int mPrefixFrontiersCount = 0;
+    //the trie the frontier levels were collected from. A changed trie is a different object.
+    private CompactTrie mPrefixFrontiersTrie;
+    //guarded by mResourceMonitor.
+    private int mTrieModificationsCount = 0;
 
     protected BTreeDictionary(String dictionaryName, Context context) {
         super(dictionaryName);
         mContext = context;
+        for (int i = 0; i < mTraversalStack.length; i++) {
+            mTraversalStack[i] = new TraversalFrame();
+        }
+        for (int i = 0; i < mPrefixFrontiers.length; i++) {
+            mPrefixFrontiers[i] = new PrefixFrontier();
+        }
         //creating the root node.
         clearDictionary();
     }
@@ -67,18 +126,87 @@ public abstract class BTreeDictionary extends EditableDictionary {
         return c;
     }
 
+    /**
+     * Loads the words into a new trie, and swaps it in the same way a reload does: if the trie was
+     * changed while loading, the loaded words may have missed that change, so the current trie is kept
+     * and the words are loaded again.
+     */
     @Override
     protected final void loadAllResources() {
+        final int trieModificationsCountAtStart;
+        synchronized (mResourceMonitor) {
+            trieModificationsCountAtStart = mTrieModificationsCount;
+        }
+        final String storageVersion = getStorageVersion();
+        final String snapshotFilename = storageVersion == null ? null : getSnapshotFilename();
+        final File snapshotFile = snapshotFilename == null ? null : TrieSnapshot.getSnapshotFile(mContext, snapshotFilename);
+        CompactTrie trie = snapshotFile == null ? null : TrieSnapshot.read(snapshotFile, storageVersion);
+        StorageRows rows = null;
+        File loadedSnapshotFile = null;
+        if (trie != null) {
+            //the rows are not known, so the first storage change will be a full reload
+            Log.d(TAG, "Loaded %d nodes of %s from its snapshot.", trie.getNodesCount(), toString());
+            loadedSnapshotFile = snapshotFile;
+        } else {
+            rows = supportsStorageChanges() ? new StorageRows() : null;
+            trie = loadTrieFromStorage(rows);
+            if (snapshotFile != null) {
+                if (trie != null && !isClosed() && TrieSnapshot.write(snapshotFile, storageVersion, trie)) {
+                    loadedSnapshotFile = snapshotFile;
+                } else {
+                    TrieSnapshot.delete(snapshotFile);
+                }
+            }
+        }
+        final boolean changedWhileLoading;
+        synchronized (mResourceMonitor) {
+            changedWhileLoading = trieModificationsCountAtStart != mTrieModificationsCount;
+            if (changedWhileLoading) {
+                //the snapshot has the same words as the loaded trie, which is not used
+                if (loadedSnapshotFile != null) TrieSnapshot.deleteInBackground(loadedSnapshotFile);
+            } else {
+                mRows = rows;
+                mCurrentSnapshotFile = loadedSnapshotFile;
+                if (trie != null) {
+                    mTrieModificationsCount++;
+                    mTrie = trie;
+                }
+            }
+        }
+        if (changedWhileLoading) onStorageChanged();
+        if (trie == null) return;
+        if (!isClosed()) {
+            if (mObserver == null) {
+                mObserver = AnyApplication.getFrankenRobot().embody(new DictionaryContentObserver.DictionaryContentObserverDiagram(this));
+                registerObserver(mObserver, mContext.getContentResolver());
+            }
+        }
+    }
+
+    /**
+     * Reads the storage's words into a new trie. This does not touch the trie which serves the queries.
+     *
+     * @param rows if not null, the words each row added are recorded into it.
+     * @return the new trie, or null if the storage has no words.
+     */
+    private CompactTrie loadTrieFromStorage(StorageRows rows) {
         WordsCursor wordsCursor = getWordsCursor();
         try {
             Cursor cursor = wordsCursor.getCursor();
-            if (cursor == null) return;
-            if (!cursor.moveToFirst()) return;
+            if (cursor == null) return null;
+            if (!cursor.moveToFirst()) return null;
             Log.d(TAG, "About to load %d rows from %s", cursor.getCount(), toString());
 
+            final CompactTrie.Builder trieBuilder = new CompactTrie.Builder();
+            mLoadingTrieBuilder = trieBuilder;
+            mLoadingRows = rows;
             while (!cursor.isAfterLast() && !isClosed()) {
                 final String word = wordsCursor.getCurrentWord();
                 final int frequency = wordsCursor.getCurrentWordFrequency();
+                if (rows != null) {
+                    mLoadingRowId = wordsCursor.getCurrentWordId();
+                    rows.updateModificationMark(wordsCursor.getCurrentModificationMark());
+                }
                 if (!TextUtils.isEmpty(word) && frequency > 0) {
                     //adding only good words
                     addWordFromStorage(word, frequency);
@@ -90,17 +218,141 @@ public abstract class BTreeDictionary extends EditableDictionary {
                     }
                 }
             }
-            if (!isClosed()) {
-                if (mObserver == null) {
-                    mObserver = AnyApplication.getFrankenRobot().embody(new DictionaryContentObserver.DictionaryContentObserverDiagram(this));
-                    registerObserver(mObserver, mContext.getContentResolver());
+            return trieBuilder.build();
+        } finally {
+            mLoadingTrieBuilder = null;
+            mLoadingRows = null;
+            wordsCursor.close();
+        }
+    }
+
+    /**
+     * Reads only the rows which were changed (or deleted) since the rows were loaded.
+     *
+     * @return the changes, or null if the storage can not tell what was changed.
+     */
+    private StorageChanges loadStorageChanges(StorageRows rows) {
+        final Cursor rowIdsCursor = getRowIdsCursor();
+        if (rowIdsCursor == null) return null;
+        final Set<Long> currentRowIds = new HashSet<>();
+        try {
+            while (rowIdsCursor.moveToNext()) {
+                currentRowIds.add(rowIdsCursor.getLong(0));
+            }
+        } finally {
+            rowIdsCursor.close();
+        }
+
+        final WordsCursor changedWordsCursor = getChangedWordsCursor(rows.getModificationMark());
+        if (changedWordsCursor == null) return null;
+        final StorageChanges changes = new StorageChanges();
+        for (Long rowId : rows.getRowIds()) {
+            if (!currentRowIds.contains(rowId)) changes.removedRowIds.add(rowId);
+        }
+        try {
+            final Cursor cursor = changedWordsCursor.getCursor();
+            while (cursor != null && cursor.moveToNext()) {
+                changes.changedRows.add(new StorageRow(changedWordsCursor.getCurrentWordId(), changedWordsCursor.getCurrentWord(),
+                        changedWordsCursor.getCurrentWordFrequency(), changedWordsCursor.getCurrentModificationMark()));
+            }
+        } finally {
+            changedWordsCursor.close();
+        }
+        Log.d(TAG, "Read %d changed rows and %d deleted rows of %s", changes.changedRows.size(), changes.removedRowIds.size(), toString());
+        return changes;
+    }
+
+    /**
+     * Applies the changed rows to the trie which serves the queries. Must be called while holding mResourceMonitor.
+     */
+    private void applyStorageChanges(StorageChanges changes) {
+        invalidateSnapshot();
+        mTrieModificationsCount++;
+        //the changes are applied to a copy, which is published once all of them were applied
+        final CompactTrie trie = mTrie.copy();
+        for (Long rowId : changes.removedRowIds) {
+            removeRowWords(trie, rowId);
+        }
+        mLoadingTrie = trie;
+        mLoadingRows = mRows;
+        try {
+            for (StorageRow row : changes.changedRows) {
+                //the row's previous words are replaced with its current words
+                removeRowWords(trie, row.id);
+                mLoadingRowId = row.id;
+                if (!TextUtils.isEmpty(row.word) && row.frequency > 0) {
+                    addWordFromStorage(row.word, row.frequency);
                 }
+                mRows.updateModificationMark(row.modificationMark);
             }
         } finally {
-            wordsCursor.close();
+            mLoadingTrie = null;
+            mLoadingRows = null;
+        }
+        mTrie = trie;
+    }
+
+    private void removeRowWords(CompactTrie trie, long rowId) {
+        for (String word : mRows.removeRow(rowId)) {
+            trie.deleteWord(word);
         }
     }
 
+    /**
+     * Dictionaries which can tell which of their rows were changed, are updated with only those rows
+     * when their storage changes. Otherwise, all the words are loaded again.
+     * Such dictionaries should also implement {@link #getRowIdsCursor()} and {@link #getChangedWordsCursor(long)}.
+     */
+    protected boolean supportsStorageChanges() {
+        return false;
+    }
+
+    /**
+     * @return a cursor with the ids (first column) of all the rows currently in the storage, or null
+     * if this is not supported.
+     */
+    protected Cursor getRowIdsCursor() {
+        return null;
+    }
+
+    /**
+     * @param modificationMark the highest {@link WordsCursor#getCurrentModificationMark()} which was read.
+     * @return a cursor of the rows which were added or changed after the given mark, or null if this is not supported.
+     */
+    protected WordsCursor getChangedWordsCursor(long modificationMark) {
+        return null;
+    }
+
+    /**
+     * Dictionaries which return a storage version (and a {@link #getSnapshotFilename()}) keep a snapshot of
+     * their trie, and load it instead of the storage's words, as long as the storage version is the same.
+     * Changes made by this dictionary delete the snapshot, so the version only needs to catch changes made
+     * by others (or by restoring a backup, etc.).
+     *
+     * @return a value which changes whenever the storage's words change, and is much cheaper to get than
+     * the words. Or null, if the words should not be kept in a snapshot.
+     */
+    protected String getStorageVersion() {
+        return null;
+    }
+
+    /**
+     * @return the snapshot's file name, unique to the storage (e.g., including the locale).
+     */
+    protected String getSnapshotFilename() {
+        return null;
+    }
+
+    /**
+     * The trie is about to be changed, so the snapshot no longer has the same words.
+     * Must be called while holding mResourceMonitor. The file is deleted in the background.
+     */
+    private void invalidateSnapshot() {
+        if (mCurrentSnapshotFile == null) return;
+        TrieSnapshot.deleteInBackground(mCurrentSnapshotFile);
+        mCurrentSnapshotFile = null;
+    }
+
     /**
      * Adds a word to the dictionary and makes it persistent.
      *
@@ -120,25 +372,115 @@ public abstract class BTreeDictionary extends EditableDictionary {
             if (word.length() >= getMaxWordLength()) return false;
 
             Log.i(TAG, "Adding word '" + word + "' to dictionary (in " + getClass().getSimpleName() + ") with frequency " + frequency);
-            //first deleting the word, so it wont conflict in the adding (_ID is unique).
-            deleteWord(word);
-            //add word to in-memory structure
-            addWordRec(mRoots, word, 0, frequency);
-            //add word to storage
-            AddWordToStorage(word, frequency);
+            invalidateSnapshot();
+            mTrieModificationsCount++;
+            //add word to in-memory structure, a copy which replaces the trie the queries use
+            final CompactTrie trie = mTrie.copy();
+            addWordLocked(trie, word, frequency);
+            mTrie = trie;
         }
         return true;
     }
 
+    /**
+     * Adds all the words to the dictionary and makes them persistent, as {@link #addWord(String, int)}
+     * would, but the trie is copied (and published) only once for all of them.
+     *
+     * @param words the words to add, and their frequencies.
+     * @return the number of words which were added. Words which are too long are skipped.
+     */
+    public int addWords(Map<String, Integer> words) {
+        synchronized (mResourceMonitor) {
+            if (isClosed()) {
+                Log.d(TAG, "Dictionary (type " + this.getClass().getName() + ") " + this.getDictionaryName() + " is closed! Can not add words.");
+                return 0;
+            }
+            if (words.size() == 0) return 0;
+
+            Log.i(TAG, "Adding " + words.size() + " words to dictionary (in " + getClass().getSimpleName() + ")");
+            invalidateSnapshot();
+            mTrieModificationsCount++;
+            final CompactTrie trie = mTrie.copy();
+            int addedWords = 0;
+            for (Map.Entry<String, Integer> word : words.entrySet()) {
+                // Safeguard against adding long words. Can cause stack overflow.
+                if (word.getKey().length() >= getMaxWordLength()) continue;
+                addWordLocked(trie, word.getKey(), word.getValue());
+                addedWords++;
+            }
+            mTrie = trie;
+            return addedWords;
+        }
+    }
+
+    /**
+     * Adds the word into the (not yet published) trie, and into the storage. Must be called while
+     * holding mResourceMonitor.
+     */
+    private void addWordLocked(CompactTrie trie, String word, int frequency) {
+        //first deleting the word, so it wont conflict in the adding (_ID is unique).
+        trie.deleteWord(word);
+        trie.addWord(word, frequency);
+        deleteWordFromStorage(word);
+        //add word to storage
+        AddWordToStorage(word, frequency);
+    }
+
     protected int getMaxWordLength() {
         return MAX_WORD_LENGTH;
     }
 
+    /**
+     * Reloads the words from the storage into a new trie, in the background. The current trie keeps
+     * serving the queries until the new one is ready, and then they are swapped.
+     * If the dictionary {@link #supportsStorageChanges()}, only the changed rows are read, and
+     * applied to the current trie.
+     */
     protected void onStorageChanged() {
         if (isClosed()) return;
-        clearDictionary();
-        DictionaryASyncLoader loader = new DictionaryASyncLoader(null);
-        loader.execute(this);
+        synchronized (mReloadLock) {
+            if (mReloading) {
+                //the running reload may have missed this change
+                mReloadRequested = true;
+                return;
+            }
+            mReloading = true;
+        }
+        final int trieModificationsCount;
+        final StorageRows rows;
+        synchronized (mResourceMonitor) {
+            trieModificationsCount = mTrieModificationsCount;
+            rows = mRows;
+        }
+        new DictionaryReloader(this, trieModificationsCount, rows).execute();
+    }
+
+    private void onReloadDone(boolean succeeded, CompactTrie trie, StorageRows rows, StorageChanges changes, int trieModificationsCountAtStart) {
+        boolean swapped = false;
+        if (succeeded) {
+            synchronized (mResourceMonitor) {
+                if (!isClosed() && changes != null) {
+                    //the changes are applied to the current trie, so words added meanwhile are kept
+                    applyStorageChanges(changes);
+                    swapped = true;
+                } else if (!isClosed() && trieModificationsCountAtStart == mTrieModificationsCount) {
+                    //a word added (or deleted) while reloading is only in the current trie,
+                    //so it can not be replaced. Reloading again will pick that change too.
+                    invalidateSnapshot();
+                    mTrieModificationsCount++;
+                    mTrie = trie != null ? trie : new CompactTrie(INITIAL_ROOT_CAPACITY);
+                    mRows = rows;
+                    swapped = true;
+                }
+            }
+        }
+        final boolean reloadAgain;
+        synchronized (mReloadLock) {
+            mReloading = false;
+            reloadAgain = mReloadRequested || (succeeded && !swapped);
+            mReloadRequested = false;
+        }
+        if (reloadAgain) onStorageChanged();
     }
 
     @Override
@@ -148,59 +490,15 @@ public abstract class BTreeDictionary extends EditableDictionary {
                 Log.d(TAG, "Dictionary (type " + this.getClass().getName() + ") " + this.getDictionaryName() + " is closed! Can not delete word.");
                 return;
             }
-            deleteWordRec(mRoots, word, 0, word.length());
+            invalidateSnapshot();
+            mTrieModificationsCount++;
+            final CompactTrie trie = mTrie.copy();
+            trie.deleteWord(word);
+            mTrie = trie;
             deleteWordFromStorage(word);
         }
     }
 
-    private boolean deleteWordRec(final NodeArray children, final CharSequence word, final int offset, final int length) {
-        final int count = children.length;
-        final char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.data[j];
-            if (node.code == currentChar) {
-                if (offset == length - 1) {//last character in the word to delete
-                    //we need to delete this node. But only if it terminal
-                    if (node.terminal) {
-                        if (node.children == null || node.children.length == 0) {
-                            //terminal node, with no children - can be safely removed
-                            children.deleteNode(j);
-                        } else {
-                            //terminal node with children. So, it is no longer terminal
-                            node.terminal = false;
-                        }
-                        //let's tell that we deleted a node
-                        return true;
-                    } else {
-                        //it is not terminal, and the word to delete is longer
-                        //let's tell that we didn't delete
-                        return false;
-                    }
-                } else if (node.terminal &&//a terminal node
-                        (node.children == null || node.children.length == 0)) {//has no children
-                    //this is not the last character, but this is a terminal node with no children! Nothing to delete here.
-                    return false;
-                } else {
-                    //not the last character in the word to delete, and not a terminal node.
-                    //but if the node forward was deleted, then this one might also need to be deleted.
-                    final boolean aChildNodeWasDeleted = deleteWordRec(node.children, word, offset + 1, length);
-                    if (aChildNodeWasDeleted) {//something was deleted in my children
-                        if (node.children.length == 0 && !node.terminal) {
-                            //this node just deleted its last child, and it is not a terminal character.
-                            //it is not necessary anymore.
-                            children.deleteNode(j);
-                            //let's tell that we deleted.
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                }
-            }
-        }
-        return false;//nothing to delete here, move along.
-    }
-
     protected abstract void deleteWordFromStorage(String word);
 
     protected abstract void registerObserver(ContentObserver dictionaryContentObserver, ContentResolver contentResolver);
@@ -212,9 +510,139 @@ public abstract class BTreeDictionary extends EditableDictionary {
     @Override
     public void getWords(final WordComposer codes, final Dictionary.WordCallback callback) {
         if (isLoading() || isClosed()) return;
+        //the published trie is never changed, so words can be added (or the trie swapped) while querying
+        synchronized (mQueryLock) {
+            mQueryTrie = mTrie;
+            getWordsLocked(codes, callback);
+        }
+    }
+
+    private void getWordsLocked(final WordComposer codes, final Dictionary.WordCallback callback) {
         mInputLength = codes.length();
         mMaxDepth = mInputLength * 2;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1.0f, 0, callback);
+        mVisitedNodesCount = 0;
+        mReportedWordsCount = 0;
+        mFrequencyThreshold = getFrequencyThreshold(callback);
+        mTraversalStopped = false;
+        final PrefixFrontier lastCharacterFrontier = getLastCharacterFrontier(codes);
+        if (lastCharacterFrontier == null) {
+            getWordsFrom(CompactTrie.ROOT, codes, mWordBuilder, 0, false, 1.0f, 0, callback);
+            return;
+        }
+        //this is the same as what getWordsFrom does with the nodes that match the last typed character
+        final char[] word = mWordBuilder;
+        final CompactTrie trie = mQueryTrie;
+        final FrontierMatch[] matches = lastCharacterFrontier.matches;
+        final int matchesCount = lastCharacterFrontier.matchesCount;
+        for (int matchIndex = 0; matchIndex < matchesCount; matchIndex++) {
+            if (mTraversalStopped) return;
+            final FrontierMatch match = matches[matchIndex];
+            final int depth = match.depth;
+            if (depth > mMaxDepth) continue;
+            final int node = match.node;
+            final boolean hasChildren = trie.getChildrenCount(node) > 0;
+            System.arraycopy(match.word, 0, word, 0, depth + 1);
+            if (mInputLength == depth + 1) {
+                if (trie.isTerminal(node)) {
+                    if (INCLUDE_TYPED_WORD_IF_VALID || !same(word, depth + 1, codes.getTypedWord())) {
+                        if (!reportWord(callback, word, depth + 1, (int) (trie.getFrequency(node) * match.snr * match.addedAttenuation * FULL_WORD_FREQ_MULTIPLIER))) {
+                            return;
+                        }
+                    }
+                }
+                if (hasChildren) {
+                    getWordsFrom(node, codes, word, depth + 1, true, match.snr * match.addedAttenuation, mInputLength, callback);
+                }
+            } else if (hasChildren) {
+                getWordsFrom(node, codes, word, depth + 1, false, match.snr * match.addedAttenuation, mInputLength, callback);
+            }
+        }
+    }
+
+    /**
+     * Returns the nodes matching the last typed character, re-using the matches of the previous
+     * query for the shared prefix: typing a character adds one level, deleting pops back.
+     *
+     * @return the last character's level, or null if the traversal must start at the roots. This happens when a
+     * match of an earlier character (after skipping apostrophes) is already as long as the typed word.
+     * No word can match more typed characters than {@link #MAX_WORD_LENGTH}, so longer inputs also start at the roots.
+     */
+    private PrefixFrontier getLastCharacterFrontier(final WordComposer codes) {
+        final int inputLength = mInputLength;
+        if (inputLength == 0 || inputLength > mPrefixFrontiers.length) return null;
+
+        if (mPrefixFrontiersTrie != mQueryTrie) {
+            mPrefixFrontiersCount = 0;
+            mPrefixFrontiersTrie = mQueryTrie;
+        }
+        int sharedPrefixLength = 0;
+        while (sharedPrefixLength < mPrefixFrontiersCount && sharedPrefixLength < inputLength
+                && mPrefixFrontiers[sharedPrefixLength].isForCodes(codes.getCodesAt(sharedPrefixLength))) {
+            sharedPrefixLength++;
+        }
+        mPrefixFrontiersCount = sharedPrefixLength;
+        for (int inputIndex = sharedPrefixLength; inputIndex < inputLength; inputIndex++) {
+            fillPrefixFrontier(inputIndex, codes.getCodesAt(inputIndex));
+            mPrefixFrontiersCount++;
+        }
+
+        final long typedWordLengthMask = 1L << inputLength;
+        for (int inputIndex = 0; inputIndex < inputLength - 1; inputIndex++) {
+            if ((mPrefixFrontiers[inputIndex].matchesLengthsMask & typedWordLengthMask) != 0) {
+                return null;
+            }
+        }
+        return mPrefixFrontiers[inputLength - 1];
+    }
+
+    private void fillPrefixFrontier(final int inputIndex, final int[] currentChars) {
+        final PrefixFrontier frontier = mPrefixFrontiers[inputIndex];
+        frontier.reset(currentChars);
+        final char[] word = mWordBuilder;
+        if (inputIndex == 0) {
+            collectMatches(frontier, CompactTrie.ROOT, word, 0, 1.0f, currentChars);
+        } else {
+            final PrefixFrontier previousFrontier = mPrefixFrontiers[inputIndex - 1];
+            for (int matchIndex = 0; matchIndex < previousFrontier.matchesCount; matchIndex++) {
+                final FrontierMatch previousMatch = previousFrontier.matches[matchIndex];
+                if (mQueryTrie.getChildrenCount(previousMatch.node) == 0) continue;
+                System.arraycopy(previousMatch.word, 0, word, 0, previousMatch.depth + 1);
+                collectMatches(frontier, previousMatch.node, word, previousMatch.depth + 1,
+                        previousMatch.snr * previousMatch.addedAttenuation, currentChars);
+            }
+        }
+    }
+
+    /**
+     * Same matching as the non-completion part of getWordsFrom, but collects the matched nodes
+     * instead of going deeper.
+     */
+    private void collectMatches(PrefixFrontier frontier, final int parent, final char[] word, final int depth, final float snr, final int[] currentChars) {
+        if (depth >= word.length) return;
+        final CompactTrie trie = mQueryTrie;
+        final int childrenStart = trie.getChildrenStart(parent);
+        final int childrenEnd = childrenStart + trie.getChildrenCount(parent);
+        for (int node = childrenStart; node < childrenEnd; node++) {
+            final char c = trie.getCode(node);
+            if (c == QUOTE && currentChars[0] != QUOTE) {
+                // Skip the ' and continue deeper
+                word[depth] = QUOTE;
+                if (trie.getChildrenCount(node) > 0) {
+                    collectMatches(frontier, node, word, depth + 1, snr, currentChars);
+                }
+            } else {
+                final char lowerC = toLowerCase(c);
+                for (int j = 0; j < currentChars.length; j++) {
+                    if (currentChars[j] == -1) {
+                        break;
+                    }
+                    if (currentChars[j] == lowerC || currentChars[j] == c) {
+                        word[depth] = c;
+                        frontier.add(node, word, depth, snr, j > 0 ? 1f : 3f);
+                    }
+                }
+            }
+        }
     }
 
     @Override
@@ -231,40 +659,20 @@ public abstract class BTreeDictionary extends EditableDictionary {
      */
     public final int getWordFrequency(CharSequence word) {
         if (isLoading() || isClosed()) return 0;
-        return getWordFrequencyRec(mRoots, word, 0, word.length());
-    }
-
-    private int getWordFrequencyRec(final NodeArray children, final CharSequence word, final int offset, final int length) {
-        final int count = children.length;
-        char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.data[j];
-            if (node.code == currentChar) {
-                if (offset == length - 1) {
-                    if (node.terminal) {
-                        return node.frequency;
-                    }
-                } else {
-                    if (node.children != null) {
-                        int frequency = getWordFrequencyRec(node.children, word, offset + 1, length);
-                        if (frequency > 0)
-                            return frequency;
-                    }
-                }
-            }
-        }
-        //no luck, can't find the word
-        return 0;
+        return mTrie.getWordFrequency(word);
     }
 
     /**
-     * Recursively traverse the tree for words that match the input. Input
+     * Traverses the tree for words that match the input. Input
      * consists of a list of arrays. Each item in the list is one input
      * character position. An input character is actually an array of multiple
-     * possible candidates. This function is not optimized for speed, assuming
-     * that the user dictionary will only be a few hundred words in size.
+     * possible candidates.
+     * The traversal is depth-first (the same order a recursion would visit), over an explicit,
+     * preallocated stack, and its cost is bounded: it stops once {@link #MAX_VISITED_NODES} nodes
+     * were visited, {@link #MAX_REPORTED_WORDS} words were reported, or the callback does not
+     * require more words. Completion sub-trees which can not beat the callback's threshold are skipped.
      *
-     * @param roots      node whose children have to be search for matches
+     * @param parent     node whose children have to be search for matches
      * @param codes      the input character codes
      * @param word       the word being composed as a possible match
      * @param depth      the depth of traversal - the length of the word being composed
@@ -280,71 +688,151 @@ public abstract class BTreeDictionary extends EditableDictionary {
      *                   than the inputIndex
      * @param callback   the callback class for adding a word
      */
-    private void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word, final int depth, boolean completion, float snr, int inputIndex, WordCallback callback) {
-        final int count = roots.length;
-        final int codeSize = mInputLength;
-        // Optimization: Prune out words that are too long compared to how much
-        // was typed.
-        if (depth > mMaxDepth) {
-            return;
-        }
-        int[] currentChars = null;
-        if (codeSize <= inputIndex) {
-            completion = true;
-        } else {
-            currentChars = codes.getCodesAt(inputIndex);
-        }
-
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.data[i];
-            final char c = node.code;
-            final char lowerC = toLowerCase(c);
-            boolean terminal = node.terminal;
-            NodeArray children = node.children;
-            int freq = node.frequency;
-            if (completion) {
-                word[depth] = c;
-                if (terminal) {
-                    if (!callback.addWord(word, 0, depth + 1, (int) (freq * snr), this)) {
+    private void getWordsFrom(final int parent, final WordComposer codes, final char[] word, final int depth, boolean completion, float snr, int inputIndex, WordCallback callback) {
+        final CompactTrie trie = mQueryTrie;
+        final TraversalFrame[] stack = mTraversalStack;
+        int top = pushFrame(-1, parent, codes, word, depth, completion, snr, inputIndex);
+        frames:
+        while (top >= 0) {
+            final TraversalFrame frame = stack[top];
+            final int childrenEnd = frame.childrenEnd;
+            final int frameDepth = frame.depth;
+            final float frameSnr = frame.snr;
+            if (frame.completion) {
+                //the threshold may have grown while the deeper frames were visited:
+                //nothing left under this node can make it into the callback
+                if (frame.parent != CompactTrie.ROOT && (int) (trie.getMaxFrequency(frame.parent) * frameSnr) <= mFrequencyThreshold) {
+                    top--;
+                    continue;
+                }
+                for (int node = frame.nextChild; node < childrenEnd; node++) {
+                    if (++mVisitedNodesCount > MAX_VISITED_NODES) {
+                        mTraversalStopped = true;
                         return;
                     }
-                }
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, callback);
-                }
-            } else if (c == QUOTE && currentChars[0] != QUOTE) {
-                // Skip the ' and continue deeper
-                word[depth] = QUOTE;
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, callback);
+                    //nothing in this sub-tree can make it into the callback
+                    if ((int) (trie.getMaxFrequency(node) * frameSnr) <= mFrequencyThreshold) {
+                        continue;
+                    }
+                    word[frameDepth] = trie.getCode(node);
+                    if (trie.isTerminal(node)) {
+                        if (!reportWord(callback, word, frameDepth + 1, (int) (trie.getFrequency(node) * frameSnr))) {
+                            return;
+                        }
+                    }
+                    if (trie.getChildrenCount(node) > 0) {
+                        final int deeper = pushFrame(top, node, codes, word, frameDepth + 1, true, frameSnr, frame.inputIndex);
+                        if (deeper != top) {
+                            frame.nextChild = node + 1;
+                            top = deeper;
+                            continue frames;
+                        }
+                    }
                 }
             } else {
-                for (int j = 0; j < currentChars.length; j++) {
-                    float addedAttenuation = (j > 0 ? 1f : 3f);
-                    if (currentChars[j] == -1) {
-                        break;
+                final int[] currentChars = frame.currentChars;
+                //a node may match several of the typed character's alternatives, each is a different path.
+                //The frame remembers which alternative to continue from, once the deeper frame is done.
+                int alternative = frame.nextAlternative;
+                for (int node = frame.nextChild; node < childrenEnd; node++, alternative = 0) {
+                    if (alternative == 0 && ++mVisitedNodesCount > MAX_VISITED_NODES) {
+                        mTraversalStopped = true;
+                        return;
                     }
-                    if (currentChars[j] == lowerC || currentChars[j] == c) {
-                        word[depth] = c;
-
-                        if (codes.length() == depth + 1) {
-                            if (terminal) {
-                                if (INCLUDE_TYPED_WORD_IF_VALID || !same(word, depth + 1, codes.getTypedWord())) {
-                                    callback.addWord(word, 0, depth + 1, (int) (freq * snr * addedAttenuation * FULL_WORD_FREQ_MULTIPLIER), this);
+                    final char c = trie.getCode(node);
+                    final boolean hasChildren = trie.getChildrenCount(node) > 0;
+                    if (c == QUOTE && currentChars[0] != QUOTE) {
+                        // Skip the ' and continue deeper
+                        word[frameDepth] = QUOTE;
+                        if (hasChildren) {
+                            final int deeper = pushFrame(top, node, codes, word, frameDepth + 1, false, frameSnr, frame.inputIndex);
+                            if (deeper != top) {
+                                frame.nextChild = node + 1;
+                                frame.nextAlternative = 0;
+                                top = deeper;
+                                continue frames;
+                            }
+                        }
+                        continue;
+                    }
+                    final char lowerC = toLowerCase(c);
+                    for (int j = alternative; j < currentChars.length; j++) {
+                        float addedAttenuation = (j > 0 ? 1f : 3f);
+                        if (currentChars[j] == -1) {
+                            break;
+                        }
+                        if (currentChars[j] == lowerC || currentChars[j] == c) {
+                            word[frameDepth] = c;
+                            int deeper = top;
+                            if (mInputLength == frameDepth + 1) {
+                                if (trie.isTerminal(node)) {
+                                    if (INCLUDE_TYPED_WORD_IF_VALID || !same(word, frameDepth + 1, codes.getTypedWord())) {
+                                        if (!reportWord(callback, word, frameDepth + 1, (int) (trie.getFrequency(node) * frameSnr * addedAttenuation * FULL_WORD_FREQ_MULTIPLIER))) {
+                                            return;
+                                        }
+                                    }
+                                }
+                                if (hasChildren) {
+                                    deeper = pushFrame(top, node, codes, word, frameDepth + 1, true, frameSnr * addedAttenuation, frame.inputIndex + 1);
                                 }
+                            } else if (hasChildren) {
+                                deeper = pushFrame(top, node, codes, word, frameDepth + 1, false, frameSnr * addedAttenuation, frame.inputIndex + 1);
                             }
-                            if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1, true, snr * addedAttenuation, inputIndex + 1, callback);
+                            if (deeper != top) {
+                                frame.nextChild = node;
+                                frame.nextAlternative = j + 1;
+                                top = deeper;
+                                continue frames;
                             }
-                        } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1, false, snr * addedAttenuation, inputIndex + 1, callback);
                         }
                     }
                 }
             }
+            top--;
         }
     }
 
+    /**
+     * Pushes a frame for visiting the children of the given node, unless they are deeper than
+     * the traversal should go.
+     *
+     * @return the new top of the stack.
+     */
+    private int pushFrame(int top, final int parent, final WordComposer codes, final char[] word, final int depth, boolean completion, float snr, int inputIndex) {
+        // Optimization: Prune out words that are too long compared to how much
+        // was typed.
+        if (depth > mMaxDepth || depth >= word.length) return top;
+        final CompactTrie trie = mQueryTrie;
+        final TraversalFrame frame = mTraversalStack[++top];
+        frame.parent = parent;
+        frame.nextChild = trie.getChildrenStart(parent);
+        frame.childrenEnd = frame.nextChild + trie.getChildrenCount(parent);
+        frame.nextAlternative = 0;
+        frame.depth = depth;
+        frame.snr = snr;
+        frame.inputIndex = inputIndex;
+        if (mInputLength <= inputIndex) {
+            frame.completion = true;
+            frame.currentChars = null;
+        } else {
+            frame.completion = completion;
+            frame.currentChars = completion ? null : codes.getCodesAt(inputIndex);
+        }
+        return top;
+    }
+
+    /**
+     * @return false if no more words should be reported in this query.
+     */
+    private boolean reportWord(WordCallback callback, char[] word, int wordLength, int frequency) {
+        if (!callback.addWord(word, 0, wordLength, frequency, this) || ++mReportedWordsCount >= MAX_REPORTED_WORDS) {
+            mTraversalStopped = true;
+            return false;
+        }
+        mFrequencyThreshold = getFrequencyThreshold(callback);
+        return true;
+    }
+
     @Override
     protected final void closeAllResources() {
         clearDictionary();
@@ -356,85 +844,169 @@ public abstract class BTreeDictionary extends EditableDictionary {
         closeStorage();
     }
 
+    /**
+     * Adds a word, which was read from the storage, into the trie which is being loaded.
+     * If the word is read more than once, its highest frequency is kept.
+     */
     protected void addWordFromStorage(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency);
-    }
-
-    private void addWordRec(NodeArray children, final String word, final int depth, final int frequency) {
-        final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.terminal = true;
-            childNode.frequency = frequency;
-            // words
-            return;
+        if (mLoadingTrieBuilder != null) {
+            mLoadingTrieBuilder.addWord(word, frequency);
+        } else if (mLoadingTrie.getWordFrequency(word) < frequency) {
+            mLoadingTrie.addWord(word, frequency);
         }
-        if (childNode.children == null) {
-            childNode.children = new NodeArray();
-        }
-        addWordRec(childNode.children, word, depth + 1, frequency);
+        if (mLoadingRows != null) mLoadingRows.addWord(mLoadingRowId, word);
     }
 
     private void clearDictionary() {
-        mRoots = new NodeArray(INITIAL_ROOT_CAPACITY);
+        synchronized (mResourceMonitor) {
+            mTrieModificationsCount++;
+            mTrie = new CompactTrie(INITIAL_ROOT_CAPACITY);
+        }
     }
 
     protected abstract void closeStorage();
 
-    static class Node {
-        char code;
-        int frequency;
-        boolean terminal;
-        NodeArray children;
+    private static class StorageRow {
+        final long id;
+        final String word;
+        final int frequency;
+        final long modificationMark;
+
+        StorageRow(long id, String word, int frequency, long modificationMark) {
+            this.id = id;
+            this.word = word;
+            this.frequency = frequency;
+            this.modificationMark = modificationMark;
+        }
     }
 
-    static class NodeArray {
-        private static final int INCREMENT = 2;
-        Node[] data;
-        int length = 0;
+    private static class StorageChanges {
+        final List<Long> removedRowIds = new ArrayList<>();
+        final List<StorageRow> changedRows = new ArrayList<>();
+    }
 
-        NodeArray(int initialCapacity) {
-            data = new Node[initialCapacity];
+    /**
+     * Builds the new trie in the background, and swaps it in on the UI thread.
+     */
+    private static class DictionaryReloader extends AsyncTask<Void, Void, CompactTrie> {
+        private final BTreeDictionary mDictionary;
+        private final int mTrieModificationsCount;
+        //the rows of the current trie. null if the dictionary does not support storage changes.
+        private final StorageRows mCurrentRows;
+        private StorageRows mReloadedRows;
+        private StorageChanges mChanges;
+        private boolean mSucceeded = false;
+
+        DictionaryReloader(BTreeDictionary dictionary, int trieModificationsCount, StorageRows currentRows) {
+            mDictionary = dictionary;
+            mTrieModificationsCount = trieModificationsCount;
+            mCurrentRows = currentRows;
         }
 
-        NodeArray() {
-            this(INCREMENT);
+        @Override
+        protected CompactTrie doInBackground(Void... params) {
+            if (mDictionary.isClosed()) return null;
+            try {
+                if (mCurrentRows != null) {
+                    mChanges = mDictionary.loadStorageChanges(mCurrentRows);
+                    if (mChanges != null) {
+                        mSucceeded = true;
+                        return null;
+                    }
+                }
+                mReloadedRows = mDictionary.supportsStorageChanges() ? new StorageRows() : null;
+                final CompactTrie trie = mDictionary.loadTrieFromStorage(mReloadedRows);
+                mSucceeded = true;
+                return trie;
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to reload dictionary " + mDictionary + "!", e);
+                return null;
+            }
         }
 
-        void add(Node n) {
-            length++;
-            if (length > data.length) {
-                Node[] tempData = new Node[length + INCREMENT];
-                System.arraycopy(data, 0, tempData, 0, data.length);
-                data = tempData;
-            }
-            data[length - 1] = n;
+        @Override
+        protected void onPostExecute(CompactTrie trie) {
+            super.onPostExecute(trie);
+            //a failed reload keeps the current trie
+            mDictionary.onReloadDone(mSucceeded, trie, mReloadedRows, mChanges, mTrieModificationsCount);
         }
+    }
+
+    /**
+     * The state of visiting a node's children: which child is next, and (when matching typed
+     * characters) which of the typed character's alternatives is next for that child.
+     */
+    private static final class TraversalFrame {
+        int parent;
+        int nextChild;
+        int childrenEnd;
+        int nextAlternative;
+        int depth;
+        boolean completion;
+        float snr;
+        int inputIndex;
+        int[] currentChars;
+    }
 
-        public void deleteNode(int nodeIndexToDelete) {
-            length--;
-            if (length > 0) {
-                for (int i = nodeIndexToDelete; i < length; i++) {
-                    data[i] = data[i + 1];
+    /**
+     * A slot of a {@link PrefixFrontier}. Slots are re-used by the following queries, so they are mutable.
+     */
+    static final class FrontierMatch {
+        int node;
+        final char[] word = new char[MAX_WORD_LENGTH];
+        int depth;
+        float snr;
+        float addedAttenuation;
+    }
+
+    static final class PrefixFrontier {
+        private int[] mCodes = new int[0];
+        private int mCodesLength = 0;
+        //only the first matchesCount slots are matches of this level, the rest are kept for later queries.
+        FrontierMatch[] matches = new FrontierMatch[0];
+        int matchesCount = 0;
+        /**
+         * Bit N is set if one of the matches makes a word of length N.
+         */
+        long matchesLengthsMask = 0;
+
+        void reset(int[] codes) {
+            if (mCodes.length < codes.length) mCodes = new int[codes.length];
+            System.arraycopy(codes, 0, mCodes, 0, codes.length);
+            mCodesLength = codes.length;
+            matchesCount = 0;
+            matchesLengthsMask = 0;
+        }
+
+        void add(int node, char[] word, int depth, float snr, float addedAttenuation) {
+            if (matchesCount == matches.length) {
+                FrontierMatch[] grown = new FrontierMatch[Math.max(8, matches.length * 2)];
+                System.arraycopy(matches, 0, grown, 0, matches.length);
+                for (int i = matches.length; i < grown.length; i++) {
+                    grown[i] = new FrontierMatch();
                 }
+                matches = grown;
+            }
+            final FrontierMatch match = matches[matchesCount++];
+            match.node = node;
+            System.arraycopy(word, 0, match.word, 0, depth + 1);
+            match.depth = depth;
+            match.snr = snr;
+            match.addedAttenuation = addedAttenuation;
+            if (depth + 1 < Long.SIZE) {
+                matchesLengthsMask |= 1L << (depth + 1);
+            }
+        }
+
+        boolean isForCodes(int[] codes) {
+            final int length = Math.max(mCodesLength, codes.length);
+            for (int i = 0; i < length; i++) {
+                final int cachedCode = i < mCodesLength ? mCodes[i] : -1;
+                final int code = i < codes.length ? codes[i] : -1;
+                if (cachedCode != code) return false;
+                if (code == -1) return true;
             }
+            return true;
         }
     }
 }
@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2013 Menny Even-Danan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anysoftkeyboard.dictionaries;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A trie of words, stored in flat primitive arrays instead of an object per character.
+ * A node is an index into the arrays. The children of a node are stored in a contiguous block
+ * of indices, sorted by character, so a child can be found using binary search.
+ * When a block is full, it is moved to the end of the arrays (with some spare room), and the
+ * space it left behind is reclaimed by compacting the whole trie once there is enough of it.
+ * Node indices are only stable until the next modification.
+ */
+final class CompactTrie {
+    /**
+     * The root node. It has no character of its own, its children are the first characters of the words.
+     */
+    static final int ROOT = 0;
+    static final int NO_NODE = -1;
+
+    private static final int INCREMENT = 2;
+    private static final int MIN_SLOTS_GROWTH = 256;
+    private static final int MIN_WASTED_SLOTS_TO_COMPACT = 1024;
+    //code, terminal flag, frequency, max frequency and children count
+    private static final int SNAPSHOT_BYTES_PER_NODE = 2 + 1 + 4 + 4 + 2;
+
+    private char[] mCodes;
+    private boolean[] mTerminals;
+    private int[] mFrequencies;
+    /**
+     * The highest frequency of a word in the node's sub-tree (including the node itself).
+     */
+    private int[] mMaxFrequencies;
+    private int[] mChildrenStart;
+    private char[] mChildrenCount;
+    private char[] mChildrenCapacity;
+
+    private int mUsedSlots;
+    private int mWastedSlots;
+    private int mNodesCount;
+
+    CompactTrie(int initialRootCapacity) {
+        allocate(Math.max(MIN_SLOTS_GROWTH, initialRootCapacity + 1));
+        mUsedSlots = 1;//root
+        mChildrenStart[ROOT] = allocateSlots(initialRootCapacity);
+        mChildrenCapacity[ROOT] = (char) initialRootCapacity;
+    }
+
+    private void allocate(int slots) {
+        mCodes = new char[slots];
+        mTerminals = new boolean[slots];
+        mFrequencies = new int[slots];
+        mMaxFrequencies = new int[slots];
+        mChildrenStart = new int[slots];
+        mChildrenCount = new char[slots];
+        mChildrenCapacity = new char[slots];
+    }
+
+    char getCode(int node) {
+        return mCodes[node];
+    }
+
+    boolean isTerminal(int node) {
+        return mTerminals[node];
+    }
+
+    int getFrequency(int node) {
+        return mFrequencies[node];
+    }
+
+    int getMaxFrequency(int node) {
+        return mMaxFrequencies[node];
+    }
+
+    /**
+     * @return the index of the node's first child. The children are at [start, start + count).
+     */
+    int getChildrenStart(int node) {
+        return mChildrenStart[node];
+    }
+
+    int getChildrenCount(int node) {
+        return mChildrenCount[node];
+    }
+
+    int getNodesCount() {
+        return mNodesCount;
+    }
+
+    /**
+     * @return the child of the given node which has the given character, or {@link #NO_NODE}.
+     */
+    int findChild(int node, char c) {
+        final int position = searchChildren(node, c);
+        return position >= 0 ? mChildrenStart[node] + position : NO_NODE;
+    }
+
+    /**
+     * Binary search in the node's children.
+     *
+     * @return the position of the child (relative to the children start), or (-(insertion position) - 1).
+     */
+    private int searchChildren(int node, char c) {
+        final int start = mChildrenStart[node];
+        int low = 0;
+        int high = mChildrenCount[node] - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final char middleCode = mCodes[start + middle];
+            if (middleCode < c) {
+                low = middle + 1;
+            } else if (middleCode > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return the frequency of the word, or 0 if it is not in the trie.
+     */
+    int getWordFrequency(CharSequence word) {
+        final int length = word.length();
+        if (length == 0) return 0;
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            node = findChild(node, word.charAt(i));
+            if (node == NO_NODE) return 0;
+        }
+        return mTerminals[node] ? mFrequencies[node] : 0;
+    }
+
+    void addWord(CharSequence word, int frequency) {
+        final int length = word.length();
+        if (length == 0) return;
+        final int[] path = new int[length + 1];
+        path[0] = ROOT;
+        for (int i = 0; i < length; i++) {
+            final int node = path[i];
+            final char c = word.charAt(i);
+            final int position = searchChildren(node, c);
+            final int child;
+            if (position >= 0) {
+                child = mChildrenStart[node] + position;
+            } else {
+                child = insertChild(node, -(position + 1), c);
+            }
+            if (mMaxFrequencies[child] < frequency) mMaxFrequencies[child] = frequency;
+            path[i + 1] = child;
+        }
+        final int wordNode = path[length];
+        final boolean lowered = mTerminals[wordNode] && mFrequencies[wordNode] > frequency;
+        mTerminals[wordNode] = true;
+        mFrequencies[wordNode] = frequency;
+        if (lowered) {
+            //the previous frequency may have been the maximum of the path
+            for (int depth = length; depth > 0; depth--) {
+                updateMaxFrequency(path[depth]);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the word from the trie, and any node that is no longer part of a word.
+     *
+     * @return true if the word was in the trie.
+     */
+    boolean deleteWord(CharSequence word) {
+        final int length = word.length();
+        if (length == 0) return false;
+        final int[] path = new int[length + 1];
+        path[0] = ROOT;
+        for (int i = 0; i < length; i++) {
+            final int child = findChild(path[i], word.charAt(i));
+            if (child == NO_NODE) return false;
+            path[i + 1] = child;
+        }
+        final int wordNode = path[length];
+        if (!mTerminals[wordNode]) return false;
+
+        mTerminals[wordNode] = false;
+        mFrequencies[wordNode] = 0;
+        //removing nodes which are no longer needed, bottom-up
+        int depth = length;
+        while (depth > 0 && !mTerminals[path[depth]] && mChildrenCount[path[depth]] == 0) {
+            removeChild(path[depth - 1], path[depth]);
+            depth--;
+        }
+        //the rest of the path should be updated with the new maximums
+        for (; depth > 0; depth--) {
+            updateMaxFrequency(path[depth]);
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    private void updateMaxFrequency(int node) {
+        int max = mTerminals[node] ? mFrequencies[node] : 0;
+        final int start = mChildrenStart[node];
+        final int end = start + mChildrenCount[node];
+        for (int child = start; child < end; child++) {
+            if (mMaxFrequencies[child] > max) max = mMaxFrequencies[child];
+        }
+        mMaxFrequencies[node] = max;
+    }
+
+    private int insertChild(int parent, int position, char c) {
+        final int count = mChildrenCount[parent];
+        if (count == mChildrenCapacity[parent]) {
+            relocateChildren(parent, count + INCREMENT);
+        }
+        final int start = mChildrenStart[parent];
+        final int child = start + position;
+        final int toShift = count - position;
+        if (toShift > 0) {
+            moveSlots(child, child + 1, toShift);
+        }
+        clearSlot(child);
+        mCodes[child] = c;
+        mChildrenCount[parent] = (char) (count + 1);
+        mNodesCount++;
+        return child;
+    }
+
+    private void removeChild(int parent, int child) {
+        //the removed node has no children, but it may still hold an empty block
+        mWastedSlots += mChildrenCapacity[child];
+        final int start = mChildrenStart[parent];
+        final int count = mChildrenCount[parent];
+        final int toShift = start + count - child - 1;
+        if (toShift > 0) {
+            moveSlots(child + 1, child, toShift);
+        }
+        clearSlot(start + count - 1);
+        mChildrenCount[parent] = (char) (count - 1);
+        mNodesCount--;
+    }
+
+    private void relocateChildren(int parent, int newCapacity) {
+        final int oldStart = mChildrenStart[parent];
+        final int count = mChildrenCount[parent];
+        final int newStart = allocateSlots(newCapacity);
+        moveSlots(oldStart, newStart, count);
+        mWastedSlots += mChildrenCapacity[parent];
+        mChildrenStart[parent] = newStart;
+        mChildrenCapacity[parent] = (char) newCapacity;
+    }
+
+    private int allocateSlots(int slots) {
+        if (mUsedSlots + slots > mCodes.length) {
+            grow(mUsedSlots + slots);
+        }
+        final int start = mUsedSlots;
+        mUsedSlots += slots;
+        return start;
+    }
+
+    private void grow(int requiredSlots) {
+        final int newLength = Math.max(requiredSlots, mCodes.length + Math.max(MIN_SLOTS_GROWTH, mCodes.length / 2));
+        mCodes = copyOf(mCodes, newLength);
+        mTerminals = copyOf(mTerminals, newLength);
+        mFrequencies = copyOf(mFrequencies, newLength);
+        mMaxFrequencies = copyOf(mMaxFrequencies, newLength);
+        mChildrenStart = copyOf(mChildrenStart, newLength);
+        mChildrenCount = copyOf(mChildrenCount, newLength);
+        mChildrenCapacity = copyOf(mChildrenCapacity, newLength);
+    }
+
+    private void moveSlots(int from, int to, int length) {
+        System.arraycopy(mCodes, from, mCodes, to, length);
+        System.arraycopy(mTerminals, from, mTerminals, to, length);
+        System.arraycopy(mFrequencies, from, mFrequencies, to, length);
+        System.arraycopy(mMaxFrequencies, from, mMaxFrequencies, to, length);
+        System.arraycopy(mChildrenStart, from, mChildrenStart, to, length);
+        System.arraycopy(mChildrenCount, from, mChildrenCount, to, length);
+        System.arraycopy(mChildrenCapacity, from, mChildrenCapacity, to, length);
+    }
+
+    private void clearSlot(int slot) {
+        mCodes[slot] = 0;
+        mTerminals[slot] = false;
+        mFrequencies[slot] = 0;
+        mMaxFrequencies[slot] = 0;
+        mChildrenStart[slot] = 0;
+        mChildrenCount[slot] = 0;
+        mChildrenCapacity[slot] = 0;
+    }
+
+    private void compactIfNeeded() {
+        if (mWastedSlots < MIN_WASTED_SLOTS_TO_COMPACT || mWastedSlots < mUsedSlots / 2) return;
+        compact();
+    }
+
+    /**
+     * Re-lays the trie in level-order, with no space between the children blocks.
+     * Best called after adding many words at once.
+     */
+    void compact() {
+        final char[] codes = mCodes;
+        final boolean[] terminals = mTerminals;
+        final int[] frequencies = mFrequencies;
+        final int[] maxFrequencies = mMaxFrequencies;
+        final int[] childrenStart = mChildrenStart;
+        final char[] childrenCount = mChildrenCount;
+
+        allocate(mNodesCount + 1 + MIN_SLOTS_GROWTH);
+        //level-order copy: each block is copied right after the previous one, with no spare room.
+        //New nodes are written in the same order they are read, so the new array doubles as the queue.
+        mUsedSlots = 1;
+        mChildrenCapacity[ROOT] = childrenCount[ROOT];
+        int newNode = ROOT;
+        final int[] oldIndexOf = new int[mNodesCount + 1];
+        oldIndexOf[ROOT] = ROOT;
+        while (newNode < mUsedSlots) {
+            final int oldNode = oldIndexOf[newNode];
+            final int count = childrenCount[oldNode];
+            final int newStart = mUsedSlots;
+            mUsedSlots += count;
+            mChildrenStart[newNode] = newStart;
+            mChildrenCount[newNode] = (char) count;
+            mChildrenCapacity[newNode] = (char) count;
+            final int oldStart = childrenStart[oldNode];
+            for (int i = 0; i < count; i++) {
+                final int oldChild = oldStart + i;
+                final int newChild = newStart + i;
+                oldIndexOf[newChild] = oldChild;
+                mCodes[newChild] = codes[oldChild];
+                mTerminals[newChild] = terminals[oldChild];
+                mFrequencies[newChild] = frequencies[oldChild];
+                mMaxFrequencies[newChild] = maxFrequencies[oldChild];
+            }
+            newNode++;
+        }
+        mWastedSlots = 0;
+    }
+
+    /**
+     * @return a trie with the same words (and the same node indices), which can be changed without
+     * changing this one. Copies only the used slots (and some spare room).
+     */
+    CompactTrie copy() {
+        final CompactTrie copy = new CompactTrie(0);
+        final int slots = mUsedSlots + MIN_SLOTS_GROWTH;
+        copy.mCodes = copyOf(mCodes, slots);
+        copy.mTerminals = copyOf(mTerminals, slots);
+        copy.mFrequencies = copyOf(mFrequencies, slots);
+        copy.mMaxFrequencies = copyOf(mMaxFrequencies, slots);
+        copy.mChildrenStart = copyOf(mChildrenStart, slots);
+        copy.mChildrenCount = copyOf(mChildrenCount, slots);
+        copy.mChildrenCapacity = copyOf(mChildrenCapacity, slots);
+        copy.mUsedSlots = mUsedSlots;
+        copy.mWastedSlots = mWastedSlots;
+        copy.mNodesCount = mNodesCount;
+        return copy;
+    }
+
+    /**
+     * @return the number of bytes {@link #writeSnapshot(ByteBuffer)} will write.
+     */
+    int getSnapshotSize() {
+        return 4 + (mNodesCount + 1) * SNAPSHOT_BYTES_PER_NODE;
+    }
+
+    /**
+     * Writes the trie, compacted, into the buffer:
+     * [4 bytes nodes count (including the root)] [codes] [terminal flags] [frequencies] [max frequencies] [children counts].
+     * The children starts are not written, in level-order they are the running total of the children counts.
+     */
+    void writeSnapshot(ByteBuffer buffer) {
+        compact();
+        final int slots = mNodesCount + 1;
+        buffer.putInt(slots);
+        buffer.asCharBuffer().put(mCodes, 0, slots);
+        buffer.position(buffer.position() + 2 * slots);
+        for (int node = 0; node < slots; node++) {
+            buffer.put(mTerminals[node] ? (byte) 1 : (byte) 0);
+        }
+        buffer.asIntBuffer().put(mFrequencies, 0, slots);
+        buffer.position(buffer.position() + 4 * slots);
+        buffer.asIntBuffer().put(mMaxFrequencies, 0, slots);
+        buffer.position(buffer.position() + 4 * slots);
+        buffer.asCharBuffer().put(mChildrenCount, 0, slots);
+        buffer.position(buffer.position() + 2 * slots);
+    }
+
+    /**
+     * Creates a trie from a buffer written by {@link #writeSnapshot(ByteBuffer)}. Each array is
+     * a single bulk copy, no word is added.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold a valid trie.
+     */
+    static CompactTrie fromSnapshot(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) throw new IllegalArgumentException("Missing nodes count");
+        final int slots = buffer.getInt();
+        if (slots < 1 || (long) slots * SNAPSHOT_BYTES_PER_NODE > buffer.remaining())
+            throw new IllegalArgumentException("Invalid nodes count " + slots);
+
+        final CompactTrie trie = new CompactTrie(0);
+        trie.allocate(slots + MIN_SLOTS_GROWTH);
+        buffer.asCharBuffer().get(trie.mCodes, 0, slots);
+        buffer.position(buffer.position() + 2 * slots);
+        for (int node = 0; node < slots; node++) {
+            trie.mTerminals[node] = buffer.get() != 0;
+        }
+        buffer.asIntBuffer().get(trie.mFrequencies, 0, slots);
+        buffer.position(buffer.position() + 4 * slots);
+        buffer.asIntBuffer().get(trie.mMaxFrequencies, 0, slots);
+        buffer.position(buffer.position() + 4 * slots);
+        buffer.asCharBuffer().get(trie.mChildrenCount, 0, slots);
+        buffer.position(buffer.position() + 2 * slots);
+
+        int childrenStart = 1;
+        for (int node = 0; node < slots; node++) {
+            trie.mChildrenStart[node] = childrenStart;
+            trie.mChildrenCapacity[node] = trie.mChildrenCount[node];
+            childrenStart += trie.mChildrenCount[node];
+            if (childrenStart > slots) throw new IllegalArgumentException("Node " + node + " has children out of the trie");
+        }
+        if (childrenStart != slots) throw new IllegalArgumentException("Only " + childrenStart + " of " + slots + " nodes are reachable");
+        trie.mUsedSlots = slots;
+        trie.mNodesCount = slots - 1;
+        trie.mWastedSlots = 0;
+        return trie;
+    }
+
+    /**
+     * An estimation of the heap used by this trie, in bytes.
+     */
+    long getMemoryFootprint() {
+        final long arrayHeader = 16;
+        final long slots = mCodes.length;
+        return 7 * arrayHeader + slots * (2/*code*/ + 1/*terminal*/ + 4/*frequency*/ + 4/*max frequency*/
+                + 4/*children start*/ + 2/*children count*/ + 2/*children capacity*/);
+    }
+
+    /**
+     * Builds a trie from many words at once, instead of adding them one by one.
+     * The words are sorted (unless they were added in order), and then the trie is laid out
+     * level by level in a single pass over them: each node's children are the runs of words which
+     * share its prefix plus one more character, so every children block is written once, exactly
+     * sized, with no searching and no relocations.
+     * A word which was added more than once gets its highest frequency.
+     * A builder builds a single trie.
+     */
+    static final class Builder {
+        private String[] mWords = new String[256];
+        private int[] mWordsFrequencies = new int[256];
+        private int mWordsCount = 0;
+        private boolean mSorted = true;
+
+        void addWord(String word, int frequency) {
+            if (word.length() == 0) return;
+            if (mWordsCount == mWords.length) {
+                final int newLength = mWordsCount + mWordsCount / 2;
+                String[] words = new String[newLength];
+                System.arraycopy(mWords, 0, words, 0, mWordsCount);
+                mWords = words;
+                mWordsFrequencies = copyOf(mWordsFrequencies, newLength);
+            }
+            if (mSorted && mWordsCount > 0 && mWords[mWordsCount - 1].compareTo(word) > 0) mSorted = false;
+            mWords[mWordsCount] = word;
+            mWordsFrequencies[mWordsCount] = frequency;
+            mWordsCount++;
+        }
+
+        CompactTrie build() {
+            final String[] words;
+            final int[] frequencies;
+            if (mSorted) {
+                words = mWords;
+                frequencies = mWordsFrequencies;
+            } else {
+                final int[] order = new int[mWordsCount];
+                for (int i = 0; i < mWordsCount; i++) order[i] = i;
+                sortByWord(order, new int[mWordsCount], 0, mWordsCount);
+                words = new String[mWordsCount];
+                frequencies = new int[mWordsCount];
+                for (int i = 0; i < mWordsCount; i++) {
+                    words[i] = mWords[order[i]];
+                    frequencies[i] = mWordsFrequencies[order[i]];
+                }
+            }
+            //the words are no longer needed here
+            mWords = null;
+            mWordsFrequencies = null;
+
+            //removing duplicates, and counting the nodes: each word adds the characters
+            //it does not share with the previous word.
+            int wordsCount = 0;
+            int nodesCount = 0;
+            for (int i = 0; i < mWordsCount; i++) {
+                if (wordsCount > 0 && words[wordsCount - 1].equals(words[i])) {
+                    frequencies[wordsCount - 1] = Math.max(frequencies[wordsCount - 1], frequencies[i]);
+                    continue;
+                }
+                final String word = words[i];
+                nodesCount += word.length() - (wordsCount > 0 ? commonPrefixLength(words[wordsCount - 1], word) : 0);
+                words[wordsCount] = word;
+                frequencies[wordsCount] = frequencies[i];
+                wordsCount++;
+            }
+
+            final int slots = nodesCount + 1;
+            final CompactTrie trie = new CompactTrie(0);
+            trie.allocate(slots);
+            //the words of each node's sub-tree, and the node's depth (the length of its prefix)
+            final int[] firstWord = new int[slots];
+            final int[] lastWord = new int[slots];
+            final int[] depths = new int[slots];
+            firstWord[ROOT] = 0;
+            lastWord[ROOT] = wordsCount;
+            int usedSlots = 1;
+            //level-order: the nodes are visited in the same order they are written
+            for (int node = 0; node < usedSlots; node++) {
+                final int depth = depths[node];
+                int word = firstWord[node];
+                final int end = lastWord[node];
+                if (node != ROOT && words[word].length() == depth) {
+                    //the node's own word is sorted before the longer words
+                    trie.mTerminals[node] = true;
+                    trie.mFrequencies[node] = frequencies[word];
+                    word++;
+                }
+                final int childrenStart = usedSlots;
+                while (word < end) {
+                    final char c = words[word].charAt(depth);
+                    final int child = usedSlots++;
+                    trie.mCodes[child] = c;
+                    depths[child] = depth + 1;
+                    firstWord[child] = word;
+                    while (word < end && words[word].charAt(depth) == c) word++;
+                    lastWord[child] = word;
+                }
+                final int count = usedSlots - childrenStart;
+                trie.mChildrenStart[node] = childrenStart;
+                trie.mChildrenCount[node] = (char) count;
+                trie.mChildrenCapacity[node] = (char) count;
+            }
+            //children are always after their parent, so going backwards sees the children first.
+            //The root's maximum is not kept, same as when adding words.
+            for (int node = slots - 1; node > ROOT; node--) {
+                trie.updateMaxFrequency(node);
+            }
+            trie.mUsedSlots = slots;
+            trie.mNodesCount = nodesCount;
+            trie.mWastedSlots = 0;
+            return trie;
+        }
+
+        private static int commonPrefixLength(String first, String second) {
+            final int length = Math.min(first.length(), second.length());
+            int common = 0;
+            while (common < length && first.charAt(common) == second.charAt(common)) common++;
+            return common;
+        }
+
+        /**
+         * Stable merge sort of the words' indices (in [from, to)), by the words.
+         */
+        private void sortByWord(int[] order, int[] temp, int from, int to) {
+            if (to - from < 2) return;
+            final int middle = (from + to) >>> 1;
+            sortByWord(order, temp, from, middle);
+            sortByWord(order, temp, middle, to);
+            if (mWords[order[middle - 1]].compareTo(mWords[order[middle]]) <= 0) return;
+            System.arraycopy(order, from, temp, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && mWords[temp[left]].compareTo(mWords[temp[right]]) <= 0)) {
+                    order[i] = temp[left++];
+                } else {
+                    order[i] = temp[right++];
+                }
+            }
+        }
+    }
+
+    private static char[] copyOf(char[] array, int newLength) {
+        char[] copy = new char[newLength];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, newLength));
+        return copy;
+    }
+
+    private static boolean[] copyOf(boolean[] array, int newLength) {
+        boolean[] copy = new boolean[newLength];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, newLength));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int newLength) {
+        int[] copy = new int[newLength];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, newLength));
+        return copy;
+    }
+}
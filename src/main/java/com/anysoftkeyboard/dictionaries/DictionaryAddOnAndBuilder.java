@@ -74,7 +74,7 @@ public class DictionaryAddOnAndBuilder extends AddOnImpl {
         if (mDictionaryResId == INVALID_RES_ID)
             return new BinaryDictionary(getPackageContext(), getName(), getPackageContext().getAssets().openFd(mAssetsFilename), BuildConfig.DEBUG);
         else
-            return new ResourceBinaryDictionary(getName(), getPackageContext(), mDictionaryResId, BuildConfig.DEBUG);
+            return new ResourceBinaryDictionary(getName(), getPackageContext(), mDictionaryResId, getAskAppContext().getCacheDir(), BuildConfig.DEBUG);
     }
 
     public AutoText createAutoText() {
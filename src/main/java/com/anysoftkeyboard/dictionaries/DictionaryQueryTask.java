@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013 Menny Even-Danan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anysoftkeyboard.dictionaries;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+
+/**
+ * Queries a single dictionary into its own, score ordered, top-K buffer.
+ * Used by {@link Suggest} to query several dictionaries in parallel, and merge
+ * their buffers once they are done.
+ * A task instance is re-used between queries, but never while it is running.
+ * The task's monitor is held while a dictionary which is not re-entrant is traversed, so other
+ * threads can wait on it before using the same dictionary (see {@link Suggest#isReentrant(Dictionary)}).
+ */
+final class DictionaryQueryTask implements Runnable, Dictionary.WordCallbackWithThreshold {
+
+    private Dictionary mDictionary;
+    private WordComposer mWordComposer;
+    private String mLowerTypedWord;
+    @Nullable
+    private Suggest.CancellationSignal mCancellationSignal;
+    private volatile boolean mAbandoned;
+
+    private char[][] mWords = new char[0][];
+    private int[] mWordsLengths = new int[0];
+    private int[] mFrequencies = new int[0];
+    private Dictionary[] mWordsSources = new Dictionary[0];
+    private int mCount;
+    private int mCapacity;
+
+    private long mQueryDuration;
+
+    /**
+     * Prepares this task for the next query. Must not be called while the task is running.
+     */
+    void prepare(@NonNull Dictionary dictionary, @NonNull WordComposer wordComposer, @NonNull String lowerTypedWord,
+                 int capacity, @Nullable Suggest.CancellationSignal cancellationSignal) {
+        mDictionary = dictionary;
+        mWordComposer = wordComposer;
+        mLowerTypedWord = lowerTypedWord;
+        mCancellationSignal = cancellationSignal;
+        mAbandoned = false;
+        mCount = 0;
+        mQueryDuration = 0;
+        if (mWords.length < capacity) {
+            char[][] words = new char[capacity][];
+            System.arraycopy(mWords, 0, words, 0, mWords.length);
+            for (int wordIndex = mWords.length; wordIndex < capacity; wordIndex++) {
+                words[wordIndex] = new char[Dictionary.MAX_WORD_LENGTH];
+            }
+            mWords = words;
+            mWordsLengths = new int[capacity];
+            mFrequencies = new int[capacity];
+            mWordsSources = new Dictionary[capacity];
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Tells the running query to stop as soon as possible. The buffer should not be read
+     * after this call.
+     */
+    void abandon() {
+        mAbandoned = true;
+    }
+
+    long getQueryDuration() {
+        return mQueryDuration;
+    }
+
+    @Override
+    public void run() {
+        final long startTime = SystemClock.uptimeMillis();
+        if (Suggest.isReentrant(mDictionary)) {
+            mDictionary.getWords(mWordComposer, this);
+        } else {
+            synchronized (this) {
+                mDictionary.getWords(mWordComposer, this);
+            }
+        }
+        mQueryDuration = SystemClock.uptimeMillis() - startTime;
+        //not holding on to the composer, it belongs to the caller.
+        mWordComposer = null;
+    }
+
+    @Override
+    public int getFrequencyThreshold() {
+        return mCount == mCapacity ? mFrequencies[mCapacity - 1] : -1;
+    }
+
+    @Override
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+        if (mAbandoned) return false;
+        final Suggest.CancellationSignal cancellationSignal = mCancellationSignal;
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) return false;
+
+        int pos;
+        //same as the typed word (only caps are different) is always kept, since Suggest will place it first.
+        if (Suggest.compareCaseInsensitive(mLowerTypedWord, word, wordOffset, wordLength)) {
+            pos = 0;
+        } else {
+            if (mCount == mCapacity && mFrequencies[mCapacity - 1] >= frequency) return true;
+            pos = 0;
+            while (pos < mCount) {
+                if (mFrequencies[pos] < frequency || (mFrequencies[pos] == frequency && wordLength < mWordsLengths[pos])) {
+                    break;
+                }
+                pos++;
+            }
+        }
+        if (pos >= mCapacity) return true;
+
+        //shifting the tail one slot down, re-using the last word's array
+        final int lastIndex = Math.min(mCount, mCapacity - 1);
+        char[] reusedArray = mWords[lastIndex];
+        System.arraycopy(mWords, pos, mWords, pos + 1, lastIndex - pos);
+        System.arraycopy(mWordsLengths, pos, mWordsLengths, pos + 1, lastIndex - pos);
+        System.arraycopy(mFrequencies, pos, mFrequencies, pos + 1, lastIndex - pos);
+        System.arraycopy(mWordsSources, pos, mWordsSources, pos + 1, lastIndex - pos);
+        if (reusedArray.length < wordLength) reusedArray = new char[wordLength];
+        System.arraycopy(word, wordOffset, reusedArray, 0, wordLength);
+        mWords[pos] = reusedArray;
+        mWordsLengths[pos] = wordLength;
+        mFrequencies[pos] = frequency;
+        mWordsSources[pos] = from;
+        if (mCount < mCapacity) mCount++;
+
+        return true;
+    }
+
+    /**
+     * Reports the buffered words, ordered by score, to the given callback.
+     */
+    void mergeInto(@NonNull Dictionary.WordCallback callback) {
+        for (int wordIndex = 0; wordIndex < mCount; wordIndex++) {
+            if (!callback.addWord(mWords[wordIndex], 0, mWordsLengths[wordIndex], mFrequencies[wordIndex], mWordsSources[wordIndex])) {
+                break;
+            }
+        }
+        //not holding on to the dictionaries
+        for (int wordIndex = 0; wordIndex < mCount; wordIndex++) {
+            mWordsSources[wordIndex] = null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016 Menny Even-Danan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anysoftkeyboard.dictionaries;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.anysoftkeyboard.utils.Log;
+
+/**
+ * How long each dictionary took in the parallel queries, since the process started.
+ * Kept for the whole process (not per {@link Suggest}), so it can be reported by the developer tools
+ * and in the shared system information, also in release builds.
+ */
+public final class ParallelQueriesStatistics {
+    private static final int SOURCES_COUNT = Suggest.DictionarySource.values().length;
+
+    private static final long[] msQueriesCount = new long[SOURCES_COUNT];
+    private static final long[] msMissedDeadlineCount = new long[SOURCES_COUNT];
+    private static final long[] msTotalDuration = new long[SOURCES_COUNT];
+    private static final long[] msMaxDuration = new long[SOURCES_COUNT];
+
+    private ParallelQueriesStatistics() {
+    }
+
+    /**
+     * @param duration how long the dictionary took, in milliseconds,
+     *                 or {@link Suggest#QUERY_DURATION_MISSED_DEADLINE}.
+     */
+    static synchronized void recordQuery(@NonNull Suggest.DictionarySource source, long duration) {
+        final int sourceIndex = source.ordinal();
+        msQueriesCount[sourceIndex]++;
+        if (duration == Suggest.QUERY_DURATION_MISSED_DEADLINE) {
+            msMissedDeadlineCount[sourceIndex]++;
+        } else {
+            msTotalDuration[sourceIndex] += duration;
+            msMaxDuration[sourceIndex] = Math.max(msMaxDuration[sourceIndex], duration);
+        }
+    }
+
+    @NonNull
+    public static synchronized String dumpStatistics() {
+        StringBuilder sb = new StringBuilder("Parallel dictionaries queries:");
+        for (Suggest.DictionarySource source : Suggest.DictionarySource.values()) {
+            final int sourceIndex = source.ordinal();
+            final long finishedCount = msQueriesCount[sourceIndex] - msMissedDeadlineCount[sourceIndex];
+            sb.append(Log.NEW_LINE).append(source).append(": queries ").append(msQueriesCount[sourceIndex])
+                    .append(", missed deadline ").append(msMissedDeadlineCount[sourceIndex])
+                    .append(", average ").append(finishedCount > 0 ? msTotalDuration[sourceIndex] / finishedCount : 0).append("ms")
+                    .append(", max ").append(msMaxDuration[sourceIndex]).append("ms");
+        }
+        return sb.toString();
+    }
+
+    @VisibleForTesting
+    static synchronized void reset() {
+        for (int sourceIndex = 0; sourceIndex < SOURCES_COUNT; sourceIndex++) {
+            msQueriesCount[sourceIndex] = 0;
+            msMissedDeadlineCount[sourceIndex] = 0;
+            msTotalDuration[sourceIndex] = 0;
+            msMaxDuration[sourceIndex] = 0;
+        }
+    }
+}
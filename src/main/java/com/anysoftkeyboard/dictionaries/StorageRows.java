@@ -0,0 +1,75 @@
+package com.anysoftkeyboard.dictionaries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which words each of the storage's rows added to the dictionary, and how many rows added each word.
+ * This allows applying a changed (or deleted) row to the dictionary without loading all the rows again:
+ * a word is removed only when no other row references it (e.g., two contacts with the same first name).
+ * The modification mark is the highest mark (row id, or last-updated time) of the rows that were read.
+ */
+class StorageRows {
+    private final Map<Long, List<String>> mRowsWords = new HashMap<>();
+    //a single-item array, so the count can be changed without boxing.
+    private final Map<String, int[]> mWordsReferences = new HashMap<>();
+    private long mModificationMark = 0;
+
+    void addWord(long rowId, String word) {
+        List<String> rowWords = mRowsWords.get(rowId);
+        if (rowWords == null) {
+            rowWords = new ArrayList<>(1);
+            mRowsWords.put(rowId, rowWords);
+        }
+        rowWords.add(word);
+
+        final int[] references = mWordsReferences.get(word);
+        if (references == null) {
+            mWordsReferences.put(word, new int[]{1});
+        } else {
+            references[0]++;
+        }
+    }
+
+    /**
+     * Forgets the row.
+     *
+     * @return the words which are no longer referenced by any row.
+     */
+    List<String> removeRow(long rowId) {
+        final List<String> rowWords = mRowsWords.remove(rowId);
+        if (rowWords == null) return Collections.emptyList();
+        List<String> unreferencedWords = new ArrayList<>(rowWords.size());
+        for (String word : rowWords) {
+            final int[] references = mWordsReferences.get(word);
+            if (references == null) continue;
+            references[0]--;
+            if (references[0] <= 0) {
+                mWordsReferences.remove(word);
+                unreferencedWords.add(word);
+            }
+        }
+        return unreferencedWords;
+    }
+
+    Set<Long> getRowIds() {
+        return mRowsWords.keySet();
+    }
+
+    int getWordReferencesCount(String word) {
+        final int[] references = mWordsReferences.get(word);
+        return references == null ? 0 : references[0];
+    }
+
+    void updateModificationMark(long modificationMark) {
+        mModificationMark = Math.max(mModificationMark, modificationMark);
+    }
+
+    long getModificationMark() {
+        return mModificationMark;
+    }
+}
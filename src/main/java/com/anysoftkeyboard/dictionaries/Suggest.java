@@ -17,12 +17,14 @@
 package com.anysoftkeyboard.dictionaries;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.anysoftkeyboard.base.dictionaries.Dictionary;
 import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.anysoftkeyboard.dictionaries.jni.ResourceBinaryDictionary;
 import com.anysoftkeyboard.dictionaries.sqlite.AbbreviationsDictionary;
 import com.anysoftkeyboard.base.utils.CompatUtils;
 import com.anysoftkeyboard.utils.IMEUtil;
@@ -34,20 +36,62 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class loads a dictionary and provides a list of suggestions for a given
  * sequence of characters. This includes corrections and completions.
+ * Suggestions are queried from a worker thread, while the dictionaries are configured (and
+ * checked for valid words) from the UI thread:
+ * the dictionaries are swapped and closed under a write lock, and used under a read lock. A swap
+ * which waits for the lock makes the running query stop early.
+ * The query's own state (the suggestions list, priorities, etc.) is guarded by this object's monitor.
  */
-public class Suggest implements Dictionary.WordCallback {
+public class Suggest implements Dictionary.WordCallbackWithThreshold {
     private static final String TAG = "ASK Suggest";
 
+    /**
+     * Allows an in-flight suggestions query to be aborted, for example, when a newer key-stroke
+     * made it stale.
+     */
+    public interface CancellationSignal {
+        boolean isCanceled();
+    }
+
+    /**
+     * The dictionaries which are queried in parallel (if enabled), ordered by merge order.
+     */
+    public enum DictionarySource {
+        Contacts,
+        User,
+        Main
+    }
+
+    /**
+     * Reported by {@link #getLastQueryDuration(DictionarySource)} when the dictionary did not
+     * finish its traversal before the merge deadline, and its words were not used.
+     */
+    public static final long QUERY_DURATION_MISSED_DEADLINE = -1;
+    public static final int DEFAULT_PARALLEL_QUERIES_DEADLINE_MS = 50;
+
+    private final ReentrantReadWriteLock mDictionariesLock = new ReentrantReadWriteLock();
+    private final Lock mDictionariesReadLock = mDictionariesLock.readLock();
+    private final Lock mDictionariesWriteLock = mDictionariesLock.writeLock();
+
     private Dictionary mMainDict;
     @NonNull
     private Locale mLocale = Locale.getDefault();
     private AutoText mAutoText;
 
-    private int mMinimumWordLengthToStartCorrecting = 2;
+    private volatile int mMinimumWordLengthToStartCorrecting = 2;
 
     private final DictionaryFactory mDictionaryFactory;
 
@@ -60,13 +104,16 @@ public class Suggest implements Dictionary.WordCallback {
     private Dictionary mAbbreviationDictionary;
 
     private int mPrefMaxSuggestions = 12;
+    //set from the UI thread, and applied when the next query starts.
+    private volatile int mRequestedMaxSuggestions = mPrefMaxSuggestions;
 
     @Nullable
     private List<String> mLocaleSpecificPunctuations = null;
 
     private int[] mPriorities = new int[mPrefMaxSuggestions];
     private final List<CharSequence> mSuggestions = new ArrayList<>();
-    private final List<CharSequence> mNextSuggestions = new ArrayList<>();
+    //replaced (never changed) once the next-words are computed, since it is read by the suggestions query.
+    private volatile List<CharSequence> mNextSuggestions = Collections.emptyList();
     // private boolean mIncludeTypedWordIfValid;
     private List<CharSequence> mStringPool = new ArrayList<>();
     // private Context mContext;
@@ -81,19 +128,38 @@ public class Suggest implements Dictionary.WordCallback {
     private boolean mIsAllUpperCase;
 
     // private int mCorrectionMode = CORRECTION_FULL;
-    private boolean mAutoTextEnabled = true;
-    private boolean mMainDictionaryEnabled = true;
+    private volatile boolean mAutoTextEnabled = true;
+    private volatile boolean mMainDictionaryEnabled = true;
+
+    private volatile int mCommonalityMaxLengthDiff = 1;
+    private volatile int mCommonalityMaxDistance = 1;
+
+    @Nullable
+    private volatile CancellationSignal mCancellationSignal;
+
+    //guarded by the dictionaries lock. Created by the first parallel query, and shut-down when the dictionaries are closed.
+    @Nullable
+    private ExecutorService mParallelQueriesExecutor;
+    private boolean mParallelQueriesEnabled = false;
+    private int mParallelQueriesDeadlineMs = DEFAULT_PARALLEL_QUERIES_DEADLINE_MS;
+    private final DictionaryQueryTask[] mQueryTasks = new DictionaryQueryTask[DictionarySource.values().length];
+    private final Future<?>[] mQueryTasksFutures = new Future<?>[mQueryTasks.length];
+    private final boolean[] mQueryTasksSubmitted = new boolean[mQueryTasks.length];
+    private final long[] mLastQueryDurations = new long[mQueryTasks.length];
 
-    private int mCommonalityMaxLengthDiff = 1;
-    private int mCommonalityMaxDistance = 1;
     private final DictionaryASyncLoader.Listener mContactsDictionaryListener = new DictionaryASyncLoader.Listener() {
         @Override
         public void onDictionaryLoadingDone(Dictionary dictionary) {}
 
         @Override
         public void onDictionaryLoadingFailed(Dictionary dictionary, Exception exception) {
-            if (dictionary == mContactsDictionary) {
-                mContactsDictionary = null;//resetting it
+            mDictionariesWriteLock.lock();
+            try {
+                if (dictionary == mContactsDictionary) {
+                    mContactsDictionary = null;//resetting it
+                }
+            } finally {
+                mDictionariesWriteLock.unlock();
             }
         }
     };
@@ -104,6 +170,9 @@ public class Suggest implements Dictionary.WordCallback {
             StringBuilder sb = new StringBuilder(32);
             mStringPool.add(sb);
         }
+        for (int taskIndex = 0; taskIndex < mQueryTasks.length; taskIndex++) {
+            mQueryTasks[taskIndex] = new DictionaryQueryTask();
+        }
     }
 
     @NonNull
@@ -125,28 +194,52 @@ public class Suggest implements Dictionary.WordCallback {
      * dictionary is consulted before the main dictionary, if set.
      */
     public void setUserDictionary(Dictionary userDictionary) {
-        if (mUserDictionary != userDictionary && mUserDictionary != null)
-            mUserDictionary.close();
-
-        mUserDictionary = (UserDictionary) userDictionary;
+        mDictionariesWriteLock.lock();
+        try {
+            waitForAbandonedQueries();
+            if (mUserDictionary != userDictionary && mUserDictionary != null)
+                mUserDictionary.close();
+
+            mUserDictionary = (UserDictionary) userDictionary;
+        } finally {
+            mDictionariesWriteLock.unlock();
+        }
     }
 
     public void closeDictionaries() {
         Log.d(TAG, "closeDictionaries");
-        if (mMainDict != null) mMainDict.close();
-        mMainDict = null;
-        if (mAbbreviationDictionary != null) mAbbreviationDictionary.close();
-        mAbbreviationDictionary = null;
-        if (mAutoDictionary != null) mAutoDictionary.close();
-        mAutoDictionary = null;
-        if (mContactsDictionary != null) mContactsDictionary.close();
-        mContactsDictionary = null;
-        if (mUserDictionary != null) mUserDictionary.close();
-        mUserDictionary = null;
+        mDictionariesWriteLock.lock();
+        try {
+            waitForAbandonedQueries();
+            if (mMainDict != null) mMainDict.close();
+            mMainDict = null;
+            if (mAbbreviationDictionary != null) mAbbreviationDictionary.close();
+            mAbbreviationDictionary = null;
+            if (mAutoDictionary != null) mAutoDictionary.close();
+            mAutoDictionary = null;
+            if (mContactsDictionary != null) mContactsDictionary.close();
+            mContactsDictionary = null;
+            if (mUserDictionary != null) mUserDictionary.close();
+            mUserDictionary = null;
+            //no dictionaries to query, the threads will be re-created by the next parallel query.
+            shutdownParallelQueriesExecutor();
+        } finally {
+            mDictionariesWriteLock.unlock();
+        }
     }
 
     public void setMainDictionary(Context askContext, @Nullable DictionaryAddOnAndBuilder dictionaryBuilder) {
         Log.d(TAG, "Suggest: Got main dictionary! Type: " + ((dictionaryBuilder == null) ? "NULL" : dictionaryBuilder.getName()));
+        mDictionariesWriteLock.lock();
+        try {
+            setMainDictionaryLocked(askContext, dictionaryBuilder);
+        } finally {
+            mDictionariesWriteLock.unlock();
+        }
+    }
+
+    private void setMainDictionaryLocked(Context askContext, @Nullable DictionaryAddOnAndBuilder dictionaryBuilder) {
+        waitForAbandonedQueries();
         if (mMainDict != null) {
             mMainDict.close();
             mMainDict = null;
@@ -186,25 +279,111 @@ public class Suggest implements Dictionary.WordCallback {
      * Sets an optional contacts dictionary resource to be loaded.
      */
     public void setContactsDictionary(Context context, boolean enabled) {
-        if (!enabled && mContactsDictionary != null) {
-            // had one, but now config says it should be off
-            Log.i(TAG, "Contacts dictionary has been disabled! Closing resources.");
-            mContactsDictionary.close();
-            mContactsDictionary = null;
-        } else if (enabled && mContactsDictionary == null) {
-            // config says it should be on, but I have none.
-            mContactsDictionary = mDictionaryFactory.createContactsDictionary(context);
-            if (mContactsDictionary != null) {//not all devices has contacts-dictionary
-                DictionaryASyncLoader loader = new DictionaryASyncLoader(mContactsDictionaryListener);
-                loader.execute(mContactsDictionary);
+        mDictionariesWriteLock.lock();
+        try {
+            if (!enabled && mContactsDictionary != null) {
+                // had one, but now config says it should be off
+                Log.i(TAG, "Contacts dictionary has been disabled! Closing resources.");
+                waitForAbandonedQueries();
+                mContactsDictionary.close();
+                mContactsDictionary = null;
+            } else if (enabled && mContactsDictionary == null) {
+                // config says it should be on, but I have none.
+                mContactsDictionary = mDictionaryFactory.createContactsDictionary(context);
+                if (mContactsDictionary != null) {//not all devices has contacts-dictionary
+                    DictionaryASyncLoader loader = new DictionaryASyncLoader(mContactsDictionaryListener);
+                    loader.execute(mContactsDictionary);
+                }
             }
+        } finally {
+            mDictionariesWriteLock.unlock();
         }
     }
 
     public void setAutoDictionary(Dictionary autoDictionary) {
-        if (mAutoDictionary != autoDictionary && mAutoDictionary != null)
-            mAutoDictionary.close();
-        mAutoDictionary = autoDictionary;
+        mDictionariesWriteLock.lock();
+        try {
+            if (mAutoDictionary != autoDictionary && mAutoDictionary != null)
+                mAutoDictionary.close();
+            mAutoDictionary = autoDictionary;
+        } finally {
+            mDictionariesWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the signal which will be checked while the next suggestions queries traverse the
+     * dictionaries. Once the signal is canceled, the traversal is stopped and the (partial)
+     * results should be discarded.
+     *
+     * @param cancellationSignal the signal to check, or null to never cancel.
+     */
+    public synchronized void setCancellationSignal(@Nullable CancellationSignal cancellationSignal) {
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * When enabled, the contacts, user and main dictionaries are traversed concurrently, each
+     * into its own buffer, and the buffers are merged in the usual order. A dictionary which
+     * does not finish before the merge deadline is left out of that query's suggestions.
+     *
+     * @param deadlineMs how long (in milliseconds, from the start of the query) the merge waits for the dictionaries.
+     */
+    public void setParallelDictionariesQueries(boolean enabled, int deadlineMs) {
+        mDictionariesWriteLock.lock();
+        try {
+            mParallelQueriesEnabled = enabled;
+            mParallelQueriesDeadlineMs = deadlineMs;
+            if (!enabled) shutdownParallelQueriesExecutor();
+        } finally {
+            mDictionariesWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Should be called while holding the dictionaries lock, and this object's monitor.
+     */
+    @NonNull
+    private ExecutorService getParallelQueriesExecutor() {
+        if (mParallelQueriesExecutor == null) {
+            mParallelQueriesExecutor = Executors.newFixedThreadPool(mQueryTasks.length, new ThreadFactory() {
+                private int mThreadsCount = 0;
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    mThreadsCount++;
+                    Thread thread = new Thread(r, "ASK dictionary query #" + mThreadsCount);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mParallelQueriesExecutor;
+    }
+
+    /**
+     * Should be called while holding the dictionaries write lock.
+     */
+    private void shutdownParallelQueriesExecutor() {
+        if (mParallelQueriesExecutor == null) return;
+        waitForAbandonedQueries();
+        mParallelQueriesExecutor.shutdown();
+        mParallelQueriesExecutor = null;
+    }
+
+    /**
+     * @return how long (in milliseconds) the given dictionary took in the last parallel query,
+     * or {@link #QUERY_DURATION_MISSED_DEADLINE} if its words did not make it to the suggestions.
+     */
+    public synchronized long getLastQueryDuration(@NonNull DictionarySource source) {
+        return mLastQueryDurations[source.ordinal()];
+    }
+
+    private boolean isQueryCanceled() {
+        //a dictionary swap is waiting for this query to release the dictionaries
+        if (mDictionariesLock.hasQueuedThreads()) return true;
+        final CancellationSignal cancellationSignal = mCancellationSignal;
+        return cancellationSignal != null && cancellationSignal.isCanceled();
     }
 
     /**
@@ -218,6 +397,12 @@ public class Suggest implements Dictionary.WordCallback {
             throw new IllegalArgumentException(
                     "maxSuggestions must be between 1 and 100");
         }
+        mRequestedMaxSuggestions = maxSuggestions;
+    }
+
+    private void applyRequestedMaxSuggestions() {
+        final int maxSuggestions = mRequestedMaxSuggestions;
+        if (maxSuggestions == mPrefMaxSuggestions) return;
         mPrefMaxSuggestions = maxSuggestions;
         mPriorities = new int[mPrefMaxSuggestions];
         collectGarbage();
@@ -237,9 +422,14 @@ public class Suggest implements Dictionary.WordCallback {
     }
 
     public void resetNextWordSentence() {
-        if (mUserDictionary != null) {
-            mNextSuggestions.clear();
-            mUserDictionary.resetNextWordMemory();
+        mDictionariesReadLock.lock();
+        try {
+            if (mUserDictionary != null) {
+                mNextSuggestions = Collections.emptyList();
+                mUserDictionary.resetNextWordMemory();
+            }
+        } finally {
+            mDictionariesReadLock.unlock();
         }
     }
     /**
@@ -248,32 +438,50 @@ public class Suggest implements Dictionary.WordCallback {
      * @return list of suggestions.
      */
     public List<CharSequence> getNextSuggestions(final CharSequence previousWord, final boolean inAllUpperCaseState) {
+        mDictionariesReadLock.lock();
+        try {
+            return getNextSuggestionsLocked(previousWord, inAllUpperCaseState);
+        } finally {
+            mDictionariesReadLock.unlock();
+        }
+    }
+
+    private List<CharSequence> getNextSuggestionsLocked(final CharSequence previousWord, final boolean inAllUpperCaseState) {
         if (mUserDictionary == null || previousWord.length() < mMinimumWordLengthToStartCorrecting) {
             Log.d(TAG, "getNextSuggestions a word less than %d characters.", mMinimumWordLengthToStartCorrecting);
             return Collections.emptyList();
         }
 
-        mNextSuggestions.clear();
-        mIsAllUpperCase = inAllUpperCaseState;
+        final List<CharSequence> nextSuggestions = new ArrayList<>();
 
         //only adding VALID words
         if (isValidWord(previousWord)) {
-            mUserDictionary.getNextWords(previousWord.toString().toLowerCase(mLocale), mPrefMaxSuggestions, mNextSuggestions, mLocaleSpecificPunctuations);
+            final Dictionary bigramsDictionary = mMainDictionaryEnabled ? mMainDict : null;
+            final String lowerPreviousWord = previousWord.toString().toLowerCase(mLocale);
+            if (bigramsDictionary == null || isReentrant(bigramsDictionary)) {
+                mUserDictionary.getNextWords(lowerPreviousWord, bigramsDictionary, mRequestedMaxSuggestions, nextSuggestions, mLocaleSpecificPunctuations);
+            } else {
+                //it can not be used while a query (even an abandoned one) still traverses it.
+                synchronized (getDictionaryLock(DictionarySource.Main)) {
+                    mUserDictionary.getNextWords(lowerPreviousWord, bigramsDictionary, mRequestedMaxSuggestions, nextSuggestions, mLocaleSpecificPunctuations);
+                }
+            }
             if (BuildConfig.DEBUG) {
-                Log.d(TAG, "getNextSuggestions for '%s' (capital? %s):", previousWord, mIsAllUpperCase);
-                for (int suggestionIndex=0; suggestionIndex<mNextSuggestions.size(); suggestionIndex++) {
-                    Log.d(TAG, "* getNextSuggestions #%d :''%s'", suggestionIndex, mNextSuggestions.get(suggestionIndex));
+                Log.d(TAG, "getNextSuggestions for '%s' (capital? %s):", previousWord, inAllUpperCaseState);
+                for (int suggestionIndex=0; suggestionIndex<nextSuggestions.size(); suggestionIndex++) {
+                    Log.d(TAG, "* getNextSuggestions #%d :''%s'", suggestionIndex, nextSuggestions.get(suggestionIndex));
                 }
             }
-            if (mIsAllUpperCase) {
-                for (int suggestionIndex=0; suggestionIndex<mNextSuggestions.size(); suggestionIndex++) {
-                    mNextSuggestions.set(suggestionIndex, mNextSuggestions.get(suggestionIndex).toString().toUpperCase(mLocale));
+            if (inAllUpperCaseState) {
+                for (int suggestionIndex=0; suggestionIndex<nextSuggestions.size(); suggestionIndex++) {
+                    nextSuggestions.set(suggestionIndex, nextSuggestions.get(suggestionIndex).toString().toUpperCase(mLocale));
                 }
             }
         } else {
             Log.d(TAG, "getNextSuggestions for '%s' is invalid.");
         }
-        return mNextSuggestions;
+        mNextSuggestions = nextSuggestions;
+        return nextSuggestions;
     }
 
     /**
@@ -282,7 +490,17 @@ public class Suggest implements Dictionary.WordCallback {
      *
      * @return list of suggestions.
      */
-    public List<CharSequence> getSuggestions(WordComposer wordComposer, boolean includeTypedWordIfValid) {
+    public synchronized List<CharSequence> getSuggestions(WordComposer wordComposer, boolean includeTypedWordIfValid) {
+        mDictionariesReadLock.lock();
+        try {
+            return getSuggestionsLocked(wordComposer);
+        } finally {
+            mDictionariesReadLock.unlock();
+        }
+    }
+
+    private List<CharSequence> getSuggestionsLocked(WordComposer wordComposer) {
+        applyRequestedMaxSuggestions();
         mExplodedAbbreviations.clear();
         mHaveCorrection = false;
         mIsFirstCharCapitalized = wordComposer.isFirstCharCapitalized();
@@ -301,24 +519,36 @@ public class Suggest implements Dictionary.WordCallback {
 
         // Search the dictionary only if there are at least mMinimumWordLengthToStartCorrecting (configurable)
         // characters
-        if (wordComposer.length() >= mMinimumWordLengthToStartCorrecting) {
+        if (wordComposer.length() >= mMinimumWordLengthToStartCorrecting && mParallelQueriesEnabled) {
+            queryDictionariesInParallel(wordComposer, getParallelQueriesExecutor());
+        } else if (wordComposer.length() >= mMinimumWordLengthToStartCorrecting) {
             if (mContactsDictionary != null) {
-                mContactsDictionary.getWords(wordComposer, this);
+                synchronized (getDictionaryLock(DictionarySource.Contacts)) {
+                    mContactsDictionary.getWords(wordComposer, this);
+                }
             }
 
-            if (mUserDictionary != null) {
-                mUserDictionary.getWords(wordComposer, this);
+            if (mUserDictionary != null && !isQueryCanceled()) {
+                synchronized (getDictionaryLock(DictionarySource.User)) {
+                    mUserDictionary.getWords(wordComposer, this);
+                }
             }
 
             if (mSuggestions.size() > 0 && isValidWord(mOriginalWord)) {
                 mHaveCorrection = true;
             }
 
-            if (mMainDict != null) {
-                mMainDict.getWords(wordComposer, this);
+            if (mMainDict != null && !isQueryCanceled()) {
+                if (isReentrant(mMainDict)) {
+                    mMainDict.getWords(wordComposer, this);
+                } else {
+                    synchronized (getDictionaryLock(DictionarySource.Main)) {
+                        mMainDict.getWords(wordComposer, this);
+                    }
+                }
             }
 
-            if (mAutoTextEnabled && mAbbreviationDictionary != null) {
+            if (mAutoTextEnabled && mAbbreviationDictionary != null && !isQueryCanceled()) {
                 mAbbreviationDictionary.getWords(wordComposer, this);
             }
 
@@ -390,11 +620,137 @@ public class Suggest implements Dictionary.WordCallback {
         return mSuggestions;
     }
 
-    public boolean hasMinimalCorrection() {
+    private void queryDictionariesInParallel(WordComposer wordComposer, ExecutorService executor) {
+        final long deadline = SystemClock.uptimeMillis() + mParallelQueriesDeadlineMs;
+        submitQuery(DictionarySource.Contacts, mContactsDictionary, wordComposer, executor);
+        submitQuery(DictionarySource.User, mUserDictionary, wordComposer, executor);
+        submitQuery(DictionarySource.Main, mMainDict, wordComposer, executor);
+
+        mergeQuery(DictionarySource.Contacts, deadline);
+        mergeQuery(DictionarySource.User, deadline);
+        final boolean hasUserSuggestions = mSuggestions.size() > 0;
+        mergeQuery(DictionarySource.Main, deadline);
+        //checking validity only after the merge, so it does not wait for the main dictionary's traversal
+        if (hasUserSuggestions && isValidWord(mOriginalWord)) {
+            mHaveCorrection = true;
+        }
+
+        //abbreviations are a simple look-up, no need to fan it out.
+        if (mAutoTextEnabled && mAbbreviationDictionary != null && !isQueryCanceled()) {
+            mAbbreviationDictionary.getWords(wordComposer, this);
+        }
+
+        if (mSuggestions.size() > 0) {
+            mHaveCorrection = true;
+        }
+
+        recordQueryDuration(DictionarySource.Contacts, mContactsDictionary);
+        recordQueryDuration(DictionarySource.User, mUserDictionary);
+        recordQueryDuration(DictionarySource.Main, mMainDict);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Parallel query for '%s' took: contacts %d, user %d, main %d",
+                    mOriginalWord, mLastQueryDurations[DictionarySource.Contacts.ordinal()],
+                    mLastQueryDurations[DictionarySource.User.ordinal()], mLastQueryDurations[DictionarySource.Main.ordinal()]);
+        }
+    }
+
+    private void recordQueryDuration(DictionarySource source, @Nullable Dictionary dictionary) {
+        if (dictionary == null) return;
+        ParallelQueriesStatistics.recordQuery(source, mLastQueryDurations[source.ordinal()]);
+    }
+
+    private void submitQuery(DictionarySource source, @Nullable Dictionary dictionary, WordComposer wordComposer, ExecutorService executor) {
+        final int sourceIndex = source.ordinal();
+        mQueryTasksSubmitted[sourceIndex] = false;
+        mLastQueryDurations[sourceIndex] = 0;
+        if (dictionary == null) return;
+        final Future<?> previousQuery = mQueryTasksFutures[sourceIndex];
+        if (previousQuery != null && !previousQuery.isDone()) {
+            //still traversing for an earlier key-stroke. The task (and its buffer) can not be
+            //re-used until it is done, so this source is skipped.
+            mLastQueryDurations[sourceIndex] = QUERY_DURATION_MISSED_DEADLINE;
+            return;
+        }
+        final DictionaryQueryTask task = mQueryTasks[sourceIndex];
+        task.prepare(dictionary, wordComposer, mLowerOriginalWord, mPrefMaxSuggestions, mCancellationSignal);
+        mQueryTasksFutures[sourceIndex] = executor.submit(task);
+        mQueryTasksSubmitted[sourceIndex] = true;
+    }
+
+    private void mergeQuery(DictionarySource source, long deadline) {
+        final int sourceIndex = source.ordinal();
+        if (!mQueryTasksSubmitted[sourceIndex]) return;
+        final DictionaryQueryTask task = mQueryTasks[sourceIndex];
+        try {
+            mQueryTasksFutures[sourceIndex].get(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.abandon();
+            mLastQueryDurations[sourceIndex] = QUERY_DURATION_MISSED_DEADLINE;
+            return;
+        } catch (InterruptedException e) {
+            task.abandon();
+            mLastQueryDurations[sourceIndex] = QUERY_DURATION_MISSED_DEADLINE;
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to query %s dictionary: %s", source, e.getCause());
+            mLastQueryDurations[sourceIndex] = QUERY_DURATION_MISSED_DEADLINE;
+            return;
+        }
+        mLastQueryDurations[sourceIndex] = task.getQueryDuration();
+        task.mergeInto(this);
+    }
+
+    /**
+     * Most dictionaries are not re-entrant: this lock is held while the source's dictionary is queried
+     * (also by a task which missed the deadline), and should be held by any other access to it.
+     * Not used for {@link #isReentrant(Dictionary) re-entrant} dictionaries.
+     */
+    @NonNull
+    private Object getDictionaryLock(DictionarySource source) {
+        return mQueryTasks[source.ordinal()];
+    }
+
+    /**
+     * The native dictionary gives each query its own memory, and closing it waits for the running
+     * queries (under its own lock). So, it can be used by several threads at the same time.
+     */
+    static boolean isReentrant(@NonNull Dictionary dictionary) {
+        return dictionary instanceof ResourceBinaryDictionary;
+    }
+
+    private boolean isValidWordInSource(DictionarySource source, @Nullable Dictionary dictionary, CharSequence word) {
+        if (dictionary == null) return false;
+        if (isReentrant(dictionary)) return dictionary.isValidWord(word);
+        synchronized (getDictionaryLock(source)) {
+            return dictionary.isValidWord(word);
+        }
+    }
+
+    /**
+     * Dictionaries can not be closed while an abandoned query is still traversing them.
+     */
+    private void waitForAbandonedQueries() {
+        for (int sourceIndex = 0; sourceIndex < mQueryTasksFutures.length; sourceIndex++) {
+            final Future<?> query = mQueryTasksFutures[sourceIndex];
+            if (query == null) continue;
+            mQueryTasks[sourceIndex].abandon();
+            try {
+                query.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Abandoned %s query failed: %s", DictionarySource.values()[sourceIndex], e.getCause());
+            }
+            mQueryTasksFutures[sourceIndex] = null;
+        }
+    }
+
+    public synchronized boolean hasMinimalCorrection() {
         return mHaveCorrection;
     }
 
-    private static boolean compareCaseInsensitive(
+    static boolean compareCaseInsensitive(
             final String lowerOriginalWord, final char[] word,
             final int offset, final int length) {
         final int originalLength = lowerOriginalWord.length();
@@ -410,9 +766,18 @@ public class Suggest implements Dictionary.WordCallback {
         return false;
     }
 
+    @Override
+    public int getFrequencyThreshold() {
+        //see addWord: a word has to beat the last suggestion's priority
+        return mPriorities[mPrefMaxSuggestions - 1];
+    }
+
     @Override
     public boolean addWord(final char[] word, final int offset,
                            final int length, final int freq, final Dictionary from) {
+        //a newer query is waiting, no need to continue with this one.
+        if (isQueryCanceled()) return false;
+
         if (from == mAbbreviationDictionary) {
             mExplodedAbbreviations.add(new String(word, offset, length));
             return true;
@@ -470,14 +835,23 @@ public class Suggest implements Dictionary.WordCallback {
         if (word == null || word.length() == 0) {
             return false;
         }
+        mDictionariesReadLock.lock();
+        try {
+            return isValidWordLocked(word);
+        } finally {
+            mDictionariesReadLock.unlock();
+        }
+    }
+
+    private boolean isValidWordLocked(final CharSequence word) {
 
         if (BuildConfig.DEBUG) Log.v(TAG, "Suggest::isValidWord(%s) mMainDictionaryEnabled:%s mAutoTextEnabled: %s user-dictionary-enabled: %s contacts-dictionary-enabled: %s",
                 word, mMainDictionaryEnabled, mAutoTextEnabled, mUserDictionary != null, mContactsDictionary != null);
 
         if (mMainDictionaryEnabled || mAutoTextEnabled) {
-            final boolean validFromMain = (mMainDictionaryEnabled && mMainDict != null && mMainDict.isValidWord(word));
-            final boolean validFromUser = (mUserDictionary != null && mUserDictionary.isValidWord(word));
-            final boolean validFromContacts = (mContactsDictionary != null && mContactsDictionary.isValidWord(word));
+            final boolean validFromMain = mMainDictionaryEnabled && isValidWordInSource(DictionarySource.Main, mMainDict, word);
+            final boolean validFromUser = isValidWordInSource(DictionarySource.User, mUserDictionary, word);
+            final boolean validFromContacts = isValidWordInSource(DictionarySource.Contacts, mContactsDictionary, word);
 
             if (BuildConfig.DEBUG) Log.v(TAG, "Suggest::isValidWord(%s)validFromMain: %s validFromUser: %s validFromContacts: %s",
                     word, validFromMain, validFromUser, validFromContacts);
@@ -510,10 +884,20 @@ public class Suggest implements Dictionary.WordCallback {
     }
 
     public boolean addWordToUserDictionary(String word) {
-        return mUserDictionary != null && mUserDictionary.addWord(word, 128);
+        mDictionariesReadLock.lock();
+        try {
+            return mUserDictionary != null && mUserDictionary.addWord(word, 128);
+        } finally {
+            mDictionariesReadLock.unlock();
+        }
     }
 
     public void removeWordFromUserDictionary(String word) {
-        if (mUserDictionary != null) mUserDictionary.deleteWord(word);
+        mDictionariesReadLock.lock();
+        try {
+            if (mUserDictionary != null) mUserDictionary.deleteWord(word);
+        } finally {
+            mDictionariesReadLock.unlock();
+        }
     }
 }
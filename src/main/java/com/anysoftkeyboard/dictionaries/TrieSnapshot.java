@@ -0,0 +1,153 @@
+package com.anysoftkeyboard.dictionaries;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.anysoftkeyboard.utils.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A binary copy of a dictionary's trie, stamped with the version of the storage it was loaded from.
+ * Loading a current snapshot is a few bulk copies from a memory-mapped file, instead of reading
+ * all the storage's rows and adding their words one by one.
+ * <p>
+ * File structure:
+ * [4 bytes magic] [4 bytes format version] [2 bytes length] [n bytes UTF8 storage version] [trie, see {@link CompactTrie#writeSnapshot}]
+ */
+final class TrieSnapshot {
+    private static final String TAG = "ASK TrieSnapshot";
+
+    private static final String CHARSET = "UTF-8";
+    private static final String SNAPSHOTS_FOLDER = "dictionaries_snapshots";
+    private static final int MAGIC = 0x41534b54;//ASKT
+    private static final int FORMAT_VERSION = 1;
+    //snapshots are invalidated on the UI thread, while holding the dictionary's lock, so those are deleted here.
+    private static final Executor msDeleter = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "ASK trie snapshots deleter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private TrieSnapshot() {
+    }
+
+    @NonNull
+    static File getSnapshotFile(@NonNull Context context, @NonNull String filename) {
+        return new File(new File(context.getFilesDir(), SNAPSHOTS_FOLDER), filename);
+    }
+
+    /**
+     * @return the trie in the snapshot, or null if there is no snapshot, or it was taken from a different storage version.
+     */
+    @Nullable
+    static CompactTrie read(@NonNull File file, @NonNull String storageVersion) {
+        RandomAccessFile snapshotFile = null;
+        try {
+            snapshotFile = new RandomAccessFile(file, "r");
+            final MappedByteBuffer buffer = snapshotFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, snapshotFile.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                Log.d(TAG, "Snapshot %s has an unknown format.", file);
+                return null;
+            }
+            final byte[] versionBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(versionBytes);
+            if (!storageVersion.equals(new String(versionBytes, CHARSET))) {
+                Log.d(TAG, "Snapshot %s is not of storage version %s.", file, storageVersion);
+                return null;
+            }
+            return CompactTrie.fromSnapshot(buffer);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No snapshot at %s.", file);
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read snapshot %s (message: '%s')! Deleting it.", file, e.getMessage());
+            delete(file);
+            return null;
+        } finally {
+            //the mapping is valid until it is garbage-collected, but the trie has copies anyway.
+            closeQuietly(snapshotFile);
+        }
+    }
+
+    /**
+     * Writes the trie (compacting it) into the snapshot file. The file is replaced only once
+     * fully written, so a failure leaves no snapshot, rather than a partial one.
+     */
+    static boolean write(@NonNull File file, @NonNull String storageVersion, @NonNull CompactTrie trie) {
+        final File folder = file.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            Log.w(TAG, "Failed to create the snapshots folder %s!", folder);
+            return false;
+        }
+        final File tempFile = new File(folder, file.getName() + ".tmp");
+        RandomAccessFile snapshotFile = null;
+        try {
+            final byte[] versionBytes = storageVersion.getBytes(CHARSET);
+            if (versionBytes.length > 0xFFFF) throw new IOException("Storage version is too long");
+            final int size = 4 + 4 + 2 + versionBytes.length + trie.getSnapshotSize();
+            snapshotFile = new RandomAccessFile(tempFile, "rw");
+            snapshotFile.setLength(size);
+            final MappedByteBuffer buffer = snapshotFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putShort((short) versionBytes.length);
+            buffer.put(versionBytes);
+            trie.writeSnapshot(buffer);
+            buffer.force();
+            snapshotFile.close();
+            snapshotFile = null;
+            if (!tempFile.renameTo(file)) throw new IOException("Failed to rename " + tempFile);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write snapshot %s (message: '%s')!", file, e.getMessage());
+            delete(tempFile);
+            delete(file);
+            return false;
+        } finally {
+            closeQuietly(snapshotFile);
+        }
+    }
+
+    /**
+     * Deletes the snapshot on a background thread. Until it is deleted, it is still not loaded, since the
+     * storage's version changes with the change which invalidated it.
+     */
+    static void deleteInBackground(@NonNull final File file) {
+        msDeleter.execute(new Runnable() {
+            @Override
+            public void run() {
+                delete(file);
+            }
+        });
+    }
+
+    static void delete(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete snapshot %s!", file);
+        }
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        if (file != null) try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close snapshot file while in finally.");
+        }
+    }
+}
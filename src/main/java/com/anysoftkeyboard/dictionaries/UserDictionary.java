@@ -19,9 +19,12 @@ package com.anysoftkeyboard.dictionaries;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.anysoftkeyboard.base.dictionaries.Dictionary;
 import com.anysoftkeyboard.base.dictionaries.EditableDictionary;
 import com.anysoftkeyboard.base.dictionaries.WordComposer;
 import com.anysoftkeyboard.base.dictionaries.WordsCursor;
@@ -33,14 +36,39 @@ import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.AnyApplication;
 import com.menny.android.anysoftkeyboard.R;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class UserDictionary extends EditableDictionary {
 
     private static final String TAG = "ASK_SUD";
+    //a single (named) thread loads the next-words of all the user dictionaries, one after the other.
+    //It is not kept alive when there is nothing to load.
+    private static final Executor msNextWordsLoader = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "ASK next-words loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    //typed words which were not learned yet since the next-words are still loading.
+    private static final int MAX_WORDS_TYPED_WHILE_LOADING = 256;
     private volatile BTreeDictionary mActualDictionary;
-    private NextWordDictionary mNextWordDictionary;
+    //set once it is loaded, which happens in parallel to the loading of the actual dictionary.
+    private volatile NextWordDictionary mNextWordDictionary;
+    //guards the hand-over of the loaded next-words dictionary against closing.
+    private final Object mNextWordDictionaryLock = new Object();
+    private boolean mNextWordDictionaryClosed = false;
+    //the words typed while the next-words are loading (null marks a new sentence), learned once they are loaded.
+    private final List<String> mWordsTypedWhileLoading = new ArrayList<>();
 
     private final Context mContext;
     private final String mLocale;
@@ -49,6 +77,7 @@ public class UserDictionary extends EditableDictionary {
     private final int mMaxNextWordSuggestionsCount;
     private final int mMinWordUsage;
     private final List<String> mFallbackInitialSuggestions;
+    private final BigramsCollector mBigramsCollector = new BigramsCollector();
 
     public UserDictionary(Context context, String locale) {
         super("UserDictionary");
@@ -73,17 +102,50 @@ public class UserDictionary extends EditableDictionary {
     }
 
     public final void resetNextWordMemory() {
-        if (mNextWordDictionary != null) mNextWordDictionary.resetSentence();
+        final NextWordDictionary nextWordDictionary = getNextWordDictionaryOrQueue(null);
+        if (nextWordDictionary != null) nextWordDictionary.resetSentence();
     }
 
-    public final void getNextWords(String currentWord, int maxSuggestions, List<CharSequence> suggestionsHolder, @Nullable Iterable<String> localeSpecificPunctuations) {
-        if (mNextWordDictionary != null) {
-            for (String nextWordSuggestion : mNextWordDictionary.getNextWords(currentWord, mMaxNextWordSuggestionsCount, mMinWordUsage)) {
+    /**
+     * @return the loaded next-words dictionary, or null if it is still loading. In that case, the typed
+     * word (or a new sentence, if null) is queued, and learned once the next-words are loaded.
+     */
+    @Nullable
+    private NextWordDictionary getNextWordDictionaryOrQueue(@Nullable String typedWord) {
+        final NextWordDictionary nextWordDictionary = mNextWordDictionary;
+        if (nextWordDictionary != null) return nextWordDictionary;
+        synchronized (mNextWordDictionaryLock) {
+            if (mNextWordDictionary == null && !mNextWordDictionaryClosed && mWordsTypedWhileLoading.size() < MAX_WORDS_TYPED_WHILE_LOADING) {
+                mWordsTypedWhileLoading.add(typedWord);
+            }
+            return mNextWordDictionary;
+        }
+    }
+
+    /**
+     * Adds the words which usually follow the given word: first the ones learned from the user's typing,
+     * then (if there is still room) the ones the static dictionary knows, so there are next-words
+     * suggestions even before anything was learned.
+     * Nothing is added until the learned next-words are loaded, but the typed words are learned once they are.
+     */
+    public final void getNextWords(String currentWord, @Nullable Dictionary bigramsDictionary, int maxSuggestions, List<CharSequence> suggestionsHolder, @Nullable Iterable<String> localeSpecificPunctuations) {
+        final NextWordDictionary nextWordDictionary = getNextWordDictionaryOrQueue(currentWord);
+        if (nextWordDictionary != null) {
+            int nextWordsCount = 0;
+            for (String nextWordSuggestion : nextWordDictionary.getNextWords(currentWord, mMaxNextWordSuggestionsCount, mMinWordUsage)) {
                 suggestionsHolder.add(nextWordSuggestion);
+                nextWordsCount++;
                 maxSuggestions--;
                 if (maxSuggestions == 0) return;
             }
 
+            if (bigramsDictionary != null && nextWordsCount < mMaxNextWordSuggestionsCount) {
+                mBigramsCollector.prepare(suggestionsHolder, Math.min(maxSuggestions, mMaxNextWordSuggestionsCount - nextWordsCount));
+                bigramsDictionary.getBigrams(currentWord, mBigramsCollector);
+                maxSuggestions -= mBigramsCollector.getAddedWordsCount();
+                if (maxSuggestions == 0) return;
+            }
+
             if (Utils.NEXT_WORD_SUGGESTION_WORDS_AND_PUNCTUATIONS.equals(mNextWordSuggestionType)) {
                 if (localeSpecificPunctuations == null)
                     localeSpecificPunctuations = mFallbackInitialSuggestions;
@@ -104,14 +166,49 @@ public class UserDictionary extends EditableDictionary {
     @Override
     protected final void closeAllResources() {
         if (mActualDictionary != null) mActualDictionary.close();
-        if (mNextWordDictionary != null) mNextWordDictionary.close();
+        synchronized (mNextWordDictionaryLock) {
+            mNextWordDictionaryClosed = true;
+            //if it is still loading, the loader will close it
+            if (mNextWordDictionary != null) mNextWordDictionary.close();
+        }
     }
 
     @Override
     protected final void loadAllResources() {
-        mNextWordDictionary = new NextWordDictionary(mContext, mLocale);
-        mNextWordDictionary.load();
+        final long loadStartTime = SystemClock.elapsedRealtime();
+        //the learned next-words are not needed for the user-words suggestions,
+        //so they are loaded in parallel, and used once they are ready.
+        msNextWordsLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                NextWordDictionary nextWordDictionary = new NextWordDictionary(mContext, mLocale);
+                nextWordDictionary.load();
+                synchronized (mNextWordDictionaryLock) {
+                    if (mNextWordDictionaryClosed) {
+                        nextWordDictionary.close();
+                    } else {
+                        //learning (and journaling) what was typed while loading
+                        for (String typedWord : mWordsTypedWhileLoading) {
+                            if (typedWord == null) {
+                                nextWordDictionary.resetSentence();
+                            } else {
+                                nextWordDictionary.getNextWords(typedWord, 1, 0);
+                            }
+                        }
+                        mNextWordDictionary = nextWordDictionary;
+                    }
+                    mWordsTypedWhileLoading.clear();
+                }
+                Log.d(TAG, "Next-words for %s were ready after %d ms.", mLocale, SystemClock.elapsedRealtime() - loadStartTime);
+            }
+        });
 
+        loadActualDictionary();
+        //before the next-words were loaded in parallel, this was the next-words loading time plus the actual dictionary loading time.
+        Log.d(TAG, "User-words suggestions for %s were ready after %d ms.", mLocale, SystemClock.elapsedRealtime() - loadStartTime);
+    }
+
+    private void loadActualDictionary() {
         AndroidUserDictionary androidBuiltIn = null;
         try {
             //The only reason I see someone uses this, is for development or debugging.
@@ -149,6 +246,18 @@ public class UserDictionary extends EditableDictionary {
         }
     }
 
+    /**
+     * Adds all the words, copying the actual dictionary's words only once. See {@link BTreeDictionary#addWords(Map)}.
+     */
+    public final int addWords(Map<String, Integer> words) {
+        if (mActualDictionary != null) {
+            return mActualDictionary.addWords(words);
+        } else {
+            Log.d(TAG, "There is no actual dictionary to use for adding words! How come?");
+            return 0;
+        }
+    }
+
     @Override
     public final WordsCursor getWordsCursor() {
         if (mActualDictionary != null)
@@ -162,4 +271,34 @@ public class UserDictionary extends EditableDictionary {
         if (mActualDictionary != null)
             mActualDictionary.deleteWord(word);
     }
+
+    /**
+     * Appends bigrams to the next-words list, skipping words which are already in it.
+     */
+    private static class BigramsCollector implements WordCallback {
+        private List<CharSequence> mSuggestionsHolder;
+        private int mMaxWords;
+        private int mAddedWordsCount;
+
+        void prepare(List<CharSequence> suggestionsHolder, int maxWords) {
+            mSuggestionsHolder = suggestionsHolder;
+            mMaxWords = maxWords;
+            mAddedWordsCount = 0;
+        }
+
+        int getAddedWordsCount() {
+            return mAddedWordsCount;
+        }
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+            if (mAddedWordsCount >= mMaxWords) return false;
+            final String bigram = new String(word, wordOffset, wordLength);
+            if (!mSuggestionsHolder.contains(bigram)) {
+                mSuggestionsHolder.add(bigram);
+                mAddedWordsCount++;
+            }
+            return mAddedWordsCount < mMaxWords;
+        }
+    }
 }
@@ -32,6 +32,7 @@ import com.anysoftkeyboard.utils.Log;
 public class AndroidUserDictionary extends BTreeDictionary {
 
     private static final String[] PROJECTION = {Words._ID, Words.WORD, Words.FREQUENCY};
+    private static final String[] ID_PROJECTION = {Words._ID};
     private final String mLocale;
 
     public AndroidUserDictionary(Context context, String locale) {
@@ -45,15 +46,42 @@ public class AndroidUserDictionary extends BTreeDictionary {
     }
 
     public WordsCursor getWordsCursor() {
+        //sorted, so the trie can be built in one pass
         Cursor cursor = TextUtils.isEmpty(mLocale) ?
-                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "(" + Words.LOCALE + " IS NULL)", null, null) :
-                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "(" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mLocale}, null);
+                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "(" + Words.LOCALE + " IS NULL)", null, Words.WORD) :
+                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "(" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mLocale}, Words.WORD);
 
         if (cursor == null) throw new RuntimeException("No built-in Android dictionary!");
 
         return new WordsCursor(cursor);
     }
 
+    /*
+     * Android's user dictionary has no last-modified column, but new words always get a higher _ID,
+     * and an edited word is deleted and inserted again (by the settings app), so the _ID is the modification mark.
+     */
+    @Override
+    protected boolean supportsStorageChanges() {
+        return true;
+    }
+
+    @Override
+    protected Cursor getRowIdsCursor() {
+        return TextUtils.isEmpty(mLocale) ?
+                mContext.getContentResolver().query(Words.CONTENT_URI, ID_PROJECTION, "(" + Words.LOCALE + " IS NULL)", null, null) :
+                mContext.getContentResolver().query(Words.CONTENT_URI, ID_PROJECTION, "(" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mLocale}, null);
+    }
+
+    @Override
+    protected WordsCursor getChangedWordsCursor(long modificationMark) {
+        final String lastId = Long.toString(modificationMark);
+        Cursor cursor = TextUtils.isEmpty(mLocale) ?
+                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "(" + Words.LOCALE + " IS NULL) and (" + Words._ID + ">?)", new String[]{lastId}, null) :
+                mContext.getContentResolver().query(Words.CONTENT_URI, PROJECTION, "((" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)) and (" + Words._ID + ">?)", new String[]{mLocale, lastId}, null);
+
+        return cursor == null ? null : new WordsCursor(cursor);
+    }
+
     @Override
     protected void AddWordToStorage(String word, int frequency) {
         if (TextUtils.isEmpty(word)) {
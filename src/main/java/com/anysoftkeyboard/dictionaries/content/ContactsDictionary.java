@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.os.Build;
 import android.provider.ContactsContract.Contacts;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
@@ -51,6 +52,12 @@ public class ContactsDictionary extends BTreeDictionary {
             super(cursor);
         }
 
+        @Override
+        public long getCurrentModificationMark() {
+            Cursor cursor = getCursor();
+            return cursor.getColumnCount() > INDEX_LAST_UPDATED ? cursor.getLong(INDEX_LAST_UPDATED) : 0;
+        }
+
         @Override
         public int getCurrentWordFrequency() {
             //in contacts, the frequency is a bit tricky:
@@ -71,9 +78,13 @@ public class ContactsDictionary extends BTreeDictionary {
     protected static final String TAG = "ASK CDict";
 
     private static final String[] PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.STARRED, Contacts.TIMES_CONTACTED};
+    //the last-updated timestamp is only available since API 18
+    private static final String[] PROJECTION_WITH_LAST_UPDATED = {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.STARRED, Contacts.TIMES_CONTACTED, "contact_last_updated_timestamp"};
+    private static final String[] ID_PROJECTION = {Contacts._ID};
 
     private static final int INDEX_STARRED = 2;
     private static final int INDEX_TIMES = 3;
+    private static final int INDEX_LAST_UPDATED = 4;
 
     public ContactsDictionary(Context context) {
         super("ContactsDictionary", context);
@@ -97,12 +108,32 @@ public class ContactsDictionary extends BTreeDictionary {
             throw new RuntimeException("We do not have permission to read contacts!");
         } else {
             Cursor cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
-                    PROJECTION, Contacts.IN_VISIBLE_GROUP + "=?",
+                    supportsStorageChanges() ? PROJECTION_WITH_LAST_UPDATED : PROJECTION, Contacts.IN_VISIBLE_GROUP + "=?",
                     new String[]{"1"}, null);
             return new ContactsWordsCursor(cursor);
         }
     }
 
+    @Override
+    protected boolean supportsStorageChanges() {
+        return Build.VERSION.SDK_INT >= 18;
+    }
+
+    @Override
+    protected Cursor getRowIdsCursor() {
+        return mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                ID_PROJECTION, Contacts.IN_VISIBLE_GROUP + "=?",
+                new String[]{"1"}, null);
+    }
+
+    @Override
+    protected WordsCursor getChangedWordsCursor(long modificationMark) {
+        Cursor cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                PROJECTION_WITH_LAST_UPDATED, Contacts.IN_VISIBLE_GROUP + "=? AND " + PROJECTION_WITH_LAST_UPDATED[INDEX_LAST_UPDATED] + ">?",
+                new String[]{"1", Long.toString(modificationMark)}, null);
+        return cursor == null ? null : new ContactsWordsCursor(cursor);
+    }
+
     private void showNotificationWithIntent(Intent contactsRequired) {
         final int requestId = PermissionsRequestCodes.CONTACTS.getRequestCode();
         PendingIntent pendingIntent = PendingIntent.getActivity(mContext, requestId, contactsRequired, 0);
@@ -146,9 +177,8 @@ public class ContactsDictionary extends BTreeDictionary {
                 // capitalization of i.
                 final int wordLen = word.length();
                 if (wordLen < MAX_WORD_LENGTH && wordLen > 1) {
-                    int oldFrequency = getWordFrequency(word);
-                    if (oldFrequency < frequency)//I had it better!
-                        super.addWordFromStorage(word, frequency);
+                    //a word shared by several contacts keeps the highest frequency
+                    super.addWordFromStorage(word, frequency);
                 }
             }
         }
@@ -41,6 +41,12 @@ public class AbbreviationsDictionary extends SQLiteUserDictionaryBase {
         return new WordsSQLiteConnection(mContext, "abbreviations.db", locale);
     }
 
+    @Override
+    protected String getStorageVersion() {
+        //the abbreviations are not kept in the trie, so there is nothing to snapshot
+        return null;
+    }
+
     @Override
     protected int getMaxWordLength() {
         return ABBR_MAX_WORD_LENGTH;
@@ -17,11 +17,22 @@
 package com.anysoftkeyboard.dictionaries.sqlite;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
 import com.anysoftkeyboard.AnySoftKeyboard;
 import com.anysoftkeyboard.base.dictionaries.WordComposer;
 import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.AnyApplication;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Stores new words temporarily until they are promoted to the user dictionary
  * for longevity. Words in the auto dictionary are used to determine if it's ok
@@ -41,6 +52,28 @@ public class AutoDictionary extends SQLiteUserDictionaryBase {
     // Weight added to a user typing a new word that doesn't get corrected (or
     // is reverted)
     private static final int FREQUENCY_FOR_TYPED = 1;
+    //this many words are kept in memory, at most, before their frequencies are flushed
+    private static final int MAX_PENDING_WORDS = 64;
+
+    //flushing changes the trie (and the storage), so it is done on a single (named) thread, one flush after the other.
+    //It is not kept alive when there is nothing to flush.
+    private static final Executor msFlusher = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "ASK auto-dictionary flusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Executor mFlusher;
+    //frequencies of words which were added, but were not written into the dictionary yet.
+    private final Map<String, Integer> mPendingFrequencies = new HashMap<>();
+    //the frequencies the running flush is writing, still read until they are in the trie.
+    //Never changed, only replaced. Guarded by mPendingFrequencies.
+    private Map<String, Integer> mFlushingFrequencies = null;
+    //a flush was scheduled, and did not start yet. Guarded by mPendingFrequencies.
+    private boolean mFlushScheduled = false;
 
     /**
      * Sort by descending order of frequency.
@@ -48,7 +81,13 @@ public class AutoDictionary extends SQLiteUserDictionaryBase {
     public static final String DEFAULT_SORT_ORDER = WordsSQLiteConnection.Words.FREQUENCY + " DESC";
 
     public AutoDictionary(Context context, String locale) {
+        this(context, locale, msFlusher);
+    }
+
+    @VisibleForTesting
+    AutoDictionary(Context context, String locale, Executor flusher) {
         super("Auto", context, locale);
+        mFlusher = flusher;
     }
 
     @Override
@@ -63,43 +102,121 @@ public class AutoDictionary extends SQLiteUserDictionaryBase {
     }
 
     /**
-     * Adds the word to the auto-dictionary, if it was used enough times, it will be promoted to the user's dictionary
+     * Adds the word to the auto-dictionary, if it was used enough times, it will be promoted to the user's dictionary.
+     * The new frequency is only kept in memory, until {@link #flushPendingWords()} is called (or
+     * {@link #MAX_PENDING_WORDS} words are waiting). Flushing is done in the background.
      * @param word the word to remember
      * @param type what type of addition was it
      * @return true if the word was promoted to user's dictionary.
      */
     public boolean addWord(WordComposer word, AdditionType type, AnySoftKeyboard callingIme) {
-        synchronized (mResourceMonitor) {
-            if (isClosed()) {
-                Log.d(TAG, "Dictionary (type " + this.getClass().getName() + ") " + this.getDictionaryName() + " is closed! Can not add word.");
-                return false;
+        if (isClosed()) {
+            Log.d(TAG, "Dictionary (type " + this.getClass().getName() + ") " + this.getDictionaryName() + " is closed! Can not add word.");
+            return false;
+        }
+        final int length = word.length();
+        // Don't add very short or very long words.
+        if (length < 2 || length > MAX_WORD_LENGTH)
+            return false;
+        //ask can not be null! This should not happen (since the caller is ASK instance...)
+        String wordToAdd = word.getTypedWord().toString();
+        if (callingIme.getCurrentWord().isAutoCapitalized()) {
+            // Remove caps before adding
+            wordToAdd = Character.toLowerCase(wordToAdd.charAt(0)) + wordToAdd.substring(1);
+        }
+        final int frequencyDelta = type.equals(AdditionType.Picked)? FREQUENCY_FOR_PICKED: FREQUENCY_FOR_TYPED;
+        final boolean promote;
+        final int freq;
+        final boolean flush;
+        synchronized (mPendingFrequencies) {
+            Integer pendingFreq = mPendingFrequencies.get(wordToAdd);
+            if (pendingFreq == null && mFlushingFrequencies != null) pendingFreq = mFlushingFrequencies.get(wordToAdd);
+            final int currentFreq = pendingFreq != null? pendingFreq : getWordFrequency(wordToAdd);
+            freq = currentFreq <= 0 ? frequencyDelta : currentFreq + frequencyDelta;
+            promote = freq >= AnyApplication.getConfig().getAutoDictionaryInsertionThreshold();
+            if (promote) {
+                mPendingFrequencies.remove(wordToAdd);
+            } else {
+                mPendingFrequencies.put(wordToAdd, freq);
+            }
+            flush = mPendingFrequencies.size() >= MAX_PENDING_WORDS;
+        }
+
+        boolean added = false;//this means that the word was not promoted.
+        if (promote) {
+            Log.i(TAG, "Promoting the word " + word + " (freq " + freq
+                    + ") to the user dictionary. It earned it.");
+            added = callingIme.addWordToDictionary(wordToAdd);
+            //after any running flush, which may still write this word
+            deleteWordInBackground(wordToAdd);
+        } else if (flush) {
+            flushPendingWords();
+        }
+        return added;
+    }
+
+    /**
+     * Writes the frequencies which were accumulated in memory into the dictionary (and its storage).
+     * This only schedules the writing, which is done in the background, with a single change of the trie.
+     */
+    public void flushPendingWords() {
+        synchronized (mPendingFrequencies) {
+            //a scheduled flush will also write the words which are added until it starts
+            if (mPendingFrequencies.size() == 0 || mFlushScheduled) return;
+            mFlushScheduled = true;
+        }
+        mFlusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushPendingWordsNow();
             }
-            final int length = word.length();
-            // Don't add very short or very long words.
-            if (length < 2 || length > MAX_WORD_LENGTH)
-                return false;
-            //ask can not be null! This should not happen (since the caller is ASK instance...)
-            String wordToAdd = word.getTypedWord().toString();
-            if (callingIme.getCurrentWord().isAutoCapitalized()) {
-                // Remove caps before adding
-                wordToAdd = Character.toLowerCase(wordToAdd.charAt(0)) + wordToAdd.substring(1);
+        });
+    }
+
+    private void flushPendingWordsNow() {
+        final Map<String, Integer> pendingFrequencies;
+        synchronized (mPendingFrequencies) {
+            mFlushScheduled = false;
+            //closing may have written them already
+            if (mPendingFrequencies.size() == 0) return;
+            pendingFrequencies = new HashMap<>(mPendingFrequencies);
+            mPendingFrequencies.clear();
+            mFlushingFrequencies = pendingFrequencies;
+        }
+        Log.d(TAG, "Flushing %d pending words.", pendingFrequencies.size());
+        addWords(pendingFrequencies);
+        synchronized (mPendingFrequencies) {
+            mFlushingFrequencies = null;
+        }
+    }
+
+    private void deleteWordInBackground(final String word) {
+        mFlusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteWord(word);
             }
-            int freq = getWordFrequency(wordToAdd);
-            final int frequencyDelta = type.equals(AdditionType.Picked)? FREQUENCY_FOR_PICKED: FREQUENCY_FOR_TYPED;
-
-            freq = freq < 0 ? frequencyDelta : freq + frequencyDelta;
-            boolean added;
-            if (freq >= AnyApplication.getConfig().getAutoDictionaryInsertionThreshold()) {
-                Log.i(TAG, "Promoting the word " + word + " (freq " + freq
-                        + ") to the user dictionary. It earned it.");
-                added = callingIme.addWordToDictionary(wordToAdd);
-                deleteWord(wordToAdd);
-            } else {
-                super.addWord(wordToAdd, freq);
-                added = false;//this means that the word was not promoted.
+        });
+    }
+
+    @Override
+    protected void closeStorage() {
+        //the dictionary is already closed, so the pending words go straight to the storage.
+        //So do the words of a running flush, which can not add them anymore.
+        synchronized (mPendingFrequencies) {
+            if (mFlushingFrequencies != null) {
+                for (Map.Entry<String, Integer> flushingFrequency : mFlushingFrequencies.entrySet()) {
+                    if (!mPendingFrequencies.containsKey(flushingFrequency.getKey())) {
+                        AddWordToStorage(flushingFrequency.getKey(), flushingFrequency.getValue());
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> pendingFrequency : mPendingFrequencies.entrySet()) {
+                AddWordToStorage(pendingFrequency.getKey(), pendingFrequency.getValue());
             }
-            return added;
+            mPendingFrequencies.clear();
         }
+        super.closeStorage();
     }
 
     @Override
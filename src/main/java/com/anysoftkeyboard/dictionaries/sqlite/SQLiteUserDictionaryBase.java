@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
 
 import com.anysoftkeyboard.base.dictionaries.WordsCursor;
 import com.anysoftkeyboard.dictionaries.BTreeDictionary;
@@ -68,6 +69,26 @@ public abstract class SQLiteUserDictionaryBase extends BTreeDictionary {
         }
     }
 
+    @Override
+    protected String getStorageVersion() {
+        try {
+            if (mStorage == null)
+                mStorage = createStorage(mLocale);
+
+            return mStorage.getWordsVersion();
+        } catch (SQLiteException e) {
+            //reading the words will deal with that.
+            Log.w(TAG, "Failed to read the words version of %s (message: '%s').", getDictionaryName(), e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    protected String getSnapshotFilename() {
+        if (TextUtils.isEmpty(mLocale)) return getDictionaryName() + ".trie";
+        return getDictionaryName() + "_" + mLocale + ".trie";
+    }
+
     protected WordsSQLiteConnection createStorage(String locale) {
         return new WordsSQLiteConnection(mContext, getDictionaryName()+".db", locale);
     }
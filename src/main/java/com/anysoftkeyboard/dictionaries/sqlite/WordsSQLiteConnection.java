@@ -16,27 +16,60 @@
 
 package com.anysoftkeyboard.dictionaries.sqlite;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.anysoftkeyboard.base.dictionaries.WordsCursor;
 import com.anysoftkeyboard.utils.Log;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 public class WordsSQLiteConnection extends SQLiteOpenHelper {
     private static final String TAG = "ASK SqliteCnnt";
     private final static String TABLE_NAME = "WORDS";//was FALL_BACK_USER_DICTIONARY;
+    private final static String WORD_LOCALE_INDEX_NAME = "WORDS_WORD_LOCALE_INDEX";
+    //marks a queued deletion, frequencies are never negative.
+    private static final int DELETE_WORD = -1;
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final int MAX_PENDING_MUTATIONS = 64;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
     protected final Context mContext;
     private final String mCurrentLocale;
     private final String mDbName;
 
+    //the last queued mutation of each word, in the order they were queued.
+    private final Map<String, WordMutation> mPendingMutations = new LinkedHashMap<>();
+    private boolean mFlushScheduled = false;
+    //once closed, mutations are not queued, so they will not re-open the database.
+    private boolean mClosed = false;
+    private ScheduledExecutorService mWriter;
+    //compiled for mStatementsDb, and only used while holding the mDbName lock.
+    private SQLiteDatabase mStatementsDb;
+    private SQLiteStatement mInsertOrReplaceStatement;
+    private SQLiteStatement mDeleteStatement;
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingMutations();
+        }
+    };
+
     public WordsSQLiteConnection(Context context, String DbFilename, String currentLocale) {
-        super(context, DbFilename, null, 7);
+        super(context, DbFilename, null, 8);
         mContext = context;
-        mCurrentLocale = currentLocale;
+        //words without a locale are stored (and read) with a NULL locale
+        mCurrentLocale = TextUtils.isEmpty(currentLocale) ? null : currentLocale;
         mDbName = DbFilename;
     }
 
@@ -44,6 +77,7 @@ public class WordsSQLiteConnection extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         synchronized (mDbName) {
             db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Words._ID + " INTEGER PRIMARY KEY," + Words.WORD + " TEXT," + Words.FREQUENCY + " INTEGER," + Words.LOCALE + " TEXT" + ");");
+            db.execSQL("CREATE UNIQUE INDEX " + WORD_LOCALE_INDEX_NAME + " ON " + TABLE_NAME + " (" + Words.WORD + "," + Words.LOCALE + ");");
         }
     }
 
@@ -78,47 +112,247 @@ public class WordsSQLiteConnection extends SQLiteOpenHelper {
                 Log.d(TAG, "Renaming the table's name to a generic one...");
                 db.execSQL("ALTER TABLE FALL_BACK_USER_DICTIONARY RENAME TO WORDS;");
             }
+            if (oldVersion < 8) {
+                Log.d(TAG, "Upgrading WordsSQLiteConnection to version 8: Adding a unique (word, locale) index...");
+                //up to version 7 the _id was the word's hash-code, so a word could not be added twice, in any locale.
+                //This only clears rows left from even older versions, so the index can be created. _id does not tell
+                //which row is newer, so the kept row (the highest _id) is an arbitrary one.
+                //Note: the index does not consider NULL locales as equal, so those are deleted when the word is written.
+                db.execSQL("DELETE FROM WORDS WHERE _id NOT IN (SELECT MAX(_id) FROM WORDS GROUP BY word, locale);");
+                db.execSQL("CREATE UNIQUE INDEX WORDS_WORD_LOCALE_INDEX ON WORDS (word,locale);");
+            }
         }
     }
 
+    /**
+     * Queues the word to be written (replacing any previous entry of the word).
+     * The actual write happens on the background writer, see {@link #queueMutation(String, int)}.
+     */
     public void addWord(String word, int freq) {
-        synchronized (mDbName) {
-            SQLiteDatabase db = getWritableDatabase();
-
-            ContentValues values = new ContentValues();
-            values.put(Words._ID, word.hashCode());// ensuring that any word is inserted once
-            values.put(Words.WORD, word);
-            values.put(Words.FREQUENCY, freq);
-            values.put(Words.LOCALE, mCurrentLocale);
-            long res = db.insert(TABLE_NAME, null, values);
-            if (res < 0) {
-                Log.e(TAG, "Unable to insert '" + word + "' to SQLite storage (" + mCurrentLocale + "@" + mDbName + ")! Result:" + res);
-            }
-            db.close();
-        }
+        queueMutation(word, freq);
     }
 
+    /**
+     * Queues the word to be deleted. The actual write happens on the background writer.
+     * Only the word's rows of this connection's locale, and its rows without a locale, are deleted.
+     * Rows of other locales are kept (before version 8, the word was deleted in all locales).
+     */
     public void deleteWord(String word) {
+        queueMutation(word, DELETE_WORD);
+    }
+
+    /**
+     * Mutations are kept in memory, only the last one of each word (a delete followed by an add
+     * of the same word is kept as an add which deletes the word's rows first), and written together,
+     * in one transaction, on the background writer: {@link #FLUSH_DELAY_MS} after the first queued mutation,
+     * or right away if {@link #MAX_PENDING_MUTATIONS} are waiting.
+     */
+    private void queueMutation(String word, int freq) {
+        synchronized (mPendingMutations) {
+            if (mClosed) {
+                Log.w(TAG, "Connection to %s was closed. Not writing '%s'.", mDbName, word);
+                return;
+            }
+            final WordMutation previous = mPendingMutations.get(word);
+            final boolean deleteFirst = freq == DELETE_WORD || (previous != null && previous.deleteFirst);
+            mPendingMutations.put(word, new WordMutation(freq, deleteFirst));
+            if (mPendingMutations.size() >= MAX_PENDING_MUTATIONS) {
+                getWriter().execute(mFlushTask);
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                getWriter().schedule(mFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private ScheduledExecutorService getWriter() {
+        synchronized (mPendingMutations) {
+            if (mWriter == null) {
+                ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "ASK words writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                //close flushes right away, no need to wait for the delayed flush
+                writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                mWriter = writer;
+            }
+            return mWriter;
+        }
+    }
+
+    /**
+     * Writes all the queued mutations, in one transaction, on the calling thread.
+     */
+    private void flushPendingMutations() {
         synchronized (mDbName) {
-            SQLiteDatabase db = getWritableDatabase();
+            final Map<String, WordMutation> mutations;
+            synchronized (mPendingMutations) {
+                mFlushScheduled = false;
+                if (mPendingMutations.size() == 0) return;
+                mutations = new LinkedHashMap<>(mPendingMutations);
+                mPendingMutations.clear();
+            }
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                compileStatements(db);
+                db.beginTransaction();
+                try {
+                    for (Map.Entry<String, WordMutation> mutation : mutations.entrySet()) {
+                        final String word = mutation.getKey();
+                        final int freq = mutation.getValue().frequency;
+                        //the unique index does not consider NULL locales as equal, so those have to be deleted first.
+                        if (mutation.getValue().deleteFirst || mCurrentLocale == null) {
+                            mDeleteStatement.bindString(1, word);
+                            mDeleteStatement.execute();
+                        }
+                        if (freq == DELETE_WORD) continue;
+
+                        mInsertOrReplaceStatement.bindString(1, word);
+                        mInsertOrReplaceStatement.bindLong(2, freq);
+                        if (mCurrentLocale == null) mInsertOrReplaceStatement.bindNull(3);
+                        else mInsertOrReplaceStatement.bindString(3, mCurrentLocale);
+                        long res = mInsertOrReplaceStatement.executeInsert();
+                        if (res < 0) {
+                            Log.e(TAG, "Unable to insert '" + word + "' to SQLite storage (" + mCurrentLocale + "@" + mDbName + ")! Result:" + res);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                Log.d(TAG, "Wrote %d words mutations to %s.", mutations.size(), mDbName);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to write %d words mutations to %s (message: '%s')! Will retry on the next write.", mutations.size(), mDbName, e.getMessage());
+                requeueMutations(mutations);
+            }
+        }
+    }
+
+    /**
+     * Puts back mutations which were not written, before the ones that were queued since.
+     * A newer mutation of the same word replaces the failed one, but still deletes first if the failed one had to.
+     */
+    private void requeueMutations(Map<String, WordMutation> failedMutations) {
+        synchronized (mPendingMutations) {
+            Map<String, WordMutation> newerMutations = new LinkedHashMap<>(mPendingMutations);
+            mPendingMutations.clear();
+            mPendingMutations.putAll(failedMutations);
+            for (Map.Entry<String, WordMutation> newerMutation : newerMutations.entrySet()) {
+                final WordMutation failed = failedMutations.get(newerMutation.getKey());
+                final WordMutation newer = newerMutation.getValue();
+                if (failed != null && failed.deleteFirst && !newer.deleteFirst) {
+                    mPendingMutations.put(newerMutation.getKey(), new WordMutation(newer.frequency, true));
+                } else {
+                    mPendingMutations.put(newerMutation.getKey(), newer);
+                }
+            }
+        }
+    }
 
-            db.delete(TABLE_NAME, Words.WORD + "=?", new String[]{word});
-            db.close();
+    /**
+     * Compiles the mutation statements once for each opened database, so they are not parsed for every word.
+     */
+    private void compileStatements(SQLiteDatabase db) {
+        if (mStatementsDb == db) return;
+        closeStatements();
+        mInsertOrReplaceStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (" + Words.WORD + "," + Words.FREQUENCY + "," + Words.LOCALE + ") VALUES (?,?,?);");
+        if (mCurrentLocale == null) {
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + Words.WORD + "=? AND " + Words.LOCALE + " IS NULL;");
+        } else {
+            //words without a locale are also part of this locale's dictionary
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + Words.WORD + "=? AND (" + Words.LOCALE + " IS NULL OR " + Words.LOCALE + "=?);");
+            mDeleteStatement.bindString(2, mCurrentLocale);
         }
+        mStatementsDb = db;
+    }
+
+    private void closeStatements() {
+        if (mInsertOrReplaceStatement != null) mInsertOrReplaceStatement.close();
+        if (mDeleteStatement != null) mDeleteStatement.close();
+        mInsertOrReplaceStatement = null;
+        mDeleteStatement = null;
+        mStatementsDb = null;
     }
 
     public WordsCursor getWordsCursor() {
         synchronized (mDbName) {
+            //the words which are waiting to be written are part of the dictionary
+            flushPendingMutations();
             SQLiteDatabase db = getReadableDatabase();
             Cursor c;
+            //sorted, so the trie can be built in one pass. The (word, locale) index already has that order.
             if (TextUtils.isEmpty(mCurrentLocale)) {
                 //some language packs will not provide locale, and Android _may_ crash here
-                c = db.query(TABLE_NAME, new String[]{Words._ID, Words.WORD, Words.FREQUENCY}, "(" + Words.LOCALE + " IS NULL)", null, null, null, null);
+                c = db.query(TABLE_NAME, new String[]{Words._ID, Words.WORD, Words.FREQUENCY}, "(" + Words.LOCALE + " IS NULL)", null, null, null, Words.WORD);
+            } else {
+                c = db.query(TABLE_NAME, new String[]{Words._ID, Words.WORD, Words.FREQUENCY}, "(" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mCurrentLocale}, null, null, Words.WORD);
+            }
+
+            //the database stays open, so the next mutations will not need to open it again.
+            return new WordsCursor(c);
+        }
+    }
+
+    /**
+     * A summary of the words (count, highest id and total frequency) which changes when the words change,
+     * and is read without reading the words themselves. The queued mutations are written first.
+     */
+    public String getWordsVersion() {
+        synchronized (mDbName) {
+            flushPendingMutations();
+            SQLiteDatabase db = getReadableDatabase();
+            final String summary = "SELECT COUNT(*), MAX(" + Words._ID + "), TOTAL(" + Words.FREQUENCY + ") FROM " + TABLE_NAME;
+            Cursor c;
+            if (TextUtils.isEmpty(mCurrentLocale)) {
+                c = db.rawQuery(summary + " WHERE (" + Words.LOCALE + " IS NULL)", null);
             } else {
-                c = db.query(TABLE_NAME, new String[]{Words._ID, Words.WORD, Words.FREQUENCY}, "(" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mCurrentLocale}, null, null, null);
+                c = db.rawQuery(summary + " WHERE (" + Words.LOCALE + " IS NULL) or (" + Words.LOCALE + "=?)", new String[]{mCurrentLocale});
+            }
+            try {
+                if (!c.moveToFirst()) return null;
+                return c.getLong(0) + ":" + c.getLong(1) + ":" + c.getLong(2);
+            } finally {
+                c.close();
             }
+        }
+    }
 
-            return new WordsCursor.SqliteWordsCursor(db, c);
+    /**
+     * Writes the queued mutations, stops the background writer and closes the database.
+     */
+    @Override
+    public void close() {
+        final ScheduledExecutorService writer;
+        synchronized (mPendingMutations) {
+            mClosed = true;
+            writer = mWriter;
+            mWriter = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out while waiting for the words writer of " + mDbName);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for the words writer of " + mDbName);
+            }
+        }
+        //anything which was not written by the writer
+        flushPendingMutations();
+        synchronized (mPendingMutations) {
+            if (mPendingMutations.size() > 0) {
+                Log.w(TAG, "Failed to write %d words mutations to %s before closing. They are lost.", mPendingMutations.size(), mDbName);
+                mPendingMutations.clear();
+            }
+        }
+        synchronized (mDbName) {
+            closeStatements();
+            super.close();
         }
     }
 
@@ -129,6 +363,18 @@ public class WordsSQLiteConnection extends SQLiteOpenHelper {
         return mDbName;
     }
 
+    private static final class WordMutation {
+        //the new frequency, or DELETE_WORD
+        final int frequency;
+        //the word's current rows have to be deleted before the new frequency is written
+        final boolean deleteFirst;
+
+        WordMutation(int frequency, boolean deleteFirst) {
+            this.frequency = frequency;
+            this.deleteFirst = deleteFirst;
+        }
+    }
+
     public static final class Words {
         public static final java.lang.String _ID = "_id";
         public static final java.lang.String WORD = "word";
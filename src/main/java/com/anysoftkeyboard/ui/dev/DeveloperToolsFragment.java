@@ -30,6 +30,7 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.anysoftkeyboard.dictionaries.ParallelQueriesStatistics;
 import com.anysoftkeyboard.ui.settings.MainSettingsActivity;
 import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.R;
@@ -83,6 +84,7 @@ public class DeveloperToolsFragment extends Fragment implements AsyncTaskWithPro
     public void onStart() {
         super.onStart();
         updateTracingState();
+        ((TextView) getView().findViewById(R.id.dev_dictionaries_statistics)).setText(ParallelQueriesStatistics.dumpStatistics());
         MainSettingsActivity.setActivityTitle(this, getString(R.string.developer_tools));
     }
 
@@ -28,6 +28,7 @@ import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 
+import com.anysoftkeyboard.dictionaries.ParallelQueriesStatistics;
 import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.AnyApplication;
 import com.menny.android.anysoftkeyboard.R;
@@ -112,6 +113,7 @@ public class DeveloperUtils {
             sb.append("configuration:").append(configuration.toString()).append(NEW_LINE);
         }
 
+        sb.append(ParallelQueriesStatistics.dumpStatistics()).append(NEW_LINE);
         sb.append("That's all I know.");
         return sb.toString();
     }
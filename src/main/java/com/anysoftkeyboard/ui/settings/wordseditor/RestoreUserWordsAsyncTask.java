@@ -32,6 +32,8 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -65,6 +67,9 @@ final class RestoreUserWordsAsyncTask extends UserWordsEditorAsyncTask {
                     private boolean inWord = false;
                     private int freq = 1;
                     private String word = "";
+                    //the words of the current word-list, added all at once when it ends.
+                    //A duplicate word keeps its last frequency.
+                    private final Map<String, Integer> restoredWords = new LinkedHashMap<>();
 
                     @Override
                     public void characters(char[] ch, int start, int length)
@@ -110,13 +115,17 @@ final class RestoreUserWordsAsyncTask extends UserWordsEditorAsyncTask {
                             if (!TextUtils.isEmpty(word)) {
                                 Log.d(TAG, "Restoring word '" + word
                                         + "' with freq " + freq);
-                                // Disallow duplicates
-                                mDictionary.deleteWord(word);
-                                mDictionary.addWord(word, freq);
+                                restoredWords.put(word, freq);
                             }
 
                             inWord = false;
                         }
+
+                        if (localName.equals("wordlist")) {
+                            Log.d(TAG, "Adding " + restoredWords.size() + " restored words to locale " + mLocale);
+                            mDictionary.addWords(restoredWords);
+                            restoredWords.clear();
+                        }
                         super.endElement(uri, localName, qName);
                     }
                 });
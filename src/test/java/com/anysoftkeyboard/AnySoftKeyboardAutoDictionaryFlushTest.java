@@ -0,0 +1,72 @@
+package com.anysoftkeyboard;
+
+import android.content.Context;
+import android.view.inputmethod.EditorInfo;
+
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.anysoftkeyboard.dictionaries.sqlite.AutoDictionary;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.ServiceController;
+
+@RunWith(AskGradleTestRunner.class)
+public class AnySoftKeyboardAutoDictionaryFlushTest {
+
+    private TestableAnySoftKeyboard mAnySoftKeyboardUnderTest;
+    private AutoDictionary mSpiedAutoDictionary;
+
+    @Before
+    public void setUp() throws Exception {
+        ServiceController<TestableAnySoftKeyboard> anySoftKeyboardController = Robolectric.buildService(TestableAnySoftKeyboard.class);
+        mAnySoftKeyboardUnderTest = anySoftKeyboardController.attach().create().get();
+
+        final TestableAnySoftKeyboard.TestableSuggest spiedSuggest = (TestableAnySoftKeyboard.TestableSuggest) mAnySoftKeyboardUnderTest.getSpiedSuggest();
+        Assert.assertNotNull(spiedSuggest);
+        //a spy, since closing the dictionaries reaches the (final) close method
+        mSpiedAutoDictionary = Mockito.spy(new AutoDictionary(RuntimeEnvironment.application, "en"));
+        Mockito.doReturn(mSpiedAutoDictionary).when(spiedSuggest.getDictionaryFactory()).createAutoDictionary(Mockito.any(Context.class), Mockito.anyString());
+
+        final EditorInfo editorInfo = TestableAnySoftKeyboard.createEditorInfoTextWithSuggestions();
+        mAnySoftKeyboardUnderTest.setInputView(mAnySoftKeyboardUnderTest.onCreateInputView());
+        mAnySoftKeyboardUnderTest.onStartInput(editorInfo, false);
+        mAnySoftKeyboardUnderTest.onStartInputView(editorInfo, false);
+
+        Robolectric.flushBackgroundThreadScheduler();
+
+        mAnySoftKeyboardUnderTest.setCandidatesView(mAnySoftKeyboardUnderTest.onCreateCandidatesView());
+
+        Robolectric.flushBackgroundThreadScheduler();
+    }
+
+    @Test
+    public void testFlushesAutoDictionaryAfterAWordIsAdded() {
+        mAnySoftKeyboardUnderTest.simulateTextTyping("hel");
+        mAnySoftKeyboardUnderTest.pickSuggestionManually(0, "hel");
+        Mockito.verify(mSpiedAutoDictionary).addWord(Mockito.any(WordComposer.class), Mockito.eq(AutoDictionary.AdditionType.Picked), Mockito.same((AnySoftKeyboard) mAnySoftKeyboardUnderTest));
+        //the flush is delayed
+        Mockito.verify(mSpiedAutoDictionary, Mockito.never()).flushPendingWords();
+
+        Robolectric.flushForegroundThreadScheduler();
+        Mockito.verify(mSpiedAutoDictionary).flushPendingWords();
+    }
+
+    @Test
+    public void testFlushesAutoDictionaryWhenHidden() {
+        mAnySoftKeyboardUnderTest.simulateTextTyping("hel");
+        mAnySoftKeyboardUnderTest.pickSuggestionManually(0, "hel");
+        Mockito.verify(mSpiedAutoDictionary, Mockito.never()).flushPendingWords();
+
+        mAnySoftKeyboardUnderTest.onFinishInputView(true);
+        Mockito.verify(mSpiedAutoDictionary).flushPendingWords();
+        //the delayed flush is not needed anymore
+        Robolectric.flushForegroundThreadScheduler();
+        Mockito.verify(mSpiedAutoDictionary).flushPendingWords();
+    }
+}
@@ -0,0 +1,172 @@
+package com.anysoftkeyboard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AskGradleTestRunner.class)
+public class SuggestionsWorkerTest {
+
+    private SuggestionsWorker mWorkerUnderTest;
+    private Handler mResultsHandler;
+    private final List<SuggestionsWorker.Result> mDeliveredResults = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestableAnySoftKeyboard.TestableSuggest suggest = new TestableAnySoftKeyboard.TestableSuggest(RuntimeEnvironment.application);
+        suggest.setSuggestionsForWord("he", "hello");
+        suggest.setSuggestionsForWord("hel", "hell", "hello");
+        mResultsHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                Assert.assertEquals(KeyboardUIStateHandler.MSG_SUGGESTIONS_READY, msg.what);
+                mDeliveredResults.add((SuggestionsWorker.Result) msg.obj);
+            }
+        };
+        mWorkerUnderTest = new SuggestionsWorker(suggest, Looper.getMainLooper(), mResultsHandler);
+    }
+
+    @Test
+    public void testDeliversResultOfRequest() {
+        mWorkerUnderTest.requestSuggestions(createWord("he"));
+        Assert.assertTrue(mWorkerUnderTest.hasPendingRequest());
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertEquals(1, mDeliveredResults.size());
+        SuggestionsWorker.Result result = mDeliveredResults.get(0);
+        Assert.assertTrue(mWorkerUnderTest.consumeIfCurrent(result));
+        Assert.assertFalse(mWorkerUnderTest.hasPendingRequest());
+        Assert.assertEquals(2, result.suggestions.size());
+        Assert.assertEquals("he", result.suggestions.get(0));
+        Assert.assertEquals("hello", result.suggestions.get(1));
+        Assert.assertTrue(result.correctionAvailable);
+    }
+
+    @Test
+    public void testDropsStaleRequests() {
+        Robolectric.getForegroundThreadScheduler().pause();
+        mWorkerUnderTest.requestSuggestions(createWord("he"));
+        mWorkerUnderTest.requestSuggestions(createWord("hel"));
+        Robolectric.getForegroundThreadScheduler().unPause();
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertEquals(1, mDeliveredResults.size());
+        SuggestionsWorker.Result result = mDeliveredResults.get(0);
+        Assert.assertTrue(mWorkerUnderTest.consumeIfCurrent(result));
+        Assert.assertEquals(3, result.suggestions.size());
+        Assert.assertEquals("hel", result.suggestions.get(0));
+    }
+
+    @Test
+    public void testCancelDropsPendingRequest() {
+        Robolectric.getForegroundThreadScheduler().pause();
+        mWorkerUnderTest.requestSuggestions(createWord("he"));
+        mWorkerUnderTest.cancel();
+        Assert.assertFalse(mWorkerUnderTest.hasPendingRequest());
+        Robolectric.getForegroundThreadScheduler().unPause();
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertEquals(0, mDeliveredResults.size());
+    }
+
+    @Test
+    public void testSnapshotIsDetachedFromComposer() {
+        Robolectric.getForegroundThreadScheduler().pause();
+        WordComposer word = createWord("he");
+        mWorkerUnderTest.requestSuggestions(word);
+        word.add('l', new int[]{'l'});
+        Robolectric.getForegroundThreadScheduler().unPause();
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertEquals(1, mDeliveredResults.size());
+        Assert.assertEquals("he", mDeliveredResults.get(0).suggestions.get(0));
+    }
+
+    @Test
+    public void testQuerySynchronouslyCancelsPending() {
+        Robolectric.getForegroundThreadScheduler().pause();
+        mWorkerUnderTest.requestSuggestions(createWord("he"));
+        SuggestionsWorker.Result result = mWorkerUnderTest.querySynchronously(createWord("hel"));
+        Assert.assertFalse(mWorkerUnderTest.hasPendingRequest());
+        Assert.assertEquals(3, result.suggestions.size());
+        Robolectric.getForegroundThreadScheduler().unPause();
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertEquals(0, mDeliveredResults.size());
+    }
+
+    @Test
+    public void testQuerySynchronouslyDoesNotWaitForARunningQuery() throws Exception {
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch releaseQuery = new CountDownLatch(1);
+        TestableAnySoftKeyboard.TestableSuggest suggest = new TestableAnySoftKeyboard.TestableSuggest(RuntimeEnvironment.application) {
+            @Override
+            public List<CharSequence> getSuggestions(WordComposer wordComposer, boolean includeTypedWordIfValid) {
+                if (wordComposer.getTypedWord().toString().equals("he")) {
+                    //like a native traversal, which does not stop when canceled
+                    queryStarted.countDown();
+                    try {
+                        releaseQuery.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getSuggestions(wordComposer, includeTypedWordIfValid);
+            }
+        };
+        suggest.setSuggestionsForWord("hel", "hell", "hello");
+        final SuggestionsWorker worker = new SuggestionsWorker(suggest, Looper.getMainLooper(), mResultsHandler);
+        worker.requestSuggestions(createWord("hel"));
+        Robolectric.flushForegroundThreadScheduler();
+        Assert.assertEquals(1, mDeliveredResults.size());
+        final SuggestionsWorker.Result deliveredResult = mDeliveredResults.get(0);
+        Assert.assertTrue(worker.consumeIfCurrent(deliveredResult));
+
+        Thread runningQuery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                worker.querySynchronously(createWord("he"));
+            }
+        });
+        runningQuery.start();
+        try {
+            Assert.assertTrue(queryStarted.await(5, TimeUnit.SECONDS));
+            //the last delivered result is of the same word
+            Assert.assertSame(deliveredResult, worker.querySynchronously(createWord("hel")));
+            //nothing is known about this word, but the typed word
+            SuggestionsWorker.Result result = worker.querySynchronously(createWord("help"));
+            Assert.assertEquals(1, result.suggestions.size());
+            Assert.assertEquals("help", result.suggestions.get(0));
+            Assert.assertFalse(result.correctionAvailable);
+            Assert.assertFalse(result.typedWordValid);
+        } finally {
+            releaseQuery.countDown();
+            runningQuery.join();
+        }
+        //once the running query is done, the queries are computed again
+        Assert.assertEquals(3, worker.querySynchronously(createWord("hel")).suggestions.size());
+    }
+
+    private static WordComposer createWord(String typed) {
+        WordComposer word = new WordComposer();
+        for (char c : typed.toCharArray()) {
+            word.add(c, new int[]{c});
+        }
+        return word;
+    }
+}
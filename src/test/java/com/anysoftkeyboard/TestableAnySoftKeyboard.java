@@ -1,6 +1,7 @@
 package com.anysoftkeyboard;
 
 import android.content.Context;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
@@ -65,6 +66,13 @@ public class TestableAnySoftKeyboard extends SoftKeyboard {
         return mSpiedSuggest = Mockito.spy(new TestableSuggest(this));
     }
 
+    @NonNull
+    @Override
+    protected Looper createSuggestionsWorkerLooper() {
+        //queries will run on the main looper, so tests can flush them deterministically
+        return Looper.getMainLooper();
+    }
+
     public TestableKeyboardSwitcher getSpiedKeyboardSwitcher() {
         return mSpiedKeyboardSwitcher;
     }
@@ -0,0 +1,135 @@
+package com.anysoftkeyboard.base.dictionaries;
+
+import com.anysoftkeyboard.utils.Log;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Timings of the Java side of a native query. Not part of the tests run, remove the Ignore annotation to run it.
+ */
+@Ignore("Benchmark")
+@RunWith(AskGradleTestRunner.class)
+public class NativeQueryBuffersBenchmark {
+    private static final String TAG = "NativeQueryBuffersBenchmark";
+
+    private static final int MAX_WORD_LENGTH = 48;
+    private static final int MAX_WORDS = 18;
+    private static final int MAX_ALTERNATIVES = 16;
+
+    private static final int FREQUENCIES_OFFSET = MAX_WORD_LENGTH * MAX_ALTERNATIVES * 4;
+    private static final int LENGTHS_OFFSET = FREQUENCIES_OFFSET + MAX_WORDS * 4;
+    private static final int CHARS_OFFSET = LENGTHS_OFFSET + MAX_WORDS * 4;
+
+    private NativeQueryBuffers mUnderTest;
+
+    @Before
+    public void setUp() throws Exception {
+        mUnderTest = new NativeQueryBuffers(MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES);
+    }
+
+    @Test
+    public void testPerCallOverhead() {
+        final int iterations = 20000;
+        final WordComposer word = createWord("hello");
+        final int[] inputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+        final char[] outputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
+        final int[] frequencies = new int[MAX_WORDS];
+        ByteBuffer buffer = mUnderTest.getBuffer();
+        for (int wordIndex = 0; wordIndex < MAX_WORDS; wordIndex++) {
+            writeWord(buffer, wordIndex, "helloing", MAX_WORDS - wordIndex);
+            "helloing".getChars(0, 8, outputChars, wordIndex * MAX_WORD_LENGTH);
+            frequencies[wordIndex] = MAX_WORDS - wordIndex;
+        }
+
+        long checksum = 0;
+        //warming up
+        for (int i = 0; i < iterations; i++) {
+            checksum += arraysQuery(word, inputCodes, outputChars, frequencies);
+            checksum += buffersQuery(word);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += arraysQuery(word, inputCodes, outputChars, frequencies);
+        }
+        final long arraysDuration = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += buffersQuery(word);
+        }
+        final long buffersDuration = System.nanoTime() - startTime;
+
+        Log.d(TAG, "Java side of a query: arrays %d ns, direct buffers %d ns (checksum %d).",
+                arraysDuration / iterations, buffersDuration / iterations, checksum);
+        Assert.assertEquals(8 * MAX_WORDS, buffersQuery(word));
+        Assert.assertEquals(arraysQuery(word, inputCodes, outputChars, frequencies), buffersQuery(word));
+    }
+
+    /**
+     * What was done on every query before: filling the arrays (which JNI then copies in and out)
+     * and scanning for the words' terminators.
+     */
+    private static int arraysQuery(WordComposer codes, int[] inputCodes, char[] outputChars, int[] frequencies) {
+        Arrays.fill(inputCodes, -1);
+        for (int i = 0; i < codes.length(); i++) {
+            int[] alternatives = codes.getCodesAt(i);
+            System.arraycopy(alternatives, 0, inputCodes, i * MAX_ALTERNATIVES, Math.min(alternatives.length, MAX_ALTERNATIVES));
+        }
+        //the native query would have filled these again
+        final char[] outputCopy = outputChars.clone();
+        final int[] frequenciesCopy = frequencies.clone();
+        Arrays.fill(outputChars, (char) 0);
+        Arrays.fill(frequencies, 0);
+        System.arraycopy(outputCopy, 0, outputChars, 0, outputChars.length);
+        System.arraycopy(frequenciesCopy, 0, frequencies, 0, frequencies.length);
+
+        int totalLength = 0;
+        for (int j = 0; j < MAX_WORDS; j++) {
+            if (frequencies[j] < 1) break;
+            int start = j * MAX_WORD_LENGTH;
+            int len = 0;
+            while (outputChars[start + len] != 0) {
+                len++;
+            }
+            totalLength += len;
+        }
+        return totalLength;
+    }
+
+    private int buffersQuery(WordComposer codes) {
+        mUnderTest.setInputCodes(codes);
+        int totalLength = 0;
+        for (int j = 0; j < MAX_WORDS; j++) {
+            if (mUnderTest.getFrequency(j) < 1) break;
+            final int length = mUnderTest.getWordLength(j);
+            totalLength += mUnderTest.getWord(j)[length - 1] == 'g' ? length : 0;
+        }
+        return totalLength;
+    }
+
+    private static void writeWord(ByteBuffer buffer, int wordIndex, String word, int frequency) {
+        buffer.putInt(FREQUENCIES_OFFSET + wordIndex * 4, frequency);
+        buffer.putInt(LENGTHS_OFFSET + wordIndex * 4, word.length());
+        for (int charIndex = 0; charIndex < word.length(); charIndex++) {
+            buffer.putChar(CHARS_OFFSET + (wordIndex * MAX_WORD_LENGTH + charIndex) * 2, word.charAt(charIndex));
+        }
+    }
+
+    private static WordComposer createWord(String typed) {
+        WordComposer word = new WordComposer();
+        for (char c : typed.toCharArray()) {
+            //the typed character, and a near-by key
+            word.add(c, new int[]{c, c - 1});
+        }
+        return word;
+    }
+}
@@ -0,0 +1,88 @@
+package com.anysoftkeyboard.base.dictionaries;
+
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@RunWith(AskGradleTestRunner.class)
+public class NativeQueryBuffersTest {
+    private static final int MAX_WORD_LENGTH = 48;
+    private static final int MAX_WORDS = 18;
+    private static final int MAX_ALTERNATIVES = 16;
+
+    private static final int FREQUENCIES_OFFSET = MAX_WORD_LENGTH * MAX_ALTERNATIVES * 4;
+    private static final int LENGTHS_OFFSET = FREQUENCIES_OFFSET + MAX_WORDS * 4;
+    private static final int CHARS_OFFSET = LENGTHS_OFFSET + MAX_WORDS * 4;
+
+    private NativeQueryBuffers mUnderTest;
+
+    @Before
+    public void setUp() throws Exception {
+        mUnderTest = new NativeQueryBuffers(MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES);
+    }
+
+    @Test
+    public void testBufferLayout() {
+        ByteBuffer buffer = mUnderTest.getBuffer();
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(ByteOrder.nativeOrder(), buffer.order());
+        Assert.assertEquals(CHARS_OFFSET + MAX_WORD_LENGTH * MAX_WORDS * 2, buffer.capacity());
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    @Test
+    public void testWritesOnlyTypedCodes() {
+        ByteBuffer buffer = mUnderTest.getBuffer();
+        //marking a slot which should not be touched
+        buffer.putInt(2 * MAX_ALTERNATIVES * 4, 1234);
+
+        Assert.assertEquals(2, mUnderTest.setInputCodes(createWord("he")));
+
+        Assert.assertEquals('h', buffer.getInt(0));
+        Assert.assertEquals('g', buffer.getInt(4));
+        Assert.assertEquals(-1, buffer.getInt(8));
+        Assert.assertEquals('e', buffer.getInt(MAX_ALTERNATIVES * 4));
+        Assert.assertEquals('d', buffer.getInt(MAX_ALTERNATIVES * 4 + 4));
+        Assert.assertEquals(-1, buffer.getInt(MAX_ALTERNATIVES * 4 + 8));
+        Assert.assertEquals(1234, buffer.getInt(2 * MAX_ALTERNATIVES * 4));
+    }
+
+    @Test
+    public void testReadsNativeOutput() {
+        ByteBuffer buffer = mUnderTest.getBuffer();
+        //what the native query would write
+        writeWord(buffer, 0, "hello", 100);
+        writeWord(buffer, 1, "help", 90);
+
+        Assert.assertEquals(100, mUnderTest.getFrequency(0));
+        Assert.assertEquals(5, mUnderTest.getWordLength(0));
+        Assert.assertEquals("hello", new String(mUnderTest.getWord(0), 0, mUnderTest.getWordLength(0)));
+        Assert.assertEquals(90, mUnderTest.getFrequency(1));
+        Assert.assertEquals(4, mUnderTest.getWordLength(1));
+        Assert.assertEquals("help", new String(mUnderTest.getWord(1), 0, mUnderTest.getWordLength(1)));
+    }
+
+    private static void writeWord(ByteBuffer buffer, int wordIndex, String word, int frequency) {
+        buffer.putInt(FREQUENCIES_OFFSET + wordIndex * 4, frequency);
+        buffer.putInt(LENGTHS_OFFSET + wordIndex * 4, word.length());
+        for (int charIndex = 0; charIndex < word.length(); charIndex++) {
+            buffer.putChar(CHARS_OFFSET + (wordIndex * MAX_WORD_LENGTH + charIndex) * 2, word.charAt(charIndex));
+        }
+    }
+
+    private static WordComposer createWord(String typed) {
+        WordComposer word = new WordComposer();
+        for (char c : typed.toCharArray()) {
+            //the typed character, and a near-by key
+            word.add(c, new int[]{c, c - 1});
+        }
+        return word;
+    }
+}
@@ -0,0 +1,216 @@
+package com.anysoftkeyboard.dictionaries;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.anysoftkeyboard.base.dictionaries.WordsCursor;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+@RunWith(AskGradleTestRunner.class)
+public class BTreeDictionaryStorageChangesTest {
+
+    private RowsDictionary mDictionaryUnderTest;
+
+    @Before
+    public void setup() throws Exception {
+        mDictionaryUnderTest = new RowsDictionary(RuntimeEnvironment.application);
+        mDictionaryUnderTest.putRow(1, "hello", 100);
+        mDictionaryUnderTest.putRow(2, "phone", 120);
+        mDictionaryUnderTest.putRow(3, "Menny", 50);
+        mDictionaryUnderTest.loadDictionary();
+    }
+
+    @Test
+    public void testAddedRowsAreAppliedToTheCurrentTrie() throws Exception {
+        final CompactTrie loadedTrie = mDictionaryUnderTest.getTrie();
+        mDictionaryUnderTest.putRow(4, "laptop", 40);
+
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+
+        Assert.assertSame(loadedTrie, mDictionaryUnderTest.getTrie());
+        Assert.assertEquals(40, mDictionaryUnderTest.getWordFrequency("laptop"));
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("hello"));
+        Assert.assertEquals(1, mDictionaryUnderTest.changedRowsQueriesCount);
+        Assert.assertEquals(3, mDictionaryUnderTest.lastModificationMark);
+        //only the first load read all the words
+        Assert.assertEquals(1, mDictionaryUnderTest.fullLoadsCount);
+    }
+
+    @Test
+    public void testDeletedAndChangedRowsAreAppliedToTheCurrentTrie() throws Exception {
+        mDictionaryUnderTest.removeRow(1);
+        //an edited row is deleted, and added with a new id
+        mDictionaryUnderTest.removeRow(2);
+        mDictionaryUnderTest.putRow(5, "phones", 130);
+
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+
+        Assert.assertFalse(mDictionaryUnderTest.isValidWord("hello"));
+        Assert.assertFalse(mDictionaryUnderTest.isValidWord("phone"));
+        Assert.assertEquals(130, mDictionaryUnderTest.getWordFrequency("phones"));
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("Menny"));
+        Assert.assertEquals(1, mDictionaryUnderTest.fullLoadsCount);
+
+        //the next change is read after the last read row
+        mDictionaryUnderTest.putRow(6, "hello", 90);
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertEquals(5, mDictionaryUnderTest.lastModificationMark);
+        Assert.assertEquals(90, mDictionaryUnderTest.getWordFrequency("hello"));
+    }
+
+    @Test
+    public void testWordIsKeptWhileAnotherRowReferencesIt() throws Exception {
+        mDictionaryUnderTest.putRow(4, "Menny", 70);
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("Menny"));
+
+        mDictionaryUnderTest.removeRow(3);
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("Menny"));
+
+        mDictionaryUnderTest.removeRow(4);
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertFalse(mDictionaryUnderTest.isValidWord("Menny"));
+    }
+
+    @Test
+    public void testWordAddedWhileReadingChangesIsKept() throws Exception {
+        mDictionaryUnderTest.putRow(4, "laptop", 40);
+        mDictionaryUnderTest.onStorageChanged();
+        Assert.assertTrue(mDictionaryUnderTest.addWord("new", 23));
+
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("new"));
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("laptop"));
+        Assert.assertEquals(1, mDictionaryUnderTest.fullLoadsCount);
+    }
+
+    @Test
+    public void testFallsBackToFullReloadWhenChangesAreUnknown() throws Exception {
+        final CompactTrie loadedTrie = mDictionaryUnderTest.getTrie();
+        mDictionaryUnderTest.changesAreKnown = false;
+        mDictionaryUnderTest.removeRow(1);
+
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+
+        Assert.assertNotSame(loadedTrie, mDictionaryUnderTest.getTrie());
+        Assert.assertFalse(mDictionaryUnderTest.isValidWord("hello"));
+        Assert.assertTrue(mDictionaryUnderTest.isValidWord("phone"));
+        Assert.assertEquals(2, mDictionaryUnderTest.fullLoadsCount);
+
+        //the rows were read again, so a later change can be applied
+        mDictionaryUnderTest.changesAreKnown = true;
+        mDictionaryUnderTest.removeRow(2);
+        mDictionaryUnderTest.onStorageChanged();
+        Robolectric.flushBackgroundThreadScheduler();
+        Assert.assertFalse(mDictionaryUnderTest.isValidWord("phone"));
+        Assert.assertEquals(2, mDictionaryUnderTest.fullLoadsCount);
+    }
+
+    private static class RowsDictionary extends BTreeDictionary {
+        private static final String[] COLUMNS = {"_id", "word", "frequency"};
+
+        private final List<Object[]> mRows = new ArrayList<>();
+        private final Field mTrieField;
+
+        boolean changesAreKnown = true;
+        int fullLoadsCount = 0;
+        int changedRowsQueriesCount = 0;
+        long lastModificationMark = -1;
+
+        RowsDictionary(Context context) throws NoSuchFieldException {
+            super("RowsDictionary", context);
+            mTrieField = BTreeDictionary.class.getDeclaredField("mTrie");
+            mTrieField.setAccessible(true);
+        }
+
+        CompactTrie getTrie() throws IllegalAccessException {
+            return (CompactTrie) mTrieField.get(this);
+        }
+
+        void putRow(long id, String word, int frequency) {
+            mRows.add(new Object[]{id, word, frequency});
+        }
+
+        void removeRow(long id) {
+            Iterator<Object[]> rows = mRows.iterator();
+            while (rows.hasNext()) {
+                if (((Long) rows.next()[0]) == id) rows.remove();
+            }
+        }
+
+        @Override
+        public WordsCursor getWordsCursor() {
+            fullLoadsCount++;
+            return new WordsCursor(createCursor(-1));
+        }
+
+        @Override
+        protected boolean supportsStorageChanges() {
+            return true;
+        }
+
+        @Override
+        protected Cursor getRowIdsCursor() {
+            if (!changesAreKnown) return null;
+            MatrixCursor cursor = new MatrixCursor(new String[]{"_id"});
+            for (Object[] row : mRows) {
+                cursor.addRow(new Object[]{row[0]});
+            }
+            return cursor;
+        }
+
+        @Override
+        protected WordsCursor getChangedWordsCursor(long modificationMark) {
+            changedRowsQueriesCount++;
+            lastModificationMark = modificationMark;
+            return new WordsCursor(createCursor(modificationMark));
+        }
+
+        private Cursor createCursor(long afterId) {
+            MatrixCursor cursor = new MatrixCursor(COLUMNS);
+            for (Object[] row : mRows) {
+                if (((Long) row[0]) > afterId) cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        @Override
+        protected void registerObserver(ContentObserver dictionaryContentObserver, ContentResolver contentResolver) {
+        }
+
+        @Override
+        protected void deleteWordFromStorage(String word) {
+        }
+
+        @Override
+        protected void AddWordToStorage(String word, int frequency) {
+        }
+
+        @Override
+        protected void closeStorage() {
+        }
+    }
+}
@@ -16,14 +16,22 @@
 
 package com.anysoftkeyboard.dictionaries;
 
+import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
 import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
 import org.robolectric.RuntimeEnvironment;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -51,7 +59,7 @@ public class BTreeDictionaryTest {
 			Assert.assertEquals(mDictionaryUnderTest.getWordFrequency(word), freq);
 		}
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 	}
 
 	@Test
@@ -64,7 +72,7 @@ public class BTreeDictionaryTest {
 		assertTrue(mDictionaryUnderTest.isValidWord("new"));
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("new"), 23);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		assertTrue(mDictionaryUnderTest.addWord("new", 34));
 		Assert.assertEquals("new", mDictionaryUnderTest.wordRequestedToAddedToStorage);
@@ -72,14 +80,14 @@ public class BTreeDictionaryTest {
 		assertTrue(mDictionaryUnderTest.isValidWord("new"));
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("new"), 34);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		assertTrue(mDictionaryUnderTest.addWord("newa", 45));
 		assertTrue(mDictionaryUnderTest.isValidWord("newa"));
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("new"), 34);
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("newa"), 45);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		assertTrue(mDictionaryUnderTest.addWord("nea", 47));
 		Assert.assertEquals("nea", mDictionaryUnderTest.wordRequestedToAddedToStorage);
@@ -89,7 +97,7 @@ public class BTreeDictionaryTest {
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("newa"), 45);
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("nea"), 47);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		assertTrue(mDictionaryUnderTest.addWord("neabb", 50));
 		Assert.assertEquals("neabb", mDictionaryUnderTest.wordRequestedToAddedToStorage);
@@ -102,12 +110,45 @@ public class BTreeDictionaryTest {
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("neabb"), 50);
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency("neab"), 0);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 	}
 
 	@Test
 	public void testOnStorageChanged() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		final CompactTrie loadedTrie = mDictionaryUnderTest.getTrie();
+
+		mDictionaryUnderTest.onStorageChanged();
+		//the words are still served while reloading
+		assertTrue(mDictionaryUnderTest.isValidWord("phone"));
+		Assert.assertSame(loadedTrie, mDictionaryUnderTest.getTrie());
+
+		Robolectric.flushBackgroundThreadScheduler();
+		//swapped with the reloaded trie
+		Assert.assertNotSame(loadedTrie, mDictionaryUnderTest.getTrie());
+		for (int row = 0; row < TestableBTreeDictionary.STORAGE.length; row++) {
+			final String word = (String) TestableBTreeDictionary.STORAGE[row][1];
+			assertTrue("Word at row " + row + " (" + word + ") should be valid.", mDictionaryUnderTest.isValidWord(word));
+		}
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
+	}
 
+	@Test
+	public void testOnStorageChangedWhileAddingWord() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+
+		mDictionaryUnderTest.onStorageChanged();
+		assertTrue(mDictionaryUnderTest.addWord("new", 23));
+		final CompactTrie trieWithNewWord = mDictionaryUnderTest.getTrie();
+
+		Assert.assertTrue(Robolectric.getBackgroundThreadScheduler().runOneTask());
+		//the reloaded trie missed the new word, so it was not swapped, and another reload was started
+		Assert.assertSame(trieWithNewWord, mDictionaryUnderTest.getTrie());
+		assertTrue(mDictionaryUnderTest.isValidWord("new"));
+
+		Assert.assertTrue(Robolectric.getBackgroundThreadScheduler().runOneTask());
+		Assert.assertNotSame(trieWithNewWord, mDictionaryUnderTest.getTrie());
+		assertTrue(mDictionaryUnderTest.isValidWord("phone"));
 	}
 
 	@Test
@@ -121,7 +162,7 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord(word));
 		Assert.assertEquals(mDictionaryUnderTest.wordRequestedToBeDeletedFromStorage, word);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		//re-adding
 		assertTrue(mDictionaryUnderTest.addWord(word, wordFreq + 1));
@@ -132,7 +173,7 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord(word));
 		Assert.assertEquals(mDictionaryUnderTest.wordRequestedToBeDeletedFromStorage, word);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		//a new one
 		word = "new";
@@ -144,14 +185,14 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord(word));
 		Assert.assertEquals(mDictionaryUnderTest.wordRequestedToBeDeletedFromStorage, word);
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		//none existing
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("fail"));
 		mDictionaryUnderTest.deleteWord("fail");
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("fail"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		//deleting part of the root
 		mDictionaryUnderTest.addWord("root", 1);
@@ -160,7 +201,7 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("roo"));
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("rooti"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		mDictionaryUnderTest.deleteWord("root");
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("roo"));
@@ -169,7 +210,7 @@ public class BTreeDictionaryTest {
 		assertTrue(mDictionaryUnderTest.isValidWord("rooting"));
 		assertTrue(mDictionaryUnderTest.isValidWord("rootina"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		mDictionaryUnderTest.deleteWord("rooting");
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("root"));
@@ -177,7 +218,7 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("rooting"));
 		assertTrue(mDictionaryUnderTest.isValidWord("rootina"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		mDictionaryUnderTest.addWord("root", 1);
 		assertTrue(mDictionaryUnderTest.isValidWord("root"));
@@ -185,7 +226,7 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("rooti"));
 		assertTrue(mDictionaryUnderTest.isValidWord("rootina"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 
 		mDictionaryUnderTest.deleteWord("rootina");
 		assertTrue(mDictionaryUnderTest.isValidWord("root"));
@@ -193,19 +234,62 @@ public class BTreeDictionaryTest {
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("rooti"));
 		Assert.assertFalse(mDictionaryUnderTest.isValidWord("rootina"));
 		//checking validity of the internal structure
-		assetNodeArrayIsValid(mDictionaryUnderTest.getRoot());
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
 	}
 
-	private void assetNodeArrayIsValid(BTreeDictionary.NodeArray root) {
-		assertTrue(root.length >= 0);
-		assertTrue(root.length <= root.data.length);
-		for (int i = 0; i < root.length; i++) {
-			assertNotNull(root.data[i]);
-			if (root.data[i].children != null)//it may be null.
-				assetNodeArrayIsValid(root.data[i].children);
+	private void assertTrieIsValid(CompactTrie trie, int parent) {
+		final int childrenStart = trie.getChildrenStart(parent);
+		final int childrenCount = trie.getChildrenCount(parent);
+		assertTrue(childrenCount >= 0);
+		for (int node = childrenStart; node < childrenStart + childrenCount; node++) {
+			if (node > childrenStart) {
+				//children are sorted, and unique
+				assertTrue(trie.getCode(node - 1) < trie.getCode(node));
+			}
+			//a leaf is always the end of a word
+			assertTrue(trie.isTerminal(node) || trie.getChildrenCount(node) > 0);
+			assertTrieIsValid(trie, node);
+			Assert.assertEquals(getMaxFrequency(trie, node), trie.getMaxFrequency(node));
 		}
 	}
 
+	private static int getMaxFrequency(CompactTrie trie, int node) {
+		int max = trie.isTerminal(node) ? trie.getFrequency(node) : 0;
+		final int childrenStart = trie.getChildrenStart(node);
+		for (int child = childrenStart; child < childrenStart + trie.getChildrenCount(node); child++) {
+			max = Math.max(max, getMaxFrequency(trie, child));
+		}
+		return max;
+	}
+
+	@Test
+	public void testCompletionsBelowThresholdAreNotReported() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		mDictionaryUnderTest.addWord("helping", 20);
+		mDictionaryUnderTest.addWord("helped", 120);
+
+		WordComposer word = new WordComposer();
+		word.add('h', new int[]{'h'});
+		word.add('e', new int[]{'e'});
+		final List<String> reported = new ArrayList<>();
+		mDictionaryUnderTest.getWords(word, new Dictionary.WordCallbackWithThreshold() {
+			@Override
+			public int getFrequencyThreshold() {
+				return 9 * 100;
+			}
+
+			@Override
+			public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+				reported.add(new String(word, wordOffset, wordLength));
+				return true;
+			}
+		});
+		//typed letters are weighted by 3, so only words with frequency higher than 100 can make it.
+		Assert.assertTrue(reported.contains("hello"));
+		Assert.assertTrue(reported.contains("helped"));
+		Assert.assertFalse(reported.contains("helping"));
+	}
+
 	@Test
 	public void testClose() throws Exception {
 		mDictionaryUnderTest.loadDictionary();
@@ -217,4 +301,170 @@ public class BTreeDictionaryTest {
 		Assert.assertEquals(mDictionaryUnderTest.getWordFrequency((String) TestableBTreeDictionary.STORAGE[0][1]), 0);
 		Assert.assertFalse(mDictionaryUnderTest.addWord("fail", 1));
 	}
+
+	@Test
+	public void testIncrementalQueriesReturnSameWordsAsFreshQueries() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		mDictionaryUnderTest.addWord("help", 100);
+		mDictionaryUnderTest.addWord("helping", 90);
+		mDictionaryUnderTest.addWord("he'll", 80);
+		mDictionaryUnderTest.addWord("hell", 70);
+
+		WordComposer word = new WordComposer();
+		final String typed = "helpi";
+		for (int charIndex = 0; charIndex < typed.length(); charIndex++) {
+			final char c = typed.charAt(charIndex);
+			word.add(c, new int[]{c, 'o'});
+			assertSameWordsAsFreshDictionary(word);
+		}
+		//popping back
+		for (int charIndex = 0; charIndex < typed.length() - 2; charIndex++) {
+			word.deleteLast();
+			assertSameWordsAsFreshDictionary(word);
+		}
+		//changing the trie invalidates the previous matches
+		mDictionaryUnderTest.addWord("heap", 60);
+		word.add('a', new int[]{'a'});
+		assertSameWordsAsFreshDictionary(word);
+		Assert.assertEquals("heap", getWords(mDictionaryUnderTest, word).get(0).split(":")[0]);
+	}
+
+	@Test
+	public void testTraversalStopsWhenCallbackDoesNotWantMoreWords() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		mDictionaryUnderTest.addWord("help", 100);
+		mDictionaryUnderTest.addWord("helping", 90);
+		mDictionaryUnderTest.addWord("helped", 80);
+
+		WordComposer word = new WordComposer();
+		word.add('h', new int[]{'h'});
+		word.add('e', new int[]{'e'});
+		final List<String> reported = new ArrayList<>();
+		mDictionaryUnderTest.getWords(word, new Dictionary.WordCallback() {
+			@Override
+			public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+				reported.add(new String(word, wordOffset, wordLength));
+				return reported.size() < 2;
+			}
+		});
+		Assert.assertEquals(2, reported.size());
+	}
+
+	@Test
+	public void testReportedWordsAreBounded() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		for (int wordIndex = 0; wordIndex < BTreeDictionary.MAX_REPORTED_WORDS + 100; wordIndex++) {
+			mDictionaryUnderTest.addWord("pre" + (100 + wordIndex), 1 + (wordIndex % 255));
+		}
+
+		WordComposer word = new WordComposer();
+		word.add('p', new int[]{'p'});
+		word.add('r', new int[]{'r'});
+		word.add('e', new int[]{'e'});
+		Assert.assertEquals(BTreeDictionary.MAX_REPORTED_WORDS, getWords(mDictionaryUnderTest, word).size());
+		//a more specific query still finds its words
+		word.add('7', new int[]{'7'});
+		word.add('0', new int[]{'0'});
+		//pre700 to pre709
+		Assert.assertEquals(10, getWords(mDictionaryUnderTest, word).size());
+	}
+
+	@Test
+	public void testAddWordDoesNotChangeThePublishedTrie() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		final CompactTrie loadedTrie = mDictionaryUnderTest.getTrie();
+
+		assertTrue(mDictionaryUnderTest.addWord("new", 23));
+		mDictionaryUnderTest.deleteWord("phone");
+		//queries which are still using the loaded trie see the same words
+		Assert.assertEquals(0, loadedTrie.getWordFrequency("new"));
+		Assert.assertEquals(200, loadedTrie.getWordFrequency("phone"));
+		Assert.assertNotSame(loadedTrie, mDictionaryUnderTest.getTrie());
+		Assert.assertEquals(23, mDictionaryUnderTest.getWordFrequency("new"));
+		Assert.assertFalse(mDictionaryUnderTest.isValidWord("phone"));
+	}
+
+	@Test
+	public void testAddWordsChangesTheTrieOnce() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		final CompactTrie loadedTrie = mDictionaryUnderTest.getTrie();
+		final int modificationsCount = mDictionaryUnderTest.getTrieModificationsCount();
+
+		Map<String, Integer> words = new LinkedHashMap<>();
+		words.put("new", 23);
+		words.put("phone", 12);
+		words.put("newer", 42);
+		words.put("thisisaveryveryveryverylongwordthatistoolong", 10);
+		Assert.assertEquals(3, mDictionaryUnderTest.addWords(words));
+
+		Assert.assertEquals(modificationsCount + 1, mDictionaryUnderTest.getTrieModificationsCount());
+		Assert.assertEquals(0, loadedTrie.getWordFrequency("new"));
+		Assert.assertEquals(23, mDictionaryUnderTest.getWordFrequency("new"));
+		Assert.assertEquals(12, mDictionaryUnderTest.getWordFrequency("phone"));
+		Assert.assertEquals(42, mDictionaryUnderTest.getWordFrequency("newer"));
+		Assert.assertFalse(mDictionaryUnderTest.isValidWord("thisisaveryveryveryverylongwordthatistoolong"));
+		//the words are written to the storage too
+		Assert.assertEquals("newer", mDictionaryUnderTest.wordRequestedToAddedToStorage);
+		Assert.assertEquals(42, mDictionaryUnderTest.wordFrequencyRequestedToAddedToStorage);
+		assertTrieIsValid(mDictionaryUnderTest.getTrie(), CompactTrie.ROOT);
+	}
+
+	@Test
+	public void testAddWordsAfterCloseDoesNothing() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		mDictionaryUnderTest.close();
+		Map<String, Integer> words = new LinkedHashMap<>();
+		words.put("new", 23);
+		Assert.assertEquals(0, mDictionaryUnderTest.addWords(words));
+		Assert.assertNull(mDictionaryUnderTest.wordRequestedToAddedToStorage);
+	}
+
+	@Test
+	public void testQueriesDoNotWaitForTheResourceMonitor() throws Exception {
+		mDictionaryUnderTest.loadDictionary();
+		final WordComposer word = new WordComposer();
+		word.add('p', new int[]{'p'});
+		word.add('h', new int[]{'h'});
+		final List<String> words = new ArrayList<>();
+		final boolean[] valid = new boolean[1];
+		Thread queryThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				words.addAll(getWords(mDictionaryUnderTest, word));
+				valid[0] = mDictionaryUnderTest.isValidWord("phone");
+			}
+		});
+		//as a writer (adding a word, or swapping a reloaded trie) would
+		synchronized (mDictionaryUnderTest.getResourceMonitor()) {
+			queryThread.start();
+			queryThread.join(5000);
+			Assert.assertFalse(queryThread.isAlive());
+		}
+		Assert.assertEquals(1, words.size());
+		assertTrue(valid[0]);
+	}
+
+	private void assertSameWordsAsFreshDictionary(WordComposer word) throws Exception {
+		TestableBTreeDictionary freshDictionary = new TestableBTreeDictionary("FRESH", RuntimeEnvironment.application);
+		freshDictionary.loadDictionary();
+		freshDictionary.addWord("help", 100);
+		freshDictionary.addWord("helping", 90);
+		freshDictionary.addWord("he'll", 80);
+		freshDictionary.addWord("hell", 70);
+		if (mDictionaryUnderTest.isValidWord("heap")) freshDictionary.addWord("heap", 60);
+
+		Assert.assertEquals("For typed word " + word.getTypedWord(), getWords(freshDictionary, word), getWords(mDictionaryUnderTest, word));
+	}
+
+	private static List<String> getWords(BTreeDictionary dictionary, WordComposer word) {
+		final List<String> words = new ArrayList<>();
+		dictionary.getWords(word, new Dictionary.WordCallback() {
+			@Override
+			public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+				words.add(new String(word, wordOffset, wordLength) + ":" + frequency);
+				return true;
+			}
+		});
+		return words;
+	}
 }
@@ -0,0 +1,284 @@
+package com.anysoftkeyboard.dictionaries;
+
+import com.anysoftkeyboard.utils.Log;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+@RunWith(AskGradleTestRunner.class)
+public class CompactTrieTest {
+    private static final String TAG = "CompactTrieTest";
+
+    @Test
+    public void testAddAndDeleteWords() {
+        CompactTrie trie = new CompactTrie(2);
+        trie.addWord("root", 10);
+        trie.addWord("rooting", 20);
+        trie.addWord("rootina", 30);
+        trie.addWord("apple", 40);
+
+        Assert.assertEquals(10, trie.getWordFrequency("root"));
+        Assert.assertEquals(20, trie.getWordFrequency("rooting"));
+        Assert.assertEquals(30, trie.getWordFrequency("rootina"));
+        Assert.assertEquals(40, trie.getWordFrequency("apple"));
+        Assert.assertEquals(0, trie.getWordFrequency("roo"));
+        Assert.assertEquals(0, trie.getWordFrequency("rootin"));
+        Assert.assertEquals(0, trie.getWordFrequency(""));
+        //sorted children
+        final int rootChildren = trie.getChildrenStart(CompactTrie.ROOT);
+        Assert.assertEquals(2, trie.getChildrenCount(CompactTrie.ROOT));
+        Assert.assertEquals('a', trie.getCode(rootChildren));
+        Assert.assertEquals('r', trie.getCode(rootChildren + 1));
+        Assert.assertEquals(30, trie.getMaxFrequency(rootChildren + 1));
+
+        Assert.assertTrue(trie.deleteWord("rootina"));
+        Assert.assertFalse(trie.deleteWord("rootina"));
+        Assert.assertFalse(trie.deleteWord("roo"));
+        Assert.assertEquals(0, trie.getWordFrequency("rootina"));
+        Assert.assertEquals(20, trie.getWordFrequency("rooting"));
+        Assert.assertEquals(20, trie.getMaxFrequency(trie.findChild(CompactTrie.ROOT, 'r')));
+
+        Assert.assertTrue(trie.deleteWord("rooting"));
+        Assert.assertTrue(trie.deleteWord("root"));
+        Assert.assertEquals(CompactTrie.NO_NODE, trie.findChild(CompactTrie.ROOT, 'r'));
+        Assert.assertEquals(5, trie.getNodesCount());
+
+        trie.addWord("apple", 5);
+        Assert.assertEquals(5, trie.getWordFrequency("apple"));
+        Assert.assertEquals(5, trie.getMaxFrequency(trie.findChild(CompactTrie.ROOT, 'a')));
+    }
+
+    @Test
+    public void testKeepsWordsWhileCompacting() {
+        Random random = new Random(1234);
+        Map<String, Integer> words = new HashMap<>();
+        CompactTrie trie = new CompactTrie(26);
+        for (int i = 0; i < 5000; i++) {
+            final String word = createWord(random);
+            final int frequency = 1 + random.nextInt(255);
+            words.put(word, frequency);
+            trie.addWord(word, frequency);
+        }
+        //deleting half of the words will cause compaction
+        int deleted = 0;
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            if (deleted % 2 == 0) {
+                Assert.assertTrue(trie.deleteWord(entry.getKey()));
+                entry.setValue(0);
+            }
+            deleted++;
+        }
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            Assert.assertEquals(entry.getKey(), entry.getValue().intValue(), trie.getWordFrequency(entry.getKey()));
+        }
+        trie.compact();
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            Assert.assertEquals(entry.getKey(), entry.getValue().intValue(), trie.getWordFrequency(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testCopyIsNotChangedByTheOriginal() {
+        CompactTrie trie = new CompactTrie(2);
+        trie.addWord("root", 10);
+        trie.addWord("apple", 40);
+
+        CompactTrie copy = trie.copy();
+        Assert.assertEquals(trie.getNodesCount(), copy.getNodesCount());
+        trie.deleteWord("root");
+        trie.addWord("banana", 50);
+        copy.addWord("cherry", 20);
+
+        Assert.assertEquals(10, copy.getWordFrequency("root"));
+        Assert.assertEquals(40, copy.getWordFrequency("apple"));
+        Assert.assertEquals(0, copy.getWordFrequency("banana"));
+        Assert.assertEquals(20, copy.getWordFrequency("cherry"));
+        Assert.assertEquals(0, trie.getWordFrequency("root"));
+        Assert.assertEquals(50, trie.getWordFrequency("banana"));
+        Assert.assertEquals(0, trie.getWordFrequency("cherry"));
+    }
+
+    @Test
+    public void testBuilderCreatesTheSameTrieAsAddingWords() {
+        Random random = new Random(2468);
+        Map<String, Integer> words = new HashMap<>();
+        CompactTrie.Builder builder = new CompactTrie.Builder();
+        for (int i = 0; i < 5000; i++) {
+            final String word = createWord(random);
+            final int frequency = 1 + random.nextInt(255);
+            builder.addWord(word, frequency);
+            final Integer previousFrequency = words.get(word);
+            //the highest frequency is kept
+            if (previousFrequency == null || previousFrequency < frequency) words.put(word, frequency);
+        }
+        //prefixes of other words, and duplicates
+        builder.addWord("ab", 7);
+        builder.addWord("abc", 8);
+        builder.addWord("ab", 6);
+        words.put("ab", Math.max(7, words.containsKey("ab") ? words.get("ab") : 0));
+        words.put("abc", Math.max(8, words.containsKey("abc") ? words.get("abc") : 0));
+        builder.addWord("", 9);
+
+        CompactTrie trie = new CompactTrie(26);
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            trie.addWord(entry.getKey(), entry.getValue());
+        }
+        trie.compact();
+
+        assertSameTries(trie, builder.build());
+    }
+
+    @Test
+    public void testBuilderWithSortedWords() {
+        CompactTrie.Builder builder = new CompactTrie.Builder();
+        builder.addWord("apple", 40);
+        builder.addWord("root", 10);
+        builder.addWord("rootina", 30);
+        builder.addWord("rooting", 20);
+        CompactTrie builtTrie = builder.build();
+
+        CompactTrie trie = new CompactTrie(2);
+        trie.addWord("root", 10);
+        trie.addWord("rooting", 20);
+        trie.addWord("rootina", 30);
+        trie.addWord("apple", 40);
+        trie.compact();
+        assertSameTries(trie, builtTrie);
+
+        //and it can still be changed
+        builtTrie.addWord("rooted", 50);
+        builtTrie.addWord("banana", 5);
+        Assert.assertTrue(builtTrie.deleteWord("rootina"));
+        Assert.assertEquals(50, builtTrie.getWordFrequency("rooted"));
+        Assert.assertEquals(5, builtTrie.getWordFrequency("banana"));
+        Assert.assertEquals(0, builtTrie.getWordFrequency("rootina"));
+        Assert.assertEquals(20, builtTrie.getWordFrequency("rooting"));
+        Assert.assertEquals(50, builtTrie.getMaxFrequency(builtTrie.findChild(CompactTrie.ROOT, 'r')));
+
+        Assert.assertEquals(0, new CompactTrie.Builder().build().getNodesCount());
+    }
+
+    private static void assertSameTries(CompactTrie expected, CompactTrie actual) {
+        Assert.assertEquals(expected.getNodesCount(), actual.getNodesCount());
+        for (int node = 0; node <= expected.getNodesCount(); node++) {
+            Assert.assertEquals(expected.getCode(node), actual.getCode(node));
+            Assert.assertEquals(expected.isTerminal(node), actual.isTerminal(node));
+            Assert.assertEquals(expected.getFrequency(node), actual.getFrequency(node));
+            Assert.assertEquals(expected.getMaxFrequency(node), actual.getMaxFrequency(node));
+            Assert.assertEquals(expected.getChildrenStart(node), actual.getChildrenStart(node));
+            Assert.assertEquals(expected.getChildrenCount(node), actual.getChildrenCount(node));
+        }
+    }
+
+    @Test
+    public void testSnapshotHasTheSameWords() {
+        Random random = new Random(4321);
+        Map<String, Integer> words = new HashMap<>();
+        CompactTrie trie = new CompactTrie(26);
+        for (int i = 0; i < 5000; i++) {
+            final String word = createWord(random);
+            final int frequency = 1 + random.nextInt(255);
+            words.put(word, frequency);
+            trie.addWord(word, frequency);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(trie.getSnapshotSize());
+        trie.writeSnapshot(buffer);
+        Assert.assertEquals(0, buffer.remaining());
+        buffer.flip();
+
+        CompactTrie snapshotTrie = CompactTrie.fromSnapshot(buffer);
+        Assert.assertEquals(trie.getNodesCount(), snapshotTrie.getNodesCount());
+        for (int node = 0; node <= trie.getNodesCount(); node++) {
+            Assert.assertEquals(trie.getCode(node), snapshotTrie.getCode(node));
+            Assert.assertEquals(trie.getMaxFrequency(node), snapshotTrie.getMaxFrequency(node));
+            Assert.assertEquals(trie.getChildrenStart(node), snapshotTrie.getChildrenStart(node));
+            Assert.assertEquals(trie.getChildrenCount(node), snapshotTrie.getChildrenCount(node));
+        }
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            Assert.assertEquals(entry.getKey(), entry.getValue().intValue(), snapshotTrie.getWordFrequency(entry.getKey()));
+        }
+        //and it can still be changed
+        snapshotTrie.addWord("zzzzzzzzzzzzzz", 3);
+        Assert.assertEquals(3, snapshotTrie.getWordFrequency("zzzzzzzzzzzzzz"));
+        final String deletedWord = words.keySet().iterator().next();
+        Assert.assertTrue(snapshotTrie.deleteWord(deletedWord));
+        Assert.assertEquals(0, snapshotTrie.getWordFrequency(deletedWord));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSnapshot() {
+        CompactTrie trie = new CompactTrie(2);
+        trie.addWord("root", 10);
+        ByteBuffer buffer = ByteBuffer.allocate(trie.getSnapshotSize());
+        trie.writeSnapshot(buffer);
+        //the root claims one more child than there is
+        buffer.putChar(4 + 5 * (2 + 1 + 4 + 4), (char) 2);
+        buffer.flip();
+        CompactTrie.fromSnapshot(buffer);
+    }
+
+    /**
+     * Compares ESTIMATIONS of the heap used, not measurements: both sides are calculated from the
+     * arrays' and objects' field sizes (assuming a 32bit VM, with 8 bytes alignment), so this only
+     * verifies the layout is not accidentally bloated.
+     */
+    @Test
+    public void testEstimatedMemoryFootprintComparedToEstimatedNodeObjects() {
+        for (int wordsCount : new int[]{10000, 50000, 200000}) {
+            Random random = new Random(wordsCount);
+            CompactTrie trie = new CompactTrie(26);
+            for (int i = 0; i < wordsCount; i++) {
+                trie.addWord(createWord(random), 1 + random.nextInt(255));
+            }
+            trie.compact();
+            final long compactFootprint = trie.getMemoryFootprint();
+            final long nodeObjectsFootprint = estimateNodeObjectsFootprint(trie, CompactTrie.ROOT, 26);
+            Log.d(TAG, "%d words (%d nodes): estimated compact trie %d bytes, estimated node objects %d bytes.",
+                    wordsCount, trie.getNodesCount(), compactFootprint, nodeObjectsFootprint);
+            Assert.assertTrue("For " + wordsCount + " words: " + compactFootprint + " vs. " + nodeObjectsFootprint,
+                    compactFootprint * 2 < nodeObjectsFootprint);
+        }
+    }
+
+    /**
+     * Estimates (does not measure) the heap used by the same trie, if it was stored as a Node object
+     * per character, each with a NodeArray of children (growing by two).
+     */
+    private static long estimateNodeObjectsFootprint(CompactTrie trie, int parent, int initialCapacity) {
+        final int childrenCount = trie.getChildrenCount(parent);
+        long footprint = 0;
+        if (childrenCount > 0) {
+            int capacity = initialCapacity;
+            while (capacity < childrenCount) capacity = capacity + 1 + 2;
+            //NodeArray object, and its Node[]
+            footprint += 24 + align(16 + 4 * capacity);
+            final int childrenStart = trie.getChildrenStart(parent);
+            for (int child = childrenStart; child < childrenStart + childrenCount; child++) {
+                //Node object: header, code, frequency, terminal, children and max-frequency
+                footprint += align(12 + 2 + 4 + 1 + 4 + 4);
+                footprint += estimateNodeObjectsFootprint(trie, child, 2);
+            }
+        }
+        return footprint;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static String createWord(Random random) {
+        final int length = 3 + random.nextInt(10);
+        char[] word = new char[length];
+        for (int i = 0; i < length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+}
@@ -0,0 +1,135 @@
+package com.anysoftkeyboard.dictionaries;
+
+import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.anysoftkeyboard.dictionaries.jni.ResourceBinaryDictionary;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AskGradleTestRunner.class)
+public class DictionaryQueryTaskTest {
+
+    private DictionaryQueryTask mUnderTest;
+    private final List<String> mMergedWords = new ArrayList<>();
+    private final List<Integer> mMergedFrequencies = new ArrayList<>();
+    private final Dictionary.WordCallback mMergeCallback = new Dictionary.WordCallback() {
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, Dictionary from) {
+            mMergedWords.add(new String(word, wordOffset, wordLength));
+            mMergedFrequencies.add(frequency);
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mUnderTest = new DictionaryQueryTask();
+        mUnderTest.prepare(Mockito.mock(Dictionary.class), new WordComposer(), "he", 3, null);
+    }
+
+    private boolean addWord(String word, int frequency) {
+        return mUnderTest.addWord(word.toCharArray(), 0, word.length(), frequency, null);
+    }
+
+    @Test
+    public void testKeepsTopWordsOrderedByFrequency() {
+        Assert.assertTrue(addWord("hello", 10));
+        Assert.assertTrue(addWord("hell", 30));
+        Assert.assertTrue(addWord("help", 20));
+        Assert.assertTrue(addWord("helmet", 5));
+        Assert.assertTrue(addWord("heat", 25));
+
+        mUnderTest.mergeInto(mMergeCallback);
+        Assert.assertEquals(3, mMergedWords.size());
+        Assert.assertEquals("hell", mMergedWords.get(0));
+        Assert.assertEquals("heat", mMergedWords.get(1));
+        Assert.assertEquals("help", mMergedWords.get(2));
+        Assert.assertEquals(30, mMergedFrequencies.get(0).intValue());
+    }
+
+    @Test
+    public void testAlwaysKeepsTypedWordCaseVariant() {
+        addWord("hello", 10);
+        addWord("hell", 30);
+        addWord("help", 20);
+        addWord("HE", 1);
+
+        mUnderTest.mergeInto(mMergeCallback);
+        Assert.assertEquals(3, mMergedWords.size());
+        Assert.assertEquals("HE", mMergedWords.get(0));
+        Assert.assertEquals("hell", mMergedWords.get(1));
+    }
+
+    @Test
+    public void testStopsWhenAbandoned() {
+        Assert.assertTrue(addWord("hello", 10));
+        mUnderTest.abandon();
+        Assert.assertFalse(addWord("hell", 30));
+    }
+
+    @Test
+    public void testStopsWhenCanceled() {
+        final boolean[] canceled = new boolean[]{false};
+        mUnderTest.prepare(Mockito.mock(Dictionary.class), new WordComposer(), "he", 3, new Suggest.CancellationSignal() {
+            @Override
+            public boolean isCanceled() {
+                return canceled[0];
+            }
+        });
+        Assert.assertTrue(addWord("hello", 10));
+        canceled[0] = true;
+        Assert.assertFalse(addWord("hell", 30));
+    }
+
+    @Test
+    public void testRunQueriesDictionaryWithTask() {
+        Dictionary dictionary = Mockito.mock(Dictionary.class);
+        WordComposer wordComposer = new WordComposer();
+        mUnderTest.prepare(dictionary, wordComposer, "he", 3, null);
+        mUnderTest.run();
+        Mockito.verify(dictionary).getWords(Mockito.same(wordComposer), Mockito.same(mUnderTest));
+    }
+
+    @Test
+    public void testHoldsItsMonitorWhileQueryingDictionary() {
+        final boolean[] heldLock = new boolean[]{false};
+        Dictionary dictionary = Mockito.mock(Dictionary.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                heldLock[0] = Thread.holdsLock(mUnderTest);
+                return null;
+            }
+        }).when(dictionary).getWords(Mockito.any(WordComposer.class), Mockito.any(Dictionary.WordCallback.class));
+        mUnderTest.prepare(dictionary, new WordComposer(), "he", 3, null);
+        mUnderTest.run();
+        Assert.assertTrue(heldLock[0]);
+        Assert.assertFalse(Thread.holdsLock(mUnderTest));
+    }
+
+    @Test
+    public void testDoesNotHoldItsMonitorWhileQueryingReentrantDictionary() {
+        final boolean[] heldLock = new boolean[]{true};
+        Dictionary dictionary = Mockito.mock(ResourceBinaryDictionary.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                heldLock[0] = Thread.holdsLock(mUnderTest);
+                return null;
+            }
+        }).when(dictionary).getWords(Mockito.any(WordComposer.class), Mockito.any(Dictionary.WordCallback.class));
+        mUnderTest.prepare(dictionary, new WordComposer(), "he", 3, null);
+        mUnderTest.run();
+        Assert.assertFalse(heldLock[0]);
+    }
+}
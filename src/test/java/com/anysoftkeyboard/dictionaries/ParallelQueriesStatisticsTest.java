@@ -0,0 +1,40 @@
+package com.anysoftkeyboard.dictionaries;
+
+import com.anysoftkeyboard.utils.Log;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AskGradleTestRunner.class)
+public class ParallelQueriesStatisticsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ParallelQueriesStatistics.reset();
+    }
+
+    @Test
+    public void testDumpsEmptyStatistics() {
+        Assert.assertEquals("Parallel dictionaries queries:" + Log.NEW_LINE
+                        + "Contacts: queries 0, missed deadline 0, average 0ms, max 0ms" + Log.NEW_LINE
+                        + "User: queries 0, missed deadline 0, average 0ms, max 0ms" + Log.NEW_LINE
+                        + "Main: queries 0, missed deadline 0, average 0ms, max 0ms",
+                ParallelQueriesStatistics.dumpStatistics());
+    }
+
+    @Test
+    public void testMissedDeadlineIsNotPartOfTheAverage() {
+        ParallelQueriesStatistics.recordQuery(Suggest.DictionarySource.Main, 10);
+        ParallelQueriesStatistics.recordQuery(Suggest.DictionarySource.Main, 30);
+        ParallelQueriesStatistics.recordQuery(Suggest.DictionarySource.Main, Suggest.QUERY_DURATION_MISSED_DEADLINE);
+        ParallelQueriesStatistics.recordQuery(Suggest.DictionarySource.User, 2);
+
+        final String statistics = ParallelQueriesStatistics.dumpStatistics();
+        Assert.assertTrue(statistics, statistics.contains("Main: queries 3, missed deadline 1, average 20ms, max 30ms"));
+        Assert.assertTrue(statistics, statistics.contains("User: queries 1, missed deadline 0, average 2ms, max 2ms"));
+        Assert.assertTrue(statistics, statistics.contains("Contacts: queries 0, missed deadline 0, average 0ms, max 0ms"));
+    }
+}
@@ -0,0 +1,101 @@
+package com.anysoftkeyboard.dictionaries;
+
+import com.anysoftkeyboard.base.dictionaries.Dictionary;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.anysoftkeyboard.dictionaries.jni.ResourceBinaryDictionary;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AskGradleTestRunner.class)
+public class SuggestTest {
+
+    private Suggest mUnderTest;
+    private ResourceBinaryDictionary mMainDictionary;
+    private final CountDownLatch mQueryStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseQuery = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        //like a long native traversal
+        mMainDictionary = Mockito.mock(ResourceBinaryDictionary.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                mQueryStarted.countDown();
+                mReleaseQuery.await();
+                return null;
+            }
+        }).when(mMainDictionary).getWords(Mockito.any(WordComposer.class), Mockito.any(Dictionary.WordCallback.class));
+        Mockito.doReturn(true).when(mMainDictionary).isValidWord(Mockito.any(CharSequence.class));
+
+        DictionaryAddOnAndBuilder builder = Mockito.mock(DictionaryAddOnAndBuilder.class);
+        Mockito.doReturn("en").when(builder).getLanguage();
+        Mockito.doReturn(mMainDictionary).when(builder).createDictionary();
+
+        mUnderTest = new Suggest(RuntimeEnvironment.application);
+        mUnderTest.setCorrectionMode(false, true, 2, 2, 2);
+        mUnderTest.setMainDictionary(RuntimeEnvironment.application, builder);
+    }
+
+    @Test
+    public void testValidWordCheckDoesNotWaitForMainDictionaryQuery() throws Exception {
+        Thread runningQuery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mUnderTest.getSuggestions(createWord("hel"), false);
+            }
+        });
+        runningQuery.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertTrue(mQueryStarted.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return mUnderTest.isValidWord("hello");
+                }
+            }).get(5, TimeUnit.SECONDS));
+        } finally {
+            mReleaseQuery.countDown();
+            runningQuery.join();
+            executor.shutdownNow();
+        }
+        Mockito.verify(mMainDictionary).isValidWord("hello");
+    }
+
+    @Test
+    public void testParallelQueryDoesNotWaitForMainDictionaryAfterDeadline() throws Exception {
+        ParallelQueriesStatistics.reset();
+        mUnderTest.setParallelDictionariesQueries(true, 10);
+        try {
+            mUnderTest.getSuggestions(createWord("hel"), false);
+            Assert.assertTrue(mQueryStarted.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Suggest.QUERY_DURATION_MISSED_DEADLINE, mUnderTest.getLastQueryDuration(Suggest.DictionarySource.Main));
+            Assert.assertTrue(ParallelQueriesStatistics.dumpStatistics().contains("Main: queries 1, missed deadline 1,"));
+        } finally {
+            mReleaseQuery.countDown();
+        }
+    }
+
+    private static WordComposer createWord(String typed) {
+        WordComposer word = new WordComposer();
+        for (char c : typed.toCharArray()) {
+            word.add(c, new int[]{c});
+        }
+        return word;
+    }
+}
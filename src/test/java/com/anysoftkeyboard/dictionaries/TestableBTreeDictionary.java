@@ -29,16 +29,27 @@ public class TestableBTreeDictionary extends BTreeDictionary{
     public int wordFrequencyRequestedToAddedToStorage = -1;
     public boolean storageIsClosed = false;
 
-    private Field mRootsField;
+    private Field mTrieField;
+    private Field mTrieModificationsCountField;
 
     protected TestableBTreeDictionary(String dictionaryName, Context context) throws NoSuchFieldException {
         super(dictionaryName, context);
-        mRootsField = BTreeDictionary.class.getDeclaredField("mRoots");
-        mRootsField.setAccessible(true);
+        mTrieField = BTreeDictionary.class.getDeclaredField("mTrie");
+        mTrieField.setAccessible(true);
+        mTrieModificationsCountField = BTreeDictionary.class.getDeclaredField("mTrieModificationsCount");
+        mTrieModificationsCountField.setAccessible(true);
     }
 
-    public NodeArray getRoot() throws IllegalAccessException {
-        return (NodeArray) mRootsField.get(this);
+    public CompactTrie getTrie() throws IllegalAccessException {
+        return (CompactTrie) mTrieField.get(this);
+    }
+
+    public int getTrieModificationsCount() throws IllegalAccessException {
+        return mTrieModificationsCountField.getInt(this);
+    }
+
+    public Object getResourceMonitor() {
+        return mResourceMonitor;
     }
 
     @Override
@@ -0,0 +1,82 @@
+package com.anysoftkeyboard.dictionaries;
+
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+@RunWith(AskGradleTestRunner.class)
+public class TrieSnapshotTest {
+
+    private File mSnapshotFile;
+    private CompactTrie mTrie;
+
+    @Before
+    public void setup() {
+        mSnapshotFile = TrieSnapshot.getSnapshotFile(RuntimeEnvironment.application, "test.trie");
+        TrieSnapshot.delete(mSnapshotFile);
+        mTrie = new CompactTrie(26);
+        mTrie.addWord("hello", 100);
+        mTrie.addWord("help", 90);
+        mTrie.addWord("phone", 20);
+    }
+
+    @Test
+    public void testReadsWrittenSnapshot() throws Exception {
+        Assert.assertNull(TrieSnapshot.read(mSnapshotFile, "1:2:3"));
+
+        Assert.assertTrue(TrieSnapshot.write(mSnapshotFile, "1:2:3", mTrie));
+        Assert.assertTrue(mSnapshotFile.exists());
+
+        CompactTrie trie = TrieSnapshot.read(mSnapshotFile, "1:2:3");
+        Assert.assertNotNull(trie);
+        Assert.assertEquals(100, trie.getWordFrequency("hello"));
+        Assert.assertEquals(90, trie.getWordFrequency("help"));
+        Assert.assertEquals(20, trie.getWordFrequency("phone"));
+        Assert.assertEquals(0, trie.getWordFrequency("hel"));
+        Assert.assertEquals(mTrie.getNodesCount(), trie.getNodesCount());
+    }
+
+    @Test
+    public void testDoesNotReadSnapshotOfOtherStorageVersion() throws Exception {
+        Assert.assertTrue(TrieSnapshot.write(mSnapshotFile, "1:2:3", mTrie));
+
+        Assert.assertNull(TrieSnapshot.read(mSnapshotFile, "1:2:4"));
+        //a newer version will replace it
+        mTrie.addWord("new", 1);
+        Assert.assertTrue(TrieSnapshot.write(mSnapshotFile, "1:2:4", mTrie));
+        Assert.assertEquals(1, TrieSnapshot.read(mSnapshotFile, "1:2:4").getWordFrequency("new"));
+    }
+
+    @Test
+    public void testDeletesCorruptedSnapshot() throws Exception {
+        Assert.assertTrue(TrieSnapshot.write(mSnapshotFile, "1:2:3", mTrie));
+        RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        Assert.assertNull(TrieSnapshot.read(mSnapshotFile, "1:2:3"));
+        Assert.assertFalse(mSnapshotFile.exists());
+    }
+
+    @Test
+    public void testDeletesInBackground() throws Exception {
+        Assert.assertTrue(TrieSnapshot.write(mSnapshotFile, "1:2:3", mTrie));
+
+        TrieSnapshot.deleteInBackground(mSnapshotFile);
+        final long timeout = System.currentTimeMillis() + 5000;
+        while (mSnapshotFile.exists() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mSnapshotFile.exists());
+    }
+}
@@ -0,0 +1,97 @@
+package com.anysoftkeyboard.dictionaries.jni;
+
+import com.anysoftkeyboard.base.dictionaries.NativeQueryBuffers;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AskGradleTestRunner.class)
+public class ResourceBinaryDictionaryTest {
+
+    private ResourceBinaryDictionary mUnderTest;
+
+    @Before
+    public void setUp() throws Exception {
+        mUnderTest = new ResourceBinaryDictionary("test", RuntimeEnvironment.application, 0, RuntimeEnvironment.application.getCacheDir(), true);
+    }
+
+    @Test
+    public void testSameThreadReusesItsQueryBuffers() {
+        Assert.assertNotNull(mUnderTest.getQueryBuffers());
+        Assert.assertSame(mUnderTest.getQueryBuffers(), mUnderTest.getQueryBuffers());
+    }
+
+    @Test
+    public void testEachThreadHasItsOwnQueryBuffers() throws Exception {
+        final NativeQueryBuffers mainThreadBuffers = mUnderTest.getQueryBuffers();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            NativeQueryBuffers otherThreadBuffers = executor.submit(new Callable<NativeQueryBuffers>() {
+                @Override
+                public NativeQueryBuffers call() throws Exception {
+                    return mUnderTest.getQueryBuffers();
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            Assert.assertNotNull(otherThreadBuffers);
+            Assert.assertNotSame(mainThreadBuffers, otherThreadBuffers);
+            Assert.assertNotSame(mainThreadBuffers.getBuffer(), otherThreadBuffers.getBuffer());
+            Assert.assertSame(mainThreadBuffers, mUnderTest.getQueryBuffers());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentQueriesDoNotOverwriteEachOtherInputCodes() throws Exception {
+        final int threadsCount = 4;
+        final int iterations = 2000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+        try {
+            List<Future<Integer>> mismatches = new ArrayList<>(threadsCount);
+            for (int threadIndex = 0; threadIndex < threadsCount; threadIndex++) {
+                final char typedCharacter = (char) ('a' + threadIndex);
+                mismatches.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final WordComposer word = new WordComposer();
+                        word.add(typedCharacter, new int[]{typedCharacter});
+                        startLatch.await();
+                        int mismatchesCount = 0;
+                        for (int i = 0; i < iterations; i++) {
+                            final NativeQueryBuffers queryBuffers = mUnderTest.getQueryBuffers();
+                            queryBuffers.setInputCodes(word);
+                            //giving the other threads a chance to write, if they share the buffer
+                            Thread.yield();
+                            final ByteBuffer buffer = queryBuffers.getBuffer();
+                            if (buffer.getInt(0) != typedCharacter) mismatchesCount++;
+                        }
+                        return mismatchesCount;
+                    }
+                }));
+            }
+            startLatch.countDown();
+            for (Future<Integer> mismatch : mismatches) {
+                Assert.assertEquals(0, mismatch.get(10, TimeUnit.SECONDS).intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.anysoftkeyboard.dictionaries.sqlite;
+
+import com.anysoftkeyboard.AnySoftKeyboard;
+import com.anysoftkeyboard.base.dictionaries.WordComposer;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@RunWith(AskGradleTestRunner.class)
+public class AutoDictionaryTest {
+    private static final String DB_NAME = "auto_dict_2.db";
+
+    //the flushes which were scheduled, and did not run yet.
+    private final List<Runnable> mFlushTasks = new ArrayList<>();
+    private final Executor mFlusher = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mFlushTasks.add(command);
+        }
+    };
+    private AnySoftKeyboard mMockIme;
+    private AutoDictionary mDictionaryUnderTest;
+
+    @Before
+    public void setup() {
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+        mMockIme = Mockito.mock(AnySoftKeyboard.class);
+        Mockito.doReturn(new WordComposer()).when(mMockIme).getCurrentWord();
+        Mockito.doReturn(true).when(mMockIme).addWordToDictionary(Mockito.anyString());
+        mDictionaryUnderTest = new AutoDictionary(RuntimeEnvironment.application, "en", mFlusher);
+        mDictionaryUnderTest.loadDictionary();
+    }
+
+    @After
+    public void tearDown() {
+        mDictionaryUnderTest.close();
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+    }
+
+    private static WordComposer createWord(String word) {
+        WordComposer wordComposer = new WordComposer();
+        for (int i = 0; i < word.length(); i++) {
+            wordComposer.add(word.charAt(i), new int[]{word.charAt(i)});
+        }
+        return wordComposer;
+    }
+
+    private void runFlushTasks() {
+        while (mFlushTasks.size() > 0) {
+            mFlushTasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testFlushesInTheBackgroundWhenTooManyWordsArePending() {
+        for (int i = 0; i < 63; i++) {
+            Assert.assertFalse(mDictionaryUnderTest.addWord(createWord("word" + i), AutoDictionary.AdditionType.Typed, mMockIme));
+        }
+        Assert.assertEquals(0, mFlushTasks.size());
+        mDictionaryUnderTest.addWord(createWord("word63"), AutoDictionary.AdditionType.Typed, mMockIme);
+        Assert.assertEquals(1, mFlushTasks.size());
+        //nothing was written on the calling thread
+        Assert.assertEquals(0, mDictionaryUnderTest.getWordFrequency("word0"));
+        //the scheduled flush will also write the words added until it runs
+        mDictionaryUnderTest.addWord(createWord("word64"), AutoDictionary.AdditionType.Typed, mMockIme);
+        Assert.assertEquals(1, mFlushTasks.size());
+
+        runFlushTasks();
+        Assert.assertEquals(1, mDictionaryUnderTest.getWordFrequency("word0"));
+        Assert.assertEquals(1, mDictionaryUnderTest.getWordFrequency("word63"));
+        Assert.assertEquals(1, mDictionaryUnderTest.getWordFrequency("word64"));
+    }
+
+    @Test
+    public void testFlushPendingWordsWritesInTheBackground() {
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Picked, mMockIme);
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Typed, mMockIme);
+        mDictionaryUnderTest.flushPendingWords();
+        Assert.assertEquals(1, mFlushTasks.size());
+        Assert.assertEquals(0, mDictionaryUnderTest.getWordFrequency("hello"));
+
+        runFlushTasks();
+        Assert.assertEquals(4, mDictionaryUnderTest.getWordFrequency("hello"));
+        //nothing is pending now
+        mDictionaryUnderTest.flushPendingWords();
+        Assert.assertEquals(0, mFlushTasks.size());
+        //continues from the flushed frequency
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Typed, mMockIme);
+        mDictionaryUnderTest.flushPendingWords();
+        runFlushTasks();
+        Assert.assertEquals(5, mDictionaryUnderTest.getWordFrequency("hello"));
+    }
+
+    @Test
+    public void testPromotedWordIsDeletedAfterTheFlush() {
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Picked, mMockIme);
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Picked, mMockIme);
+        mDictionaryUnderTest.flushPendingWords();
+        runFlushTasks();
+        Assert.assertEquals(6, mDictionaryUnderTest.getWordFrequency("hello"));
+
+        Mockito.verify(mMockIme, Mockito.never()).addWordToDictionary(Mockito.anyString());
+        Assert.assertTrue(mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Picked, mMockIme));
+        Mockito.verify(mMockIme).addWordToDictionary("hello");
+        Assert.assertEquals(1, mFlushTasks.size());
+
+        runFlushTasks();
+        Assert.assertEquals(0, mDictionaryUnderTest.getWordFrequency("hello"));
+    }
+
+    @Test
+    public void testClosingWritesThePendingWordsToTheStorage() {
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Typed, mMockIme);
+        mDictionaryUnderTest.addWord(createWord("hello"), AutoDictionary.AdditionType.Typed, mMockIme);
+        mDictionaryUnderTest.flushPendingWords();
+        mDictionaryUnderTest.close();
+        //the flush which was scheduled before closing has nothing left to write
+        runFlushTasks();
+
+        AutoDictionary reopened = new AutoDictionary(RuntimeEnvironment.application, "en", mFlusher);
+        reopened.loadDictionary();
+        try {
+            Assert.assertEquals(2, reopened.getWordFrequency("hello"));
+        } finally {
+            reopened.close();
+        }
+    }
+}
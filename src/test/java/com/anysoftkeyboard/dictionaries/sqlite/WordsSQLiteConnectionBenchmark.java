@@ -0,0 +1,93 @@
+package com.anysoftkeyboard.dictionaries.sqlite;
+
+import com.anysoftkeyboard.base.dictionaries.WordsCursor;
+import com.anysoftkeyboard.utils.Log;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timings of the storage. Not part of the tests run, remove the Ignore annotation to run it.
+ */
+@Ignore("Benchmark")
+@RunWith(AskGradleTestRunner.class)
+public class WordsSQLiteConnectionBenchmark {
+    private static final String DB_NAME = "benchmark_words.db";
+
+    private WordsSQLiteConnection mConnectionUnderTest;
+
+    @Before
+    public void setup() {
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+    }
+
+    @After
+    public void tearDown() {
+        mConnectionUnderTest.close();
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void testThroughputOf50kWords() throws Exception {
+        final int wordsCount = 50000;
+
+        long startTime = System.nanoTime();
+        for (int wordIndex = 0; wordIndex < wordsCount; wordIndex++) {
+            mConnectionUnderTest.addWord("word" + wordIndex, 1 + (wordIndex % 255));
+        }
+        final long queueAddsTime = System.nanoTime() - startTime;
+        //reading the words writes whatever was not written yet
+        startTime = System.nanoTime();
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        final long addAndLoadTime = System.nanoTime() - startTime;
+        Assert.assertEquals(wordsCount, words.size());
+
+        startTime = System.nanoTime();
+        words = readWords(mConnectionUnderTest);
+        final long loadTime = System.nanoTime() - startTime;
+        Assert.assertEquals(wordsCount, words.size());
+
+        startTime = System.nanoTime();
+        for (int wordIndex = 0; wordIndex < wordsCount; wordIndex++) {
+            mConnectionUnderTest.deleteWord("word" + wordIndex);
+        }
+        Assert.assertEquals(0, readWords(mConnectionUnderTest).size());
+        final long deleteTime = System.nanoTime() - startTime;
+
+        Log.d("WordsSQLiteConnectionBenchmark", String.format(Locale.US,
+                "%d words: queued adds in %d ms, written and loaded in %d ms, loaded again in %d ms (%d words/sec), deleted in %d ms (%d words/sec).",
+                wordsCount, queueAddsTime / 1000000, addAndLoadTime / 1000000,
+                loadTime / 1000000, perSecond(wordsCount, loadTime),
+                deleteTime / 1000000, perSecond(wordsCount, deleteTime)));
+    }
+
+    private static long perSecond(int count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+
+    private static Map<String, Integer> readWords(WordsSQLiteConnection connection) {
+        Map<String, Integer> words = new HashMap<>();
+        WordsCursor cursor = connection.getWordsCursor();
+        try {
+            if (cursor.getCursor().moveToFirst()) {
+                do {
+                    Assert.assertNull("Word " + cursor.getCurrentWord() + " was read twice!", words.put(cursor.getCurrentWord(), cursor.getCurrentWordFrequency()));
+                } while (cursor.getCursor().moveToNext());
+            }
+        } finally {
+            cursor.close();
+        }
+        return words;
+    }
+}
@@ -0,0 +1,220 @@
+package com.anysoftkeyboard.dictionaries.sqlite;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.anysoftkeyboard.base.dictionaries.WordsCursor;
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(AskGradleTestRunner.class)
+public class WordsSQLiteConnectionTest {
+    private static final String DB_NAME = "test_words.db";
+
+    private WordsSQLiteConnection mConnectionUnderTest;
+
+    @Before
+    public void setup() {
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+    }
+
+    @After
+    public void tearDown() {
+        mConnectionUnderTest.close();
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void testAddWords() throws Exception {
+        mConnectionUnderTest.addWord("hello", 12);
+        //these two have the same hash-code
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        mConnectionUnderTest.addWord("Aa", 3);
+        mConnectionUnderTest.addWord("BB", 4);
+
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(3, words.size());
+        Assert.assertEquals(12, words.get("hello").intValue());
+        Assert.assertEquals(3, words.get("Aa").intValue());
+        Assert.assertEquals(4, words.get("BB").intValue());
+    }
+
+    @Test
+    public void testReplaceAndDeleteWords() throws Exception {
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.addWord("menny", 2);
+        Assert.assertEquals(2, readWords(mConnectionUnderTest).size());
+
+        //the same as BTreeDictionary.addWord does
+        mConnectionUnderTest.deleteWord("hello");
+        mConnectionUnderTest.addWord("hello", 5);
+        mConnectionUnderTest.deleteWord("menny");
+
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(5, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testWordsAreKeptAfterClose() throws Exception {
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.close();
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(1, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testLocales() throws Exception {
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.close();
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "fr");
+        mConnectionUnderTest.addWord("bonjour", 2);
+        //the same word, in a different locale
+        mConnectionUnderTest.addWord("hello", 3);
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(2, words.size());
+        Assert.assertEquals(2, words.get("bonjour").intValue());
+        Assert.assertEquals(3, words.get("hello").intValue());
+        mConnectionUnderTest.close();
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(1, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testNoLocale() throws Exception {
+        mConnectionUnderTest.close();
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "");
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.addWord("hello", 2);
+
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(2, words.get("hello").intValue());
+        mConnectionUnderTest.close();
+
+        //words without a locale are part of all locales
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        mConnectionUnderTest.deleteWord("hello");
+        Assert.assertEquals(0, readWords(mConnectionUnderTest).size());
+    }
+
+    @Test
+    public void testDeleteAndAddReplacesWordWithoutLocale() throws Exception {
+        mConnectionUnderTest.close();
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "");
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.close();
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        //the same as BTreeDictionary.addWord does, both are written in the same batch
+        mConnectionUnderTest.deleteWord("hello");
+        mConnectionUnderTest.addWord("hello", 5);
+
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(5, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testMutationsAfterCloseAreNotWritten() throws Exception {
+        mConnectionUnderTest.addWord("hello", 1);
+        mConnectionUnderTest.close();
+        mConnectionUnderTest.addWord("menny", 2);
+        mConnectionUnderTest.deleteWord("hello");
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(1, words.size());
+        Assert.assertEquals(1, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testUpgradeFromVersion7() throws Exception {
+        mConnectionUnderTest.close();
+        RuntimeEnvironment.application.deleteDatabase(DB_NAME);
+        final File dbFile = RuntimeEnvironment.application.getDatabasePath(DB_NAME);
+        dbFile.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        db.execSQL("CREATE TABLE WORDS (_id INTEGER PRIMARY KEY,word TEXT,frequency INTEGER,locale TEXT);");
+        db.execSQL("INSERT INTO WORDS (_id, word, frequency, locale) VALUES (1, 'hello', 1, 'en');");
+        db.execSQL("INSERT INTO WORDS (_id, word, frequency, locale) VALUES (2, 'hello', 7, 'en');");
+        db.execSQL("INSERT INTO WORDS (_id, word, frequency, locale) VALUES (3, 'menny', 2, 'en');");
+        db.execSQL("INSERT INTO WORDS (_id, word, frequency, locale) VALUES (4, 'hello', 4, 'fr');");
+        db.setVersion(7);
+        db.close();
+
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        Map<String, Integer> words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(2, words.size());
+        Assert.assertEquals(7, words.get("hello").intValue());
+        Assert.assertEquals(2, words.get("menny").intValue());
+
+        mConnectionUnderTest.addWord("hello", 9);
+        words = readWords(mConnectionUnderTest);
+        Assert.assertEquals(2, words.size());
+        Assert.assertEquals(9, words.get("hello").intValue());
+    }
+
+    @Test
+    public void testWordsVersionChangesWithTheWords() throws Exception {
+        final String emptyVersion = mConnectionUnderTest.getWordsVersion();
+        Assert.assertNotNull(emptyVersion);
+
+        mConnectionUnderTest.addWord("hello", 1);
+        final String oneWordVersion = mConnectionUnderTest.getWordsVersion();
+        Assert.assertNotEquals(emptyVersion, oneWordVersion);
+        Assert.assertEquals(oneWordVersion, mConnectionUnderTest.getWordsVersion());
+
+        mConnectionUnderTest.addWord("hello", 2);
+        final String changedFrequencyVersion = mConnectionUnderTest.getWordsVersion();
+        Assert.assertNotEquals(oneWordVersion, changedFrequencyVersion);
+
+        mConnectionUnderTest.deleteWord("hello");
+        Assert.assertNotEquals(changedFrequencyVersion, mConnectionUnderTest.getWordsVersion());
+        mConnectionUnderTest.close();
+
+        //other locales have their own words
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "fr");
+        final String frenchVersion = mConnectionUnderTest.getWordsVersion();
+        mConnectionUnderTest.close();
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "en");
+        mConnectionUnderTest.addWord("bonjour", 1);
+        mConnectionUnderTest.close();
+        mConnectionUnderTest = new WordsSQLiteConnection(RuntimeEnvironment.application, DB_NAME, "fr");
+        Assert.assertEquals(frenchVersion, mConnectionUnderTest.getWordsVersion());
+    }
+
+    private static Map<String, Integer> readWords(WordsSQLiteConnection connection) {
+        Map<String, Integer> words = new HashMap<>();
+        WordsCursor cursor = connection.getWordsCursor();
+        try {
+            if (cursor.getCursor().moveToFirst()) {
+                do {
+                    Assert.assertNull("Word " + cursor.getCurrentWord() + " was read twice!", words.put(cursor.getCurrentWord(), cursor.getCurrentWordFrequency()));
+                } while (cursor.getCursor().moveToNext());
+            }
+        } finally {
+            cursor.close();
+        }
+        return words;
+    }
+}
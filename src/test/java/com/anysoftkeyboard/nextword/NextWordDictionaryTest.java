@@ -1,5 +1,6 @@
 package com.anysoftkeyboard.nextword;
 
+import com.anysoftkeyboard.utils.Log;
 import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
 
 import org.junit.Assert;
@@ -8,7 +9,14 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 
 @RunWith(AskGradleTestRunner.class)
 public class NextWordDictionaryTest {
@@ -112,6 +120,292 @@ public class NextWordDictionaryTest {
         mNextWordDictionaryUnderTest.close();
     }
 
+    @Test
+    public void testUsageCountOrder() throws Exception {
+        mNextWordDictionaryUnderTest.load();
+
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "hello");
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "menny");
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "hello", "menny");
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "you");
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "hello", "menny", "you");
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "you", "hello");
+        //minimum usage
+        Iterator<String> nextWords = mNextWordDictionaryUnderTest.getNextWords("hello", 8, 2).iterator();
+        Assert.assertTrue(nextWords.hasNext());
+        Assert.assertEquals("you", nextWords.next());
+        Assert.assertFalse(nextWords.hasNext());
+        //max results
+        nextWords = mNextWordDictionaryUnderTest.getNextWords("hello", 1, 0).iterator();
+        Assert.assertTrue(nextWords.hasNext());
+        Assert.assertEquals("you", nextWords.next());
+        Assert.assertFalse(nextWords.hasNext());
+        //"hello" now has the same count as "you", but it got there later
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "hello", "you", "hello", "menny");
+
+        mNextWordDictionaryUnderTest.close();
+    }
+
+    @Test
+    public void testManyWords() throws Exception {
+        mNextWordDictionaryUnderTest.load();
+
+        for (int wordIndex = 0; wordIndex < 20000; wordIndex++) {
+            mNextWordDictionaryUnderTest.getNextWords("word" + wordIndex, 8, 0);
+        }
+        Assert.assertTrue(mNextWordDictionaryUnderTest.getEstimatedMemorySize() <= NextWordDictionary.DEFAULT_MAX_MEMORY_SIZE);
+        Assert.assertTrue(mNextWordDictionaryUnderTest.dumpDictionaryStatistics().firstWordCount > 1000);
+        Assert.assertTrue(mNextWordDictionaryUnderTest.dumpDictionaryStatistics().firstWordCount < 20000);
+        Assert.assertEquals(mNextWordDictionaryUnderTest.dumpDictionaryStatistics().firstWordCount, mNextWordDictionaryUnderTest.dumpDictionaryStatistics().secondWordCount);
+
+        //the last relation was not evicted, nor lost when the words ids were compacted
+        mNextWordDictionaryUnderTest.resetSentence();
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "word19998", "word19999");
+
+        mNextWordDictionaryUnderTest.close();
+    }
+
+    @Test
+    public void testTwoWordsContext() throws Exception {
+        NextWordDictionary dictionary = new NextWordDictionary(RuntimeEnvironment.application, "en", NextWordDictionary.DEFAULT_MAX_MEMORY_SIZE, true);
+        dictionary.load();
+        for (int usage = 0; usage < 3; usage++) {
+            typeSentence(dictionary, "i", "like", "cats");
+        }
+        for (int usage = 0; usage < 5; usage++) {
+            typeSentence(dictionary, "you", "like", "dogs");
+        }
+        typeSentence(dictionary, "we", "like", "birds");
+
+        //backing off to the single word context
+        dictionary.resetSentence();
+        assertHasNextWordsForWord(dictionary, "like", "dogs", "cats", "birds");
+        //the two words context comes first
+        dictionary.resetSentence();
+        dictionary.getNextWords("i", 8, 0);
+        assertHasNextWordsForWord(dictionary, "like", "cats", "dogs", "birds");
+        dictionary.resetSentence();
+        dictionary.getNextWords("we", 8, 0);
+        assertHasNextWordsForWord(dictionary, "like", "birds", "dogs", "cats");
+        //an unknown two words context
+        dictionary.resetSentence();
+        dictionary.getNextWords("they", 8, 0);
+        assertHasNextWordsForWord(dictionary, "like", "dogs", "cats", "birds");
+        //max results and minimum usage apply to both contexts
+        dictionary.resetSentence();
+        dictionary.getNextWords("i", 8, 0);
+        Iterator<String> nextWords = dictionary.getNextWords("like", 1, 0).iterator();
+        Assert.assertEquals("cats", nextWords.next());
+        Assert.assertFalse(nextWords.hasNext());
+        dictionary.resetSentence();
+        dictionary.getNextWords("we", 8, 0);
+        nextWords = dictionary.getNextWords("like", 8, 2).iterator();
+        Assert.assertEquals("dogs", nextWords.next());
+        Assert.assertEquals("cats", nextWords.next());
+        Assert.assertFalse(nextWords.hasNext());
+
+        dictionary.clearData();
+        dictionary.getNextWords("i", 8, 0);
+        assertHasNextWordsForWord(dictionary, "like");
+
+        dictionary.close();
+    }
+
+    @Test
+    public void testSingleWordContextIsTheDefault() throws Exception {
+        mNextWordDictionaryUnderTest.load();
+        for (int usage = 0; usage < 3; usage++) {
+            typeSentence(mNextWordDictionaryUnderTest, "i", "like", "cats");
+        }
+        for (int usage = 0; usage < 5; usage++) {
+            typeSentence(mNextWordDictionaryUnderTest, "you", "like", "dogs");
+        }
+
+        mNextWordDictionaryUnderTest.resetSentence();
+        mNextWordDictionaryUnderTest.getNextWords("i", 8, 0);
+        assertHasNextWordsForWord(mNextWordDictionaryUnderTest, "like", "dogs", "cats");
+
+        mNextWordDictionaryUnderTest.close();
+    }
+
+    private static void typeSentence(NextWordDictionary dictionary, String... words) {
+        dictionary.resetSentence();
+        for (String word : words) {
+            dictionary.getNextWords(word, 8, 0);
+        }
+    }
+
+    @Test
+    public void testEvictsLeastUsedContexts() throws Exception {
+        NextWordDictionary dictionary = new NextWordDictionary(RuntimeEnvironment.application, "en", 32 * 1024);
+        dictionary.load();
+        //a frequently used context
+        for (int usage = 0; usage < 50; usage++) {
+            dictionary.resetSentence();
+            dictionary.getNextWords("hello", 8, 0);
+            dictionary.getNextWords("menny", 8, 0);
+        }
+        //a lot of contexts, used once
+        for (int wordIndex = 0; wordIndex < 5000; wordIndex++) {
+            dictionary.getNextWords("word" + wordIndex, 8, 0);
+        }
+        Assert.assertTrue(dictionary.getEstimatedMemorySize() <= 32 * 1024);
+        Assert.assertTrue(dictionary.dumpDictionaryStatistics().firstWordCount < 1000);
+
+        dictionary.resetSentence();
+        assertHasNextWordsForWord(dictionary, "hello", "menny");
+    }
+
+    @Test
+    public void testEvictionWhenContextHasManyNextWords() throws Exception {
+        //when the words ids are compacted after eviction, the next-words are interned before their context,
+        //so the context's new id is larger than any of the old contexts' ids.
+        mNextWordDictionaryUnderTest.load();
+        for (int contextIndex = 0; contextIndex < 5; contextIndex++) {
+            typeSentence(mNextWordDictionaryUnderTest, "context" + contextIndex, "next" + contextIndex);
+        }
+        for (int wordIndex = 0; wordIndex < 99; wordIndex++) {
+            typeSentence(mNextWordDictionaryUnderTest, "hello", "word" + wordIndex);
+        }
+        final int memorySizeBeforeLastNextWord = mNextWordDictionaryUnderTest.getEstimatedMemorySize();
+        typeSentence(mNextWordDictionaryUnderTest, "hello", "word99");
+        final int memorySize = mNextWordDictionaryUnderTest.getEstimatedMemorySize();
+        Assert.assertTrue(memorySizeBeforeLastNextWord < memorySize);
+        mNextWordDictionaryUnderTest.close();
+
+        //the journal is replayed with a limit which is exceeded only by the last learned next-word
+        NextWordDictionary loadedDictionary = new NextWordDictionary(RuntimeEnvironment.application, "en", memorySize - 1);
+        loadedDictionary.load();
+        Assert.assertTrue(loadedDictionary.getEstimatedMemorySize() <= memorySize - 1);
+        Assert.assertTrue(loadedDictionary.dumpDictionaryStatistics().firstWordCount < 6);
+
+        loadedDictionary.close();
+    }
+
+    @Test
+    public void testEvictionOnZipfianTypingBenchmark() throws Exception {
+        final int maxMemorySize = 256 * 1024;
+        final int maxResults = 3;
+        NextWordDictionary dictionary = new NextWordDictionary(RuntimeEnvironment.application, "en", maxMemorySize);
+        dictionary.load();
+        ZipfianTyping typing = new ZipfianTyping(5000, 1234);
+        String currentWord = typing.nextWord();
+        String[] suggestions = new String[maxResults];
+        int hits = 0;
+        final int wordsToType = 100000;
+        for (int typed = 0; typed < wordsToType; typed++) {
+            int suggestionsCount = 0;
+            for (String suggestion : dictionary.getNextWords(currentWord, maxResults, 1)) {
+                suggestions[suggestionsCount++] = suggestion;
+            }
+            currentWord = typing.nextWord();
+            if (contains(suggestions, suggestionsCount, currentWord)) hits++;
+        }
+        final int contextsCount = dictionary.dumpDictionaryStatistics().firstWordCount;
+
+        //the same stream, with what we did before: random eviction of a container, over a fixed count of containers.
+        //This gets the same number of contexts the frequency-aware eviction ended up with.
+        typing = new ZipfianTyping(5000, 1234);
+        Random random = new Random(4321);
+        Map<String, NextWordsContainer> randomEvictionContainers = new HashMap<>();
+        List<String> randomEvictionWords = new ArrayList<>();
+        String previousWord = null;
+        currentWord = typing.nextWord();
+        int randomEvictionHits = 0;
+        for (int typed = 0; typed < wordsToType; typed++) {
+            if (previousWord != null) {
+                NextWordsContainer previousContainer = randomEvictionContainers.get(previousWord);
+                if (previousContainer == null) {
+                    if (randomEvictionContainers.size() >= contextsCount) {
+                        final int evictedIndex = random.nextInt(randomEvictionWords.size());
+                        randomEvictionContainers.remove(randomEvictionWords.get(evictedIndex));
+                        randomEvictionWords.set(evictedIndex, randomEvictionWords.get(randomEvictionWords.size() - 1));
+                        randomEvictionWords.remove(randomEvictionWords.size() - 1);
+                    }
+                    previousContainer = new NextWordsContainer(previousWord);
+                    randomEvictionContainers.put(previousWord, previousContainer);
+                    randomEvictionWords.add(previousWord);
+                }
+                previousContainer.markWordAsUsed(currentWord);
+            }
+            int suggestionsCount = 0;
+            NextWordsContainer currentContainer = randomEvictionContainers.get(currentWord);
+            if (currentContainer != null) {
+                for (NextWord nextWord : currentContainer.getNextWordSuggestions()) {
+                    suggestions[suggestionsCount++] = nextWord.nextWord;
+                    if (suggestionsCount == maxResults) break;
+                }
+            }
+            previousWord = currentWord;
+            currentWord = typing.nextWord();
+            if (contains(suggestions, suggestionsCount, currentWord)) randomEvictionHits++;
+        }
+
+        Log.d("NextWordDictionaryTest", String.format(Locale.US,
+                "Zipfian typing of %d words. Frequency-aware eviction: hit-rate %.2f%% with %d contexts in %d bytes (limit %d). Random eviction: hit-rate %.2f%% with %d contexts.",
+                wordsToType, 100f * hits / wordsToType, contextsCount, dictionary.getEstimatedMemorySize(), maxMemorySize,
+                100f * randomEvictionHits / wordsToType, randomEvictionContainers.size()));
+
+        Assert.assertTrue(dictionary.getEstimatedMemorySize() <= maxMemorySize);
+        Assert.assertTrue(hits > randomEvictionHits);
+    }
+
+    private static boolean contains(String[] words, int wordsCount, String word) {
+        for (int wordIndex = 0; wordIndex < wordsCount; wordIndex++) {
+            if (words[wordIndex].equals(word)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Words picked with a Zipfian distribution. Most of the time, the next word is
+     * one of a few (also Zipfian distributed) words that usually follow the current word.
+     */
+    private static class ZipfianTyping {
+        private static final int FOLLOWERS_COUNT = 8;
+        private final Random mRandom;
+        private final double[] mWordsDistribution;
+        private final double[] mFollowersDistribution;
+        private int mCurrentWord;
+
+        ZipfianTyping(int vocabularySize, long seed) {
+            mRandom = new Random(seed);
+            mWordsDistribution = createZipfianDistribution(vocabularySize);
+            mFollowersDistribution = createZipfianDistribution(FOLLOWERS_COUNT);
+            mCurrentWord = pick(mWordsDistribution);
+        }
+
+        String nextWord() {
+            if (mRandom.nextFloat() < 0.8f) {
+                final int follower = pick(mFollowersDistribution);
+                mCurrentWord = (mCurrentWord * 31 + follower * 7919 + 1) % mWordsDistribution.length;
+            } else {
+                mCurrentWord = pick(mWordsDistribution);
+            }
+            return "word" + mCurrentWord;
+        }
+
+        private int pick(double[] distribution) {
+            final double value = mRandom.nextDouble();
+            int index = Arrays.binarySearch(distribution, value);
+            if (index < 0) index = -index - 1;
+            return Math.min(index, distribution.length - 1);
+        }
+
+        private static double[] createZipfianDistribution(int size) {
+            double[] distribution = new double[size];
+            double sum = 0;
+            for (int rank = 1; rank <= size; rank++) {
+                sum += 1.0 / rank;
+                distribution[rank - 1] = sum;
+            }
+            for (int index = 0; index < size; index++) {
+                distribution[index] /= sum;
+            }
+            return distribution;
+        }
+    }
+
     private static void assertHasNextWordsForWord(NextWordDictionary nextWordDictionaryUnderTest, String word, String... expectedNextWords) throws Exception {
         Iterator<String> nextWordsIterator = nextWordDictionaryUnderTest.getNextWords(word, 8, 0).iterator();
         for (String expectedNextWord : expectedNextWords) {
@@ -0,0 +1,157 @@
+package com.anysoftkeyboard.nextword;
+
+import android.content.Context;
+
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(AskGradleTestRunner.class)
+public class NextWordsContainerTest {
+
+    @Test
+    public void testOrderedByUsage() {
+        NextWordsContainer container = new NextWordsContainer("hello");
+        container.markWordAsUsed("menny");
+        container.markWordAsUsed("you");
+        container.markWordAsUsed("world");
+        assertOrder(container, "menny", "you", "world");
+
+        container.markWordAsUsed("world");
+        assertOrder(container, "world", "menny", "you");
+
+        container.markWordAsUsed("you");
+        //same count as "world", but got there later
+        assertOrder(container, "world", "you", "menny");
+
+        container.markWordAsUsed("menny");
+        container.markWordAsUsed("menny");
+        assertOrder(container, "menny", "world", "you");
+        Assert.assertEquals(3, container.getNextWordSuggestions().get(0).getUsedCount());
+        Assert.assertEquals(2, container.getNextWordSuggestions().get(1).getUsedCount());
+        Assert.assertEquals(2, container.getNextWordSuggestions().get(2).getUsedCount());
+    }
+
+    @Test
+    public void testAddNextWord() {
+        NextWordsContainer container = new NextWordsContainer("hello");
+        container.addNextWord("menny", 2);
+        container.addNextWord("you", 5);
+        container.addNextWord("world", 2);
+        assertOrder(container, "you", "menny", "world");
+
+        container.addNextWord("world", 4);
+        assertOrder(container, "world", "you", "menny");
+        Assert.assertEquals(6, container.getNextWordSuggestions().get(0).getUsedCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSuggestionsAreReadOnly() {
+        NextWordsContainer container = new NextWordsContainer("hello", Collections.singletonList("menny"));
+        container.getNextWordSuggestions().remove(0);
+    }
+
+    @Test
+    public void testSuggestionsAreNotChangedByLaterUsage() {
+        NextWordsContainer container = new NextWordsContainer("hello");
+        container.markWordAsUsed("menny");
+        container.markWordAsUsed("you");
+        List<NextWord> nextWords = container.getNextWordSuggestions();
+
+        container.markWordAsUsed("world");
+        container.markWordAsUsed("you");
+        for (NextWord nextWord : nextWords) {
+            Assert.assertNotNull(nextWord.nextWord);
+        }
+        Assert.assertEquals(2, nextWords.size());
+        Assert.assertEquals("menny", nextWords.get(0).nextWord);
+        Assert.assertEquals("you", nextWords.get(1).nextWord);
+        assertOrder(container, "you", "menny", "world");
+    }
+
+    @Test
+    public void testConcurrentMarking() throws Exception {
+        final NextWordsContainer container = new NextWordsContainer("hello");
+        final int threadsCount = 4;
+        final int wordsCount = 20;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadsCount];
+        for (int threadIndex = 0; threadIndex < threadsCount; threadIndex++) {
+            threads[threadIndex] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    //word N is marked N+1 times, by each thread
+                    for (int wordIndex = 0; wordIndex < wordsCount; wordIndex++) {
+                        for (int usage = 0; usage <= wordIndex; usage++) {
+                            container.markWordAsUsed("word" + wordIndex);
+                        }
+                    }
+                }
+            };
+            threads[threadIndex].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<NextWord> nextWords = container.getNextWordSuggestions();
+        Assert.assertEquals(wordsCount, nextWords.size());
+        for (int index = 0; index < wordsCount; index++) {
+            final int expectedWordIndex = wordsCount - index - 1;
+            Assert.assertEquals("word" + expectedWordIndex, nextWords.get(index).nextWord);
+            Assert.assertEquals(threadsCount * (expectedWordIndex + 1), nextWords.get(index).getUsedCount());
+        }
+    }
+
+    @Test
+    public void testOrderSurvivesPersistence() throws Exception {
+        NextWordsContainer container = new NextWordsContainer("hello");
+        container.markWordAsUsed("menny");
+        container.markWordAsUsed("you");
+        container.markWordAsUsed("world");
+        container.markWordAsUsed("world");
+        container.markWordAsUsed("you");
+        container.markWordAsUsed("you");
+        assertOrder(container, "you", "world", "menny");
+
+        OutputStream outputStream = RuntimeEnvironment.application.openFileOutput("next_words_container_test.txt", Context.MODE_PRIVATE);
+        NextWordsFileParserV1 parserV1 = new NextWordsFileParserV1();
+        parserV1.storeNextWords(Collections.singletonList(container), outputStream);
+        outputStream.flush();
+        outputStream.close();
+
+        InputStream inputStream = RuntimeEnvironment.application.openFileInput("next_words_container_test.txt");
+        Assert.assertEquals(1, inputStream.read());
+        NextWordsContainer loadedContainer = parserV1.loadStoredNextWords(inputStream).iterator().next();
+        inputStream.close();
+
+        Assert.assertEquals("hello", loadedContainer.word);
+        assertOrder(loadedContainer, "you", "world", "menny");
+        //usage after loading is ordered the same way
+        loadedContainer.markWordAsUsed("menny");
+        assertOrder(loadedContainer, "menny", "you", "world");
+    }
+
+    private static void assertOrder(NextWordsContainer container, String... expectedNextWords) {
+        List<NextWord> nextWords = container.getNextWordSuggestions();
+        Assert.assertEquals(expectedNextWords.length, nextWords.size());
+        for (int index = 0; index < expectedNextWords.length; index++) {
+            Assert.assertEquals(expectedNextWords[index], nextWords.get(index).nextWord);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.anysoftkeyboard.nextword;
+
+import android.content.Context;
+
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AskGradleTestRunner.class)
+public class NextWordsFileParserV2Test {
+
+    @Test
+    public void testFlowKeepsCountsAndOrder() throws Exception {
+        List<NextWordsContainer> words = createWords();
+
+        OutputStream outputStream = RuntimeEnvironment.application.openFileOutput("next_words_test.txt", Context.MODE_PRIVATE);
+        NextWordsFileParserV2 parserV2 = new NextWordsFileParserV2();
+        parserV2.storeNextWords(words, outputStream);
+        outputStream.flush();
+        outputStream.close();
+
+        InputStream inputStream = RuntimeEnvironment.application.openFileInput("next_words_test.txt");
+        //reading VERSION
+        Assert.assertEquals(2, inputStream.read());
+        Iterable<NextWordsContainer> loadedWords = parserV2.loadStoredNextWords(inputStream);
+        inputStream.close();
+
+        assertSameWords(words, loadedWords);
+    }
+
+    @Test
+    public void testReadsFromBuffer() throws Exception {
+        List<NextWordsContainer> words = createWords();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        NextWordsFileParserV2 parserV2 = new NextWordsFileParserV2();
+        parserV2.storeNextWords(words, outputStream);
+
+        ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray());
+        Assert.assertEquals(2, buffer.get());
+        assertSameWords(words, parserV2.loadStoredNextWords(buffer));
+        Assert.assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        List<NextWordsContainer> words = createWords();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        NextWordsFileParserV2 parserV2 = new NextWordsFileParserV2();
+        parserV2.storeNextWords(words, outputStream);
+
+        final byte[] fileBytes = outputStream.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(fileBytes, 0, fileBytes.length - 3);
+        Assert.assertEquals(2, buffer.get());
+        List<NextWordsContainer> loadedWords = parserV2.loadStoredNextWords(buffer);
+        //the last entry was not complete
+        Assert.assertEquals(words.size() - 1, loadedWords.size());
+        assertSameWords(words.subList(0, words.size() - 1), loadedWords);
+    }
+
+    @Test
+    public void testBrokenLengths() throws Exception {
+        final int[] brokenLengths = new int[]{-1, Integer.MAX_VALUE, 1000};
+        for (int brokenLength : brokenLengths) {
+            List<NextWordsContainer> words = createWords();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            NextWordsFileParserV2 parserV2 = new NextWordsFileParserV2();
+            parserV2.storeNextWords(words, outputStream);
+            //one more entry, with a broken word length
+            NextWordsFileParserV2.writeVarint(outputStream, brokenLength);
+            outputStream.write(new byte[]{'a', 'b', 'c', 1, 1, 'd', 1});
+
+            final byte[] fileBytes = outputStream.toByteArray();
+            //the entries count is the second byte
+            fileBytes[1] = (byte) (words.size() + 1);
+            ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+            Assert.assertEquals(2, buffer.get());
+            assertSameWords(words, parserV2.loadStoredNextWords(buffer));
+        }
+    }
+
+    @Test
+    public void testBrokenNextWordsCount() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(NextWordsFileParserV2.VERSION);
+        NextWordsFileParserV2.writeVarint(outputStream, 1);
+        NextWordsFileParserV2.writeVarint(outputStream, 2);
+        outputStream.write(new byte[]{'i', 's'});
+        NextWordsFileParserV2.writeVarint(outputStream, -1);
+        outputStream.write(new byte[]{2, 'i', 't', 1});
+
+        ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray());
+        Assert.assertEquals(2, buffer.get());
+        Assert.assertEquals(0, new NextWordsFileParserV2().loadStoredNextWords(buffer).size());
+    }
+
+    @Test
+    public void testVarint() throws Exception {
+        final int[] values = new int[]{0, 1, 127, 128, 255, 300, 16383, 16384, Integer.MAX_VALUE};
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (int value : values) {
+            NextWordsFileParserV2.writeVarint(outputStream, value);
+        }
+        //three one-byte values, four two-bytes values, one three-bytes value and one five-bytes value
+        Assert.assertEquals(3 + 2 * 4 + 3 + 5, outputStream.size());
+        ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray());
+        for (int value : values) {
+            Assert.assertEquals(value, NextWordsFileParserV2.readVarint(buffer));
+        }
+    }
+
+    @Test
+    public void testUpgradesVersion1File() throws Exception {
+        List<NextWordsContainer> words = new ArrayList<>();
+        words.add(new NextWordsContainer("hello", Arrays.asList("is", "me")));
+        words.add(new NextWordsContainer("is", Arrays.asList("it")));
+        OutputStream outputStream = RuntimeEnvironment.application.openFileOutput("next_words_en.txt", Context.MODE_PRIVATE);
+        new NextWordsFileParserV1().storeNextWords(words, outputStream);
+        outputStream.close();
+
+        NextWordsStorage storage = new NextWordsStorage(RuntimeEnvironment.application, "en");
+        assertSameWords(words, storage.loadStoredNextWords());
+
+        InputStream inputStream = RuntimeEnvironment.application.openFileInput("next_words_en.txt");
+        Assert.assertEquals(2, inputStream.read());
+        inputStream.close();
+        assertSameWords(words, storage.loadStoredNextWords());
+    }
+
+    private static List<NextWordsContainer> createWords() {
+        List<NextWordsContainer> words = new ArrayList<>();
+        NextWordsContainer hello = new NextWordsContainer("hello");
+        hello.addNextWord("is", 300);
+        hello.addNextWord("naïve", 2);
+        hello.addNextWord("שלום", 1);
+        words.add(hello);
+        words.add(new NextWordsContainer("is", Arrays.asList("it")));
+        StringBuilder longWord = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            //two bytes in UTF-8, so the length does not fit in a single byte
+            longWord.append('ש');
+        }
+        NextWordsContainer longContainer = new NextWordsContainer(longWord.toString());
+        longContainer.addNextWord("you", 20000);
+        longContainer.addNextWord(longWord.toString(), 1);
+        words.add(longContainer);
+        return words;
+    }
+
+    private static void assertSameWords(List<NextWordsContainer> expected, Iterable<NextWordsContainer> actual) {
+        int index = 0;
+        for (NextWordsContainer loadedWord : actual) {
+            NextWordsContainer word = expected.get(index);
+            Assert.assertEquals(word.word, loadedWord.word);
+            Assert.assertEquals(word.getNextWordSuggestions().size(), loadedWord.getNextWordSuggestions().size());
+            for (int nextWordIndex = 0; nextWordIndex < word.getNextWordSuggestions().size(); nextWordIndex++) {
+                NextWord nextWord = word.getNextWordSuggestions().get(nextWordIndex);
+                NextWord loadedNextWord = loadedWord.getNextWordSuggestions().get(nextWordIndex);
+                Assert.assertEquals(nextWord.nextWord, loadedNextWord.nextWord);
+                Assert.assertEquals(nextWord.getUsedCount(), loadedNextWord.getUsedCount());
+            }
+            index++;
+        }
+        Assert.assertEquals(expected.size(), index);
+    }
+}
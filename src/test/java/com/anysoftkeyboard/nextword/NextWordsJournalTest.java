@@ -0,0 +1,173 @@
+package com.anysoftkeyboard.nextword;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.menny.android.anysoftkeyboard.AskGradleTestRunner;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+@RunWith(AskGradleTestRunner.class)
+public class NextWordsJournalTest {
+    private NextWordsStorage mStorage;
+    private NextWordsJournal mUnderTest;
+
+    @Before
+    public void setUp() throws Exception {
+        mStorage = new NextWordsStorage(RuntimeEnvironment.application, "en");
+        mUnderTest = new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage);
+    }
+
+    @Test
+    public void testReplayEmpty() throws Exception {
+        Assert.assertEquals(0, replay(mUnderTest).size());
+        Assert.assertEquals(0, mUnderTest.getEntriesCount());
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        mUnderTest.append("hello", "menny");
+        mUnderTest.append("menny", "you");
+        mUnderTest.append("you", "hello");
+        Assert.assertEquals(3, mUnderTest.getEntriesCount());
+        mUnderTest.close();
+
+        NextWordsJournal loadedJournal = new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage);
+        assertEntries(replay(loadedJournal), "hello", "menny", "menny", "you", "you", "hello");
+        Assert.assertEquals(3, loadedJournal.getEntriesCount());
+        //appending after replay adds to the journal
+        loadedJournal.append("hello", "world");
+        loadedJournal.close();
+
+        assertEntries(replay(new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage)),
+                "hello", "menny", "menny", "you", "you", "hello", "hello", "world");
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        mUnderTest.append("hello", "menny");
+        mUnderTest.append("menny", "you");
+        mUnderTest.compact(Collections.singletonList(new NextWordsContainer("hello", Collections.singletonList("menny"))));
+        Assert.assertEquals(0, mUnderTest.getEntriesCount());
+        mUnderTest.append("you", "hello");
+        mUnderTest.close();
+
+        Iterator<NextWordsContainer> snapshot = mStorage.loadStoredNextWords().iterator();
+        Assert.assertTrue(snapshot.hasNext());
+        NextWordsContainer container = snapshot.next();
+        Assert.assertEquals("hello", container.word);
+        Assert.assertEquals("menny", container.getNextWordSuggestions().get(0).nextWord);
+        Assert.assertFalse(snapshot.hasNext());
+        //only what was appended after the snapshot
+        assertEntries(replay(new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage)), "you", "hello");
+        //the rotated journal was deleted with the snapshot stored
+        Assert.assertFalse(RuntimeEnvironment.application.getFileStreamPath("next_words_en.journal.old").exists());
+        Assert.assertFalse(RuntimeEnvironment.application.getFileStreamPath("next_words_en.txt.tmp").exists());
+    }
+
+    @Test
+    public void testCompactionRequestedWhileEarlierCompactionIsWaiting() throws Exception {
+        mUnderTest.append("hello", "menny");
+        mUnderTest.compact(Collections.singletonList(new NextWordsContainer("hello", Collections.singletonList("menny"))));
+        mUnderTest.append("menny", "you");
+        mUnderTest.compact(Collections.singletonList(new NextWordsContainer("menny", Collections.singletonList("you"))));
+        mUnderTest.append("you", "hello");
+        mUnderTest.close();
+
+        Iterator<NextWordsContainer> snapshot = mStorage.loadStoredNextWords().iterator();
+        Assert.assertEquals("menny", snapshot.next().word);
+        Assert.assertFalse(snapshot.hasNext());
+        //the entry appended after the last compaction was not deleted with the earlier compaction's journal
+        assertEntries(replay(new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage)), "you", "hello");
+    }
+
+    @Test
+    public void testRecoversCompactionKilledBeforeSnapshotWasStored() throws Exception {
+        mUnderTest.append("hello", "menny");
+        mUnderTest.append("menny", "you");
+        mUnderTest.close();
+        //killed after the journal was rotated, while the snapshot was written
+        Assert.assertTrue(RuntimeEnvironment.application.getFileStreamPath("next_words_en.journal")
+                .renameTo(RuntimeEnvironment.application.getFileStreamPath("next_words_en.journal.old")));
+        OutputStream outputStream = RuntimeEnvironment.application.openFileOutput("next_words_en.txt.tmp", Context.MODE_PRIVATE);
+        outputStream.write(new byte[]{2, 1, 5, 'h', 'e'});
+        outputStream.close();
+
+        NextWordsJournal loadedJournal = new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage);
+        loadedJournal.recoverInterruptedCompaction();
+        Assert.assertFalse(mStorage.loadStoredNextWords().iterator().hasNext());
+        Assert.assertFalse(RuntimeEnvironment.application.getFileStreamPath("next_words_en.txt.tmp").exists());
+        assertEntries(replay(loadedJournal), "hello", "menny", "menny", "you");
+    }
+
+    @Test
+    public void testRecoversCompactionKilledAfterSnapshotWasStored() throws Exception {
+        mUnderTest.append("hello", "menny");
+        mUnderTest.close();
+        //killed after the rotated journal was deleted, before the snapshot replaced the stored file
+        Assert.assertTrue(RuntimeEnvironment.application.deleteFile("next_words_en.journal"));
+        Assert.assertTrue(mStorage.storeNextWordsInTemporaryFile(Collections.singletonList(new NextWordsContainer("hello", Collections.singletonList("menny")))));
+
+        NextWordsJournal loadedJournal = new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage);
+        loadedJournal.recoverInterruptedCompaction();
+        Iterator<NextWordsContainer> snapshot = mStorage.loadStoredNextWords().iterator();
+        Assert.assertTrue(snapshot.hasNext());
+        Assert.assertEquals("hello", snapshot.next().word);
+        Assert.assertFalse(snapshot.hasNext());
+        //the entry is only in the snapshot
+        assertEntries(replay(loadedJournal));
+    }
+
+    @Test
+    public void testIgnoresPartialEntry() throws Exception {
+        OutputStream outputStream = RuntimeEnvironment.application.openFileOutput("next_words_en.journal", Context.MODE_PRIVATE);
+        outputStream.write(new byte[]{5, 'h', 'e', 'l', 'l', 'o', 2, 'i', 's', 4, 'y', 'o', 'u'});
+        outputStream.close();
+
+        assertEntries(replay(mUnderTest), "hello", "is");
+        Assert.assertEquals(1, mUnderTest.getEntriesCount());
+    }
+
+    @Test
+    public void testSkipsInvalidWords() throws Exception {
+        StringBuilder longWord = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longWord.append('a');
+        }
+        mUnderTest.append("hello", longWord.toString());
+        mUnderTest.append("", "hello");
+        mUnderTest.append("hello", "menny");
+        mUnderTest.close();
+
+        assertEntries(replay(new NextWordsJournal(RuntimeEnvironment.application, "en", mStorage)), "hello", "menny");
+    }
+
+    private static List<String> replay(NextWordsJournal journal) {
+        final List<String> entries = new ArrayList<>();
+        journal.replay(new NextWordsJournal.JournalEntryListener() {
+            @Override
+            public void onJournalEntry(@NonNull String previousWord, @NonNull String nextWord) {
+                entries.add(previousWord);
+                entries.add(nextWord);
+            }
+        });
+        return entries;
+    }
+
+    private static void assertEntries(List<String> entries, String... expectedWords) {
+        Assert.assertEquals(expectedWords.length, entries.size());
+        for (int wordIndex = 0; wordIndex < expectedWords.length; wordIndex++) {
+            Assert.assertEquals(expectedWords[wordIndex], entries.get(wordIndex));
+        }
+    }
+}